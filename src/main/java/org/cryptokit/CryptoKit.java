@@ -0,0 +1,241 @@
+package org.cryptokit;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.HardwareSupport;
+import org.cryptokit.core.ProviderRegistry;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.cryptokit.password.PasswordHasher;
+
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Library-wide operations.
+ * <p/>
+ * The first crypto calls in a JVM are much slower than later ones: providers
+ * are loaded, SecureRandom is seeded and the hot methods are still
+ * interpreted. Call warmUp() during startup, before taking traffic, to pay
+ * that cost up front. Warm-up runs in stages, each getting an equal share of
+ * the remaining time budget, and stops a stage early when its share runs out.
+ * <p/>
+ * Example:
+ * CryptoKit.WarmUpReport report = CryptoKit.warmUp(2000);
+ * logger.info(report.toString());
+ */
+public class CryptoKit {
+    public static final long DEFAULT_WARM_UP_MILLIS = 2000;
+
+    private static final Logger LOGGER = Logger.getLogger(CryptoKit.class.getName());
+
+    // Roughly the invocation count at which HotSpot compiles a method with C2
+    private static final int WARM_UP_OPERATIONS = 10000;
+    private static final int WARM_UP_KEY_OPERATIONS = 1000;
+    private static final int WARM_UP_PASSWORD_OPERATIONS = 50;
+    // Low, so each hash is quick but still runs the PBKDF2 inner loop many times
+    private static final int WARM_UP_PASSWORD_ITERATIONS = 1000;
+    private static final int WARM_UP_PLAIN_TEXT_LENGTH = 256;
+
+    /**
+     * What one warm-up stage did.
+     */
+    public static class Stage {
+        private final String mName;
+        private final long mOperations;
+        private final long mElapsedMillis;
+        private final boolean mCompleted;
+
+        Stage(final String name, final long operations, final long elapsedMillis, final boolean completed) {
+            mName = name;
+            mOperations = operations;
+            mElapsedMillis = elapsedMillis;
+            mCompleted = completed;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getOperations() {
+            return mOperations;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        // False if the stage ran out of time before all its operations
+        public boolean isCompleted() {
+            return mCompleted;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mOperations + " operations in " + mElapsedMillis + " ms" + (mCompleted ? "" : " (out of time)");
+        }
+    }
+
+    /**
+     * The outcome of a warm-up.
+     */
+    public static class WarmUpReport {
+        private final List<Stage> mStages;
+        private final long mElapsedMillis;
+
+        WarmUpReport(final List<Stage> stages, final long elapsedMillis) {
+            mStages = Collections.unmodifiableList(stages);
+            mElapsedMillis = elapsedMillis;
+        }
+
+        public List<Stage> getStages() {
+            return mStages;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        // True if every stage ran all its operations within the budget
+        public boolean isCompleted() {
+            for (final Stage stage : mStages) {
+                if (!stage.isCompleted())
+                    return false;
+            }
+
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("Crypto warm-up took ").append(mElapsedMillis).append(" ms");
+            for (final Stage stage : mStages)
+                builder.append("; ").append(stage);
+
+            return builder.toString();
+        }
+    }
+
+    private interface Operation {
+        void run() throws GeneralSecurityException;
+    }
+
+    /**
+     * Warm up with the default time budget.
+     */
+    public static WarmUpReport warmUp() {
+        return warmUp(DEFAULT_WARM_UP_MILLIS);
+    }
+
+    /**
+     * Load providers, seed random sources and run enough representative
+     * operations for the JIT to compile them, within a time budget.
+     *
+     * @param budgetMillis Time budget, a stage in progress may overrun it by one operation
+     * @return What was warmed up and how long it took
+     */
+    public static WarmUpReport warmUp(final long budgetMillis) {
+        if (budgetMillis < 1)
+            throw new InvalidInputException("Warm-up budget must be 1 ms or greater");
+
+        final long start = System.currentTimeMillis();
+        final long deadline = start + budgetMillis;
+        final List<Stage> stages = new ArrayList<>();
+
+        stages.add(warmUpProviders());
+        stages.add(runStage("random", WARM_UP_KEY_OPERATIONS, stageDeadline(deadline, 3), () -> {
+            Crypto.generateRandomBytes(CryptoConstants.AES_BLOCK_SIZE_BYTES);
+            RandomKeyGenerator.generateSymmetricKey();
+        }));
+        stages.add(warmUpSymmetric(stageDeadline(deadline, 2)));
+        stages.add(warmUpPassword(deadline));
+
+        final WarmUpReport report = new WarmUpReport(stages, System.currentTimeMillis() - start);
+        LOGGER.info(report.toString());
+
+        return report;
+    }
+
+    // Load every primitive from its provider, and detect AES acceleration which SymmetricCrypto AUTO mode needs
+    private static Stage warmUpProviders() {
+        final long start = System.currentTimeMillis();
+        long loaded = 0;
+
+        final String[] ciphers = {CryptoConstants.AES_CIPHER_ALGORITHM, CryptoConstants.AES_GCM_CIPHER_ALGORITHM,
+                CryptoConstants.CHACHA20_POLY1305_CIPHER_ALGORITHM, CryptoConstants.AES_KEY_WRAP_ALGORITHM};
+        for (final String cipher : ciphers) {
+            try {
+                ProviderRegistry.getCipher(cipher);
+                loaded++;
+            } catch (GeneralSecurityException e) {
+                LOGGER.fine("Skipping warm-up of unsupported cipher " + cipher + ": " + e);
+            }
+        }
+        try {
+            ProviderRegistry.getMac(CryptoConstants.HMAC_ALGORITHM);
+            loaded++;
+            ProviderRegistry.getSecretKeyFactory(CryptoConstants.PBKDF2_HASH_ALGORITHM);
+            loaded++;
+        } catch (GeneralSecurityException e) {
+            LOGGER.fine("Skipping warm-up of unsupported algorithm: " + e);
+        }
+        HardwareSupport.isAesAccelerated();
+
+        return new Stage("providers", loaded, System.currentTimeMillis() - start, true);
+    }
+
+    // Encrypt and decrypt round trips, cycling through the modes
+    private static Stage warmUpSymmetric(final long deadline) {
+        final SecretKey key = RandomKeyGenerator.generateSymmetricKey();
+        final List<SymmetricCrypto> cryptos = new ArrayList<>();
+        for (final SymmetricCrypto.Mode mode : SymmetricCrypto.Mode.values()) {
+            if (mode != SymmetricCrypto.Mode.AUTO)
+                cryptos.add(new SymmetricCrypto(key, mode));
+        }
+        final String plainText = new String(new char[WARM_UP_PLAIN_TEXT_LENGTH]).replace('\0', 'x');
+        final int[] next = {0};
+
+        return runStage("symmetric", WARM_UP_OPERATIONS, deadline, () -> {
+            final SymmetricCrypto crypto = cryptos.get(next[0]++ % cryptos.size());
+            crypto.decrypt(crypto.encrypt(plainText));
+        });
+    }
+
+    private static Stage warmUpPassword(final long deadline) {
+        final PasswordHasher hasher = new PasswordHasher();
+        hasher.setIterations(WARM_UP_PASSWORD_ITERATIONS);
+
+        return runStage("password", WARM_UP_PASSWORD_OPERATIONS, deadline, () -> {
+            hasher.isValidPassword("warm-up password", hasher.hash("warm-up password"));
+        });
+    }
+
+    // Run an operation up to the target count or until the deadline
+    private static Stage runStage(final String name, final int targetOperations, final long deadline, final Operation operation) {
+        final long start = System.currentTimeMillis();
+        long operations = 0;
+
+        try {
+            while (operations < targetOperations && System.currentTimeMillis() < deadline) {
+                operation.run();
+                operations++;
+            }
+        } catch (GeneralSecurityException | RuntimeException e) {
+            LOGGER.warning("Crypto warm-up stage " + name + " failed: " + e);
+        }
+
+        return new Stage(name, operations, System.currentTimeMillis() - start, operations == targetOperations);
+    }
+
+    // An equal share of the time left for each of the remaining stages
+    private static long stageDeadline(final long deadline, final int remainingStages) {
+        final long now = System.currentTimeMillis();
+
+        return now + Math.max(0, deadline - now) / remainingStages;
+    }
+}
@@ -0,0 +1,288 @@
+package org.cryptokit.config;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.crypto.EncryptedString;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A properties file whose values may be crypto tokens, decrypted once and
+ * reloaded when the file changes.
+ * <p/>
+ * Values that are crypto tokens are decrypted when the file is loaded, in
+ * parallel, or on their first lookup if lazy loading is set. Other values
+ * are returned as they are. Every lookup after that is a read from an
+ * immutable snapshot, with no decryption and no locking.
+ * <p/>
+ * watch() reloads the file whenever it changes. A reload only decrypts
+ * entries whose token changed, keeps the decrypted value of the rest, and
+ * swaps the new snapshot in atomically, so a reader sees either the old
+ * configuration or the new one, never a mix. If a reload fails, for example
+ * because a token does not decrypt, the previous snapshot stays in place.
+ * Replace the file atomically, by writing a new file and renaming it over
+ * the old one, so a reload never reads a half-written file.
+ * <p/>
+ * Example:
+ * EncryptedConfig config = new EncryptedConfig(Paths.get("service.properties"), crypto);
+ * config.load();
+ * config.watch();
+ * String password = config.get("db.password");
+ */
+public class EncryptedConfig implements Closeable {
+    // An entry keeps its raw value, so a reload can tell whether it changed
+    private static class Entry {
+        final String mRawValue;
+        final EncryptedString mEncryptedValue;
+
+        Entry(final String rawValue, final EncryptedString encryptedValue) {
+            mRawValue = rawValue;
+            mEncryptedValue = encryptedValue;
+        }
+
+        String get() {
+            return mEncryptedValue != null ? mEncryptedValue.get() : mRawValue;
+        }
+    }
+
+    private final Path mPath;
+    private final SymmetricCrypto mCrypto;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    private boolean mLazy;
+
+    private final AtomicReference<Map<String, Entry>> mSnapshot = new AtomicReference<>(Collections.emptyMap());
+    private final AtomicLong mVersion = new AtomicLong();
+    private final AtomicLong mReloadFailures = new AtomicLong();
+    private final Object mReloadLock = new Object();
+    private volatile Exception mLastReloadFailure;
+    private WatchService mWatchService;
+    private Thread mWatcher;
+
+    /**
+     * @param path   The properties file, read as UTF-8
+     * @param crypto The crypto to decrypt values with
+     */
+    public EncryptedConfig(final Path path, final SymmetricCrypto crypto) {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+
+        mPath = path.toAbsolutePath();
+        mCrypto = crypto;
+    }
+
+    /**
+     * Set the number of threads decrypting values on load, the number of cores by default.
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1)
+            throw new InvalidInputException("Parallelism must be 1 or greater");
+
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Decrypt each value on its first lookup instead of on load.
+     * <p/>
+     * Startup is faster when only a few of many values are used, but a
+     * token that does not decrypt is only found when it is looked up.
+     */
+    public void setLazy(final boolean lazy) {
+        mLazy = lazy;
+    }
+
+    /**
+     * Read the file and decrypt its values, replacing anything loaded before.
+     */
+    public void load() throws IOException {
+        reload();
+    }
+
+    /**
+     * Read the file again, decrypting only the values that changed.
+     * <p/>
+     * The new snapshot is only swapped in if every changed value decrypts.
+     *
+     * @return The keys that were added, changed or removed
+     */
+    public Set<String> reload() throws IOException {
+        synchronized (mReloadLock) {
+            final Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(mPath, CryptoConstants.CHARSET)) {
+                properties.load(reader);
+            }
+
+            final Map<String, Entry> previous = mSnapshot.get();
+            final Map<String, Entry> snapshot = new HashMap<>();
+            final Set<String> changedKeys = new HashSet<>();
+            final List<EncryptedString> pending = new ArrayList<>();
+            for (final String key : properties.stringPropertyNames()) {
+                final String rawValue = properties.getProperty(key);
+                Entry entry = previous.get(key);
+                if (entry == null || !entry.mRawValue.equals(rawValue)) {
+                    final EncryptedString encryptedValue = SymmetricCrypto.isCryptoToken(rawValue)
+                            ? new EncryptedString(mCrypto, rawValue) : null;
+                    entry = new Entry(rawValue, encryptedValue);
+                    changedKeys.add(key);
+                    if (encryptedValue != null && !mLazy)
+                        pending.add(encryptedValue);
+                }
+                snapshot.put(key, entry);
+            }
+            for (final String key : previous.keySet()) {
+                if (!snapshot.containsKey(key))
+                    changedKeys.add(key);
+            }
+
+            if (!changedKeys.isEmpty() || mVersion.get() == 0) {
+                decrypt(pending);
+                mSnapshot.set(Collections.unmodifiableMap(snapshot));
+                mVersion.incrementAndGet();
+            }
+
+            return changedKeys;
+        }
+    }
+
+    /**
+     * Reload the file whenever it changes, on a background thread, until close().
+     */
+    public synchronized void watch() throws IOException {
+        if (mWatcher != null)
+            return;
+
+        final WatchService watchService = FileSystems.getDefault().newWatchService();
+        mPath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        mWatchService = watchService;
+        mWatcher = new Thread(() -> watchLoop(watchService), "encrypted-config-watcher");
+        mWatcher.setDaemon(true);
+        mWatcher.start();
+    }
+
+    /**
+     * @return The value for a key, decrypted if it is a crypto token, or null if there is none
+     */
+    public String get(final String key) {
+        final Entry entry = mSnapshot.get().get(key);
+
+        return entry != null ? entry.get() : null;
+    }
+
+    public String get(final String key, final String defaultValue) {
+        final String value = get(key);
+
+        return value != null ? value : defaultValue;
+    }
+
+    public Set<String> getKeys() {
+        return mSnapshot.get().keySet();
+    }
+
+    /**
+     * @return A number that goes up each time a load or reload changes the configuration
+     */
+    public long getVersion() {
+        return mVersion.get();
+    }
+
+    public long getReloadFailures() {
+        return mReloadFailures.get();
+    }
+
+    /**
+     * @return Why the last failed reload from watching failed, or null if none has
+     */
+    public Exception getLastReloadFailure() {
+        return mLastReloadFailure;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mWatchService != null) {
+            mWatchService.close();
+            mWatcher.interrupt();
+            mWatchService = null;
+            mWatcher = null;
+        }
+    }
+
+    private void watchLoop(final WatchService watchService) {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || Objects.equals(event.context(), mPath.getFileName()))
+                        changed = true;
+                }
+                key.reset();
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (IOException | RuntimeException e) {
+                        mReloadFailures.incrementAndGet();
+                        mLastReloadFailure = e;
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    // Decrypt new values in parallel, throwing the first failure
+    private void decrypt(final List<EncryptedString> pending) throws IOException {
+        if (pending.isEmpty())
+            return;
+        if (pending.size() == 1 || mParallelism == 1) {
+            for (final EncryptedString value : pending)
+                value.get();
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(mParallelism, pending.size()));
+        try {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (final EncryptedString value : pending)
+                futures.add(executor.submit(value::get));
+            for (final Future<String> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting the configuration", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Decrypting the configuration failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
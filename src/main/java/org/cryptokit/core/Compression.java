@@ -0,0 +1,132 @@
+package org.cryptokit.core;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate compression with one reusable Deflater and Inflater per thread.
+ * <p/>
+ * Compressed output starts with the uncompressed length as a 4-byte big
+ * endian integer, so inflate can allocate the exact output size and reject
+ * input that expands beyond what it claims. The prefix is checked against the
+ * most raw deflate can expand, so a forged prefix cannot make inflate
+ * allocate more than about a thousand times the size of its input.
+ * <p/>
+ * The Deflater and Inflater of a thread are reset after every call and kept
+ * for the lifetime of the thread. Their native memory is only freed once the
+ * thread ends and they are garbage collected, so threads that are done with
+ * compression but keep running, for example in a long lived pool, should call
+ * release.
+ */
+public class Compression {
+    private static final int LENGTH_PREFIX_BYTES = 4;
+
+    // Raw deflate cannot expand by more than 1032 to 1
+    private static final int MAX_EXPANSION_RATIO = 1032;
+
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    /**
+     * Compress the input, giving up as soon as the output grows past maxOutputBytes.
+     *
+     * @param input          Bytes to compress
+     * @param maxOutputBytes The largest compressed size worth keeping, including the length prefix
+     * @return The compressed bytes, or null if they would be larger than maxOutputBytes
+     */
+    public static byte[] deflate(final byte[] input, final int maxOutputBytes) {
+        if (maxOutputBytes <= LENGTH_PREFIX_BYTES)
+            return null;
+
+        final byte[] buffer = new byte[maxOutputBytes];
+        buffer[0] = (byte) (input.length >>> 24);
+        buffer[1] = (byte) (input.length >>> 16);
+        buffer[2] = (byte) (input.length >>> 8);
+        buffer[3] = (byte) input.length;
+
+        final Deflater deflater = DEFLATER.get();
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            final int compressedBytes = deflater.deflate(buffer, LENGTH_PREFIX_BYTES, buffer.length - LENGTH_PREFIX_BYTES);
+            if (!deflater.finished())
+                return null;
+
+            final byte[] output = new byte[LENGTH_PREFIX_BYTES + compressedBytes];
+            System.arraycopy(buffer, 0, output, 0, output.length);
+
+            return output;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Decompress the output of deflate.
+     *
+     * @param input The compressed bytes, including the length prefix
+     * @return The uncompressed bytes
+     * @throws DataFormatException The input is not valid compressed data
+     */
+    public static byte[] inflate(final byte[] input) throws DataFormatException {
+        if (input.length < LENGTH_PREFIX_BYTES)
+            throw new DataFormatException("Compressed data is missing its length prefix");
+
+        final int length = ((input[0] & 0xff) << 24) | ((input[1] & 0xff) << 16) | ((input[2] & 0xff) << 8) | (input[3] & 0xff);
+        if (length < 0)
+            throw new DataFormatException("Compressed data has an invalid length prefix");
+        if (length > (long) (input.length - LENGTH_PREFIX_BYTES) * MAX_EXPANSION_RATIO)
+            throw new DataFormatException("Compressed data is too short for its length prefix");
+
+        final byte[] output = new byte[length];
+        final Inflater inflater = INFLATER.get();
+        try {
+            inflater.setInput(input, LENGTH_PREFIX_BYTES, input.length - LENGTH_PREFIX_BYTES);
+            int offset = 0;
+            while (!inflater.finished()) {
+                final int inflated;
+                if (offset < length) {
+                    inflated = inflater.inflate(output, offset, length - offset);
+                } else {
+                    // Output is full, the rest of the stream must not produce any more bytes
+                    inflated = inflater.inflate(new byte[1]);
+                    if (inflated > 0)
+                        throw new DataFormatException("Compressed data is longer than its length prefix");
+                }
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new DataFormatException("Compressed data is truncated");
+                offset += inflated;
+            }
+            if (offset != length)
+                throw new DataFormatException("Compressed data is shorter than its length prefix");
+
+            return output;
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * Free the native memory of the calling thread's Deflater and Inflater.
+     * <p/>
+     * A later call on the same thread creates new ones.
+     */
+    public static void release() {
+        DEFLATER.get().end();
+        DEFLATER.remove();
+        INFLATER.get().end();
+        INFLATER.remove();
+    }
+}
@@ -1,22 +1,34 @@
 package org.cryptokit.core;
 
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.DigestException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 public class Crypto {
 
     public static byte[] aesEncrypt(final SecretKey secretKey, final byte[] iv, final String plaintext)
             throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
             InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        Cipher aesCipher = Cipher.getInstance(CryptoConstants.AES_CIPHER_ALGORITHM);
+        return aesEncrypt(secretKey, iv, StringUtils.getStringBytes(plaintext));
+    }
+
+    public static byte[] aesEncrypt(final SecretKey secretKey, final byte[] iv, final byte[] plainBytes)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        Cipher aesCipher = ProviderRegistry.getCipher(CryptoConstants.AES_CIPHER_ALGORITHM);
         aesCipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
-        final byte[] cipherBytes = aesCipher.doFinal(StringUtils.getStringBytes(plaintext));
+        final byte[] cipherBytes = aesCipher.doFinal(plainBytes);
 
         return cipherBytes;
     }
@@ -24,13 +36,142 @@ public class Crypto {
     public static byte[] aesDecrypt(final SecretKey secretKey, final byte[] iv, byte[] cipherBytes)
             throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
             InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        Cipher aesCipher = Cipher.getInstance(CryptoConstants.AES_CIPHER_ALGORITHM);
+        Cipher aesCipher = ProviderRegistry.getCipher(CryptoConstants.AES_CIPHER_ALGORITHM);
         aesCipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(iv));
         final byte[] decryptedBytes = aesCipher.doFinal(cipherBytes);
 
         return decryptedBytes;
     }
 
+    /**
+     * Authenticated encryption using AES-GCM
+     *
+     * @param secretKey      AES key
+     * @param nonce          12-byte nonce, must never be reused with the same key
+     * @param plainBytes     Bytes to encrypt
+     * @param associatedData Data to authenticate but not encrypt, may be null
+     * @return The cipher bytes followed by the 16-byte authentication tag
+     */
+    public static byte[] aesGcmEncrypt(final SecretKey secretKey, final byte[] nonce, final byte[] plainBytes, final byte[] associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return aead(Cipher.ENCRYPT_MODE, CryptoConstants.AES_GCM_CIPHER_ALGORITHM, secretKey,
+                new GCMParameterSpec(CryptoConstants.AEAD_TAG_SIZE_BYTES * Byte.SIZE, nonce), plainBytes, associatedData);
+    }
+
+    /**
+     * Decrypt and authenticate the output of aesGcmEncrypt
+     *
+     * @throws AEADBadTagException The bytes were not produced with this key, nonce and associated data
+     */
+    public static byte[] aesGcmDecrypt(final SecretKey secretKey, final byte[] nonce, final byte[] cipherBytes, final byte[] associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return aead(Cipher.DECRYPT_MODE, CryptoConstants.AES_GCM_CIPHER_ALGORITHM, secretKey,
+                new GCMParameterSpec(CryptoConstants.AEAD_TAG_SIZE_BYTES * Byte.SIZE, nonce), cipherBytes, associatedData);
+    }
+
+    /**
+     * Authenticated encryption using ChaCha20-Poly1305 (RFC 8439)
+     * <p/>
+     * Much faster than AES in software, prefer it on hosts without AES instructions.
+     *
+     * @param secretKey      256-bit key, of any key algorithm
+     * @param nonce          12-byte nonce, must never be reused with the same key
+     * @param plainBytes     Bytes to encrypt
+     * @param associatedData Data to authenticate but not encrypt, may be null
+     * @return The cipher bytes followed by the 16-byte authentication tag
+     */
+    public static byte[] chaCha20Poly1305Encrypt(final SecretKey secretKey, final byte[] nonce, final byte[] plainBytes, final byte[] associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return aead(Cipher.ENCRYPT_MODE, CryptoConstants.CHACHA20_POLY1305_CIPHER_ALGORITHM, chaCha20Key(secretKey),
+                new IvParameterSpec(nonce), plainBytes, associatedData);
+    }
+
+    /**
+     * Decrypt and authenticate the output of chaCha20Poly1305Encrypt
+     *
+     * @throws AEADBadTagException The bytes were not produced with this key, nonce and associated data
+     */
+    public static byte[] chaCha20Poly1305Decrypt(final SecretKey secretKey, final byte[] nonce, final byte[] cipherBytes, final byte[] associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        return aead(Cipher.DECRYPT_MODE, CryptoConstants.CHACHA20_POLY1305_CIPHER_ALGORITHM, chaCha20Key(secretKey),
+                new IvParameterSpec(nonce), cipherBytes, associatedData);
+    }
+
+    /**
+     * Deterministic authenticated encryption using AES-SIV (RFC 5297)
+     * <p/>
+     * The same key, associated data and plaintext always produce the same
+     * output, which makes the result suitable for equality lookups. Only use
+     * this where that leak is acceptable, otherwise use aesEncrypt.
+     *
+     * @param secretKey      A 256, 384 or 512-bit key, split into a MAC half and an encryption half
+     * @param plainBytes     Bytes to encrypt
+     * @param associatedData Optional data to authenticate but not encrypt
+     * @return The synthetic IV followed by the cipher bytes
+     */
+    public static byte[] aesSivEncrypt(final SecretKey secretKey, final byte[] plainBytes, final byte[]... associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        final byte[] keyBytes = getSivKeyBytes(secretKey);
+        final byte[] syntheticIv = s2v(sivMacKey(keyBytes), plainBytes, associatedData);
+        final byte[] cipherBytes = sivCtr(sivCtrKey(keyBytes), syntheticIv, plainBytes, 0, plainBytes.length);
+
+        final byte[] sivBytes = new byte[syntheticIv.length + cipherBytes.length];
+        System.arraycopy(syntheticIv, 0, sivBytes, 0, syntheticIv.length);
+        System.arraycopy(cipherBytes, 0, sivBytes, syntheticIv.length, cipherBytes.length);
+
+        return sivBytes;
+    }
+
+    /**
+     * Decrypt and authenticate the output of aesSivEncrypt
+     *
+     * @param secretKey      The key used to encrypt
+     * @param sivBytes       The synthetic IV followed by the cipher bytes
+     * @param associatedData The associated data given when encrypting
+     * @return The decrypted bytes
+     * @throws AEADBadTagException The bytes were not produced with this key and associated data
+     */
+    public static byte[] aesSivDecrypt(final SecretKey secretKey, final byte[] sivBytes, final byte[]... associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        if (sivBytes.length < CryptoConstants.AES_BLOCK_SIZE_BYTES)
+            throw new IllegalBlockSizeException("AES-SIV input is shorter than the synthetic IV");
+
+        final byte[] keyBytes = getSivKeyBytes(secretKey);
+        final byte[] syntheticIv = Arrays.copyOf(sivBytes, CryptoConstants.AES_BLOCK_SIZE_BYTES);
+        final byte[] decryptedBytes = sivCtr(sivCtrKey(keyBytes), syntheticIv, sivBytes,
+                CryptoConstants.AES_BLOCK_SIZE_BYTES, sivBytes.length - CryptoConstants.AES_BLOCK_SIZE_BYTES);
+        final byte[] expectedIv = s2v(sivMacKey(keyBytes), decryptedBytes, associatedData);
+
+        if (!MessageDigest.isEqual(expectedIv, syntheticIv)) {
+            Arrays.fill(decryptedBytes, (byte) 0);
+            throw new AEADBadTagException("AES-SIV authentication failed");
+        }
+
+        return decryptedBytes;
+    }
+
+    /**
+     * Create an HMAC-SHA256 instance keyed with the given bytes
+     * <p/>
+     * The returned Mac is not thread safe, but can be reused for any number
+     * of messages by the thread that owns it.
+     *
+     * @param keyBytes The raw HMAC key
+     * @return An initialized Mac
+     */
+    public static Mac hmac(final byte[] keyBytes) throws NoSuchAlgorithmException, InvalidKeyException {
+        final Mac mac = ProviderRegistry.getMac(CryptoConstants.HMAC_ALGORITHM);
+        mac.init(new SecretKeySpec(keyBytes, CryptoConstants.HMAC_ALGORITHM));
+
+        return mac;
+    }
+
     /**
      * Password-based key derivation function (PBKDF2) implementation
      * <p/>
@@ -48,13 +189,92 @@ public class Crypto {
     public static byte[] pbkdf2(final String password, final byte[] salt, final int iterations, final int desiredHashByteSize)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
         final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, desiredHashByteSize * Byte.SIZE);
-        final SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(CryptoConstants.PBKDF2_HASH_ALGORITHM);
+        final SecretKeyFactory keyFactory = ProviderRegistry.getSecretKeyFactory(CryptoConstants.PBKDF2_HASH_ALGORITHM);
         final SecretKey secretKey = keyFactory.generateSecret(spec);
         final byte[] pbkdf2Bytes = secretKey.getEncoded();
 
         return pbkdf2Bytes;
     }
 
+    /**
+     * PBKDF2 with HMAC-SHA1 over a password that is already UTF-8 bytes
+     * <p/>
+     * Gives the same result as the String version, which encodes the
+     * password as UTF-8 too, but reads the password straight from the
+     * caller's buffer instead of copying it into Strings, char arrays and
+     * keys. HMAC is computed over a MessageDigest writing into reused
+     * buffers, so the iterations allocate nothing, and the key pads and
+     * intermediate blocks are cleared before returning.
+     *
+     * @param passwordBytes       Buffer holding the UTF-8 password
+     * @param offset              Offset of the password in the buffer
+     * @param length              Length of the password in bytes
+     * @param salt                Bytes to salt the password with
+     * @param iterations          Number of hash iterations to compute
+     * @param desiredHashByteSize Desired size of the resulting hash, in bytes
+     * @return PBKDF2 Hashed bytes
+     * @throws NoSuchAlgorithmException The Java crypto provider doesn't support SHA-1
+     */
+    public static byte[] pbkdf2(final byte[] passwordBytes, final int offset, final int length, final byte[] salt, final int iterations,
+                                final int desiredHashByteSize) throws NoSuchAlgorithmException, DigestException {
+        final MessageDigest digest = ProviderRegistry.getMessageDigest(CryptoConstants.PBKDF2_DIGEST_ALGORITHM);
+        final int digestLength = digest.getDigestLength();
+        final byte[] innerPad = new byte[CryptoConstants.PBKDF2_DIGEST_BLOCK_BYTES];
+        final byte[] outerPad = new byte[CryptoConstants.PBKDF2_DIGEST_BLOCK_BYTES];
+        final byte[] pbkdf2Bytes = new byte[desiredHashByteSize];
+        final byte[] blockIndex = new byte[4];
+        final byte[] u = new byte[digestLength];
+        final byte[] t = new byte[digestLength];
+
+        try {
+            // HMAC key pads (RFC 2104), a key longer than the block is hashed first
+            if (length > innerPad.length) {
+                digest.update(passwordBytes, offset, length);
+                digest.digest(innerPad, 0, digestLength);
+            } else {
+                System.arraycopy(passwordBytes, offset, innerPad, 0, length);
+            }
+            for (int i = 0; i < innerPad.length; i++) {
+                outerPad[i] = (byte) (innerPad[i] ^ 0x5c);
+                innerPad[i] ^= 0x36;
+            }
+
+            for (int block = 1, position = 0; position < desiredHashByteSize; block++, position += digestLength) {
+                blockIndex[0] = (byte) (block >>> 24);
+                blockIndex[1] = (byte) (block >>> 16);
+                blockIndex[2] = (byte) (block >>> 8);
+                blockIndex[3] = (byte) block;
+                digest.update(innerPad);
+                digest.update(salt);
+                digest.update(blockIndex);
+                digest.digest(u, 0, digestLength);
+                digest.update(outerPad);
+                digest.update(u);
+                digest.digest(u, 0, digestLength);
+                System.arraycopy(u, 0, t, 0, digestLength);
+
+                for (int i = 1; i < iterations; i++) {
+                    digest.update(innerPad);
+                    digest.update(u);
+                    digest.digest(u, 0, digestLength);
+                    digest.update(outerPad);
+                    digest.update(u);
+                    digest.digest(u, 0, digestLength);
+                    for (int j = 0; j < digestLength; j++)
+                        t[j] ^= u[j];
+                }
+                System.arraycopy(t, 0, pbkdf2Bytes, position, Math.min(digestLength, desiredHashByteSize - position));
+            }
+        } finally {
+            Arrays.fill(innerPad, (byte) 0);
+            Arrays.fill(outerPad, (byte) 0);
+            Arrays.fill(u, (byte) 0);
+            Arrays.fill(t, (byte) 0);
+        }
+
+        return pbkdf2Bytes;
+    }
+
     /**
      * Generate secure random bytes
      *
@@ -68,4 +288,135 @@ public class Crypto {
 
         return saltBytes;
     }
+
+    private static byte[] aead(final int mode, final String algorithm, final SecretKey secretKey, final AlgorithmParameterSpec parameters,
+                               final byte[] input, final byte[] associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        final Cipher cipher = ProviderRegistry.getCipher(algorithm);
+        cipher.init(mode, secretKey, parameters);
+        if (associatedData != null)
+            cipher.updateAAD(associatedData);
+
+        return cipher.doFinal(input);
+    }
+
+    // The JDK ChaCha20 implementation only accepts keys labelled as ChaCha20 keys
+    private static SecretKey chaCha20Key(final SecretKey secretKey) throws InvalidKeyException {
+        if (CryptoConstants.CHACHA20_KEY_ALGORITHM.equalsIgnoreCase(secretKey.getAlgorithm()))
+            return secretKey;
+
+        final byte[] keyBytes = secretKey.getEncoded();
+        if (keyBytes == null || keyBytes.length != CryptoConstants.CHACHA20_KEY_SIZE_BYTES)
+            throw new InvalidKeyException("ChaCha20 requires a 256-bit key");
+
+        return new SecretKeySpec(keyBytes, CryptoConstants.CHACHA20_KEY_ALGORITHM);
+    }
+
+    private static byte[] getSivKeyBytes(final SecretKey secretKey) throws InvalidKeyException {
+        final byte[] keyBytes = secretKey.getEncoded();
+        if (keyBytes == null || (keyBytes.length != 32 && keyBytes.length != 48 && keyBytes.length != 64))
+            throw new InvalidKeyException("AES-SIV requires a 256, 384 or 512-bit key");
+
+        return keyBytes;
+    }
+
+    // RFC 5297 uses the leftmost half of the key for S2V and the rightmost half for CTR
+    private static SecretKey sivMacKey(final byte[] keyBytes) {
+        return new SecretKeySpec(keyBytes, 0, keyBytes.length / 2, "AES");
+    }
+
+    private static SecretKey sivCtrKey(final byte[] keyBytes) {
+        return new SecretKeySpec(keyBytes, keyBytes.length / 2, keyBytes.length / 2, "AES");
+    }
+
+    private static byte[] sivCtr(final SecretKey ctrKey, final byte[] syntheticIv, final byte[] input, final int offset, final int length)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException,
+            InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
+        // Clear the 31st and 63rd bits (from the right) so implementations can use 32 or 64-bit counters
+        final byte[] counter = syntheticIv.clone();
+        counter[8] &= 0x7f;
+        counter[12] &= 0x7f;
+
+        final Cipher ctrCipher = ProviderRegistry.getCipher(CryptoConstants.AES_CTR_CIPHER_ALGORITHM);
+        ctrCipher.init(Cipher.ENCRYPT_MODE, ctrKey, new IvParameterSpec(counter));
+
+        return ctrCipher.doFinal(input, offset, length);
+    }
+
+    // S2V, the string-to-vector PRF of RFC 5297 built on AES-CMAC (RFC 4493)
+    private static byte[] s2v(final SecretKey macKey, final byte[] plainBytes, final byte[]... associatedData)
+            throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException,
+            BadPaddingException, IllegalBlockSizeException {
+        final Cipher blockCipher = ProviderRegistry.getCipher(CryptoConstants.AES_BLOCK_CIPHER_ALGORITHM);
+        blockCipher.init(Cipher.ENCRYPT_MODE, macKey);
+        final byte[] subkey1 = dbl(blockCipher.doFinal(new byte[CryptoConstants.AES_BLOCK_SIZE_BYTES]));
+        final byte[] subkey2 = dbl(subkey1);
+
+        byte[] d = cmac(blockCipher, subkey1, subkey2, new byte[CryptoConstants.AES_BLOCK_SIZE_BYTES]);
+        for (final byte[] data : associatedData) {
+            d = xor(dbl(d), cmac(blockCipher, subkey1, subkey2, data));
+        }
+
+        final byte[] t;
+        if (plainBytes.length >= CryptoConstants.AES_BLOCK_SIZE_BYTES) {
+            t = plainBytes.clone();
+            final int end = t.length - CryptoConstants.AES_BLOCK_SIZE_BYTES;
+            for (int i = 0; i < CryptoConstants.AES_BLOCK_SIZE_BYTES; i++)
+                t[end + i] ^= d[i];
+        } else {
+            t = xor(dbl(d), pad(plainBytes, 0, plainBytes.length));
+        }
+
+        return cmac(blockCipher, subkey1, subkey2, t);
+    }
+
+    private static byte[] cmac(final Cipher blockCipher, final byte[] subkey1, final byte[] subkey2, final byte[] message)
+            throws BadPaddingException, IllegalBlockSizeException {
+        final int blockSize = CryptoConstants.AES_BLOCK_SIZE_BYTES;
+        final int numBlocks = Math.max(1, (message.length + blockSize - 1) / blockSize);
+        final int lastOffset = (numBlocks - 1) * blockSize;
+        final boolean lastBlockComplete = message.length > 0 && message.length % blockSize == 0;
+
+        final byte[] lastBlock = lastBlockComplete
+                ? xor(Arrays.copyOfRange(message, lastOffset, lastOffset + blockSize), subkey1)
+                : xor(pad(message, lastOffset, message.length - lastOffset), subkey2);
+
+        byte[] x = new byte[blockSize];
+        for (int block = 0; block < numBlocks - 1; block++) {
+            for (int i = 0; i < blockSize; i++)
+                x[i] ^= message[block * blockSize + i];
+            x = blockCipher.doFinal(x);
+        }
+
+        return blockCipher.doFinal(xor(x, lastBlock));
+    }
+
+    // Multiply by x in GF(2^128)
+    private static byte[] dbl(final byte[] block) {
+        final byte[] doubled = new byte[block.length];
+        for (int i = 0; i < block.length - 1; i++)
+            doubled[i] = (byte) ((block[i] << 1) | ((block[i + 1] & 0xff) >>> 7));
+        doubled[block.length - 1] = (byte) (block[block.length - 1] << 1);
+        if ((block[0] & 0x80) != 0)
+            doubled[block.length - 1] ^= (byte) 0x87;
+
+        return doubled;
+    }
+
+    private static byte[] pad(final byte[] bytes, final int offset, final int length) {
+        final byte[] padded = new byte[CryptoConstants.AES_BLOCK_SIZE_BYTES];
+        System.arraycopy(bytes, offset, padded, 0, length);
+        padded[length] = (byte) 0x80;
+
+        return padded;
+    }
+
+    private static byte[] xor(final byte[] a, final byte[] b) {
+        final byte[] result = new byte[a.length];
+        for (int i = 0; i < a.length; i++)
+            result[i] = (byte) (a[i] ^ b[i]);
+
+        return result;
+    }
 }
@@ -3,13 +3,40 @@ package org.cryptokit.core;
 import java.nio.charset.Charset;
 
 public class CryptoConstants {
-    public static final String PBKDF2_HASH_ALGORITHM = "PBKDF2WithHmacSHA1";
+    // The byte[] PBKDF2 builds HMAC over this digest itself, so both PBKDF2 paths are named from it
+    public static final String PBKDF2_DIGEST_ALGORITHM = "SHA-1";
+    public static final String PBKDF2_HASH_ALGORITHM = "PBKDF2WithHmac" + PBKDF2_DIGEST_ALGORITHM.replace("-", "");
+    public static final int PBKDF2_DIGEST_BLOCK_BYTES = 64;
+    public static final String HMAC_ALGORITHM = "HmacSHA256";
+    public static final int HMAC_SIZE_BYTES = 32;
 
     public static final int AES_BLOCK_SIZE_BYTES = 16;
     public static final String AES_MODE = "CBC";
     public static final String AES_PADDING = "PKCS5Padding";
     public static final String AES_CIPHER_ALGORITHM = String.format("AES/%s/%s", AES_MODE, AES_PADDING);
 
+    // AES-SIV (RFC 5297) is built from AES-CMAC over a raw block cipher plus AES-CTR
+    public static final String AES_BLOCK_CIPHER_ALGORITHM = "AES/ECB/NoPadding";
+    public static final String AES_CTR_CIPHER_ALGORITHM = "AES/CTR/NoPadding";
+
+    // AES Key Wrap (RFC 3394)
+    public static final String AES_KEY_WRAP_ALGORITHM = "AESWrap";
+    public static final int AES_KEY_WRAP_OVERHEAD_BYTES = 8;
+
+    // Authenticated encryption (AEAD) modes
+    public static final int AEAD_NONCE_SIZE_BYTES = 12;
+    public static final int AEAD_TAG_SIZE_BYTES = 16;
+    public static final String AES_GCM_CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    public static final String CHACHA20_POLY1305_CIPHER_ALGORITHM = "ChaCha20-Poly1305";
+    public static final String CHACHA20_KEY_ALGORITHM = "ChaCha20";
+    public static final int CHACHA20_KEY_SIZE_BYTES = 32;
+
+    // RSA, OAEP with SHA-256 for both the digest and MGF1
+    public static final String RSA_OAEP_CIPHER_ALGORITHM = "RSA/ECB/OAEPPadding";
+    public static final String RSA_OAEP_DIGEST_ALGORITHM = "SHA-256";
+    public static final String RSA_SIGNATURE_ALGORITHM = "SHA256withRSA";
+    public static final String RSA_KEY_FINGERPRINT_ALGORITHM = "SHA-256";
+
     public static final Charset CHARSET = Charset.forName("UTF-8");
 
     public static final char SEGMENT_DELIMITER = '.';
@@ -0,0 +1,104 @@
+package org.cryptokit.core;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.VMOption;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.util.logging.Logger;
+
+/**
+ * Detects whether this JVM runs AES on dedicated CPU instructions.
+ * <p/>
+ * With AES instructions (AES-NI on x86, the ARMv8 crypto extensions) AES-GCM
+ * is the fastest authenticated cipher. Without them, for example on older or
+ * some virtualized hosts, AES runs in software and ChaCha20-Poly1305 is
+ * several times faster.
+ * <p/>
+ * HotSpot reports whether it uses AES instructions through the
+ * UseAESIntrinsics VM option. On other JVMs both ciphers are timed once
+ * instead. The system property "cryptokit.aes.accelerated" overrides the
+ * detection.
+ */
+public class HardwareSupport {
+    public static final String AES_ACCELERATED_PROPERTY = "cryptokit.aes.accelerated";
+
+    private static final Logger LOGGER = Logger.getLogger(HardwareSupport.class.getName());
+    private static final long BENCHMARK_NANOS = 20000000L;
+
+    private static volatile Boolean sAesAccelerated;
+
+    /**
+     * @return True if AES runs on dedicated CPU instructions, detected once per JVM
+     */
+    public static boolean isAesAccelerated() {
+        Boolean accelerated = sAesAccelerated;
+        if (accelerated == null) {
+            accelerated = detectAesAcceleration();
+            sAesAccelerated = accelerated;
+        }
+
+        return accelerated;
+    }
+
+    private static boolean detectAesAcceleration() {
+        final String property = System.getProperty(AES_ACCELERATED_PROPERTY);
+        if (property != null) {
+            LOGGER.info("AES acceleration set to " + property + " by " + AES_ACCELERATED_PROPERTY);
+            return Boolean.parseBoolean(property);
+        }
+
+        try {
+            final HotSpotDiagnosticMXBean diagnostics = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            if (diagnostics != null) {
+                final VMOption option = diagnostics.getVMOption("UseAESIntrinsics");
+                final boolean accelerated = Boolean.parseBoolean(option.getValue());
+                LOGGER.info("AES acceleration " + (accelerated ? "detected" : "not detected") + " from the UseAESIntrinsics VM option");
+                return accelerated;
+            }
+        } catch (RuntimeException | LinkageError e) {
+            LOGGER.fine("UseAESIntrinsics VM option is not available, timing AES instead: " + e);
+        }
+
+        final boolean accelerated = benchmarkAesFaster();
+        LOGGER.info("AES acceleration " + (accelerated ? "assumed" : "not assumed") + " from timing AES-GCM against ChaCha20-Poly1305");
+        return accelerated;
+    }
+
+    private static boolean benchmarkAesFaster() {
+        final SecretKey key = new SecretKeySpec(Crypto.generateRandomBytes(CryptoConstants.CHACHA20_KEY_SIZE_BYTES), "AES");
+        final byte[] input = new byte[4096];
+
+        try {
+            final long aesOperations = countOperations(key, input, true);
+            final long chaChaOperations = countOperations(key, input, false);
+
+            return aesOperations >= chaChaOperations;
+        } catch (GeneralSecurityException e) {
+            // Whichever cipher failed cannot be the better choice, AES is the safe default
+            return true;
+        }
+    }
+
+    private static long countOperations(final SecretKey key, final byte[] input, final boolean aes) throws GeneralSecurityException {
+        final byte[] nonce = new byte[CryptoConstants.AEAD_NONCE_SIZE_BYTES];
+        long operations = 0;
+        final long end = System.nanoTime() + BENCHMARK_NANOS;
+
+        while (System.nanoTime() < end) {
+            // Vary the nonce, the JDK refuses to encrypt twice with the same key and nonce
+            nonce[0] = (byte) operations;
+            nonce[1] = (byte) (operations >>> 8);
+            nonce[2] = (byte) (operations >>> 16);
+            if (aes)
+                Crypto.aesGcmEncrypt(key, nonce, input, null);
+            else
+                Crypto.chaCha20Poly1305Encrypt(key, nonce, input, null);
+            operations++;
+        }
+
+        return operations;
+    }
+}
@@ -0,0 +1,188 @@
+package org.cryptokit.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread safe cache that evicts the least recently used entries.
+ * <p/>
+ * Entries are spread over independently locked segments, so threads working
+ * on different keys rarely contend. Each segment keeps its own LRU order, so
+ * eviction is approximately, not strictly, least recently used overall.
+ * Small caches use fewer segments, so a few keys hashing to the same segment
+ * do not evict each other while the cache is mostly empty. The segment sizes
+ * add up to exactly the maximum size.
+ * Hit, miss and eviction counts are kept for monitoring. Null keys and
+ * values are not supported.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class LruCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    private final Segment[] mSegments;
+    private final int mMaximumSize;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * Create a cache holding at most maximumSize entries.
+     *
+     * @param maximumSize Maximum number of entries, 1 or greater
+     */
+    @SuppressWarnings("unchecked")
+    public LruCache(final int maximumSize) {
+        if (maximumSize < 1)
+            throw new IllegalArgumentException("Maximum size must be 1 or greater");
+
+        final int numSegments = Math.min(MAX_SEGMENTS, Integer.highestOneBit(Math.max(1, maximumSize / MIN_SEGMENT_SIZE)));
+        mSegments = (Segment[]) new LruCache<?, ?>.Segment[numSegments];
+        // Spread the remainder over the first segments, so no segment rounds the total up
+        for (int i = 0; i < numSegments; i++)
+            mSegments[i] = new Segment(maximumSize / numSegments + (i < maximumSize % numSegments ? 1 : 0));
+        mMaximumSize = maximumSize;
+    }
+
+    public V get(final K key) {
+        final Segment segment = segmentFor(key);
+        final V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null)
+            mMisses.incrementAndGet();
+        else
+            mHits.incrementAndGet();
+
+        return value;
+    }
+
+    /**
+     * Add a value unless the key is already cached.
+     *
+     * @return The value now cached for the key, which is the existing value if there was one
+     */
+    public V putIfAbsent(final K key, final V value) {
+        final Segment segment = segmentFor(key);
+        synchronized (segment) {
+            final V existing = segment.get(key);
+            if (existing != null)
+                return existing;
+            segment.put(key, value);
+        }
+
+        return value;
+    }
+
+    public void put(final K key, final V value) {
+        final Segment segment = segmentFor(key);
+        final V replaced;
+        synchronized (segment) {
+            replaced = segment.put(key, value);
+        }
+        if (replaced != null && replaced != value)
+            onEviction(key, replaced);
+    }
+
+    public V remove(final K key) {
+        final Segment segment = segmentFor(key);
+        final V removed;
+        synchronized (segment) {
+            removed = segment.remove(key);
+        }
+        if (removed != null)
+            onEviction(key, removed);
+
+        return removed;
+    }
+
+    public void clear() {
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                for (final Map.Entry<K, V> entry : segment.entrySet())
+                    onEviction(entry.getKey(), entry.getValue());
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+
+        return size;
+    }
+
+    public int getMaximumSize() {
+        return mMaximumSize;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Number of entries evicted to stay within the maximum size. Entries that
+     * leave through remove, clear or replacement by put are not counted,
+     * although onEviction is still called for them.
+     */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    /**
+     * Fraction of lookups that found a cached value, 0 if nothing was looked up yet.
+     */
+    public double getHitRate() {
+        final long hits = mHits.get();
+        final long lookups = hits + mMisses.get();
+
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    /**
+     * Called when a value leaves the cache, override to release or wipe it.
+     * <p/>
+     * May be called while holding a segment lock, so keep it short.
+     */
+    protected void onEviction(final K key, final V value) {
+    }
+
+    private Segment segmentFor(final Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+
+        return mSegments[hash & (mSegments.length - 1)];
+    }
+
+    private class Segment extends LinkedHashMap<K, V> {
+        private final int mSegmentSize;
+
+        Segment(final int segmentSize) {
+            super(16, 0.75f, true);
+            mSegmentSize = segmentSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            if (size() <= mSegmentSize)
+                return false;
+
+            mEvictions.incrementAndGet();
+            onEviction(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+package org.cryptokit.core;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Chooses which JCA provider implements each primitive cryptokit uses.
+ * <p/>
+ * By default the first provider that supports an algorithm is used, exactly
+ * like Cipher.getInstance(algorithm). Hosts with several providers installed
+ * can instead pin the fastest one, either explicitly with setProvider or the
+ * system property "cryptokit.provider.ALGORITHM", or by measuring with
+ * calibrate. Calibration checks every provider against known-answer vectors
+ * first, so a provider that produces wrong results is never picked.
+ * Calibration covers the algorithms listed in Primitive, while the property
+ * and setProvider work for any algorithm; the property is read the first time
+ * its algorithm is requested.
+ * <p/>
+ * Set the system property "cryptokit.provider.calibrate" to true to calibrate
+ * once, the first time a primitive is requested.
+ */
+public class ProviderRegistry {
+    public static final String PROVIDER_PROPERTY_PREFIX = "cryptokit.provider.";
+    public static final String CALIBRATE_PROPERTY = PROVIDER_PROPERTY_PREFIX + "calibrate";
+    public static final long DEFAULT_CALIBRATION_MILLIS = 50;
+
+    private static final Logger LOGGER = Logger.getLogger(ProviderRegistry.class.getName());
+    private static final Map<String, Provider> PINNED_PROVIDERS = new ConcurrentHashMap<>();
+    // Algorithms pinned with setProvider or a system property, which calibration leaves alone
+    private static final Set<String> EXPLICIT_ALGORITHMS = ConcurrentHashMap.newKeySet();
+    // Algorithms whose system property was already applied, or overridden with setProvider
+    private static final Set<String> PROPERTIES_READ = ConcurrentHashMap.newKeySet();
+    private static volatile boolean sInitialized;
+
+    /**
+     * The primitives cryptokit asks providers for, with a known-answer test for each.
+     */
+    public enum Primitive {
+        AES_CBC(CryptoConstants.AES_CIPHER_ALGORITHM,
+                "603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4",
+                "f58c4c04d6e5f1ba779eabfb5f7bfbd6") { // NIST SP 800-38A F.2.5, first block
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final Cipher cipher = Cipher.getInstance(getAlgorithm(), provider);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(hex("000102030405060708090a0b0c0d0e0f")));
+                return Arrays.copyOf(cipher.doFinal(input), input.length);
+            }
+        },
+        AES_BLOCK(CryptoConstants.AES_BLOCK_CIPHER_ALGORITHM,
+                "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+                "8ea2b7ca516745bfeafc49904b496089") { // FIPS 197 C.3
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final Cipher cipher = Cipher.getInstance(getAlgorithm(), provider);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+                return cipher.doFinal(input);
+            }
+
+            @Override
+            byte[] knownInput() {
+                return hex("00112233445566778899aabbccddeeff");
+            }
+        },
+        AES_CTR(CryptoConstants.AES_CTR_CIPHER_ALGORITHM,
+                "603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4",
+                "601ec313775789a5b7a7f504bbf3d228") { // NIST SP 800-38A F.5.5, first block
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final Cipher cipher = Cipher.getInstance(getAlgorithm(), provider);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(hex("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff")));
+                return cipher.doFinal(input);
+            }
+        },
+        AES_GCM(CryptoConstants.AES_GCM_CIPHER_ALGORITHM,
+                "00000000000000000000000000000000",
+                "0388dace60b6a392f328c2b971b2fe78ab6e47d42cec13bdf53a67b21257bddf") { // GCM specification test case 2
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final Cipher cipher = Cipher.getInstance(getAlgorithm(), provider);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
+                        new GCMParameterSpec(CryptoConstants.AEAD_TAG_SIZE_BYTES * Byte.SIZE, new byte[CryptoConstants.AEAD_NONCE_SIZE_BYTES]));
+                return cipher.doFinal(input);
+            }
+
+            @Override
+            byte[] knownInput() {
+                return new byte[16];
+            }
+        },
+        CHACHA20_POLY1305(CryptoConstants.CHACHA20_POLY1305_CIPHER_ALGORITHM,
+                "808182838485868788898a8b8c8d8e8f909192939495969798999a9b9c9d9e9f",
+                "d31a8d34648e60db7b86afbc53ef7ec2a4aded51296e08fea9e2b5a736ee62d63dbea45e8ca9671282fafb69da92728b"
+                        + "1a71de0a9e060b2905d6a5b67ecd3b3692ddbd7f2d778b8c9803aee328091b58fab324e4fad675945585808b4831d7"
+                        + "bc3ff4def08e4b7a9de576d26586cec64b61161ae10b594f09e26a7e902ecbd0600691") { // RFC 8439 2.8.2
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final Cipher cipher = Cipher.getInstance(getAlgorithm(), provider);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, CryptoConstants.CHACHA20_KEY_ALGORITHM),
+                        new IvParameterSpec(hex("070000004041424344454647")));
+                cipher.updateAAD(hex("50515253c0c1c2c3c4c5c6c7"));
+                return cipher.doFinal(input);
+            }
+
+            @Override
+            byte[] knownInput() {
+                return StringUtils.getStringBytes("Ladies and Gentlemen of the class of '99: If I could offer you only one tip"
+                        + " for the future, sunscreen would be it.");
+            }
+        },
+        AES_WRAP(CryptoConstants.AES_KEY_WRAP_ALGORITHM,
+                "000102030405060708090a0b0c0d0e0f",
+                "1fa68b0a8112b447aef34bd8fb5a7b829d3e862371d2cfe5") { // RFC 3394 4.1
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final Cipher cipher = Cipher.getInstance(getAlgorithm(), provider);
+                cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(key, "AES"));
+                return cipher.wrap(new SecretKeySpec(input, "AES"));
+            }
+
+            @Override
+            byte[] knownInput() {
+                return hex("00112233445566778899aabbccddeeff");
+            }
+        },
+        HMAC(CryptoConstants.HMAC_ALGORITHM,
+                "4a656665",
+                "5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843") { // RFC 4231 test case 2
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final Mac mac = Mac.getInstance(getAlgorithm(), provider);
+                mac.init(new SecretKeySpec(key, getAlgorithm()));
+                return mac.doFinal(input);
+            }
+
+            @Override
+            byte[] knownInput() {
+                return StringUtils.getStringBytes("what do ya want for nothing?");
+            }
+        },
+        PBKDF2(CryptoConstants.PBKDF2_HASH_ALGORITHM,
+                "70617373776f7264",
+                "4b007901b765489abead49d926f721d065a429c1") { // RFC 6070, "password" / "salt" / 4096 iterations
+            @Override
+            byte[] run(final Provider provider, final byte[] key, final byte[] input) throws GeneralSecurityException {
+                final SecretKeyFactory keyFactory = SecretKeyFactory.getInstance(getAlgorithm(), provider);
+                final char[] password = new String(key, CryptoConstants.CHARSET).toCharArray();
+                return keyFactory.generateSecret(new PBEKeySpec(password, input, 4096, 160)).getEncoded();
+            }
+
+            @Override
+            byte[] knownInput() {
+                return StringUtils.getStringBytes("salt");
+            }
+        };
+
+        private final String mAlgorithm;
+        private final String mKnownKey;
+        private final String mKnownOutput;
+
+        Primitive(final String algorithm, final String knownKey, final String knownOutput) {
+            mAlgorithm = algorithm;
+            mKnownKey = knownKey;
+            mKnownOutput = knownOutput;
+        }
+
+        public String getAlgorithm() {
+            return mAlgorithm;
+        }
+
+        abstract byte[] run(Provider provider, byte[] key, byte[] input) throws GeneralSecurityException;
+
+        byte[] knownInput() {
+            return hex("6bc1bee22e409f96e93d7e117393172a");
+        }
+
+        boolean passesKnownAnswerTest(final Provider provider) {
+            try {
+                return Arrays.equals(run(provider, hex(mKnownKey), knownInput()), hex(mKnownOutput));
+            } catch (GeneralSecurityException | RuntimeException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Get a Cipher from the pinned provider, or the first provider supporting the transformation.
+     */
+    public static Cipher getCipher(final String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final Provider provider = getProvider(transformation);
+
+        return provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+    }
+
+    /**
+     * Get a Mac from the pinned provider, or the first provider supporting the algorithm.
+     */
+    public static Mac getMac(final String algorithm) throws NoSuchAlgorithmException {
+        final Provider provider = getProvider(algorithm);
+
+        return provider == null ? Mac.getInstance(algorithm) : Mac.getInstance(algorithm, provider);
+    }
+
+    /**
+     * Get a Signature from the pinned provider, or the first provider supporting the algorithm.
+     */
+    public static Signature getSignature(final String algorithm) throws NoSuchAlgorithmException {
+        final Provider provider = getProvider(algorithm);
+
+        return provider == null ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, provider);
+    }
+
+    /**
+     * Get a KeyFactory from the pinned provider, or the first provider supporting the algorithm.
+     */
+    public static KeyFactory getKeyFactory(final String algorithm) throws NoSuchAlgorithmException {
+        final Provider provider = getProvider(algorithm);
+
+        return provider == null ? KeyFactory.getInstance(algorithm) : KeyFactory.getInstance(algorithm, provider);
+    }
+
+    /**
+     * Get a MessageDigest from the pinned provider, or the first provider supporting the algorithm.
+     */
+    public static MessageDigest getMessageDigest(final String algorithm) throws NoSuchAlgorithmException {
+        final Provider provider = getProvider(algorithm);
+
+        return provider == null ? MessageDigest.getInstance(algorithm) : MessageDigest.getInstance(algorithm, provider);
+    }
+
+    /**
+     * Get a SecretKeyFactory from the pinned provider, or the first provider supporting the algorithm.
+     */
+    public static SecretKeyFactory getSecretKeyFactory(final String algorithm) throws NoSuchAlgorithmException {
+        final Provider provider = getProvider(algorithm);
+
+        return provider == null ? SecretKeyFactory.getInstance(algorithm) : SecretKeyFactory.getInstance(algorithm, provider);
+    }
+
+    /**
+     * Pin a provider for an algorithm, overriding calibration.
+     *
+     * @param algorithm    The algorithm or transformation, for example "AES/CBC/PKCS5Padding"
+     * @param providerName The name of an installed provider, or null to go back to the default
+     */
+    public static void setProvider(final String algorithm, final String providerName) {
+        if (StringUtils.isNullOrEmpty(algorithm))
+            throw new InvalidInputException("Algorithm cannot be null or empty");
+
+        PROPERTIES_READ.add(algorithm);
+        if (providerName == null) {
+            EXPLICIT_ALGORITHMS.remove(algorithm);
+            PINNED_PROVIDERS.remove(algorithm);
+            return;
+        }
+
+        final Provider provider = Security.getProvider(providerName);
+        if (provider == null)
+            throw new InvalidInputException("No crypto provider named " + providerName + " is installed");
+
+        EXPLICIT_ALGORITHMS.add(algorithm);
+        PINNED_PROVIDERS.put(algorithm, provider);
+        LOGGER.info(String.format("Using provider %s for %s (explicit override)", providerName, algorithm));
+    }
+
+    /**
+     * Get the provider pinned for an algorithm.
+     *
+     * @return The pinned provider, or null if the first supporting provider is used
+     */
+    public static Provider getProvider(final String algorithm) {
+        initialize();
+        readProperty(algorithm);
+
+        return PINNED_PROVIDERS.get(algorithm);
+    }
+
+    /**
+     * Calibrate using the default time budget.
+     */
+    public static Map<Primitive, String> calibrate() {
+        return calibrate(DEFAULT_CALIBRATION_MILLIS);
+    }
+
+    /**
+     * Benchmark every installed provider for every primitive and pin the fastest.
+     * <p/>
+     * Providers that fail the known-answer test are skipped. Primitives pinned
+     * explicitly, with setProvider or a system property, are left alone.
+     *
+     * @param millisPerProvider Time to spend measuring each provider, per primitive
+     * @return The provider name chosen for each primitive that at least one provider supports
+     */
+    public static Map<Primitive, String> calibrate(final long millisPerProvider) {
+        if (millisPerProvider < 1)
+            throw new InvalidInputException("Calibration time must be 1 millisecond or more");
+        initialize();
+
+        final Map<Primitive, String> selection = new LinkedHashMap<>();
+        for (final Primitive primitive : Primitive.values()) {
+            final Provider explicit = EXPLICIT_ALGORITHMS.contains(primitive.getAlgorithm()) ? PINNED_PROVIDERS.get(primitive.getAlgorithm()) : null;
+            if (explicit != null) {
+                selection.put(primitive, explicit.getName());
+                continue;
+            }
+
+            Provider fastest = null;
+            double fastestOpsPerSecond = 0;
+            for (final Provider provider : Security.getProviders()) {
+                if (!primitive.passesKnownAnswerTest(provider))
+                    continue;
+
+                final double opsPerSecond = benchmark(primitive, provider, millisPerProvider);
+                LOGGER.fine(String.format("Provider %s runs %s at %.0f ops/s", provider.getName(), primitive.getAlgorithm(), opsPerSecond));
+                if (fastest == null || opsPerSecond > fastestOpsPerSecond) {
+                    fastest = provider;
+                    fastestOpsPerSecond = opsPerSecond;
+                }
+            }
+
+            if (fastest != null) {
+                PINNED_PROVIDERS.put(primitive.getAlgorithm(), fastest);
+                selection.put(primitive, fastest.getName());
+                LOGGER.info(String.format("Using provider %s for %s (%.0f ops/s)", fastest.getName(), primitive.getAlgorithm(), fastestOpsPerSecond));
+            } else {
+                LOGGER.warning("No installed provider passed the known-answer test for " + primitive.getAlgorithm());
+            }
+        }
+
+        return Collections.unmodifiableMap(selection);
+    }
+
+    /**
+     * Forget all pinned providers, including explicit overrides.
+     * <p/>
+     * The system properties are read again the next time a primitive is requested.
+     */
+    public static void reset() {
+        synchronized (ProviderRegistry.class) {
+            EXPLICIT_ALGORITHMS.clear();
+            PROPERTIES_READ.clear();
+            PINNED_PROVIDERS.clear();
+            sInitialized = false;
+        }
+    }
+
+    private static double benchmark(final Primitive primitive, final Provider provider, final long millis) {
+        final byte[] key = Crypto.generateRandomBytes(32);
+        final byte[] input = new byte[1024];
+        final long budgetNanos = millis * 1000000L;
+
+        try {
+            // Spend the first half warming up, so compiled code is measured
+            final long warmUpEnd = System.nanoTime() + budgetNanos / 2;
+            while (System.nanoTime() < warmUpEnd)
+                primitive.run(provider, key, input);
+
+            long operations = 0;
+            final long start = System.nanoTime();
+            final long end = start + budgetNanos / 2;
+            long now;
+            do {
+                primitive.run(provider, key, input);
+                operations++;
+                now = System.nanoTime();
+            } while (now < end);
+
+            return operations * 1e9 / (now - start);
+        } catch (GeneralSecurityException e) {
+            return 0;
+        }
+    }
+
+    private static void initialize() {
+        if (sInitialized)
+            return;
+
+        synchronized (ProviderRegistry.class) {
+            if (sInitialized)
+                return;
+            sInitialized = true;
+
+            // Before calibrating, so it leaves the primitives pinned by property alone
+            for (final Primitive primitive : Primitive.values())
+                readProperty(primitive.getAlgorithm());
+            if (Boolean.getBoolean(CALIBRATE_PROPERTY))
+                calibrate();
+        }
+    }
+
+    // Pin the provider named by "cryptokit.provider.ALGORITHM" the first time an algorithm is requested
+    private static void readProperty(final String algorithm) {
+        if (PROPERTIES_READ.contains(algorithm))
+            return;
+
+        final String providerName = System.getProperty(PROVIDER_PROPERTY_PREFIX + algorithm);
+        if (providerName != null)
+            setProvider(algorithm, providerName);
+        PROPERTIES_READ.add(algorithm);
+    }
+
+    private static byte[] hex(final String hex) {
+        try {
+            return Hex.decodeHex(hex.toCharArray());
+        } catch (DecoderException e) {
+            throw new ImplementationFailedException("Invalid known-answer vector (oops, please file a bug)", e);
+        }
+    }
+}
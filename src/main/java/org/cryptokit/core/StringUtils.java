@@ -14,6 +14,101 @@ public class StringUtils {
         return string == null || string.trim().isEmpty();
     }
 
+    /**
+     * Same as isNullOrEmpty, without turning the characters into a String.
+     */
+    public static boolean isNullOrBlank(final CharSequence chars) {
+        if (chars == null)
+            return true;
+        for (int i = 0; i < chars.length(); i++) {
+            if (chars.charAt(i) > ' ')
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Encode characters as UTF-8 into a buffer of at least 3 bytes per character.
+     * <p/>
+     * Unpaired surrogates become '?', as with String.getBytes.
+     *
+     * @return The number of bytes written
+     */
+    public static int utf8Encode(final CharSequence chars, final byte[] output) {
+        int length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            final char c = chars.charAt(i);
+            if (c < 0x80) {
+                output[length++] = (byte) c;
+            } else if (c < 0x800) {
+                output[length++] = (byte) (0xc0 | (c >> 6));
+                output[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                output[length++] = (byte) (0xf0 | (codePoint >> 18));
+                output[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                output[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                output[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                output[length++] = '?';
+            } else {
+                output[length++] = (byte) (0xe0 | (c >> 12));
+                output[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                output[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Decode unpadded URL-safe base64 characters into a buffer, without allocating.
+     *
+     * @param chars  The characters to decode from
+     * @param start  Index of the first character
+     * @param end    Index after the last character
+     * @param output Buffer with room for the decoded bytes, 3 for every 4 characters
+     * @param offset Where in the buffer to write
+     * @return The number of bytes written, or -1 if the characters are not valid base64
+     */
+    public static int base64UrlDecode(final CharSequence chars, final int start, final int end, final byte[] output, final int offset) {
+        if ((end - start) % 4 == 1)
+            return -1;
+
+        int length = offset;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = start; i < end; i++) {
+            final int value = base64UrlValue(chars.charAt(i));
+            if (value < 0)
+                return -1;
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                output[length++] = (byte) (bits >> bitCount);
+            }
+        }
+
+        return length - offset;
+    }
+
+    private static int base64UrlValue(final char c) {
+        if (c >= 'A' && c <= 'Z')
+            return c - 'A';
+        if (c >= 'a' && c <= 'z')
+            return c - 'a' + 26;
+        if (c >= '0' && c <= '9')
+            return c - '0' + 52;
+        if (c == '-')
+            return 62;
+        if (c == '_')
+            return 63;
+
+        return -1;
+    }
+
     public static String base64Encode(final String inputString) {
         final byte[] stringBytes = StringUtils.getStringBytes(inputString);
         final String base64String = Base64.encodeBase64URLSafeString(stringBytes);
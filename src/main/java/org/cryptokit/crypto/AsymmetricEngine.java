@@ -0,0 +1,437 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.LruCache;
+import org.cryptokit.core.ProviderRegistry;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+import org.cryptokit.key.KeySpec;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cryptokit.crypto.CryptoTokenSpec.*;
+
+/**
+ * RSA-OAEP encryption and RSA signatures, with private key operations run
+ * in parallel on a dedicated pool of workers.
+ * <p/>
+ * A private key operation takes milliseconds, so decrypt and sign run on
+ * worker threads, one per core by default, and the calling threads only
+ * wait. Each key keeps a pool of Cipher and Signature instances that are
+ * already initialized with it, so the JCA lookup and key setup happen once
+ * per instance rather than once per call. decryptAll and signAll split a
+ * batch across the workers, each borrowing one instance for its whole share.
+ * <p/>
+ * Public key operations are cheap and run on the calling thread, using the
+ * same pooling.
+ * <p/>
+ * loadPrivateKey and loadPublicKey parse encoded keys once and cache them.
+ * PKCS#8 RSA keys keep their CRT parameters, which makes private key
+ * operations about three times faster than with the modulus and exponent alone.
+ * <p/>
+ * Queue time, from submitting to a worker starting, and compute time are
+ * measured separately, telling a pool that is too small apart from slow keys.
+ * <p/>
+ * Example:
+ * AsymmetricEngine engine = new AsymmetricEngine();
+ * byte[] cipherBytes = engine.encrypt(keyPair.getPublic(), secretBytes);
+ * byte[] plainBytes = engine.decrypt(keyPair.getPrivate(), cipherBytes);
+ */
+public class AsymmetricEngine implements Closeable {
+    private static final OAEPParameterSpec OAEP_PARAMETERS = new OAEPParameterSpec(CryptoConstants.RSA_OAEP_DIGEST_ALGORITHM,
+            "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+
+    // The pooled, initialized instances for one key
+    private static class KeyInstances {
+        final Key mKey;
+        final ConcurrentLinkedQueue<Cipher> mCiphers = new ConcurrentLinkedQueue<>();
+        final ConcurrentLinkedQueue<Signature> mSignatures = new ConcurrentLinkedQueue<>();
+
+        KeyInstances(final Key key) {
+            mKey = key;
+        }
+    }
+
+    private final int mParallelism;
+    private final ExecutorService mWorkers;
+    private final LruCache<Key, KeyInstances> mInstances;
+    private final LruCache<String, Key> mParsedKeys;
+
+    private final AtomicLong mOperations = new AtomicLong();
+    private final AtomicLong mTasks = new AtomicLong();
+    private final AtomicLong mQueueNanos = new AtomicLong();
+    private final AtomicLong mComputeNanos = new AtomicLong();
+    private final AtomicLong mInstancesCreated = new AtomicLong();
+
+    public AsymmetricEngine() {
+        this(Runtime.getRuntime().availableProcessors(), ASYMMETRIC_DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * @param parallelism  The number of worker threads, which is also the most instances pooled per key
+     * @param keyCacheSize The most keys to keep parsed and pooled instances for
+     */
+    public AsymmetricEngine(final int parallelism, final int keyCacheSize) {
+        if (parallelism < 1)
+            throw new InvalidInputException("Parallelism must be 1 or greater");
+        if (keyCacheSize < 1)
+            throw new InvalidInputException("Key cache size must be 1 or greater");
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        mParallelism = parallelism;
+        mWorkers = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "asymmetric-engine-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        mInstances = new LruCache<>(keyCacheSize);
+        mParsedKeys = new LruCache<>(keyCacheSize);
+    }
+
+    /**
+     * Parse a PKCS#8 encoded RSA private key, or return the one parsed before.
+     */
+    public PrivateKey loadPrivateKey(final byte[] encodedKey) {
+        if (encodedKey == null)
+            throw new InvalidInputException("Encoded key cannot be null");
+
+        final String cacheKey = "private:" + fingerprint(encodedKey);
+        Key key = mParsedKeys.get(cacheKey);
+        if (key == null) {
+            try {
+                key = ProviderRegistry.getKeyFactory(KeySpec.ASYMMETRIC_CIPHER).generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+            } catch (NoSuchAlgorithmException e) {
+                throw new PreconditionFailedException("System crypto provider does not support cipher " + KeySpec.ASYMMETRIC_CIPHER, e);
+            } catch (InvalidKeySpecException e) {
+                throw new InvalidInputException("Encoded key is not a PKCS#8 RSA private key", e);
+            }
+            key = mParsedKeys.putIfAbsent(cacheKey, key);
+        }
+
+        return (PrivateKey) key;
+    }
+
+    /**
+     * Parse an X.509 encoded RSA public key, or return the one parsed before.
+     */
+    public PublicKey loadPublicKey(final byte[] encodedKey) {
+        if (encodedKey == null)
+            throw new InvalidInputException("Encoded key cannot be null");
+
+        final String cacheKey = "public:" + fingerprint(encodedKey);
+        Key key = mParsedKeys.get(cacheKey);
+        if (key == null) {
+            try {
+                key = ProviderRegistry.getKeyFactory(KeySpec.ASYMMETRIC_CIPHER).generatePublic(new X509EncodedKeySpec(encodedKey));
+            } catch (NoSuchAlgorithmException e) {
+                throw new PreconditionFailedException("System crypto provider does not support cipher " + KeySpec.ASYMMETRIC_CIPHER, e);
+            } catch (InvalidKeySpecException e) {
+                throw new InvalidInputException("Encoded key is not an X.509 RSA public key", e);
+            }
+            key = mParsedKeys.putIfAbsent(cacheKey, key);
+        }
+
+        return (PublicKey) key;
+    }
+
+    /**
+     * @return True if the key carries CRT parameters, the fast form for private key operations
+     */
+    public static boolean hasCrtParameters(final PrivateKey privateKey) {
+        return privateKey instanceof RSAPrivateCrtKey;
+    }
+
+    public byte[] encrypt(final PublicKey publicKey, final byte[] plainBytes) {
+        if (plainBytes == null)
+            throw new InvalidInputException("Bytes to encrypt cannot be null");
+
+        final KeyInstances instances = getInstances(publicKey);
+        final Cipher cipher = borrowCipher(instances, Cipher.ENCRYPT_MODE);
+        final byte[] cipherBytes;
+        try {
+            cipherBytes = cipher.doFinal(plainBytes);
+        } catch (IllegalBlockSizeException e) {
+            throw new InvalidInputException("Too many bytes to encrypt with this RSA key", e);
+        } catch (BadPaddingException e) {
+            throw new ImplementationFailedException("RSA-OAEP encryption failed", e);
+        }
+        release(instances.mCiphers, cipher);
+
+        return cipherBytes;
+    }
+
+    public boolean verify(final PublicKey publicKey, final byte[] dataBytes, final byte[] signatureBytes) {
+        if (dataBytes == null || signatureBytes == null)
+            throw new InvalidInputException("Data and signature cannot be null");
+
+        final KeyInstances instances = getInstances(publicKey);
+        final Signature signature = borrowSignature(instances, false);
+        final boolean valid;
+        try {
+            signature.update(dataBytes);
+            valid = signature.verify(signatureBytes);
+        } catch (SignatureException e) {
+            return false;
+        }
+        release(instances.mSignatures, signature);
+
+        return valid;
+    }
+
+    /**
+     * Decrypt on a worker, waiting for the result.
+     */
+    public byte[] decrypt(final PrivateKey privateKey, final byte[] cipherBytes) {
+        return join(decryptAsync(privateKey, cipherBytes));
+    }
+
+    public CompletableFuture<byte[]> decryptAsync(final PrivateKey privateKey, final byte[] cipherBytes) {
+        if (cipherBytes == null)
+            throw new InvalidInputException("Bytes to decrypt cannot be null");
+
+        return submit(privateKey, Collections.singletonList(cipherBytes), true).thenApply(results -> results.get(0));
+    }
+
+    /**
+     * Decrypt a batch, split across the workers, waiting for the results.
+     *
+     * @return The plain bytes, in the same order
+     */
+    public List<byte[]> decryptAll(final PrivateKey privateKey, final List<byte[]> cipherBytes) {
+        return runAll(privateKey, cipherBytes, true);
+    }
+
+    /**
+     * Sign on a worker, waiting for the result.
+     */
+    public byte[] sign(final PrivateKey privateKey, final byte[] dataBytes) {
+        return join(signAsync(privateKey, dataBytes));
+    }
+
+    public CompletableFuture<byte[]> signAsync(final PrivateKey privateKey, final byte[] dataBytes) {
+        if (dataBytes == null)
+            throw new InvalidInputException("Data to sign cannot be null");
+
+        return submit(privateKey, Collections.singletonList(dataBytes), false).thenApply(results -> results.get(0));
+    }
+
+    /**
+     * Sign a batch, split across the workers, waiting for the results.
+     *
+     * @return The signatures, in the same order
+     */
+    public List<byte[]> signAll(final PrivateKey privateKey, final List<byte[]> dataBytes) {
+        return runAll(privateKey, dataBytes, false);
+    }
+
+    // Number of private key operations completed
+    public long getOperationCount() {
+        return mOperations.get();
+    }
+
+    // Average time a task waited for a worker
+    public double getAverageQueueMicros() {
+        final long tasks = mTasks.get();
+        return tasks == 0 ? 0 : mQueueNanos.get() / 1000.0 / tasks;
+    }
+
+    // Average time a private key operation took on a worker
+    public double getAverageComputeMicros() {
+        final long operations = mOperations.get();
+        return operations == 0 ? 0 : mComputeNanos.get() / 1000.0 / operations;
+    }
+
+    // Tasks submitted and not yet started
+    public int getQueueDepth() {
+        return ((ThreadPoolExecutor) mWorkers).getQueue().size();
+    }
+
+    // Cipher and Signature instances created, stays flat once the pools are warm
+    public long getInstancesCreated() {
+        return mInstancesCreated.get();
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    @Override
+    public void close() {
+        mWorkers.shutdown();
+    }
+
+    private List<byte[]> runAll(final PrivateKey privateKey, final List<byte[]> inputs, final boolean decrypt) {
+        if (inputs == null)
+            throw new InvalidInputException("Inputs cannot be null");
+        for (final byte[] input : inputs) {
+            if (input == null)
+                throw new InvalidInputException("Inputs cannot contain null");
+        }
+
+        final int chunkSize = Math.max(1, (inputs.size() + mParallelism - 1) / mParallelism);
+        final List<CompletableFuture<List<byte[]>>> futures = new ArrayList<>();
+        for (int start = 0; start < inputs.size(); start += chunkSize)
+            futures.add(submit(privateKey, inputs.subList(start, Math.min(inputs.size(), start + chunkSize)), decrypt));
+
+        final List<byte[]> results = new ArrayList<>(inputs.size());
+        for (final CompletableFuture<List<byte[]>> future : futures)
+            results.addAll(join(future));
+
+        return results;
+    }
+
+    // Run a share of a batch on one worker, with one pooled instance
+    private CompletableFuture<List<byte[]>> submit(final PrivateKey privateKey, final List<byte[]> inputs, final boolean decrypt) {
+        final KeyInstances instances = getInstances(privateKey);
+        final long submitted = System.nanoTime();
+
+        return CompletableFuture.supplyAsync(() -> {
+            final long started = System.nanoTime();
+            mQueueNanos.addAndGet(started - submitted);
+            mTasks.incrementAndGet();
+            try {
+                return decrypt ? decryptOnWorker(instances, inputs) : signOnWorker(instances, inputs);
+            } finally {
+                mComputeNanos.addAndGet(System.nanoTime() - started);
+            }
+        }, mWorkers);
+    }
+
+    private List<byte[]> decryptOnWorker(final KeyInstances instances, final List<byte[]> inputs) {
+        final List<byte[]> results = new ArrayList<>(inputs.size());
+        final Cipher cipher = borrowCipher(instances, Cipher.DECRYPT_MODE);
+        try {
+            for (final byte[] cipherBytes : inputs) {
+                results.add(cipher.doFinal(cipherBytes));
+                mOperations.incrementAndGet();
+            }
+        } catch (BadPaddingException | IllegalBlockSizeException e) {
+            throw new DecryptionFailedException("RSA-OAEP decryption failed, the bytes were not encrypted for this key or were modified", e);
+        }
+        release(instances.mCiphers, cipher);
+
+        return results;
+    }
+
+    private List<byte[]> signOnWorker(final KeyInstances instances, final List<byte[]> inputs) {
+        final List<byte[]> results = new ArrayList<>(inputs.size());
+        final Signature signature = borrowSignature(instances, true);
+        try {
+            for (final byte[] dataBytes : inputs) {
+                signature.update(dataBytes);
+                results.add(signature.sign());
+                mOperations.incrementAndGet();
+            }
+        } catch (SignatureException e) {
+            throw new ImplementationFailedException("RSA signing failed", e);
+        }
+        release(instances.mSignatures, signature);
+
+        return results;
+    }
+
+    private KeyInstances getInstances(final Key key) {
+        if (key == null)
+            throw new InvalidInputException("Key cannot be null");
+
+        final KeyInstances instances = mInstances.get(key);
+
+        return instances != null ? instances : mInstances.putIfAbsent(key, new KeyInstances(key));
+    }
+
+    // A finished Cipher is ready for the next message in the same mode, so it is pooled without re-initializing
+    private Cipher borrowCipher(final KeyInstances instances, final int mode) {
+        final Cipher pooled = instances.mCiphers.poll();
+        if (pooled != null)
+            return pooled;
+
+        try {
+            final Cipher cipher = ProviderRegistry.getCipher(CryptoConstants.RSA_OAEP_CIPHER_ALGORITHM);
+            cipher.init(mode, instances.mKey, OAEP_PARAMETERS);
+            mInstancesCreated.incrementAndGet();
+            return cipher;
+        } catch (InvalidKeyException e) {
+            throw new InvalidInputException("The provided key cannot be used with " + CryptoConstants.RSA_OAEP_CIPHER_ALGORITHM, e);
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.RSA_OAEP_CIPHER_ALGORITHM, e);
+        }
+    }
+
+    private Signature borrowSignature(final KeyInstances instances, final boolean sign) {
+        final Signature pooled = instances.mSignatures.poll();
+        if (pooled != null)
+            return pooled;
+
+        try {
+            final Signature signature = ProviderRegistry.getSignature(CryptoConstants.RSA_SIGNATURE_ALGORITHM);
+            if (sign)
+                signature.initSign((PrivateKey) instances.mKey);
+            else
+                signature.initVerify((PublicKey) instances.mKey);
+            mInstancesCreated.incrementAndGet();
+            return signature;
+        } catch (InvalidKeyException e) {
+            throw new InvalidInputException("The provided key cannot be used with " + CryptoConstants.RSA_SIGNATURE_ALGORITHM, e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.RSA_SIGNATURE_ALGORITHM, e);
+        }
+    }
+
+    // Keep at most one instance per worker. Instances are only released after a successful operation, a failed one may need re-initializing
+    private <T> void release(final ConcurrentLinkedQueue<T> pool, final T instance) {
+        if (pool.size() < mParallelism)
+            pool.offer(instance);
+    }
+
+    private static <T> T join(final CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new ImplementationFailedException("Asymmetric engine worker failed", e.getCause());
+        }
+    }
+
+    private static String fingerprint(final byte[] encodedKey) {
+        try {
+            return StringUtils.base64Encode(ProviderRegistry.getMessageDigest(CryptoConstants.RSA_KEY_FINGERPRINT_ALGORITHM).digest(encodedKey));
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm "
+                    + CryptoConstants.RSA_KEY_FINGERPRINT_ALGORITHM, e);
+        }
+    }
+}
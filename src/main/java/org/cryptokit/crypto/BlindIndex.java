@@ -0,0 +1,261 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.cryptokit.crypto.CryptoTokenSpec.*;
+
+/**
+ * Blind index for searching randomized encrypted fields without decrypting them.
+ * <p/>
+ * A blind index is a truncated, keyed hash (HMAC-SHA256) of the normalized
+ * plain text, stored next to the crypto token from SymmetricCrypto. To find
+ * a row, compute the index of the value you are looking for and query the
+ * index column. The index key is derived from the encryption key and the
+ * index name, so every index gets its own key and the encryption key itself
+ * is never used for hashing.
+ * <p/>
+ * Truncation controls the trade-off between false positives and leakage.
+ * Shorter indexes match more unrelated rows (which you filter out after
+ * decrypting), but reveal less about which rows hold equal values. The
+ * default of 8 bytes effectively gives exact matches.
+ * <p/>
+ * Example:
+ * BlindIndex emailIndex = new BlindIndex(secretKey, "users.email");
+ * String index = emailIndex.index("Alice@Example.com");
+ */
+public class BlindIndex {
+
+    /**
+     * Normalizes values before they are indexed, so values that should
+     * match produce the same index.
+     */
+    public interface ValueNormalizer {
+        String normalize(String value);
+    }
+
+    /**
+     * Index values exactly as given.
+     */
+    public static final ValueNormalizer EXACT = new ValueNormalizer() {
+        @Override
+        public String normalize(final String value) {
+            return value;
+        }
+    };
+
+    /**
+     * Trim whitespace, apply Unicode NFKC normalization and lower case the value.
+     */
+    public static final ValueNormalizer CASE_INSENSITIVE = new ValueNormalizer() {
+        @Override
+        public String normalize(final String value) {
+            return Normalizer.normalize(value.trim(), Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        }
+    };
+
+    private static final byte DOMAIN_VALUE = 0;
+    private static final byte DOMAIN_COMPOUND = 1;
+    private static final byte DOMAIN_PREFIX = 2;
+
+    private final byte[] mIndexKey;
+    private int mIndexBytes = BLIND_INDEX_DEFAULT_BYTES;
+    private ValueNormalizer mNormalizer = CASE_INSENSITIVE;
+
+    /**
+     * Create a blind index for the given encryption key.
+     *
+     * @param secretKey The key used to encrypt the indexed values
+     * @param indexName A name unique to the indexed field, for example "users.email"
+     */
+    public BlindIndex(final SecretKey secretKey, final String indexName) {
+        if (secretKey == null)
+            throw new InvalidInputException("Secret key cannot be null");
+        if (StringUtils.isNullOrEmpty(indexName))
+            throw new InvalidInputException("Index name cannot be null or empty");
+        final byte[] keyBytes = secretKey.getEncoded();
+        if (keyBytes == null)
+            throw new InvalidInputException("Secret key must be extractable to derive a blind index key");
+
+        mIndexKey = deriveIndexKey(keyBytes, indexName);
+    }
+
+    /**
+     * Set the number of bytes each index is truncated to, between 1 and 32.
+     *
+     * @param indexBytes Number of index bytes to keep
+     */
+    public void setIndexBytes(final int indexBytes) {
+        if (indexBytes < 1 || indexBytes > CryptoConstants.HMAC_SIZE_BYTES)
+            throw new InvalidInputException("Index bytes must be between 1 and " + CryptoConstants.HMAC_SIZE_BYTES);
+
+        mIndexBytes = indexBytes;
+    }
+
+    public int getIndexBytes() {
+        return mIndexBytes;
+    }
+
+    /**
+     * Set how values are normalized before indexing, CASE_INSENSITIVE by default.
+     *
+     * @param normalizer The normalizer to use
+     */
+    public void setNormalizer(final ValueNormalizer normalizer) {
+        if (normalizer == null)
+            throw new InvalidInputException("Normalizer cannot be null");
+
+        mNormalizer = normalizer;
+    }
+
+    /**
+     * Compute the blind index of a single value.
+     *
+     * @param value The plain text value
+     * @return The base64url encoded index
+     */
+    public String index(final String value) {
+        checkValue(value);
+
+        return computeIndex(createMac(), DOMAIN_VALUE, 0, value);
+    }
+
+    /**
+     * Compute a blind index over several values, for example first and last name.
+     * <p/>
+     * The values are length-prefixed, so ("ab", "c") and ("a", "bc") do not collide.
+     *
+     * @param values The plain text values, in a fixed order
+     * @return The base64url encoded index
+     */
+    public String compoundIndex(final String... values) {
+        if (values == null || values.length == 0)
+            throw new InvalidInputException("Compound index needs at least one value");
+        for (final String value : values)
+            checkValue(value);
+
+        return computeIndex(createMac(), DOMAIN_COMPOUND, 0, values);
+    }
+
+    /**
+     * Compute the blind index of the first prefixLength characters of a value.
+     * <p/>
+     * Store the prefix index when writing, and look up by the prefix index of
+     * the search term to support "starts with" queries of a fixed length.
+     * Prefix indexes of different lengths never match each other or a full
+     * value index.
+     *
+     * @param value        The plain text value
+     * @param prefixLength The number of characters (code points) to index
+     * @return The base64url encoded index
+     */
+    public String prefixIndex(final String value, final int prefixLength) {
+        checkValue(value);
+        if (prefixLength < 1)
+            throw new InvalidInputException("Prefix length must be 1 or greater");
+
+        final Mac mac = createMac();
+        final String normalized = mNormalizer.normalize(value);
+        if (normalized.codePointCount(0, normalized.length()) < prefixLength)
+            throw new InvalidInputException("Value is shorter than the prefix length");
+        final String prefix = normalized.substring(0, normalized.offsetByCodePoints(0, prefixLength));
+
+        return computeNormalizedIndex(mac, DOMAIN_PREFIX, prefixLength, prefix);
+    }
+
+    /**
+     * Compute the blind indexes of many values, reusing a single Mac instance.
+     *
+     * @param values The plain text values
+     * @return The base64url encoded indexes, in the same order as the values
+     */
+    public List<String> index(final List<String> values) {
+        if (values == null)
+            throw new InvalidInputException("Values cannot be null");
+        for (final String value : values)
+            checkValue(value);
+
+        final Mac mac = createMac();
+        final List<String> indexes = new ArrayList<String>(values.size());
+        for (final String value : values)
+            indexes.add(computeIndex(mac, DOMAIN_VALUE, 0, value));
+
+        return indexes;
+    }
+
+    private String computeIndex(final Mac mac, final byte domain, final int parameter, final String... values) {
+        final String[] normalized = new String[values.length];
+        for (int i = 0; i < values.length; i++)
+            normalized[i] = mNormalizer.normalize(values[i]);
+
+        return computeNormalizedIndex(mac, domain, parameter, normalized);
+    }
+
+    private String computeNormalizedIndex(final Mac mac, final byte domain, final int parameter, final String... values) {
+        mac.update(domain);
+        updateInt(mac, parameter);
+        for (final String value : values) {
+            final byte[] valueBytes = StringUtils.getStringBytes(value);
+            updateInt(mac, valueBytes.length);
+            mac.update(valueBytes);
+        }
+        final byte[] macBytes = mac.doFinal();
+        final String index = StringUtils.base64Encode(Arrays.copyOf(macBytes, mIndexBytes));
+
+        return index;
+    }
+
+    private static void updateInt(final Mac mac, final int value) {
+        mac.update((byte) (value >>> 24));
+        mac.update((byte) (value >>> 16));
+        mac.update((byte) (value >>> 8));
+        mac.update((byte) value);
+    }
+
+    private static void checkValue(final String value) {
+        if (StringUtils.isNullOrEmpty(value))
+            throw new InvalidInputException("Value to index cannot be null or empty");
+    }
+
+    private Mac createMac() {
+        return createMac(mIndexKey);
+    }
+
+    // The index key is HMAC(encryption key, context || 0 || index name), so the
+    // encryption key is never used directly and each index has its own key
+    private static byte[] deriveIndexKey(final byte[] keyBytes, final String indexName) {
+        final Mac mac = createMac(keyBytes);
+        mac.update(StringUtils.getStringBytes(BLIND_INDEX_KEY_CONTEXT));
+        mac.update((byte) 0);
+        mac.update(StringUtils.getStringBytes(indexName));
+
+        return mac.doFinal();
+    }
+
+    private static Mac createMac(final byte[] keyBytes) {
+        final Mac mac;
+
+        try {
+            mac = Crypto.hmac(keyBytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.HMAC_ALGORITHM, e);
+        } catch (InvalidKeyException e) {
+            throw new PreconditionFailedException("The provided key cannot be used with " + CryptoConstants.HMAC_ALGORITHM, e);
+        }
+
+        return mac;
+    }
+}
@@ -2,10 +2,36 @@ package org.cryptokit.crypto;
 
 public class CryptoTokenSpec {
     public static final String SYMMETRIC_CRYPTO_TOKEN_HEADER = "ck_sc1";
+    public static final String COMPRESSED_SYMMETRIC_CRYPTO_TOKEN_HEADER = "ck_sc1z";
+    public static final String AES_GCM_CRYPTO_TOKEN_HEADER = "ck_sg1";
+    public static final String COMPRESSED_AES_GCM_CRYPTO_TOKEN_HEADER = "ck_sg1z";
+    public static final String CHACHA20_POLY1305_CRYPTO_TOKEN_HEADER = "ck_sp1";
+    public static final String COMPRESSED_CHACHA20_POLY1305_CRYPTO_TOKEN_HEADER = "ck_sp1z";
     public static final String ASYMMETRIC_CRYPTO_TOKEN_HEADER = "ck_ac1";
+    public static final String DETERMINISTIC_CRYPTO_TOKEN_HEADER = "ck_sd1";
 
     public static final int CRYPTO_SEGMENT_HEADER = 0;
     public static final int CRYPTO_SEGMENT_IV = 1;
     public static final int CRYPTO_SEGMENT_CIPHER = 2;
     public static final int CRYPTO_NUM_SEGMENTS = 3;
+
+    public static final int COMPRESSION_DEFAULT_THRESHOLD_BYTES = 1024;
+    public static final double COMPRESSION_DEFAULT_MAX_RATIO = 0.8;
+
+    public static final String BLIND_INDEX_KEY_CONTEXT = "ck_bi1";
+    public static final int BLIND_INDEX_DEFAULT_BYTES = 8;
+
+    public static final int NONCE_PREFIX_BYTES = 4;
+    public static final int NONCE_DEFAULT_BLOCK_SIZE = 1024;
+    public static final long NONCE_HIGH_WATER_MARK_STRIDE = 1L << 20;
+
+    public static final int RECORD_CONTAINER_MAGIC = 0x434b5243; // "CKRC"
+    public static final byte RECORD_CONTAINER_VERSION = 1;
+    public static final int RECORD_CONTAINER_DEFAULT_BLOCK_BYTES = 64 * 1024;
+    public static final int RECORD_CONTAINER_DEFAULT_CACHE_BLOCKS = 64;
+
+    public static final long DECRYPT_CACHE_DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    public static final long DECRYPT_CACHE_DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    public static final int ASYMMETRIC_DEFAULT_KEY_CACHE_SIZE = 1000;
 }
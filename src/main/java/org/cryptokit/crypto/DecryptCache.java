@@ -0,0 +1,343 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cryptokit.crypto.CryptoTokenSpec.*;
+
+/**
+ * Cache in front of SymmetricCrypto.decrypt for tokens that are decrypted over and over.
+ * <p/>
+ * Tokens are looked up by a fast 64-bit hash and confirmed by comparing the
+ * whole token, so a repeat decrypt is a map lookup. The cache is bounded by
+ * the approximate memory its entries use rather than their number, evicting
+ * the least recently used, and entries expire after a time to live so a
+ * plain text does not stay in memory indefinitely. Expired entries are
+ * removed when they are looked up, and from the least recently used end of a
+ * segment whenever a new entry is added to it. Call removeExpired from a
+ * timer to also wipe expired entries of a cache that has gone quiet.
+ * <p/>
+ * Plain texts can optionally be kept in direct buffers outside the Java heap
+ * and overwritten with zeros when they are evicted or expire. A String is
+ * still created for each hit, and that copy is up to the caller.
+ * <p/>
+ * Like LruCache the entries are spread over independently locked segments,
+ * each with an equal share of the size budget.
+ * <p/>
+ * Example:
+ * DecryptCache cache = new DecryptCache(crypto, 4 * 1024 * 1024, TimeUnit.MINUTES.toMillis(10), true);
+ * String apiKey = cache.decrypt(apiKeyToken);
+ */
+public class DecryptCache {
+    private static final int SEGMENTS = 16;
+    // Rough per-entry cost of the map entry, the entry object and the key
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final SymmetricCrypto mCrypto;
+    private final Segment[] mSegments = new Segment[SEGMENTS];
+    private final long mMaximumBytes;
+    private final long mTtlNanos;
+    private final boolean mOffHeap;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mExpirations = new AtomicLong();
+
+    public DecryptCache(final SymmetricCrypto crypto) {
+        this(crypto, DECRYPT_CACHE_DEFAULT_MAX_BYTES, DECRYPT_CACHE_DEFAULT_TTL_MILLIS, false);
+    }
+
+    /**
+     * @param crypto       The crypto to decrypt cache misses with
+     * @param maximumBytes Approximate memory the cached tokens and plain texts may use
+     * @param ttlMillis    How long a plain text is kept after it is decrypted
+     * @param offHeap      Keep plain texts in direct buffers and zero them when they leave the cache
+     */
+    public DecryptCache(final SymmetricCrypto crypto, final long maximumBytes, final long ttlMillis, final boolean offHeap) {
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+        if (maximumBytes < SEGMENTS * ENTRY_OVERHEAD_BYTES)
+            throw new InvalidInputException("Maximum bytes must be at least " + SEGMENTS * ENTRY_OVERHEAD_BYTES);
+        if (ttlMillis < 1)
+            throw new InvalidInputException("Time to live must be 1 millisecond or greater");
+
+        mCrypto = crypto;
+        mMaximumBytes = maximumBytes;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        mOffHeap = offHeap;
+        for (int i = 0; i < SEGMENTS; i++)
+            mSegments[i] = new Segment(maximumBytes / SEGMENTS);
+    }
+
+    public String decrypt(final String cryptoToken) {
+        if (StringUtils.isNullOrEmpty(cryptoToken))
+            throw new InvalidInputException("Crypto token to decrypt cannot be null or empty");
+
+        final long hash = hash(cryptoToken);
+        final Segment segment = mSegments[(int) (hash >>> 60)];
+        final long now = System.nanoTime();
+
+        String plainText;
+        synchronized (segment) {
+            plainText = segment.get(hash, cryptoToken, now);
+        }
+        if (plainText != null) {
+            mHits.incrementAndGet();
+            return plainText;
+        }
+        mMisses.incrementAndGet();
+
+        plainText = mCrypto.decrypt(cryptoToken);
+        final long decryptedAt = System.nanoTime();
+        final Entry entry = new Entry(cryptoToken, plainText, decryptedAt + mTtlNanos, mOffHeap);
+        synchronized (segment) {
+            segment.add(hash, entry, decryptedAt);
+        }
+
+        return plainText;
+    }
+
+    /**
+     * Remove every entry, zeroing off-heap plain texts.
+     */
+    public void clear() {
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Remove every expired entry, zeroing off-heap plain texts.
+     */
+    public void removeExpired() {
+        final long now = System.nanoTime();
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                segment.removeExpired(now);
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                size += segment.mEntries.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return Approximate memory used by the cached entries, in bytes
+     */
+    public long getWeightedSize() {
+        long weight = 0;
+        for (final Segment segment : mSegments) {
+            synchronized (segment) {
+                weight += segment.mWeight;
+            }
+        }
+
+        return weight;
+    }
+
+    public long getMaximumBytes() {
+        return mMaximumBytes;
+    }
+
+    public boolean isOffHeap() {
+        return mOffHeap;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return Entries removed to stay within the size budget
+     */
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    /**
+     * @return Entries removed because their time to live passed
+     */
+    public long getExpirationCount() {
+        return mExpirations.get();
+    }
+
+    /**
+     * Fraction of decrypts answered from the cache, 0 if nothing was decrypted yet.
+     */
+    public double getHitRate() {
+        final long hits = mHits.get();
+        final long lookups = hits + mMisses.get();
+
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+
+    // 64-bit FNV-1a over the characters, tokens are ASCII so this covers every byte
+    static long hash(final String cryptoToken) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < cryptoToken.length(); i++) {
+            hash ^= cryptoToken.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 29;
+        hash *= 0xbf58476d1ce4e5b9L;
+        hash ^= hash >>> 32;
+
+        return hash;
+    }
+
+    /**
+     * A cached plain text, as a String or in a direct buffer.
+     */
+    private static class Entry {
+        final String mToken;
+        final long mExpiresAtNanos;
+        final int mWeight;
+        private final String mPlainText;
+        private final ByteBuffer mPlainBuffer;
+
+        Entry(final String token, final String plainText, final long expiresAtNanos, final boolean offHeap) {
+            mToken = token;
+            mExpiresAtNanos = expiresAtNanos;
+            if (offHeap) {
+                final byte[] plainBytes = StringUtils.getStringBytes(plainText);
+                mPlainText = null;
+                mPlainBuffer = ByteBuffer.allocateDirect(plainBytes.length);
+                mPlainBuffer.put(plainBytes).flip();
+                Arrays.fill(plainBytes, (byte) 0);
+                mWeight = ENTRY_OVERHEAD_BYTES + 2 * token.length() + plainBytes.length;
+            } else {
+                mPlainText = plainText;
+                mPlainBuffer = null;
+                mWeight = ENTRY_OVERHEAD_BYTES + 2 * token.length() + 2 * plainText.length();
+            }
+        }
+
+        // Called holding the segment lock, so the buffer cannot be zeroed meanwhile
+        String getPlainText() {
+            if (mPlainBuffer == null)
+                return mPlainText;
+
+            final byte[] plainBytes = new byte[mPlainBuffer.remaining()];
+            mPlainBuffer.duplicate().get(plainBytes);
+            final String plainText = new String(plainBytes, CryptoConstants.CHARSET);
+            Arrays.fill(plainBytes, (byte) 0);
+
+            return plainText;
+        }
+
+        boolean isExpired(final long now) {
+            return now - mExpiresAtNanos >= 0;
+        }
+
+        void wipe() {
+            if (mPlainBuffer == null)
+                return;
+
+            for (int i = 0; i < mPlainBuffer.limit(); i++)
+                mPlainBuffer.put(i, (byte) 0);
+        }
+    }
+
+    private class Segment {
+        private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long mMaximumWeight;
+        private long mWeight;
+
+        Segment(final long maximumWeight) {
+            mMaximumWeight = maximumWeight;
+        }
+
+        String get(final long hash, final String token, final long now) {
+            final Entry entry = mEntries.get(hash);
+            if (entry == null || !entry.mToken.equals(token))
+                return null;
+            if (entry.isExpired(now)) {
+                mEntries.remove(hash);
+                release(entry);
+                mExpirations.incrementAndGet();
+                return null;
+            }
+
+            return entry.getPlainText();
+        }
+
+        void add(final long hash, final Entry entry, final long now) {
+            // Too big to ever fit, caching it would only flush everything else
+            if (entry.mWeight > mMaximumWeight) {
+                entry.wipe();
+                return;
+            }
+
+            final Entry replaced = mEntries.put(hash, entry);
+            if (replaced != null)
+                release(replaced);
+            mWeight += entry.mWeight;
+
+            // Entries are in access order, so expired entries that were never read again collect at the eldest end
+            final Iterator<Entry> eldest = mEntries.values().iterator();
+            while (eldest.hasNext()) {
+                final Entry expired = eldest.next();
+                if (!expired.isExpired(now))
+                    break;
+                eldest.remove();
+                release(expired);
+                mExpirations.incrementAndGet();
+            }
+
+            final Iterator<Entry> evictable = mEntries.values().iterator();
+            while (mWeight > mMaximumWeight) {
+                final Entry evicted = evictable.next();
+                evictable.remove();
+                release(evicted);
+                mEvictions.incrementAndGet();
+            }
+        }
+
+        void removeExpired(final long now) {
+            final Iterator<Entry> entries = mEntries.values().iterator();
+            while (entries.hasNext()) {
+                final Entry entry = entries.next();
+                if (entry.isExpired(now)) {
+                    entries.remove();
+                    release(entry);
+                    mExpirations.incrementAndGet();
+                }
+            }
+        }
+
+        void clear() {
+            for (final Map.Entry<Long, Entry> entry : mEntries.entrySet())
+                entry.getValue().wipe();
+            mEntries.clear();
+            mWeight = 0;
+        }
+
+        private void release(final Entry entry) {
+            mWeight -= entry.mWeight;
+            entry.wipe();
+        }
+    }
+}
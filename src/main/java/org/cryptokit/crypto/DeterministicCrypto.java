@@ -0,0 +1,151 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.*;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static org.cryptokit.crypto.CryptoTokenSpec.*;
+
+/**
+ * Deterministic symmetric encryption using AES-SIV (RFC 5297).
+ * <p/>
+ * Unlike SymmetricCrypto, encrypting the same text twice with the same key
+ * produces the same crypto token, so encrypted columns can be indexed and
+ * searched for equality without decrypting them. The price is that anyone
+ * who can see the tokens can also see which values are equal. Use
+ * SymmetricCrypto unless you need to look values up by their encrypted form.
+ * <p/>
+ * AES-SIV needs a double length key, use a 256-bit key (the default from
+ * RandomKeyGenerator), a 384-bit key or a 512-bit key, for AES-128, AES-192
+ * or AES-256 respectively.
+ */
+public class DeterministicCrypto {
+
+    private final SecretKey mSecretKey;
+
+    public DeterministicCrypto(final SecretKey secretKey) {
+        if (secretKey == null) {
+            throw new InvalidInputException("Secret key cannot be null");
+        }
+        final byte[] keyBytes = secretKey.getEncoded();
+        if (keyBytes == null || (keyBytes.length != 32 && keyBytes.length != 48 && keyBytes.length != 64)) {
+            throw new InvalidInputException("Secret key must be 256, 384 or 512 bits for deterministic encryption");
+        }
+
+        mSecretKey = secretKey;
+    }
+
+    public String encrypt(final String plainText) {
+        if (StringUtils.isNullOrEmpty(plainText)) {
+            throw new InvalidInputException("Text to encrypt cannot be null or empty");
+        }
+
+        final byte[] sivBytes = encrypt(mSecretKey, StringUtils.getStringBytes(plainText));
+        final byte[] ivBytes = Arrays.copyOf(sivBytes, CryptoConstants.AES_BLOCK_SIZE_BYTES);
+        final byte[] cipherBytes = Arrays.copyOfRange(sivBytes, CryptoConstants.AES_BLOCK_SIZE_BYTES, sivBytes.length);
+        final String cryptoToken = encodeCryptoToken(ivBytes, cipherBytes);
+
+        return cryptoToken;
+    }
+
+    public String decrypt(final String cryptoToken) {
+        if (StringUtils.isNullOrEmpty(cryptoToken)) {
+            throw new InvalidInputException("Crypto token to decrypt cannot be null or empty");
+        }
+
+        final String[] segments = decodeCryptoToken(cryptoToken);
+        final byte[] ivBytes = StringUtils.base64DecodeBytes(segments[CRYPTO_SEGMENT_IV]);
+        final byte[] cipherBytes = StringUtils.base64DecodeBytes(segments[CRYPTO_SEGMENT_CIPHER]);
+        if (ivBytes.length != CryptoConstants.AES_BLOCK_SIZE_BYTES)
+            throw new InvalidEncodingException(String.format("Crypto token is not in the expected format. Expected a %d byte IV but found %d",
+                    CryptoConstants.AES_BLOCK_SIZE_BYTES, ivBytes.length));
+
+        final byte[] sivBytes = new byte[ivBytes.length + cipherBytes.length];
+        System.arraycopy(ivBytes, 0, sivBytes, 0, ivBytes.length);
+        System.arraycopy(cipherBytes, 0, sivBytes, ivBytes.length, cipherBytes.length);
+
+        final byte[] decryptedBytes = decrypt(mSecretKey, sivBytes);
+        final String plainText = new String(decryptedBytes, CryptoConstants.CHARSET);
+
+        return plainText;
+    }
+
+    private byte[] encrypt(final SecretKey secretKey, final byte[] plainBytes) {
+        final byte[] sivBytes;
+
+        try {
+            sivBytes = Crypto.aesSivEncrypt(secretKey, plainBytes);
+        } catch (NoSuchPaddingException e) {
+            throw new PreconditionFailedException("System crypto provider does not support AES without padding", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.AES_CTR_CIPHER_ALGORITHM, e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new PreconditionFailedException("System crypto provider does not support the request algorithm parameter", e);
+        } catch (InvalidKeyException e) {
+            throw new PreconditionFailedException("The provided key does not appear to be a valid " + secretKey.getAlgorithm() + " key", e);
+        } catch (BadPaddingException e) {
+            throw new ImplementationFailedException("Bad padding (oops, please file a bug)", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new ImplementationFailedException("Illegal block size (oops, please file a bug)", e);
+        }
+
+        return sivBytes;
+    }
+
+    private byte[] decrypt(final SecretKey secretKey, final byte[] sivBytes) {
+        final byte[] decryptedBytes;
+
+        try {
+            decryptedBytes = Crypto.aesSivDecrypt(secretKey, sivBytes);
+        } catch (NoSuchPaddingException e) {
+            throw new PreconditionFailedException("System crypto provider does not support AES without padding", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("System crypto provider does not support the algorithm " + CryptoConstants.AES_CTR_CIPHER_ALGORITHM, e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new PreconditionFailedException("System crypto provider does not support the request algorithm parameter", e);
+        } catch (InvalidKeyException e) {
+            throw new PreconditionFailedException("The provided key does not appear to be a valid " + secretKey.getAlgorithm() + " key", e);
+        } catch (BadPaddingException e) {
+            throw new DecryptionFailedException("Crypto token does not decrypt with the provided key", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new ImplementationFailedException("Illegal block size (oops, please file a bug)", e);
+        }
+
+        return decryptedBytes;
+    }
+
+    private String encodeCryptoToken(final byte[] iv, final byte[] cipherBytes) {
+        final String base64Iv = StringUtils.base64Encode(iv);
+        final String base64cipher = StringUtils.base64Encode(cipherBytes);
+        final String cryptoToken =
+                DETERMINISTIC_CRYPTO_TOKEN_HEADER + CryptoConstants.SEGMENT_DELIMITER +
+                        base64Iv + CryptoConstants.SEGMENT_DELIMITER +
+                        base64cipher;
+
+        return cryptoToken;
+    }
+
+    // Decode the crypto token into its constituent parts
+    private static String[] decodeCryptoToken(final String cryptoToken) {
+        final String[] segments = cryptoToken.split(CryptoConstants.SEGMENT_DELIMITER_PATTERN);
+
+        if (segments.length != CRYPTO_NUM_SEGMENTS)
+            throw new InvalidEncodingException(String.format("Crypto token is not in the expected format. Expected %d segments but found %d",
+                    CRYPTO_NUM_SEGMENTS, segments.length));
+        if (!DETERMINISTIC_CRYPTO_TOKEN_HEADER.equals(segments[CRYPTO_SEGMENT_HEADER]))
+            throw new InvalidEncodingException(String.format("Crypto token is not in the expected format. Expected '%s' header but found '%s'",
+                    DETERMINISTIC_CRYPTO_TOKEN_HEADER, segments[CRYPTO_SEGMENT_HEADER]));
+
+        return segments;
+    }
+}
@@ -0,0 +1,99 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.InvalidInputException;
+
+/**
+ * An encrypted field value that is only decrypted when it is read.
+ * <p/>
+ * Holds the crypto token and the crypto to decrypt it with. The first call
+ * to get() decrypts it, once, even when several threads call it at the same
+ * time, and later calls return the same plain text. Until then mapping rows
+ * into objects costs no decryption at all, and a value that is never read
+ * is written back out as the original token without being decrypted.
+ * <p/>
+ * toString() does not reveal the plain text, so values are safe to log.
+ * See JsonEncryptedStringAdapterFactory for reading and writing them with Gson.
+ * <p/>
+ * Example:
+ * EncryptedString ssn = new EncryptedString(crypto, row.getString("ssn"));
+ * String plainSsn = ssn.get();
+ */
+public final class EncryptedString {
+    private final SymmetricCrypto mCrypto;
+    private final String mCryptoToken;
+    private volatile String mPlainText;
+
+    /**
+     * @param crypto      The crypto to decrypt with
+     * @param cryptoToken The encrypted value
+     */
+    public EncryptedString(final SymmetricCrypto crypto, final String cryptoToken) {
+        this(crypto, cryptoToken, null);
+    }
+
+    private EncryptedString(final SymmetricCrypto crypto, final String cryptoToken, final String plainText) {
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+        if (StringUtils.isNullOrEmpty(cryptoToken))
+            throw new InvalidInputException("Crypto token cannot be null or empty");
+
+        mCrypto = crypto;
+        mCryptoToken = cryptoToken;
+        mPlainText = plainText;
+    }
+
+    /**
+     * Encrypt a new value, which is then already available as plain text.
+     */
+    public static EncryptedString encrypt(final SymmetricCrypto crypto, final String plainText) {
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+
+        return new EncryptedString(crypto, crypto.encrypt(plainText), plainText);
+    }
+
+    /**
+     * @return The plain text, decrypting it on the first call
+     */
+    public String get() {
+        String plainText = mPlainText;
+        if (plainText == null) {
+            synchronized (this) {
+                plainText = mPlainText;
+                if (plainText == null) {
+                    plainText = mCrypto.decrypt(mCryptoToken);
+                    mPlainText = plainText;
+                }
+            }
+        }
+
+        return plainText;
+    }
+
+    /**
+     * @return The crypto token, never decrypting
+     */
+    public String getCryptoToken() {
+        return mCryptoToken;
+    }
+
+    public boolean isDecrypted() {
+        return mPlainText != null;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof EncryptedString && mCryptoToken.equals(((EncryptedString) other).mCryptoToken);
+    }
+
+    @Override
+    public int hashCode() {
+        return mCryptoToken.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "EncryptedString{decrypted=" + isDecrypted() + "}";
+    }
+}
@@ -0,0 +1,211 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cryptokit.crypto.CryptoTokenSpec.*;
+
+/**
+ * Hands out 96-bit AEAD nonces from a counter instead of SecureRandom.
+ * <p/>
+ * AES-GCM and ChaCha20-Poly1305 fail badly if a nonce is ever repeated
+ * under the same key. Within one allocator a counter never repeats and is
+ * cheaper than asking SecureRandom. Each nonce is a random 4-byte prefix,
+ * chosen once per allocator, followed by an 8-byte big-endian counter that
+ * starts at a random offset below 2^62, so two allocators only produce the
+ * same nonce if both their prefixes and their counter ranges meet.
+ * <p/>
+ * That still leaves a limit on allocators per key, which is what makes
+ * several allocators no safer than random nonces. The chance that any two of
+ * A allocators each handing out L nonces collide is about A^2 * L / 2^94;
+ * keep A^2 * L under 2^62 per key, for example at most 65,536 allocators of
+ * 2^30 nonces each. Every process and host using the key counts, and so does
+ * every restart of an allocator without a high-water mark file. One
+ * persisted allocator per key has no such limit.
+ * <p/>
+ * Threads reserve counter values in blocks from a shared atomic counter, so
+ * they only contend once per block. With a high-water mark file, the
+ * allocator records how far the counter may have got before handing out any
+ * nonce beyond that point, and continues from there after a restart, so
+ * nonces are not reused across restarts even if the prefix repeats. A new
+ * file starts at a random offset, like an allocator without one. The file
+ * is locked while the allocator is open, so two allocators cannot share it.
+ * <p/>
+ * Example:
+ * NonceAllocator nonces = new NonceAllocator(Paths.get("/var/lib/app/nonces"));
+ * SymmetricCrypto crypto = new SymmetricCrypto(key, SymmetricCrypto.Mode.AES_GCM);
+ * crypto.setNonceAllocator(nonces);
+ */
+public class NonceAllocator implements Closeable {
+    private final byte[] mPrefix = Crypto.generateRandomBytes(NONCE_PREFIX_BYTES);
+    private final int mBlockSize;
+    private final AtomicLong mNextBlock;
+    // The next and end counter values of each thread's block
+    private final ThreadLocal<long[]> mBlocks = ThreadLocal.withInitial(() -> new long[2]);
+    private final FileChannel mChannel;
+    private final FileLock mLock;
+    private volatile long mHighWaterMark = Long.MAX_VALUE;
+    private volatile boolean mClosed;
+
+    /**
+     * Create an allocator that is not persisted, relying on the random prefix and start across restarts.
+     */
+    public NonceAllocator() {
+        this(NONCE_DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize Counter values each thread reserves at a time
+     */
+    public NonceAllocator(final int blockSize) {
+        if (blockSize < 1)
+            throw new InvalidInputException("Block size must be 1 or greater");
+
+        mBlockSize = blockSize;
+        mNextBlock = new AtomicLong(randomStart());
+        mChannel = null;
+        mLock = null;
+    }
+
+    /**
+     * Create an allocator that persists its high-water mark.
+     *
+     * @param highWaterMarkFile The file to keep the high-water mark in, created if it does not exist
+     */
+    public NonceAllocator(final Path highWaterMarkFile) throws IOException {
+        this(highWaterMarkFile, NONCE_DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Create an allocator that persists its high-water mark.
+     *
+     * @param highWaterMarkFile The file to keep the high-water mark in, created if it does not exist
+     * @param blockSize         Counter values each thread reserves at a time
+     */
+    public NonceAllocator(final Path highWaterMarkFile, final int blockSize) throws IOException {
+        if (highWaterMarkFile == null)
+            throw new InvalidInputException("High-water mark file cannot be null");
+        if (blockSize < 1)
+            throw new InvalidInputException("Block size must be 1 or greater");
+
+        mBlockSize = blockSize;
+        mChannel = FileChannel.open(highWaterMarkFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = mChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null)
+                throw new PreconditionFailedException("Nonce high-water mark file " + highWaterMarkFile + " is in use by another allocator");
+            mLock = lock;
+
+            final long start = readHighWaterMark();
+            mNextBlock = new AtomicLong(start);
+            mHighWaterMark = start;
+        } catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return A nonce that this allocator has not returned before
+     */
+    public byte[] next() {
+        if (mClosed)
+            throw new PreconditionFailedException("Nonce allocator is closed");
+
+        final long[] block = mBlocks.get();
+        if (block[0] == block[1])
+            reserveBlock(block);
+        final long counter = block[0]++;
+
+        final byte[] nonce = new byte[CryptoConstants.AEAD_NONCE_SIZE_BYTES];
+        System.arraycopy(mPrefix, 0, nonce, 0, NONCE_PREFIX_BYTES);
+        for (int i = CryptoConstants.AEAD_NONCE_SIZE_BYTES - 1; i >= NONCE_PREFIX_BYTES; i--)
+            nonce[i] = (byte) (counter >>> (8 * (CryptoConstants.AEAD_NONCE_SIZE_BYTES - 1 - i)));
+
+        return nonce;
+    }
+
+    private void reserveBlock(final long[] block) {
+        final long start = mNextBlock.getAndAdd(mBlockSize);
+        final long end = start + mBlockSize;
+        if (start < 0 || end < 0)
+            throw new PreconditionFailedException("Nonce counter is exhausted, rotate the key");
+        if (end > mHighWaterMark)
+            raiseHighWaterMark(end);
+
+        block[0] = start;
+        block[1] = end;
+    }
+
+    // Persist a new mark a stride ahead, so the file is only written once per many blocks
+    private synchronized void raiseHighWaterMark(final long end) {
+        if (end <= mHighWaterMark)
+            return;
+
+        final long highWaterMark = end + NONCE_HIGH_WATER_MARK_STRIDE < 0 ? Long.MAX_VALUE : end + NONCE_HIGH_WATER_MARK_STRIDE;
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(8).putLong(highWaterMark);
+            buffer.flip();
+            while (buffer.hasRemaining())
+                mChannel.write(buffer, buffer.position());
+            mChannel.force(false);
+        } catch (IOException e) {
+            throw new PreconditionFailedException("Cannot persist the nonce high-water mark", e);
+        }
+
+        mHighWaterMark = highWaterMark;
+    }
+
+    private long readHighWaterMark() throws IOException {
+        if (mChannel.size() == 0)
+            return randomStart();
+        if (mChannel.size() != 8)
+            throw new InvalidEncodingException("Nonce high-water mark file is corrupt");
+
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, buffer.position()) < 0)
+                throw new InvalidEncodingException("Nonce high-water mark file is corrupt");
+        }
+        buffer.flip();
+
+        return buffer.getLong();
+    }
+
+    // A random counter start below 2^62, leaving at least 2^62 nonces before the counter is exhausted
+    private static long randomStart() {
+        final long start = ByteBuffer.wrap(Crypto.generateRandomBytes(8)).getLong() >>> 2;
+
+        return start;
+    }
+
+    /**
+     * Release the high-water mark file. The allocator cannot be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        if (mChannel != null && mChannel.isOpen()) {
+            mLock.release();
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Layout of a record container file, shared by RecordContainerWriter and RecordContainerReader.
+ * <p/>
+ * All numbers are big-endian.
+ * <p/>
+ * Header: magic (4), version (1), reserved (3), random file id (16).
+ * <p/>
+ * Blocks: nonce (12), then the AES-GCM encryption of the record count (4),
+ * the length of each record (4 each) and the records. The associated data is
+ * the file id and block number, so blocks cannot be reordered or moved
+ * between files.
+ * <p/>
+ * Index: nonce (12), then the AES-GCM encryption of the block and record
+ * counts and, per block, its offset (8), length (4) and first record number
+ * (8), with the file id and INDEX_BLOCK as associated data.
+ * <p/>
+ * Footer: index offset (8), index length (4), magic (4).
+ */
+final class RecordContainerFormat {
+    static final int HEADER_BYTES = 24;
+    static final int FILE_ID_BYTES = 16;
+    static final int FOOTER_BYTES = 16;
+    static final int INDEX_ENTRY_BYTES = 20;
+    static final long INDEX_BLOCK = -1;
+
+    private RecordContainerFormat() {
+    }
+
+    static void checkKey(final SecretKey key) {
+        if (key == null)
+            throw new InvalidInputException("Key cannot be null");
+        final byte[] keyBytes = key.getEncoded();
+        if (keyBytes != null && keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32)
+            throw new InvalidInputException("Key must be 128, 192 or 256 bits");
+    }
+
+    static byte[] associatedData(final byte[] fileId, final long blockNumber) {
+        return ByteBuffer.allocate(FILE_ID_BYTES + 8).put(fileId).putLong(blockNumber).array();
+    }
+
+    // Encrypt into nonce followed by ciphertext and tag
+    static byte[] seal(final SecretKey key, final byte[] fileId, final long blockNumber, final byte[] plainBytes) {
+        final byte[] nonce = Crypto.generateRandomBytes(CryptoConstants.AEAD_NONCE_SIZE_BYTES);
+        final byte[] cipherBytes;
+        try {
+            cipherBytes = Crypto.aesGcmEncrypt(key, nonce, plainBytes, associatedData(fileId, blockNumber));
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider cannot encrypt with " + CryptoConstants.AES_GCM_CIPHER_ALGORITHM, e);
+        }
+
+        return ByteBuffer.allocate(nonce.length + cipherBytes.length).put(nonce).put(cipherBytes).array();
+    }
+
+    static byte[] open(final SecretKey key, final byte[] fileId, final long blockNumber, final byte[] sealedBytes) {
+        if (sealedBytes.length < CryptoConstants.AEAD_NONCE_SIZE_BYTES + CryptoConstants.AEAD_TAG_SIZE_BYTES)
+            throw new DecryptionFailedException("Record container block " + blockNumber + " is truncated");
+
+        final byte[] nonce = new byte[CryptoConstants.AEAD_NONCE_SIZE_BYTES];
+        final byte[] cipherBytes = new byte[sealedBytes.length - nonce.length];
+        System.arraycopy(sealedBytes, 0, nonce, 0, nonce.length);
+        System.arraycopy(sealedBytes, nonce.length, cipherBytes, 0, cipherBytes.length);
+
+        try {
+            return Crypto.aesGcmDecrypt(key, nonce, cipherBytes, associatedData(fileId, blockNumber));
+        } catch (AEADBadTagException e) {
+            throw new DecryptionFailedException("Record container block " + blockNumber + " does not decrypt with the provided key", e);
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider cannot decrypt with " + CryptoConstants.AES_GCM_CIPHER_ALGORITHM, e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.LruCache;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.cryptokit.crypto.CryptoTokenSpec.*;
+
+/**
+ * Random access to the records of a container written by RecordContainerWriter.
+ * <p/>
+ * The encrypted block index is read and authenticated when the reader is
+ * opened. Reading a record then finds its block by binary search, reads it
+ * with a positional read and decrypts it, keeping the most recently used
+ * decrypted blocks in a cache so neighbouring records cost no further
+ * decryption. The reader is safe to share between threads.
+ * <p/>
+ * Example:
+ * try (RecordContainerReader reader = new RecordContainerReader(Paths.get("events.ckrc"), key)) {
+ *     byte[] eventBytes = reader.read(recordNumber);
+ * }
+ */
+public class RecordContainerReader implements Closeable {
+    private final SecretKey mKey;
+    private final FileChannel mChannel;
+    private final byte[] mFileId = new byte[RecordContainerFormat.FILE_ID_BYTES];
+    private final long mRecordCount;
+    private final long[] mBlockOffsets;
+    private final int[] mBlockLengths;
+    private final long[] mBlockFirstRecords;
+    private final LruCache<Integer, Block> mBlockCache;
+
+    public RecordContainerReader(final Path path, final SecretKey key) throws IOException {
+        this(path, key, RECORD_CONTAINER_DEFAULT_CACHE_BLOCKS);
+    }
+
+    /**
+     * @param path        The container file
+     * @param key         The key the container was written with
+     * @param cacheBlocks The number of decrypted blocks to keep
+     */
+    public RecordContainerReader(final Path path, final SecretKey key, final int cacheBlocks) throws IOException {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+        RecordContainerFormat.checkKey(key);
+
+        mKey = key;
+        mBlockCache = new LruCache<>(cacheBlocks);
+        mChannel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            final long fileSize = mChannel.size();
+            if (fileSize < RecordContainerFormat.HEADER_BYTES + RecordContainerFormat.FOOTER_BYTES)
+                throw new InvalidEncodingException("File is too short to be a record container");
+
+            final ByteBuffer header = read(0, RecordContainerFormat.HEADER_BYTES);
+            if (header.getInt() != RECORD_CONTAINER_MAGIC)
+                throw new InvalidEncodingException("File is not a record container");
+            final byte version = header.get();
+            if (version != RECORD_CONTAINER_VERSION)
+                throw new InvalidEncodingException("Record container version " + version + " is not supported");
+            header.position(header.position() + 3);
+            header.get(mFileId);
+
+            final ByteBuffer footer = read(fileSize - RecordContainerFormat.FOOTER_BYTES, RecordContainerFormat.FOOTER_BYTES);
+            final long indexOffset = footer.getLong();
+            final int indexLength = footer.getInt();
+            if (footer.getInt() != RECORD_CONTAINER_MAGIC)
+                throw new InvalidEncodingException("Record container is incomplete, the writer may not have been closed");
+            if (indexOffset < RecordContainerFormat.HEADER_BYTES || indexLength < 0
+                    || indexOffset + indexLength != fileSize - RecordContainerFormat.FOOTER_BYTES)
+                throw new InvalidEncodingException("Record container footer is corrupt");
+
+            final byte[] sealedIndex = read(indexOffset, indexLength).array();
+            final ByteBuffer index = ByteBuffer.wrap(RecordContainerFormat.open(mKey, mFileId, RecordContainerFormat.INDEX_BLOCK, sealedIndex));
+            final int blockCount = index.getInt();
+            mRecordCount = index.getLong();
+            if (blockCount < 0 || index.remaining() != (long) blockCount * RecordContainerFormat.INDEX_ENTRY_BYTES)
+                throw new InvalidEncodingException("Record container index is corrupt");
+
+            mBlockOffsets = new long[blockCount];
+            mBlockLengths = new int[blockCount];
+            mBlockFirstRecords = new long[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                mBlockOffsets[i] = index.getLong();
+                mBlockLengths[i] = index.getInt();
+                mBlockFirstRecords[i] = index.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    public int getBlockCount() {
+        return mBlockOffsets.length;
+    }
+
+    /**
+     * Read a record.
+     *
+     * @param recordNumber The number returned by RecordContainerWriter.append
+     * @return A copy of the record bytes
+     */
+    public byte[] read(final long recordNumber) throws IOException {
+        if (recordNumber < 0 || recordNumber >= mRecordCount)
+            throw new InvalidInputException("Record " + recordNumber + " is not in the container, which has " + mRecordCount + " records");
+
+        final int blockNumber = findBlock(recordNumber);
+        Block block = mBlockCache.get(blockNumber);
+        if (block == null) {
+            block = decryptBlock(blockNumber);
+            mBlockCache.put(blockNumber, block);
+        }
+
+        return block.getRecord((int) (recordNumber - mBlockFirstRecords[blockNumber]));
+    }
+
+    public long getCacheHitCount() {
+        return mBlockCache.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        return mBlockCache.getMissCount();
+    }
+
+    public double getCacheHitRate() {
+        return mBlockCache.getHitRate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBlockCache.clear();
+        mChannel.close();
+    }
+
+    // The last block whose first record is at or before the record
+    private int findBlock(final long recordNumber) {
+        final int found = Arrays.binarySearch(mBlockFirstRecords, recordNumber);
+
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private Block decryptBlock(final int blockNumber) throws IOException {
+        final byte[] sealedBlock = read(mBlockOffsets[blockNumber], mBlockLengths[blockNumber]).array();
+        final byte[] plainBytes = RecordContainerFormat.open(mKey, mFileId, blockNumber, sealedBlock);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(plainBytes);
+        final int recordCount = buffer.getInt();
+        final long expectedCount = (blockNumber + 1 < mBlockFirstRecords.length ? mBlockFirstRecords[blockNumber + 1] : mRecordCount)
+                - mBlockFirstRecords[blockNumber];
+        if (recordCount != expectedCount || buffer.remaining() < 4L * recordCount)
+            throw new DecryptionFailedException("Record container block " + blockNumber + " does not match the index");
+
+        final int[] offsets = new int[recordCount + 1];
+        offsets[0] = 4 + 4 * recordCount;
+        for (int i = 0; i < recordCount; i++) {
+            final long end = (long) offsets[i] + buffer.getInt();
+            if (end > plainBytes.length)
+                throw new DecryptionFailedException("Record container block " + blockNumber + " has a record past its end");
+            offsets[i + 1] = (int) end;
+        }
+
+        return new Block(plainBytes, offsets);
+    }
+
+    private ByteBuffer read(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Record container ends before position " + (position + length));
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * A decrypted block, with the offsets of its records.
+     */
+    private static class Block {
+        private final byte[] mBytes;
+        private final int[] mOffsets;
+
+        Block(final byte[] bytes, final int[] offsets) {
+            mBytes = bytes;
+            mOffsets = offsets;
+        }
+
+        byte[] getRecord(final int index) {
+            return Arrays.copyOfRange(mBytes, mOffsets[index], mOffsets[index + 1]);
+        }
+    }
+}
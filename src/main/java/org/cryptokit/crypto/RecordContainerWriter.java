@@ -0,0 +1,167 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.cryptokit.crypto.CryptoTokenSpec.*;
+
+/**
+ * Write many records into an encrypted container file, read by RecordContainerReader.
+ * <p/>
+ * Encrypting each record as its own crypto token costs a nonce, a tag and a
+ * header per record. The container instead packs records into blocks of
+ * about the configured size and encrypts each block once with AES-GCM, and
+ * ends with an encrypted index of the blocks. A reader decrypts only the
+ * block holding the record it wants.
+ * <p/>
+ * Records are numbered from 0 in the order they are appended. Nothing is
+ * readable until the writer is closed.
+ * <p/>
+ * Example:
+ * try (RecordContainerWriter writer = new RecordContainerWriter(Paths.get("events.ckrc"), key)) {
+ *     long recordNumber = writer.append(eventBytes);
+ * }
+ */
+public class RecordContainerWriter implements Closeable {
+    private final SecretKey mKey;
+    private final OutputStream mOutput;
+    private final byte[] mFileId = Crypto.generateRandomBytes(RecordContainerFormat.FILE_ID_BYTES);
+    private int mBlockSize = RECORD_CONTAINER_DEFAULT_BLOCK_BYTES;
+
+    private final List<byte[]> mBlockRecords = new ArrayList<>();
+    private int mBlockBytes;
+    private long mOffset;
+    private long mRecordCount;
+    private long mBlockFirstRecord;
+    private final ByteArrayOutputStream mIndex = new ByteArrayOutputStream();
+    private int mBlockCount;
+    private boolean mClosed;
+
+    /**
+     * @param path The file to write, replaced if it exists
+     * @param key  A 128, 192 or 256-bit AES key
+     */
+    public RecordContainerWriter(final Path path, final SecretKey key) throws IOException {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+        RecordContainerFormat.checkKey(key);
+
+        mKey = key;
+        mOutput = new BufferedOutputStream(Files.newOutputStream(path));
+
+        final ByteBuffer header = ByteBuffer.allocate(RecordContainerFormat.HEADER_BYTES);
+        header.putInt(RECORD_CONTAINER_MAGIC).put(RECORD_CONTAINER_VERSION).put(new byte[3]).put(mFileId);
+        write(header.array());
+    }
+
+    /**
+     * Set the plain text size at which a block is encrypted and written, 64 KiB by default.
+     * <p/>
+     * Larger blocks have less overhead, smaller blocks make reading a single record cheaper.
+     * A record larger than the block size gets a block of its own.
+     *
+     * @param blockSize Block size in bytes
+     */
+    public void setBlockSize(final int blockSize) {
+        if (blockSize < 1)
+            throw new InvalidInputException("Block size must be 1 or greater");
+
+        mBlockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * Add a record.
+     *
+     * @param record The record bytes, may be empty
+     * @return The record number, to read it back with
+     */
+    public long append(final byte[] record) throws IOException {
+        if (record == null)
+            throw new InvalidInputException("Record cannot be null");
+        if (mClosed)
+            throw new InvalidInputException("Record container writer is closed");
+
+        if (!mBlockRecords.isEmpty() && mBlockBytes + 4 + record.length > mBlockSize)
+            writeBlock();
+        mBlockRecords.add(record.clone());
+        mBlockBytes += 4 + record.length;
+
+        return mRecordCount++;
+    }
+
+    /**
+     * @return The number of records appended so far
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Write the last block, the index and the footer.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed)
+            return;
+        mClosed = true;
+
+        try {
+            if (!mBlockRecords.isEmpty())
+                writeBlock();
+
+            final byte[] entries = mIndex.toByteArray();
+            final ByteBuffer index = ByteBuffer.allocate(12 + entries.length);
+            index.putInt(mBlockCount).putLong(mRecordCount).put(entries);
+            final byte[] sealedIndex = RecordContainerFormat.seal(mKey, mFileId, RecordContainerFormat.INDEX_BLOCK, index.array());
+            final long indexOffset = mOffset;
+            write(sealedIndex);
+
+            final ByteBuffer footer = ByteBuffer.allocate(RecordContainerFormat.FOOTER_BYTES);
+            footer.putLong(indexOffset).putInt(sealedIndex.length).putInt(RECORD_CONTAINER_MAGIC);
+            write(footer.array());
+        } finally {
+            mOutput.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        final ByteBuffer block = ByteBuffer.allocate(4 + mBlockBytes);
+        block.putInt(mBlockRecords.size());
+        for (final byte[] record : mBlockRecords)
+            block.putInt(record.length);
+        for (final byte[] record : mBlockRecords)
+            block.put(record);
+
+        final byte[] sealedBlock = RecordContainerFormat.seal(mKey, mFileId, mBlockCount, block.array());
+        final ByteBuffer entry = ByteBuffer.allocate(RecordContainerFormat.INDEX_ENTRY_BYTES);
+        entry.putLong(mOffset).putInt(sealedBlock.length).putLong(mBlockFirstRecord);
+        mIndex.write(entry.array());
+        write(sealedBlock);
+
+        mBlockCount++;
+        mBlockFirstRecord = mRecordCount;
+        mBlockRecords.clear();
+        mBlockBytes = 0;
+    }
+
+    private void write(final byte[] bytes) throws IOException {
+        mOutput.write(bytes);
+        mOffset += bytes.length;
+    }
+}
@@ -1,7 +1,9 @@
 package org.cryptokit.crypto;
 
+import org.cryptokit.core.Compression;
 import org.cryptokit.core.Crypto;
 import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.HardwareSupport;
 import org.cryptokit.core.StringUtils;
 import org.cryptokit.exception.*;
 
@@ -12,19 +14,189 @@ import javax.crypto.SecretKey;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
 
 import static org.cryptokit.crypto.CryptoTokenSpec.*;
 
 public class SymmetricCrypto {
 
+    /**
+     * The cipher used for new crypto tokens. Tokens of every mode can be
+     * decrypted, whatever mode the SymmetricCrypto was created with.
+     */
+    public enum Mode {
+        // AES-CBC with PKCS#5 padding, the original format. Not authenticated.
+        AES_CBC(SYMMETRIC_CRYPTO_TOKEN_HEADER, COMPRESSED_SYMMETRIC_CRYPTO_TOKEN_HEADER,
+                CryptoConstants.AES_CIPHER_ALGORITHM, CryptoConstants.AES_BLOCK_SIZE_BYTES),
+        // AES-GCM, authenticated. The fastest choice on hosts with AES instructions.
+        AES_GCM(AES_GCM_CRYPTO_TOKEN_HEADER, COMPRESSED_AES_GCM_CRYPTO_TOKEN_HEADER,
+                CryptoConstants.AES_GCM_CIPHER_ALGORITHM, CryptoConstants.AEAD_NONCE_SIZE_BYTES),
+        // ChaCha20-Poly1305, authenticated. The fastest choice on hosts without AES instructions. Needs a 256-bit key.
+        CHACHA20_POLY1305(CHACHA20_POLY1305_CRYPTO_TOKEN_HEADER, COMPRESSED_CHACHA20_POLY1305_CRYPTO_TOKEN_HEADER,
+                CryptoConstants.CHACHA20_POLY1305_CIPHER_ALGORITHM, CryptoConstants.AEAD_NONCE_SIZE_BYTES),
+        // AES_GCM if this host has AES instructions, otherwise CHACHA20_POLY1305.
+        AUTO(null, null, null, 0);
+
+        private final String mHeader;
+        private final String mCompressedHeader;
+        private final String mAlgorithm;
+        private final int mIvSizeBytes;
+
+        Mode(final String header, final String compressedHeader, final String algorithm, final int ivSizeBytes) {
+            mHeader = header;
+            mCompressedHeader = compressedHeader;
+            mAlgorithm = algorithm;
+            mIvSizeBytes = ivSizeBytes;
+        }
+
+        private static Mode forHeader(final String header) {
+            for (final Mode mode : values()) {
+                if (header.equals(mode.mHeader) || header.equals(mode.mCompressedHeader))
+                    return mode;
+            }
+
+            return null;
+        }
+    }
+
     private final SecretKey mSecretKey;
+    private final Mode mMode;
+    private boolean mCompression = false;
+    private int mCompressionThreshold = COMPRESSION_DEFAULT_THRESHOLD_BYTES;
+    private double mCompressionMaxRatio = COMPRESSION_DEFAULT_MAX_RATIO;
+    private NonceAllocator mNonceAllocator;
 
     public SymmetricCrypto(final SecretKey secretKey) {
+        this(secretKey, Mode.AES_CBC);
+    }
+
+    /**
+     * Create a SymmetricCrypto that encrypts using the given mode.
+     *
+     * @param secretKey The key to encrypt and decrypt with
+     * @param mode      The cipher used for new crypto tokens
+     */
+    public SymmetricCrypto(final SecretKey secretKey, final Mode mode) {
         if (secretKey == null) {
             throw new InvalidInputException("Secret key cannot be null");
         }
+        if (mode == null) {
+            throw new InvalidInputException("Mode cannot be null");
+        }
+        final boolean chaChaKey = isChaChaKey(secretKey);
+        if (mode == Mode.CHACHA20_POLY1305 && !chaChaKey) {
+            throw new InvalidInputException("ChaCha20-Poly1305 requires a 256-bit key");
+        }
 
         mSecretKey = secretKey;
+        if (mode == Mode.AUTO)
+            mMode = HardwareSupport.isAesAccelerated() || !chaChaKey ? Mode.AES_GCM : Mode.CHACHA20_POLY1305;
+        else
+            mMode = mode;
+    }
+
+    /**
+     * @return The cipher used for new crypto tokens, AUTO is resolved to the mode it picked
+     */
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Compress large texts before encrypting them. Off by default.
+     * <p/>
+     * Encrypted data cannot be compressed, so compressing first can shrink
+     * large, repetitive texts such as JSON documents several times. Texts
+     * shorter than the compression threshold, or that do not compress below
+     * the maximum ratio, are encrypted as they are. Decryption handles both
+     * kinds of token whatever this setting is.
+     * <p/>
+     * Do not enable compression if an attacker can both influence part of
+     * the text and observe the token length. The compressed length reveals
+     * how much of the attacker's input matches the rest of the text, which
+     * lets secrets be recovered a character at a time (as in the CRIME and
+     * BREACH attacks on TLS and HTTP compression).
+     *
+     * @param compression True to compress texts before encrypting
+     */
+    public void setCompression(final boolean compression) {
+        mCompression = compression;
+    }
+
+    public boolean getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * Set the smallest text, in UTF-8 bytes, that is worth compressing.
+     *
+     * @param thresholdBytes Minimum text size in bytes
+     */
+    public void setCompressionThreshold(final int thresholdBytes) {
+        if (thresholdBytes < 0)
+            throw new InvalidInputException("Compression threshold cannot be negative");
+
+        mCompressionThreshold = thresholdBytes;
+    }
+
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * Set the largest compressed to original size ratio for which the compressed form is kept.
+     *
+     * @param maxRatio A ratio greater than 0 and at most 1
+     */
+    public void setCompressionMaxRatio(final double maxRatio) {
+        if (!(maxRatio > 0 && maxRatio <= 1))
+            throw new InvalidInputException("Compression ratio must be greater than 0 and at most 1");
+
+        mCompressionMaxRatio = maxRatio;
+    }
+
+    public double getCompressionMaxRatio() {
+        return mCompressionMaxRatio;
+    }
+
+    /**
+     * Take the nonces of new tokens from a counter-based allocator instead of
+     * generating random ones. Only for the AES_GCM and CHACHA20_POLY1305 modes.
+     * <p/>
+     * An allocator skips SecureRandom on every encrypt, and one allocator
+     * per key, persisted with a high-water mark file, never repeats a nonce.
+     * It is only safer than random nonces when the number of allocators per
+     * key stays small, see NonceAllocator for the limit: share one allocator
+     * between all SymmetricCrypto instances using the same key, and do not
+     * create one per request, per thread or per short-lived process. Random
+     * nonces are safe for about 2^32 tokens per key; rotate keys before that
+     * rather than reaching for many allocators.
+     *
+     * @param nonceAllocator The allocator, or null to go back to random nonces
+     */
+    public void setNonceAllocator(final NonceAllocator nonceAllocator) {
+        if (nonceAllocator != null && mMode == Mode.AES_CBC)
+            throw new InvalidInputException("AES-CBC needs unpredictable IVs and cannot use a nonce allocator");
+
+        mNonceAllocator = nonceAllocator;
+    }
+
+    public NonceAllocator getNonceAllocator() {
+        return mNonceAllocator;
+    }
+
+    /**
+     * Check whether a value looks like a crypto token this class decrypts, without decrypting it.
+     * <p/>
+     * Only the header is checked, so a value that passes can still fail to decrypt.
+     */
+    public static boolean isCryptoToken(final String value) {
+        if (value == null)
+            return false;
+        final int delimiter = value.indexOf(CryptoConstants.SEGMENT_DELIMITER);
+        final boolean cryptoToken = delimiter > 0 && Mode.forHeader(value.substring(0, delimiter)) != null;
+
+        return cryptoToken;
     }
 
     public String encrypt(final String plainText) {
@@ -32,10 +204,13 @@ public class SymmetricCrypto {
             throw new InvalidInputException("Text to encrypt cannot be null or empty");
         }
 
-        final byte[] ivBytes = Crypto.generateRandomBytes(CryptoConstants.AES_BLOCK_SIZE_BYTES);
+        final byte[] ivBytes = mNonceAllocator != null ? mNonceAllocator.next() : Crypto.generateRandomBytes(mMode.mIvSizeBytes);
+        final byte[] plainBytes = StringUtils.getStringBytes(plainText);
+        final byte[] compressedBytes = compress(plainBytes);
+        final String header = compressedBytes != null ? mMode.mCompressedHeader : mMode.mHeader;
 
-        final byte[] cipherBytes = encrypt(mSecretKey, ivBytes, plainText);
-        final String cryptoToken = encodeCryptoToken(ivBytes, cipherBytes);
+        final byte[] cipherBytes = encrypt(mMode, header, mSecretKey, ivBytes, compressedBytes != null ? compressedBytes : plainBytes);
+        final String cryptoToken = encodeCryptoToken(header, ivBytes, cipherBytes);
 
         return cryptoToken;
     }
@@ -46,26 +221,59 @@ public class SymmetricCrypto {
         }
 
         final String[] segments = decodeCryptoToken(cryptoToken);
+        final String header = segments[CRYPTO_SEGMENT_HEADER];
+        final Mode mode = Mode.forHeader(header);
         final String base64Iv = segments[CRYPTO_SEGMENT_IV];
         final String base64Cipher = segments[CRYPTO_SEGMENT_CIPHER];
         final byte[] ivBytes = StringUtils.base64DecodeBytes(base64Iv);
         final byte[] cipherBytes = StringUtils.base64DecodeBytes(base64Cipher);
+        if (ivBytes.length != mode.mIvSizeBytes)
+            throw new InvalidEncodingException(String.format("Crypto token is not in the expected format. Expected a %d byte IV but found %d",
+                    mode.mIvSizeBytes, ivBytes.length));
 
-        final byte[] decryptedBytes = decrypt(mSecretKey, ivBytes, cipherBytes);
+        byte[] decryptedBytes = decrypt(mode, header, mSecretKey, ivBytes, cipherBytes);
+        if (header.equals(mode.mCompressedHeader))
+            decryptedBytes = decompress(decryptedBytes);
         final String plainText = new String(decryptedBytes, CryptoConstants.CHARSET);
 
         return plainText;
     }
 
-    private byte[] encrypt(SecretKey secretKey, final byte[] ivBytes, final String plainText) {
+    // Compress the text if that is enabled and worth it, otherwise return null
+    private byte[] compress(final byte[] plainBytes) {
+        if (!mCompression || plainBytes.length < mCompressionThreshold)
+            return null;
+
+        return Compression.deflate(plainBytes, (int) (plainBytes.length * mCompressionMaxRatio));
+    }
+
+    private static byte[] decompress(final byte[] compressedBytes) {
+        try {
+            return Compression.inflate(compressedBytes);
+        } catch (DataFormatException e) {
+            throw new DecryptionFailedException("Crypto token does not decompress after decrypting", e);
+        }
+    }
+
+    private static byte[] encrypt(final Mode mode, final String header, final SecretKey secretKey, final byte[] ivBytes, final byte[] plainBytes) {
         final byte[] cipherBytes;
 
         try {
-            cipherBytes = Crypto.aesEncrypt(secretKey, ivBytes, plainText);
+            switch (mode) {
+                case AES_GCM:
+                    cipherBytes = Crypto.aesGcmEncrypt(secretKey, ivBytes, plainBytes, StringUtils.getStringBytes(header));
+                    break;
+                case CHACHA20_POLY1305:
+                    cipherBytes = Crypto.chaCha20Poly1305Encrypt(secretKey, ivBytes, plainBytes, StringUtils.getStringBytes(header));
+                    break;
+                default:
+                    cipherBytes = Crypto.aesEncrypt(secretKey, ivBytes, plainBytes);
+                    break;
+            }
         } catch (NoSuchPaddingException e) {
-            throw new PreconditionFailedException("System crypto provider does not support AES padding type " + CryptoConstants.AES_PADDING, e);
+            throw new PreconditionFailedException("System crypto provider does not support the padding of " + mode.mAlgorithm, e);
         } catch (NoSuchAlgorithmException e) {
-            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.AES_CIPHER_ALGORITHM, e);
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + mode.mAlgorithm, e);
         } catch (InvalidAlgorithmParameterException e) {
             throw new PreconditionFailedException("System crypto provider does not support the request algorithm parameter", e);
         } catch (InvalidKeyException e) {
@@ -79,33 +287,53 @@ public class SymmetricCrypto {
         return cipherBytes;
     }
 
-    private byte[] decrypt(SecretKey secretKey, final byte[] ivBytes, final byte[] cipherBytes) {
+    private static byte[] decrypt(final Mode mode, final String header, final SecretKey secretKey, final byte[] ivBytes, final byte[] cipherBytes) {
         byte[] decryptedBytes;
 
         try {
-            decryptedBytes = Crypto.aesDecrypt(secretKey, ivBytes, cipherBytes);
+            switch (mode) {
+                case AES_GCM:
+                    decryptedBytes = Crypto.aesGcmDecrypt(secretKey, ivBytes, cipherBytes, StringUtils.getStringBytes(header));
+                    break;
+                case CHACHA20_POLY1305:
+                    decryptedBytes = Crypto.chaCha20Poly1305Decrypt(secretKey, ivBytes, cipherBytes, StringUtils.getStringBytes(header));
+                    break;
+                default:
+                    decryptedBytes = Crypto.aesDecrypt(secretKey, ivBytes, cipherBytes);
+                    break;
+            }
         } catch (NoSuchPaddingException e) {
-            throw new PreconditionFailedException("System crypto provider does not support AES padding type " + CryptoConstants.AES_PADDING, e);
+            throw new PreconditionFailedException("System crypto provider does not support the padding of " + mode.mAlgorithm, e);
         } catch (NoSuchAlgorithmException e) {
-            throw new PreconditionFailedException("System crypto provider does not support the algorithm " + CryptoConstants.AES_CIPHER_ALGORITHM, e);
+            throw new PreconditionFailedException("System crypto provider does not support the algorithm " + mode.mAlgorithm, e);
         } catch (InvalidAlgorithmParameterException e) {
             throw new PreconditionFailedException("System crypto provider does not support the request algorithm parameter", e);
         } catch (InvalidKeyException e) {
+            if (mode == Mode.CHACHA20_POLY1305)
+                throw new DecryptionFailedException("Crypto token needs a 256-bit key to decrypt", e);
             throw new PreconditionFailedException("The provided key does not appear to be a valid " + secretKey.getAlgorithm() + " key", e);
         } catch (BadPaddingException e) {
             throw new DecryptionFailedException("Crypto token does not decrypt with the provided key", e);
         } catch (IllegalBlockSizeException e) {
+            if (mode != Mode.AES_CBC)
+                throw new DecryptionFailedException("Crypto token is too short to hold an authentication tag", e);
             throw new ImplementationFailedException("Illegal block size (oops, please file a bug)", e);
         }
 
         return decryptedBytes;
     }
 
-    private String encodeCryptoToken(final byte[] iv, final byte[] cipherBytes) {
+    private static boolean isChaChaKey(final SecretKey secretKey) {
+        final byte[] keyBytes = secretKey.getEncoded();
+
+        return keyBytes != null && keyBytes.length == CryptoConstants.CHACHA20_KEY_SIZE_BYTES;
+    }
+
+    private String encodeCryptoToken(final String header, final byte[] iv, final byte[] cipherBytes) {
         final String base64Iv = StringUtils.base64Encode(iv);
         final String base64cipher = StringUtils.base64Encode(cipherBytes);
         final String cryptoToken =
-                SYMMETRIC_CRYPTO_TOKEN_HEADER + CryptoConstants.SEGMENT_DELIMITER +
+                header + CryptoConstants.SEGMENT_DELIMITER +
                         base64Iv + CryptoConstants.SEGMENT_DELIMITER +
                         base64cipher;
 
@@ -119,9 +347,9 @@ public class SymmetricCrypto {
         if (segments.length != CRYPTO_NUM_SEGMENTS)
             throw new InvalidEncodingException(String.format("Crypto token is not in the expected format. Expected %d segments but found %d",
                     CRYPTO_NUM_SEGMENTS, segments.length));
-        if (!SYMMETRIC_CRYPTO_TOKEN_HEADER.equals(segments[CRYPTO_SEGMENT_HEADER]))
-            throw new InvalidEncodingException(String.format("Crypto token is not in the expected format. Expected '%s' header but found '%s'",
-                    SYMMETRIC_CRYPTO_TOKEN_HEADER, segments[CRYPTO_SEGMENT_HEADER]));
+        if (Mode.forHeader(segments[CRYPTO_SEGMENT_HEADER]) == null)
+            throw new InvalidEncodingException(String.format("Crypto token is not in the expected format. Unknown header '%s'",
+                    segments[CRYPTO_SEGMENT_HEADER]));
 
         return segments;
     }
@@ -0,0 +1,18 @@
+package org.cryptokit.exception;
+
+public class CompromisedPasswordException extends InvalidInputException {
+    public CompromisedPasswordException() {
+    }
+
+    public CompromisedPasswordException(String message) {
+        super(message);
+    }
+
+    public CompromisedPasswordException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public CompromisedPasswordException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,297 @@
+package org.cryptokit.flow;
+
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Flow.Processor that encrypts or decrypts a stream of items off the publishing thread.
+ * <p/>
+ * Each item is handed to the configured executor as soon as it arrives, so
+ * bursts are spread over the executor's threads instead of blocking the
+ * upstream publisher. Results are delivered downstream in the order the items
+ * arrived, and only as fast as the subscriber requests them. At most
+ * maxInFlight items are requested from upstream but not yet delivered
+ * downstream, which bounds both the work queued on the executor and the
+ * memory held for finished results waiting on slower items.
+ * <p/>
+ * A failed item (for example a token that does not decrypt) cancels the
+ * upstream subscription and is reported with onError once all items before
+ * it were delivered. An error from upstream is handled the same way: items
+ * that arrived before it are still finished and delivered, then the error is
+ * passed on with onError. Only one subscriber is supported.
+ * <p/>
+ * Example:
+ * publisher.subscribe(processor = CryptoProcessor.encrypting(crypto, executor, 64));
+ * processor.subscribe(sink);
+ *
+ * @param <T> Upstream item type
+ * @param <R> Downstream item type
+ */
+public class CryptoProcessor<T, R> implements Flow.Processor<T, R> {
+
+    private final Function<? super T, ? extends R> mOperation;
+    private final Executor mExecutor;
+    private final int mMaxInFlight;
+
+    private final Queue<CompletableFuture<R>> mPending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mWorkInProgress = new AtomicInteger();
+    private final AtomicLong mDemand = new AtomicLong();
+    private final AtomicBoolean mSubscribed = new AtomicBoolean();
+    private final AtomicBoolean mUpstreamSubscribed = new AtomicBoolean();
+
+    private volatile Flow.Subscription mUpstream;
+    private volatile Flow.Subscriber<? super R> mSubscriber;
+    private volatile boolean mUpstreamDone;
+    private volatile Throwable mError;
+    private volatile Throwable mUpstreamError;
+    private volatile boolean mCancelled;
+    private boolean mTerminated;
+
+    /**
+     * @param operation   The operation to apply to each item, must be thread safe
+     * @param executor    The executor to run the operation on
+     * @param maxInFlight Maximum number of items requested from upstream but not yet delivered downstream
+     */
+    public CryptoProcessor(final Function<? super T, ? extends R> operation, final Executor executor, final int maxInFlight) {
+        if (operation == null)
+            throw new InvalidInputException("Operation cannot be null");
+        if (executor == null)
+            throw new InvalidInputException("Executor cannot be null");
+        if (maxInFlight < 1)
+            throw new InvalidInputException("Max in flight must be 1 or greater");
+
+        mOperation = operation;
+        mExecutor = executor;
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Create a processor that encrypts each text into a crypto token.
+     */
+    public static CryptoProcessor<String, String> encrypting(final SymmetricCrypto crypto, final Executor executor, final int maxInFlight) {
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+
+        return new CryptoProcessor<>(crypto::encrypt, executor, maxInFlight);
+    }
+
+    /**
+     * Create a processor that encrypts each text into a crypto token on the common fork-join pool.
+     */
+    public static CryptoProcessor<String, String> encrypting(final SymmetricCrypto crypto, final int maxInFlight) {
+        return encrypting(crypto, ForkJoinPool.commonPool(), maxInFlight);
+    }
+
+    /**
+     * Create a processor that decrypts each crypto token into its text.
+     */
+    public static CryptoProcessor<String, String> decrypting(final SymmetricCrypto crypto, final Executor executor, final int maxInFlight) {
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+
+        return new CryptoProcessor<>(crypto::decrypt, executor, maxInFlight);
+    }
+
+    /**
+     * Create a processor that decrypts each crypto token into its text on the common fork-join pool.
+     */
+    public static CryptoProcessor<String, String> decrypting(final SymmetricCrypto crypto, final int maxInFlight) {
+        return decrypting(crypto, ForkJoinPool.commonPool(), maxInFlight);
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super R> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("Subscriber cannot be null");
+
+        if (!mSubscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(final long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("CryptoProcessor only supports a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new DownstreamSubscription());
+        mSubscriber = subscriber;
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        if (!mUpstreamSubscribed.compareAndSet(false, true)) {
+            subscription.cancel();
+            return;
+        }
+
+        mUpstream = subscription;
+        if (mCancelled)
+            subscription.cancel();
+        else
+            subscription.request(mMaxInFlight);
+    }
+
+    @Override
+    public void onNext(final T item) {
+        if (item == null)
+            throw new NullPointerException("Item cannot be null");
+        if (mCancelled || mUpstreamDone)
+            return;
+
+        final CompletableFuture<R> result = new CompletableFuture<>();
+        mPending.add(result);
+
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    result.complete(mOperation.apply(item));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+                drain();
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            drain();
+        }
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        if (throwable == null)
+            throw new NullPointerException("Throwable cannot be null");
+
+        mUpstreamError = throwable;
+        mUpstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        mUpstreamDone = true;
+        drain();
+    }
+
+    // Deliver finished results in order, serialized so only one thread signals the subscriber at a time
+    private void drain() {
+        if (mWorkInProgress.getAndIncrement() != 0)
+            return;
+
+        int missed = 1;
+        do {
+            final Flow.Subscriber<? super R> subscriber = mSubscriber;
+            if (subscriber != null && !mTerminated) {
+                if (mCancelled) {
+                    mPending.clear();
+                } else if (mError != null) {
+                    terminate(subscriber);
+                } else {
+                    emit(subscriber);
+                }
+            }
+
+            missed = mWorkInProgress.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void emit(final Flow.Subscriber<? super R> subscriber) {
+        final long demand = mDemand.get();
+        long emitted = 0;
+
+        while (true) {
+            final CompletableFuture<R> head = mPending.peek();
+            if (head == null || !head.isDone())
+                break;
+
+            // A failed item ends the stream whether or not the subscriber has demand left
+            if (head.isCompletedExceptionally()) {
+                try {
+                    head.join();
+                } catch (CompletionException e) {
+                    mError = e.getCause() != null ? e.getCause() : e;
+                }
+                cancelUpstream();
+                terminate(subscriber);
+                return;
+            }
+            if (emitted == demand)
+                break;
+
+            mPending.poll();
+            subscriber.onNext(head.join());
+            emitted++;
+        }
+
+        if (emitted > 0) {
+            mDemand.addAndGet(-emitted);
+            if (!mUpstreamDone && !mCancelled)
+                mUpstream.request(emitted);
+        }
+
+        if (mUpstreamDone && mPending.isEmpty()) {
+            mError = mUpstreamError;
+            terminate(subscriber);
+        }
+    }
+
+    private void terminate(final Flow.Subscriber<? super R> subscriber) {
+        mTerminated = true;
+        mPending.clear();
+
+        final Throwable error = mError;
+        if (error != null)
+            subscriber.onError(error);
+        else
+            subscriber.onComplete();
+    }
+
+    private void cancelUpstream() {
+        final Flow.Subscription upstream = mUpstream;
+        if (upstream != null)
+            upstream.cancel();
+    }
+
+    private class DownstreamSubscription implements Flow.Subscription {
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                mError = new IllegalArgumentException("Requested items must be positive, got " + n);
+                cancelUpstream();
+                drain();
+                return;
+            }
+
+            long current, next;
+            do {
+                current = mDemand.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!mDemand.compareAndSet(current, next));
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            cancelUpstream();
+            drain();
+        }
+    }
+}
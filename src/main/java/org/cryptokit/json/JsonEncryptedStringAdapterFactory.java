@@ -0,0 +1,68 @@
+package org.cryptokit.json;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.cryptokit.crypto.EncryptedString;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.io.IOException;
+
+/**
+ * Gson support for EncryptedString fields.
+ * <p/>
+ * An EncryptedString is read from and written as its crypto token, so
+ * loading a DTO decrypts nothing and writing it back decrypts only what the
+ * code actually read in between, which is nothing either.
+ * <p/>
+ * Example:
+ * Gson gson = new GsonBuilder().registerTypeAdapterFactory(new JsonEncryptedStringAdapterFactory(crypto)).create();
+ * Customer customer = gson.fromJson(json, Customer.class);
+ */
+public class JsonEncryptedStringAdapterFactory implements TypeAdapterFactory {
+    private final SymmetricCrypto mCrypto;
+
+    /**
+     * @param crypto The crypto values read by Gson are decrypted with
+     */
+    public JsonEncryptedStringAdapterFactory(final SymmetricCrypto crypto) {
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+
+        mCrypto = crypto;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(final Gson gson, final TypeToken<T> type) {
+        if (type.getRawType() != EncryptedString.class)
+            return null;
+
+        return (TypeAdapter<T>) new EncryptedStringAdapter();
+    }
+
+    private class EncryptedStringAdapter extends TypeAdapter<EncryptedString> {
+        @Override
+        public void write(final JsonWriter writer, final EncryptedString value) throws IOException {
+            if (value == null)
+                writer.nullValue();
+            else
+                writer.value(value.getCryptoToken());
+        }
+
+        @Override
+        public EncryptedString read(final JsonReader reader) throws IOException {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                return null;
+            }
+
+            return new EncryptedString(mCrypto, reader.nextString());
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package org.cryptokit.json;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encrypt and decrypt selected fields of JSON documents while streaming them.
+ * <p/>
+ * The document is read token by token with a JsonReader and written straight
+ * out with a JsonWriter, without building a tree, so memory use depends on
+ * the nesting depth, not the size of the document. Values at the configured
+ * paths are replaced with crypto tokens, everything else is copied through
+ * as it is, numbers keeping their original text.
+ * <p/>
+ * Paths use the JsonPath subset "$.user.ssn", "$.cards[*].number",
+ * "$.cards[0].number" and "$.contacts.*.email", where [*] matches any array
+ * element and .* any member name.
+ * <p/>
+ * A string field is encrypted exactly like SymmetricCrypto.encrypt(value),
+ * so fields encrypted one at a time before can be decrypted here and back.
+ * Numbers, booleans and empty strings are encrypted with a marker so they
+ * decrypt to the same type. Nulls are left as they are, and an object or
+ * array at a configured path is rejected.
+ * <p/>
+ * Example:
+ * JsonFieldCrypto fieldCrypto = new JsonFieldCrypto(crypto, "$.ssn", "$.cards[*].number");
+ * fieldCrypto.encrypt(reader, writer);
+ */
+public class JsonFieldCrypto {
+    // Marks a plain text holding a JSON literal rather than a string, NUL does not occur in real text
+    private static final char LITERAL_MARKER = '\u0000';
+
+    private final SymmetricCrypto mCrypto;
+    private final List<FieldPath> mPaths = new ArrayList<>();
+
+    /**
+     * @param crypto The crypto to encrypt and decrypt field values with
+     * @param paths  Paths of the fields to encrypt
+     */
+    public JsonFieldCrypto(final SymmetricCrypto crypto, final String... paths) {
+        if (crypto == null)
+            throw new InvalidInputException("Crypto cannot be null");
+        if (paths == null || paths.length == 0)
+            throw new InvalidInputException("At least one path is needed");
+
+        mCrypto = crypto;
+        for (final String path : paths)
+            mPaths.add(FieldPath.parse(path));
+    }
+
+    public String encrypt(final String json) {
+        return transform(json, true);
+    }
+
+    public String decrypt(final String json) {
+        return transform(json, false);
+    }
+
+    /**
+     * Copy a JSON document from the reader to the writer, encrypting the configured fields.
+     */
+    public void encrypt(final Reader input, final Writer output) throws IOException {
+        transform(new JsonReader(input), new JsonWriter(output), true);
+    }
+
+    /**
+     * Copy a JSON document from the reader to the writer, decrypting the configured fields.
+     */
+    public void decrypt(final Reader input, final Writer output) throws IOException {
+        transform(new JsonReader(input), new JsonWriter(output), false);
+    }
+
+    private String transform(final String json, final boolean encrypt) {
+        if (json == null)
+            throw new InvalidInputException("JSON cannot be null");
+
+        final StringWriter output = new StringWriter(json.length() * 2);
+        try {
+            transform(new JsonReader(new StringReader(json)), new JsonWriter(output), encrypt);
+        } catch (IOException e) {
+            throw new InvalidEncodingException("JSON is not valid", e);
+        }
+
+        return output.toString();
+    }
+
+    private void transform(final JsonReader reader, final JsonWriter writer, final boolean encrypt) throws IOException {
+        final Location location = new Location();
+
+        try {
+            JsonToken token;
+            while ((token = reader.peek()) != JsonToken.END_DOCUMENT) {
+                switch (token) {
+                    case BEGIN_OBJECT:
+                        rejectContainerAtPath(location, "object");
+                        reader.beginObject();
+                        writer.beginObject();
+                        location.push(false);
+                        break;
+                    case END_OBJECT:
+                        reader.endObject();
+                        writer.endObject();
+                        location.pop();
+                        break;
+                    case BEGIN_ARRAY:
+                        rejectContainerAtPath(location, "array");
+                        reader.beginArray();
+                        writer.beginArray();
+                        location.push(true);
+                        break;
+                    case END_ARRAY:
+                        reader.endArray();
+                        writer.endArray();
+                        location.pop();
+                        break;
+                    case NAME:
+                        final String name = reader.nextName();
+                        writer.name(name);
+                        location.setName(name);
+                        break;
+                    default:
+                        if (location.matchesAny(mPaths)) {
+                            if (encrypt)
+                                encryptValue(reader, writer, token);
+                            else
+                                decryptValue(reader, writer, token);
+                        } else {
+                            copyValue(reader, writer, token);
+                        }
+                        location.nextElement();
+                        break;
+                }
+            }
+            writer.flush();
+        } catch (MalformedJsonException | IllegalStateException e) {
+            throw new InvalidEncodingException("JSON is not valid at " + reader.getPath(), e);
+        }
+    }
+
+    private void encryptValue(final JsonReader reader, final JsonWriter writer, final JsonToken token) throws IOException {
+        switch (token) {
+            case STRING:
+                final String value = reader.nextString();
+                if (StringUtils.isNullOrEmpty(value) || value.charAt(0) == LITERAL_MARKER) {
+                    final StringWriter literal = new StringWriter();
+                    final JsonWriter literalWriter = new JsonWriter(literal);
+                    literalWriter.setLenient(true);
+                    literalWriter.value(value).close();
+                    writer.value(mCrypto.encrypt(LITERAL_MARKER + literal.toString()));
+                } else {
+                    writer.value(mCrypto.encrypt(value));
+                }
+                break;
+            case NUMBER:
+                writer.value(mCrypto.encrypt(LITERAL_MARKER + reader.nextString()));
+                break;
+            case BOOLEAN:
+                writer.value(mCrypto.encrypt(LITERAL_MARKER + String.valueOf(reader.nextBoolean())));
+                break;
+            default:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+        }
+    }
+
+    private void decryptValue(final JsonReader reader, final JsonWriter writer, final JsonToken token) throws IOException {
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            writer.nullValue();
+            return;
+        }
+        if (token != JsonToken.STRING)
+            throw new InvalidEncodingException("Expected a crypto token at " + reader.getPath() + " but found " + token);
+
+        final String plainText = mCrypto.decrypt(reader.nextString());
+        if (plainText.isEmpty() || plainText.charAt(0) != LITERAL_MARKER) {
+            writer.value(plainText);
+            return;
+        }
+
+        final JsonReader literal = new JsonReader(new StringReader(plainText.substring(1)));
+        literal.setLenient(true);
+        final JsonToken literalToken = literal.peek();
+        if (literalToken != JsonToken.STRING && literalToken != JsonToken.NUMBER && literalToken != JsonToken.BOOLEAN)
+            throw new InvalidEncodingException("Decrypted value at " + reader.getPath() + " is not a JSON string, number or boolean");
+        copyValue(literal, writer, literalToken);
+    }
+
+    private static void copyValue(final JsonReader reader, final JsonWriter writer, final JsonToken token) throws IOException {
+        switch (token) {
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                writer.value(new JsonNumber(reader.nextString()));
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            default:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+        }
+    }
+
+    private void rejectContainerAtPath(final Location location, final String kind) {
+        if (location.matchesAny(mPaths))
+            throw new InvalidInputException("Only string, number and boolean fields can be encrypted, found an " + kind + " at a configured path");
+    }
+
+    /**
+     * A parsed path. Each segment is a member name, or an array index with a null name.
+     */
+    private static class FieldPath {
+        static final int ANY = -1;
+        static final int MEMBER = -2;
+
+        // Member names, null for any name or for an array segment
+        final String[] mNames;
+        // Array indexes, ANY for [*], MEMBER for a member segment
+        final int[] mIndexes;
+
+        private FieldPath(final List<String> names, final List<Integer> indexes) {
+            mNames = names.toArray(new String[0]);
+            mIndexes = new int[indexes.size()];
+            for (int i = 0; i < mIndexes.length; i++)
+                mIndexes[i] = indexes.get(i);
+        }
+
+        static FieldPath parse(final String path) {
+            if (path == null || !path.startsWith("$"))
+                throw new InvalidInputException("Path must start with '$', found " + path);
+
+            final List<String> names = new ArrayList<>();
+            final List<Integer> indexes = new ArrayList<>();
+            int i = 1;
+            while (i < path.length()) {
+                if (path.charAt(i) == '.') {
+                    int end = i + 1;
+                    while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[')
+                        end++;
+                    if (end == i + 1)
+                        throw new InvalidInputException("Path has an empty member name: " + path);
+                    final String name = path.substring(i + 1, end);
+                    names.add(name.equals("*") ? null : name);
+                    indexes.add(MEMBER);
+                    i = end;
+                } else if (path.charAt(i) == '[') {
+                    final int end = path.indexOf(']', i);
+                    if (end < 0)
+                        throw new InvalidInputException("Path has an unclosed '[': " + path);
+                    final String index = path.substring(i + 1, end);
+                    names.add(null);
+                    try {
+                        indexes.add(index.equals("*") ? ANY : Integer.parseInt(index));
+                    } catch (NumberFormatException e) {
+                        throw new InvalidInputException("Path array index must be a number or '*': " + path);
+                    }
+                    if (indexes.get(indexes.size() - 1) < ANY)
+                        throw new InvalidInputException("Path array index must be a number or '*': " + path);
+                    i = end + 1;
+                } else {
+                    throw new InvalidInputException("Path is not in the expected format: " + path);
+                }
+            }
+            if (names.isEmpty())
+                throw new InvalidInputException("Path must select a field: " + path);
+
+            return new FieldPath(names, indexes);
+        }
+    }
+
+    /**
+     * The position of the reader in the document, as member names and array indexes.
+     */
+    private static class Location {
+        private boolean[] mArrays = new boolean[16];
+        private String[] mNames = new String[16];
+        private int[] mIndexes = new int[16];
+        private int mDepth;
+
+        void push(final boolean array) {
+            if (mDepth == mArrays.length) {
+                mArrays = Arrays.copyOf(mArrays, mDepth * 2);
+                mNames = Arrays.copyOf(mNames, mDepth * 2);
+                mIndexes = Arrays.copyOf(mIndexes, mDepth * 2);
+            }
+            mArrays[mDepth] = array;
+            mNames[mDepth] = null;
+            mIndexes[mDepth] = 0;
+            mDepth++;
+        }
+
+        void pop() {
+            mDepth--;
+            nextElement();
+        }
+
+        void setName(final String name) {
+            mNames[mDepth - 1] = name;
+        }
+
+        // Called after each value, to move on to the next array element
+        void nextElement() {
+            if (mDepth > 0 && mArrays[mDepth - 1])
+                mIndexes[mDepth - 1]++;
+        }
+
+        boolean matchesAny(final List<FieldPath> paths) {
+            for (final FieldPath path : paths) {
+                if (matches(path))
+                    return true;
+            }
+
+            return false;
+        }
+
+        private boolean matches(final FieldPath path) {
+            if (path.mIndexes.length != mDepth)
+                return false;
+
+            for (int i = 0; i < mDepth; i++) {
+                final int index = path.mIndexes[i];
+                if (mArrays[i]) {
+                    if (index == FieldPath.MEMBER || (index != FieldPath.ANY && index != mIndexes[i]))
+                        return false;
+                } else if (index != FieldPath.MEMBER || (path.mNames[i] != null && !path.mNames[i].equals(mNames[i]))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * A number written with its original text, so copying does not change its precision or format.
+     */
+    private static class JsonNumber extends Number {
+        private final String mText;
+
+        JsonNumber(final String text) {
+            mText = text;
+        }
+
+        @Override
+        public int intValue() {
+            return (int) longValue();
+        }
+
+        @Override
+        public long longValue() {
+            return (long) doubleValue();
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) doubleValue();
+        }
+
+        @Override
+        public double doubleValue() {
+            return Double.parseDouble(mText);
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+    }
+}
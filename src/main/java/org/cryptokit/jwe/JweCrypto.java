@@ -0,0 +1,313 @@
+package org.cryptokit.jwe;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.LruCache;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+import org.cryptokit.jwk.Values.Algorithm;
+import org.cryptokit.key.KeyLoader;
+import org.cryptokit.key.KeyWrapper;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.security.GeneralSecurityException;
+
+import static org.cryptokit.jwe.JweSpec.*;
+
+/**
+ * Encrypt and decrypt JSON Web Encryption (JWE) tokens in compact serialization.
+ * <p/>
+ * Supports content encryption with A256GCM, and either "dir", where the
+ * shared key is the content-encryption key, or "A256KW", where a fresh
+ * content-encryption key per token is wrapped with the shared key.
+ * <p/>
+ * Decryption splits the token in a single pass and reads the protected
+ * header with a streaming parser, without building a JSON tree. Tokens must
+ * use the algorithm this JweCrypto was created with, so a token cannot
+ * choose a weaker one. Unwrapped content-encryption keys are cached by key
+ * id and wrapped key, so repeated A256KW tokens from a partner that reuses
+ * its content-encryption key skip the unwrap.
+ * <p/>
+ * Based on RFC 7516 (JWE) and RFC 7518 (JWA).
+ * <p/>
+ * Example:
+ * JweCrypto jwe = new JweCrypto(partnerKey, Algorithm.A256KW, "partner-2024");
+ * String token = jwe.encrypt("{\"account\":\"12345\"}");
+ */
+public class JweCrypto {
+    private final SecretKey mKey;
+    private final Algorithm mAlgorithm;
+    private final String mKeyId;
+    private final KeyWrapper mKeyWrapper;
+    private final String mEncodedHeader;
+    private final byte[] mEncodedHeaderBytes;
+    private final LruCache<String, SecretKey> mKeyCache;
+
+    /**
+     * @param key       A 256-bit AES key, used directly or to wrap content-encryption keys
+     * @param algorithm Algorithm.DIRECT or Algorithm.A256KW
+     * @param keyId     The "kid" header of new tokens, or null to leave it out
+     */
+    public JweCrypto(final SecretKey key, final Algorithm algorithm, final String keyId) {
+        this(key, algorithm, keyId, DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * @param key          A 256-bit AES key, used directly or to wrap content-encryption keys
+     * @param algorithm    Algorithm.DIRECT or Algorithm.A256KW
+     * @param keyId        The "kid" header of new tokens, or null to leave it out
+     * @param keyCacheSize Maximum number of unwrapped content-encryption keys to cache
+     */
+    public JweCrypto(final SecretKey key, final Algorithm algorithm, final String keyId, final int keyCacheSize) {
+        if (key == null)
+            throw new InvalidInputException("Key cannot be null");
+        if (algorithm != Algorithm.DIRECT && algorithm != Algorithm.A256KW)
+            throw new InvalidInputException("Only the " + Algorithm.DIRECT + " and " + Algorithm.A256KW + " JWE algorithms are supported");
+        final byte[] keyBytes = key.getEncoded();
+        if (keyBytes == null || keyBytes.length != CONTENT_ENCRYPTION_KEY_SIZE_BYTES)
+            throw new InvalidInputException("Key must be 256 bits for " + algorithm);
+        if (keyCacheSize < 1)
+            throw new InvalidInputException("Key cache size must be 1 or greater");
+
+        mKey = key;
+        mAlgorithm = algorithm;
+        mKeyId = keyId;
+        mKeyWrapper = algorithm == Algorithm.A256KW ? new KeyWrapper(key) : null;
+        mEncodedHeader = StringUtils.base64Encode(encodeHeader(algorithm, keyId));
+        mEncodedHeaderBytes = mEncodedHeader.getBytes(CryptoConstants.CHARSET);
+        mKeyCache = new LruCache<>(keyCacheSize);
+    }
+
+    public Algorithm getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    public String getKeyId() {
+        return mKeyId;
+    }
+
+    public long getKeyCacheHitCount() {
+        return mKeyCache.getHitCount();
+    }
+
+    public long getKeyCacheMissCount() {
+        return mKeyCache.getMissCount();
+    }
+
+    public double getKeyCacheHitRate() {
+        return mKeyCache.getHitRate();
+    }
+
+    /**
+     * Encrypt a text into a compact JWE.
+     *
+     * @param plainText The text to encrypt
+     * @return header.encryptedKey.iv.ciphertext.tag
+     */
+    public String encrypt(final String plainText) {
+        if (plainText == null)
+            throw new InvalidInputException("Text to encrypt cannot be null");
+
+        final SecretKey contentKey;
+        final String encodedKey;
+        if (mAlgorithm == Algorithm.DIRECT) {
+            contentKey = mKey;
+            encodedKey = "";
+        } else {
+            contentKey = KeyLoader.SymmetricKey(Crypto.generateRandomBytes(CONTENT_ENCRYPTION_KEY_SIZE_BYTES));
+            encodedKey = StringUtils.base64Encode(mKeyWrapper.wrap(contentKey));
+        }
+
+        final byte[] ivBytes = Crypto.generateRandomBytes(CryptoConstants.AEAD_NONCE_SIZE_BYTES);
+        final byte[] sealedBytes;
+        try {
+            sealedBytes = Crypto.aesGcmEncrypt(contentKey, ivBytes, StringUtils.getStringBytes(plainText), mEncodedHeaderBytes);
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider cannot encrypt with " + CryptoConstants.AES_GCM_CIPHER_ALGORITHM, e);
+        }
+
+        final int cipherLength = sealedBytes.length - CryptoConstants.AEAD_TAG_SIZE_BYTES;
+        final byte[] cipherBytes = new byte[cipherLength];
+        final byte[] tagBytes = new byte[CryptoConstants.AEAD_TAG_SIZE_BYTES];
+        System.arraycopy(sealedBytes, 0, cipherBytes, 0, cipherLength);
+        System.arraycopy(sealedBytes, cipherLength, tagBytes, 0, tagBytes.length);
+
+        final String jwe =
+                mEncodedHeader + CryptoConstants.SEGMENT_DELIMITER +
+                        encodedKey + CryptoConstants.SEGMENT_DELIMITER +
+                        StringUtils.base64Encode(ivBytes) + CryptoConstants.SEGMENT_DELIMITER +
+                        StringUtils.base64Encode(cipherBytes) + CryptoConstants.SEGMENT_DELIMITER +
+                        StringUtils.base64Encode(tagBytes);
+
+        return jwe;
+    }
+
+    /**
+     * Decrypt a compact JWE.
+     *
+     * If this JweCrypto has a key id, a JWE with a different "kid" header is
+     * rejected without being decrypted. A JWE without a "kid" is attempted.
+     *
+     * @param jwe A compact JWE using this JweCrypto's algorithm and A256GCM
+     * @return The decrypted text
+     */
+    public String decrypt(final String jwe) {
+        if (StringUtils.isNullOrEmpty(jwe))
+            throw new InvalidInputException("JWE to decrypt cannot be null or empty");
+
+        final String[] segments = splitSegments(jwe);
+        final Header header = parseHeader(segments[JWE_SEGMENT_HEADER]);
+        if (!mAlgorithm.toString().equals(header.mAlgorithm))
+            throw new InvalidEncodingException(String.format("JWE is not in the expected format. Expected '%s' algorithm but found '%s'",
+                    mAlgorithm, header.mAlgorithm));
+        if (!CONTENT_ENCRYPTION_A256GCM.equals(header.mEncryption))
+            throw new InvalidEncodingException(String.format("JWE is not in the expected format. Expected '%s' encryption but found '%s'",
+                    CONTENT_ENCRYPTION_A256GCM, header.mEncryption));
+
+        // A token addressed to another key is rejected before any key unwrapping or decryption
+        if (mKeyId != null && header.mKeyId != null && !mKeyId.equals(header.mKeyId))
+            throw new DecryptionFailedException(String.format("JWE is for key '%s', not '%s'", header.mKeyId, mKeyId));
+
+        final SecretKey contentKey = contentKey(header.mKeyId, segments[JWE_SEGMENT_ENCRYPTED_KEY]);
+        final byte[] ivBytes = StringUtils.base64DecodeBytes(segments[JWE_SEGMENT_IV]);
+        final byte[] cipherBytes = StringUtils.base64DecodeBytes(segments[JWE_SEGMENT_CIPHER]);
+        final byte[] tagBytes = StringUtils.base64DecodeBytes(segments[JWE_SEGMENT_TAG]);
+        if (ivBytes.length != CryptoConstants.AEAD_NONCE_SIZE_BYTES)
+            throw new InvalidEncodingException(String.format("JWE is not in the expected format. Expected a %d byte IV but found %d",
+                    CryptoConstants.AEAD_NONCE_SIZE_BYTES, ivBytes.length));
+        if (tagBytes.length != CryptoConstants.AEAD_TAG_SIZE_BYTES)
+            throw new InvalidEncodingException(String.format("JWE is not in the expected format. Expected a %d byte tag but found %d",
+                    CryptoConstants.AEAD_TAG_SIZE_BYTES, tagBytes.length));
+
+        final byte[] sealedBytes = new byte[cipherBytes.length + tagBytes.length];
+        System.arraycopy(cipherBytes, 0, sealedBytes, 0, cipherBytes.length);
+        System.arraycopy(tagBytes, 0, sealedBytes, cipherBytes.length, tagBytes.length);
+
+        final byte[] decryptedBytes;
+        try {
+            decryptedBytes = Crypto.aesGcmDecrypt(contentKey, ivBytes, sealedBytes,
+                    segments[JWE_SEGMENT_HEADER].getBytes(CryptoConstants.CHARSET));
+        } catch (AEADBadTagException e) {
+            throw new DecryptionFailedException("JWE does not decrypt with the provided key", e);
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider cannot decrypt with " + CryptoConstants.AES_GCM_CIPHER_ALGORITHM, e);
+        }
+        final String plainText = new String(decryptedBytes, CryptoConstants.CHARSET);
+
+        return plainText;
+    }
+
+    // The shared key for dir, otherwise the unwrapped key, from the cache when this wrapped key was seen before
+    private SecretKey contentKey(final String keyId, final String encodedKey) {
+        if (mAlgorithm == Algorithm.DIRECT) {
+            if (!encodedKey.isEmpty())
+                throw new InvalidEncodingException("JWE is not in the expected format. Expected an empty encrypted key for " + Algorithm.DIRECT);
+            return mKey;
+        }
+
+        final String cacheKey = (keyId == null ? "" : keyId) + CryptoConstants.SEGMENT_DELIMITER + encodedKey;
+        SecretKey contentKey = mKeyCache.get(cacheKey);
+        if (contentKey == null) {
+            contentKey = mKeyWrapper.unwrap(StringUtils.base64DecodeBytes(encodedKey));
+            if (contentKey.getEncoded().length != CONTENT_ENCRYPTION_KEY_SIZE_BYTES)
+                throw new InvalidEncodingException("JWE is not in the expected format. Expected a 256-bit content encryption key");
+            mKeyCache.put(cacheKey, contentKey);
+        }
+
+        return contentKey;
+    }
+
+    // Split on '.' in a single pass, checking there are exactly five segments
+    private static String[] splitSegments(final String jwe) {
+        final String[] segments = new String[JWE_NUM_SEGMENTS];
+        int start = 0;
+        for (int i = 0; i < JWE_NUM_SEGMENTS - 1; i++) {
+            final int end = jwe.indexOf('.', start);
+            if (end < 0)
+                throw new InvalidEncodingException(String.format("JWE is not in the expected format. Expected %d segments but found %d",
+                        JWE_NUM_SEGMENTS, i + 1));
+            segments[i] = jwe.substring(start, end);
+            start = end + 1;
+        }
+        if (jwe.indexOf('.', start) >= 0)
+            throw new InvalidEncodingException(String.format("JWE is not in the expected format. Expected %d segments but found more",
+                    JWE_NUM_SEGMENTS));
+        segments[JWE_NUM_SEGMENTS - 1] = jwe.substring(start);
+
+        return segments;
+    }
+
+    private static class Header {
+        String mAlgorithm;
+        String mEncryption;
+        String mKeyId;
+    }
+
+    // Stream through the header object, keeping only the members decryption needs
+    private static Header parseHeader(final String encodedHeader) {
+        final Header header = new Header();
+        final JsonReader reader = new JsonReader(new InputStreamReader(
+                new ByteArrayInputStream(StringUtils.base64DecodeBytes(encodedHeader)), CryptoConstants.CHARSET));
+
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (HEADER_ALGORITHM.equals(name))
+                    header.mAlgorithm = nextString(reader, name);
+                else if (HEADER_ENCRYPTION.equals(name))
+                    header.mEncryption = nextString(reader, name);
+                else if (HEADER_KEY_ID.equals(name))
+                    header.mKeyId = nextString(reader, name);
+                else if (HEADER_COMPRESSION.equals(name) || HEADER_CRITICAL.equals(name))
+                    throw new InvalidEncodingException("JWE header parameter '" + name + "' is not supported");
+                else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT)
+                throw new InvalidEncodingException("JWE header has content after the JSON object");
+        } catch (IOException | IllegalStateException e) {
+            throw new InvalidEncodingException("JWE header is not a valid JSON object", e);
+        }
+
+        return header;
+    }
+
+    private static String nextString(final JsonReader reader, final String name) throws IOException {
+        if (reader.peek() != JsonToken.STRING)
+            throw new InvalidEncodingException("JWE header parameter '" + name + "' must be a string");
+
+        return reader.nextString();
+    }
+
+    private static String encodeHeader(final Algorithm algorithm, final String keyId) {
+        final StringWriter json = new StringWriter();
+        try {
+            final JsonWriter writer = new JsonWriter(json);
+            writer.beginObject();
+            writer.name(HEADER_ALGORITHM).value(algorithm.toString());
+            writer.name(HEADER_ENCRYPTION).value(CONTENT_ENCRYPTION_A256GCM);
+            if (keyId != null)
+                writer.name(HEADER_KEY_ID).value(keyId);
+            writer.endObject();
+            writer.close();
+        } catch (IOException e) {
+            throw new ImplementationFailedException("Cannot write JWE header (oops, please file a bug)", e);
+        }
+
+        return json.toString();
+    }
+}
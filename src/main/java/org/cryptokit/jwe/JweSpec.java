@@ -0,0 +1,21 @@
+package org.cryptokit.jwe;
+
+public class JweSpec {
+    public static final String CONTENT_ENCRYPTION_A256GCM = "A256GCM";
+    public static final int CONTENT_ENCRYPTION_KEY_SIZE_BYTES = 32;
+
+    public static final String HEADER_ALGORITHM = "alg";
+    public static final String HEADER_ENCRYPTION = "enc";
+    public static final String HEADER_KEY_ID = "kid";
+    public static final String HEADER_COMPRESSION = "zip";
+    public static final String HEADER_CRITICAL = "crit";
+
+    public static final int JWE_SEGMENT_HEADER = 0;
+    public static final int JWE_SEGMENT_ENCRYPTED_KEY = 1;
+    public static final int JWE_SEGMENT_IV = 2;
+    public static final int JWE_SEGMENT_CIPHER = 3;
+    public static final int JWE_SEGMENT_TAG = 4;
+    public static final int JWE_NUM_SEGMENTS = 5;
+
+    public static final int DEFAULT_KEY_CACHE_SIZE = 1000;
+}
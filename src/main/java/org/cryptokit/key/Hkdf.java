@@ -0,0 +1,103 @@
+package org.cryptokit.key;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import javax.crypto.Mac;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HMAC-based key derivation function (HKDF) using HMAC-SHA256
+ * <p/>
+ * Based on RFC 5869, May 2010
+ * https://tools.ietf.org/html/rfc5869
+ * <p/>
+ * You should be using SubkeyDeriver to derive keys from a root key, it
+ * takes care of encoding the derivation context and caching derived keys.
+ */
+public class Hkdf {
+    private static final int MAX_OUTPUT_BLOCKS = 255;
+
+    /**
+     * HKDF-Extract, concentrate the input keying material into a pseudorandom key.
+     *
+     * @param salt          Optional salt, may be null
+     * @param inputKeyBytes Input keying material
+     * @return A pseudorandom key suitable for expand
+     */
+    public static byte[] extract(final byte[] salt, final byte[] inputKeyBytes) {
+        if (inputKeyBytes == null)
+            throw new InvalidInputException("Input keying material cannot be null");
+
+        final byte[] saltBytes = salt == null || salt.length == 0 ? new byte[CryptoConstants.HMAC_SIZE_BYTES] : salt;
+        final byte[] pseudoRandomKey = createMac(saltBytes).doFinal(inputKeyBytes);
+
+        return pseudoRandomKey;
+    }
+
+    /**
+     * HKDF-Expand, expand a pseudorandom key into output keying material.
+     *
+     * @param pseudoRandomKey The output of extract
+     * @param info            Optional context and application specific information, may be null
+     * @param lengthBytes     Length of the output keying material, at most 8160 bytes
+     * @return Output keying material
+     */
+    public static byte[] expand(final byte[] pseudoRandomKey, final byte[] info, final int lengthBytes) {
+        if (pseudoRandomKey == null)
+            throw new InvalidInputException("Pseudorandom key cannot be null");
+        if (lengthBytes < 1 || lengthBytes > MAX_OUTPUT_BLOCKS * CryptoConstants.HMAC_SIZE_BYTES)
+            throw new InvalidInputException("Output length must be between 1 and " + MAX_OUTPUT_BLOCKS * CryptoConstants.HMAC_SIZE_BYTES);
+
+        return expand(createMac(pseudoRandomKey), info, lengthBytes);
+    }
+
+    /**
+     * HKDF-Expand using a Mac already initialized with the pseudorandom key.
+     * <p/>
+     * Lets callers deriving many keys from one pseudorandom key skip the Mac setup.
+     */
+    static byte[] expand(final Mac prkMac, final byte[] info, final int lengthBytes) {
+        final byte[] outputKeyBytes = new byte[lengthBytes];
+        byte[] block = new byte[0];
+        int offset = 0;
+
+        for (int counter = 1; offset < lengthBytes; counter++) {
+            prkMac.update(block);
+            if (info != null)
+                prkMac.update(info);
+            prkMac.update((byte) counter);
+            block = prkMac.doFinal();
+
+            final int copyBytes = Math.min(block.length, lengthBytes - offset);
+            System.arraycopy(block, 0, outputKeyBytes, offset, copyBytes);
+            offset += copyBytes;
+        }
+
+        return outputKeyBytes;
+    }
+
+    /**
+     * HKDF-Extract followed by HKDF-Expand.
+     */
+    public static byte[] derive(final byte[] salt, final byte[] inputKeyBytes, final byte[] info, final int lengthBytes) {
+        return expand(extract(salt, inputKeyBytes), info, lengthBytes);
+    }
+
+    static Mac createMac(final byte[] keyBytes) {
+        final Mac mac;
+
+        try {
+            mac = Crypto.hmac(keyBytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.HMAC_ALGORITHM, e);
+        } catch (InvalidKeyException e) {
+            throw new PreconditionFailedException("The provided key cannot be used with " + CryptoConstants.HMAC_ALGORITHM, e);
+        }
+
+        return mac;
+    }
+}
@@ -0,0 +1,250 @@
+package org.cryptokit.key;
+
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.SecretKey;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-wrap many wrapped keys from an old key-encryption key to a new one, in parallel.
+ * <p/>
+ * Rotating a master key means unwrapping every data key with the old master
+ * key and wrapping it again with the new one. The wrapped keys are read from
+ * an iterator on the calling thread and handed in batches to one worker per
+ * core, each reusing its own ciphers. Only a few batches are buffered at a
+ * time, so memory use does not depend on the number of keys.
+ * <p/>
+ * A key that fails to unwrap is reported to the listener and skipped, the
+ * rest of the batch carries on.
+ * <p/>
+ * Example:
+ * KeyRewrapper rewrapper = new KeyRewrapper(new KeyWrapper(oldMasterKey), new KeyWrapper(newMasterKey));
+ * KeyRewrapper.Result result = rewrapper.rewrap(wrappedKeys, listener);
+ */
+public class KeyRewrapper {
+    private static final int BATCH_SIZE = 256;
+    private static final int DEFAULT_PROGRESS_INTERVAL = 10000;
+
+    /**
+     * A wrapped key and the id the caller uses to store it.
+     */
+    public static class WrappedKey {
+        private final String mId;
+        private final byte[] mWrappedKey;
+
+        public WrappedKey(final String id, final byte[] wrappedKey) {
+            mId = id;
+            mWrappedKey = wrappedKey;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public byte[] getWrappedKey() {
+            return mWrappedKey;
+        }
+    }
+
+    /**
+     * Receives the outcome of a rewrap. Methods are called from the worker
+     * threads, possibly concurrently, and must be thread safe. An exception
+     * thrown by onRewrapped stops the run with ImplementationFailedException,
+     * it is not counted as a key that failed to rewrap.
+     */
+    public interface Listener {
+        void onRewrapped(String id, byte[] rewrappedKey);
+
+        void onFailure(String id, RuntimeException cause);
+
+        void onProgress(long processed, long failed);
+    }
+
+    /**
+     * Totals for a completed rewrap.
+     */
+    public static class Result {
+        private final long mProcessed;
+        private final long mFailed;
+        private final long mElapsedMillis;
+
+        Result(final long processed, final long failed, final long elapsedMillis) {
+            mProcessed = processed;
+            mFailed = failed;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        // Number of keys read, including failures
+        public long getProcessed() {
+            return mProcessed;
+        }
+
+        public long getFailed() {
+            return mFailed;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+    }
+
+    private final KeyWrapper mOldWrapper;
+    private final KeyWrapper mNewWrapper;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    private int mProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+
+    public KeyRewrapper(final KeyWrapper oldWrapper, final KeyWrapper newWrapper) {
+        if (oldWrapper == null || newWrapper == null)
+            throw new InvalidInputException("Key wrappers cannot be null");
+
+        mOldWrapper = oldWrapper;
+        mNewWrapper = newWrapper;
+    }
+
+    /**
+     * Set the number of worker threads, the number of cores by default.
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1)
+            throw new InvalidInputException("Parallelism must be 1 or greater");
+
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Set how many keys are processed between progress reports.
+     */
+    public void setProgressInterval(final int progressInterval) {
+        if (progressInterval < 1)
+            throw new InvalidInputException("Progress interval must be 1 or greater");
+
+        mProgressInterval = progressInterval;
+    }
+
+    /**
+     * Re-wrap every key from the iterator, blocking until all are done.
+     *
+     * @param wrappedKeys Keys wrapped with the old key-encryption key
+     * @param listener    Receives each re-wrapped key, failures and progress
+     * @return Totals for the run
+     */
+    public Result rewrap(final Iterator<WrappedKey> wrappedKeys, final Listener listener) {
+        if (wrappedKeys == null)
+            throw new InvalidInputException("Wrapped keys cannot be null");
+        if (listener == null)
+            throw new InvalidInputException("Listener cannot be null");
+
+        final long start = System.currentTimeMillis();
+        final AtomicLong processed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final BlockingQueue<List<WrappedKey>> batches = new ArrayBlockingQueue<>(mParallelism * 2);
+        final List<WrappedKey> endOfInput = new ArrayList<>();
+
+        final ExecutorService workers = Executors.newFixedThreadPool(mParallelism);
+        final List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < mParallelism; i++)
+                futures.add(workers.submit(new Worker(batches, endOfInput, listener, processed, failed)));
+
+            List<WrappedKey> batch = new ArrayList<>(BATCH_SIZE);
+            while (wrappedKeys.hasNext()) {
+                batch.add(wrappedKeys.next());
+                if (batch.size() == BATCH_SIZE) {
+                    put(batches, batch, futures);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty())
+                put(batches, batch, futures);
+            for (int i = 0; i < mParallelism; i++)
+                put(batches, endOfInput, futures);
+
+            for (final Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImplementationFailedException("Interrupted while re-wrapping keys", e);
+        } catch (ExecutionException e) {
+            throw new ImplementationFailedException("Key re-wrapping worker failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+
+        listener.onProgress(processed.get(), failed.get());
+
+        return new Result(processed.get(), failed.get(), System.currentTimeMillis() - start);
+    }
+
+    // Queue a batch, surfacing the error if a worker died instead of waiting forever for room
+    private static void put(final BlockingQueue<List<WrappedKey>> batches, final List<WrappedKey> batch, final List<Future<?>> futures)
+            throws InterruptedException, ExecutionException {
+        while (!batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            for (final Future<?> future : futures) {
+                if (future.isDone())
+                    future.get();
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final BlockingQueue<List<WrappedKey>> mBatches;
+        private final List<WrappedKey> mEndOfInput;
+        private final Listener mListener;
+        private final AtomicLong mProcessed;
+        private final AtomicLong mFailed;
+
+        Worker(final BlockingQueue<List<WrappedKey>> batches, final List<WrappedKey> endOfInput, final Listener listener,
+               final AtomicLong processed, final AtomicLong failed) {
+            mBatches = batches;
+            mEndOfInput = endOfInput;
+            mListener = listener;
+            mProcessed = processed;
+            mFailed = failed;
+        }
+
+        @Override
+        public void run() {
+            final KeyWrapper.Session oldSession = mOldWrapper.newSession();
+            final KeyWrapper.Session newSession = mNewWrapper.newSession();
+
+            try {
+                List<WrappedKey> batch;
+                while ((batch = mBatches.take()) != mEndOfInput) {
+                    for (final WrappedKey wrappedKey : batch)
+                        rewrap(oldSession, newSession, wrappedKey);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void rewrap(final KeyWrapper.Session oldSession, final KeyWrapper.Session newSession, final WrappedKey wrappedKey) {
+            byte[] rewrappedKey = null;
+            try {
+                final SecretKey key = oldSession.unwrap(wrappedKey.getWrappedKey(), KeySpec.SYMMETRIC_CIPHER);
+                rewrappedKey = newSession.wrap(key);
+            } catch (RuntimeException e) {
+                mFailed.incrementAndGet();
+                mListener.onFailure(wrappedKey.getId(), e);
+            }
+            // Outside the try, an exception from the listener is not a failure to rewrap and stops the run instead
+            if (rewrappedKey != null)
+                mListener.onRewrapped(wrappedKey.getId(), rewrappedKey);
+
+            final long processed = mProcessed.incrementAndGet();
+            if (processed % mProgressInterval == 0)
+                mListener.onProgress(processed, mFailed.get());
+        }
+    }
+}
@@ -4,6 +4,17 @@ public class KeySpec {
     public static final String SYMMETRIC_CIPHER = "AES";
     public static final int SYMMETRIC_KEY_SIZE_BYTES = 32; // 256-bit
 
+    public static final String DERIVED_KEY_CONTEXT = "ck_hk1";
+    public static final int DERIVED_KEY_DEFAULT_CACHE_SIZE = 10000;
+
+    public static final int KEY_STORE_MAGIC = 0x434b4b53; // "CKKS"
+    public static final byte KEY_STORE_VERSION = 1;
+    public static final String KEY_STORE_MAC_CONTEXT = "ck_ks1";
+    public static final int KEY_STORE_HEADER_BYTES = 16;
+    public static final int KEY_STORE_FOOTER_BYTES = 16;
+    public static final int KEY_STORE_INDEX_ENTRY_BYTES = 16;
+    public static final int KEY_STORE_TAG_BYTES = 16;
+
     public static final String ASYMMETRIC_CIPHER = "RSA";
     public static final int ASYMMETRIC_KEY_SIZE_BYTES = 256; // 2048-bit
 }
@@ -0,0 +1,148 @@
+package org.cryptokit.key;
+
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of a keystore file, shared by MappedKeyStore and MappedKeyStoreWriter.
+ * <p/>
+ * All numbers are big-endian.
+ * <p/>
+ * Header, at offset 0: magic (4), version (1), reserved (3), footer offset (8).
+ * The footer offset is the only field rewritten in place, after everything it
+ * points to is on disk, so an interrupted append leaves the previous contents.
+ * A footer offset of 0 means the first commit never finished, and the store
+ * is empty.
+ * <p/>
+ * Records: key id length (2), key id UTF-8, wrapped key length (2), key
+ * wrapped with AES Key Wrap, then a truncated HMAC of all of those. The MAC
+ * binds the id to the key, so records cannot be swapped between ids.
+ * <p/>
+ * Index: one entry per live key, hash of the key id (8) and record offset (8),
+ * sorted by hash. Footer: index offset (8), entry count (4), magic (4).
+ */
+final class KeyStoreFormat {
+    static final int HEADER_FOOTER_OFFSET = 8;
+    static final int MAX_KEY_ID_BYTES = 0xffff;
+
+    private KeyStoreFormat() {
+    }
+
+    // 64-bit FNV-1a, only used to order the index, collisions are resolved by comparing ids
+    static long hash(final byte[] keyIdBytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : keyIdBytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    static byte[] keyIdBytes(final String keyId) {
+        if (StringUtils.isNullOrEmpty(keyId))
+            throw new InvalidInputException("Key id cannot be null or empty");
+        final byte[] keyIdBytes = StringUtils.getStringBytes(keyId);
+        if (keyIdBytes.length > MAX_KEY_ID_BYTES)
+            throw new InvalidInputException("Key id cannot be longer than " + MAX_KEY_ID_BYTES + " bytes");
+
+        return keyIdBytes;
+    }
+
+    // Record MACs use a key derived from the key-encryption key, never the key-encryption key itself
+    static byte[] macKey(final SecretKey keyEncryptionKey) {
+        final byte[] keyBytes = keyEncryptionKey.getEncoded();
+        if (keyBytes == null)
+            throw new InvalidInputException("Keystore key-encryption key must be extractable");
+
+        return Hkdf.derive(null, keyBytes, StringUtils.getStringBytes(KeySpec.KEY_STORE_MAC_CONTEXT), KeySpec.SYMMETRIC_KEY_SIZE_BYTES);
+    }
+
+    static byte[] encodeRecord(final Mac mac, final byte[] keyIdBytes, final byte[] wrappedKey) {
+        final ByteBuffer record = ByteBuffer.allocate(4 + keyIdBytes.length + wrappedKey.length + KeySpec.KEY_STORE_TAG_BYTES);
+        record.putShort((short) keyIdBytes.length).put(keyIdBytes);
+        record.putShort((short) wrappedKey.length).put(wrappedKey);
+        mac.update(record.array(), 0, record.position());
+        record.put(mac.doFinal(), 0, KeySpec.KEY_STORE_TAG_BYTES);
+
+        return record.array();
+    }
+
+    // Compare a MAC with a record's truncated tag in constant time
+    static boolean tagMatches(final byte[] mac, final byte[] record, final int tagOffset) {
+        int diff = 0;
+        for (int i = 0; i < KeySpec.KEY_STORE_TAG_BYTES; i++)
+            diff |= mac[i] ^ record[tagOffset + i];
+
+        return diff == 0;
+    }
+
+    static int recordLength(final ByteBuffer file, final int offset) {
+        final int keyIdLength = keyIdLength(file, offset);
+        if (offset + 4 + keyIdLength > file.limit())
+            throw new InvalidEncodingException("Keystore record at offset " + offset + " is corrupt");
+        final int wrappedKeyLength = file.getShort(offset + 2 + keyIdLength) & 0xffff;
+        final int recordLength = 4 + keyIdLength + wrappedKeyLength + KeySpec.KEY_STORE_TAG_BYTES;
+        if (offset + recordLength > file.limit())
+            throw new InvalidEncodingException("Keystore record at offset " + offset + " is corrupt");
+
+        return recordLength;
+    }
+
+    // The length of a record's key id, checked to fit in the file
+    static int keyIdLength(final ByteBuffer file, final int offset) {
+        if (offset + 2 > file.limit())
+            throw new InvalidEncodingException("Keystore record at offset " + offset + " is corrupt");
+        final int keyIdLength = file.getShort(offset) & 0xffff;
+        if (offset + 2 + keyIdLength > file.limit())
+            throw new InvalidEncodingException("Keystore record at offset " + offset + " is corrupt");
+
+        return keyIdLength;
+    }
+
+    static boolean keyIdEquals(final ByteBuffer file, final int offset, final byte[] keyIdBytes) {
+        if (keyIdLength(file, offset) != keyIdBytes.length)
+            return false;
+        for (int i = 0; i < keyIdBytes.length; i++) {
+            if (file.get(offset + 2 + i) != keyIdBytes[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    static void writeHeader(final ByteBuffer header, final long footerOffset) {
+        header.putInt(KeySpec.KEY_STORE_MAGIC).put(KeySpec.KEY_STORE_VERSION).put(new byte[3]).putLong(footerOffset);
+    }
+
+    /**
+     * Check the header and footer of a mapped keystore.
+     *
+     * @return The footer offset, 0 for a store whose first commit never finished
+     */
+    static int readFooterOffset(final ByteBuffer file) {
+        if (file.limit() < KeySpec.KEY_STORE_HEADER_BYTES || file.getInt(0) != KeySpec.KEY_STORE_MAGIC)
+            throw new InvalidEncodingException("File is not a cryptokit keystore");
+        if (file.get(4) != KeySpec.KEY_STORE_VERSION)
+            throw new InvalidEncodingException("Unsupported keystore version " + file.get(4));
+
+        final long footerOffset = file.getLong(HEADER_FOOTER_OFFSET);
+        if (footerOffset == 0)
+            return 0;
+        if (footerOffset < KeySpec.KEY_STORE_HEADER_BYTES || footerOffset > file.limit() - KeySpec.KEY_STORE_FOOTER_BYTES
+                || file.getInt((int) footerOffset + 12) != KeySpec.KEY_STORE_MAGIC)
+            throw new InvalidEncodingException("Keystore footer is missing or corrupt");
+
+        final long indexOffset = file.getLong((int) footerOffset);
+        final long indexBytes = (long) file.getInt((int) footerOffset + 8) * KeySpec.KEY_STORE_INDEX_ENTRY_BYTES;
+        if (indexOffset < KeySpec.KEY_STORE_HEADER_BYTES || indexBytes < 0 || indexOffset + indexBytes != footerOffset)
+            throw new InvalidEncodingException("Keystore index is corrupt");
+
+        return (int) footerOffset;
+    }
+}
@@ -0,0 +1,141 @@
+package org.cryptokit.key;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.ProviderRegistry;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Wrap (encrypt) and unwrap symmetric keys with a key-encryption key using
+ * AES Key Wrap (RFC 3394), the A128KW, A192KW and A256KW algorithms of JWA.
+ * <p/>
+ * Use it to store data keys encrypted under a master key. A wrapped key is
+ * 8 bytes longer than the key itself, and unwrapping checks its integrity.
+ * To move many wrapped keys to a new master key, use KeyRewrapper.
+ * <p/>
+ * Example:
+ * KeyWrapper wrapper = new KeyWrapper(masterKey);
+ * byte[] wrappedKey = wrapper.wrap(RandomKeyGenerator.generateSymmetricKey());
+ * SecretKey dataKey = wrapper.unwrap(wrappedKey);
+ */
+public class KeyWrapper {
+
+    private final SecretKey mKeyEncryptionKey;
+
+    /**
+     * @param keyEncryptionKey A 128, 192 or 256-bit AES key
+     */
+    public KeyWrapper(final SecretKey keyEncryptionKey) {
+        if (keyEncryptionKey == null)
+            throw new InvalidInputException("Key encryption key cannot be null");
+        final byte[] keyBytes = keyEncryptionKey.getEncoded();
+        if (keyBytes != null && keyBytes.length != 16 && keyBytes.length != 24 && keyBytes.length != 32)
+            throw new InvalidInputException("Key encryption key must be 128, 192 or 256 bits");
+
+        mKeyEncryptionKey = keyEncryptionKey;
+    }
+
+    /**
+     * Wrap a symmetric key.
+     *
+     * @param key The key to wrap, at least 128 bits and a multiple of 64 bits
+     * @return The wrapped key
+     */
+    public byte[] wrap(final SecretKey key) {
+        return newSession().wrap(key);
+    }
+
+    /**
+     * Unwrap an AES key.
+     *
+     * @param wrappedKey The output of wrap
+     * @return The unwrapped key
+     */
+    public SecretKey unwrap(final byte[] wrappedKey) {
+        return newSession().unwrap(wrappedKey, KeySpec.SYMMETRIC_CIPHER);
+    }
+
+    /**
+     * Unwrap a symmetric key for the given algorithm.
+     *
+     * @param wrappedKey   The output of wrap
+     * @param keyAlgorithm The algorithm of the unwrapped key, for example "AES" or "HmacSHA256"
+     * @return The unwrapped key
+     */
+    public SecretKey unwrap(final byte[] wrappedKey, final String keyAlgorithm) {
+        return newSession().unwrap(wrappedKey, keyAlgorithm);
+    }
+
+    /**
+     * Create a session that reuses one Cipher for many keys, for use by a single thread.
+     */
+    Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * Wraps and unwraps keys reusing a single Cipher. Not thread safe.
+     */
+    class Session {
+        private final Cipher mCipher;
+
+        Session() {
+            try {
+                mCipher = ProviderRegistry.getCipher(CryptoConstants.AES_KEY_WRAP_ALGORITHM);
+            } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+                throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.AES_KEY_WRAP_ALGORITHM, e);
+            }
+        }
+
+        byte[] wrap(final SecretKey key) {
+            if (key == null)
+                throw new InvalidInputException("Key to wrap cannot be null");
+            final byte[] keyBytes = key.getEncoded();
+            if (keyBytes == null || keyBytes.length < 16 || keyBytes.length % 8 != 0)
+                throw new InvalidInputException("Key to wrap must be at least 128 bits and a multiple of 64 bits");
+
+            try {
+                mCipher.init(Cipher.WRAP_MODE, mKeyEncryptionKey);
+                return mCipher.wrap(key);
+            } catch (InvalidKeyException e) {
+                throw new PreconditionFailedException("The provided key does not appear to be a valid " + mKeyEncryptionKey.getAlgorithm() + " key", e);
+            } catch (IllegalBlockSizeException e) {
+                throw new ImplementationFailedException("Illegal block size (oops, please file a bug)", e);
+            }
+        }
+
+        SecretKey unwrap(final byte[] wrappedKey, final String keyAlgorithm) {
+            if (wrappedKey == null)
+                throw new InvalidInputException("Wrapped key cannot be null");
+            if (wrappedKey.length < 16 + CryptoConstants.AES_KEY_WRAP_OVERHEAD_BYTES || wrappedKey.length % 8 != 0)
+                throw new InvalidInputException("Wrapped key must be at least 192 bits and a multiple of 64 bits");
+
+            try {
+                mCipher.init(Cipher.UNWRAP_MODE, mKeyEncryptionKey);
+            } catch (InvalidKeyException e) {
+                throw new PreconditionFailedException("The provided key does not appear to be a valid " + mKeyEncryptionKey.getAlgorithm() + " key", e);
+            }
+
+            final Key key;
+            try {
+                key = mCipher.unwrap(wrappedKey, keyAlgorithm, Cipher.SECRET_KEY);
+            } catch (InvalidKeyException e) {
+                throw new DecryptionFailedException("Wrapped key does not unwrap with the provided key", e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new PreconditionFailedException("System crypto provider does not support key algorithm " + keyAlgorithm, e);
+            }
+
+            return (SecretKey) key;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.cryptokit.key;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a keystore file written by MappedKeyStoreWriter.
+ * <p/>
+ * The file is memory mapped and only the header and footer are read on
+ * open, so opening takes the same time for ten keys or a million. A lookup
+ * binary searches the sorted index in the mapping, checks the record MAC and
+ * unwraps that one key, keeping nothing else on the heap. Keys are stored
+ * wrapped with a key-encryption key, which is needed to read them.
+ * <p/>
+ * A MappedKeyStore sees the file as it was when opened, open it again to see
+ * later changes. It is thread safe.
+ * <p/>
+ * Example:
+ * MappedKeyStore store = new MappedKeyStore(Paths.get("tenants.keys"), masterKey);
+ * SecretKey key = store.getKey("tenant-42");
+ */
+public class MappedKeyStore implements Closeable {
+    private final FileChannel mChannel;
+    private final ByteBuffer mFile;
+    private final int mIndexOffset;
+    private final int mSize;
+    private final ThreadLocal<KeyWrapper.Session> mSessions;
+    private final ThreadLocal<Mac> mMacs;
+
+    /**
+     * @param path             The keystore file
+     * @param keyEncryptionKey The key the store was written with
+     */
+    public MappedKeyStore(final Path path, final SecretKey keyEncryptionKey) throws IOException {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+
+        final KeyWrapper keyWrapper = new KeyWrapper(keyEncryptionKey);
+        final byte[] macKey = KeyStoreFormat.macKey(keyEncryptionKey);
+        mSessions = ThreadLocal.withInitial(keyWrapper::newSession);
+        mMacs = ThreadLocal.withInitial(() -> Hkdf.createMac(macKey));
+
+        mChannel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            if (mChannel.size() > Integer.MAX_VALUE)
+                throw new InvalidEncodingException("Keystore files larger than 2 GB are not supported");
+            final MappedByteBuffer file = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, mChannel.size());
+            mFile = file.asReadOnlyBuffer();
+
+            final int footerOffset = KeyStoreFormat.readFooterOffset(mFile);
+            mIndexOffset = footerOffset == 0 ? KeySpec.KEY_STORE_HEADER_BYTES : (int) mFile.getLong(footerOffset);
+            mSize = footerOffset == 0 ? 0 : mFile.getInt(footerOffset + 8);
+        } catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of keys in the store
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public boolean containsKey(final String keyId) {
+        return findRecord(KeyStoreFormat.keyIdBytes(keyId)) >= 0;
+    }
+
+    /**
+     * Get an AES key.
+     *
+     * @param keyId The id the key was stored under
+     * @return The key, or null if the store does not contain it
+     */
+    public SecretKey getKey(final String keyId) {
+        return getKey(keyId, KeySpec.SYMMETRIC_CIPHER);
+    }
+
+    /**
+     * Get a key for the given algorithm.
+     *
+     * @param keyId        The id the key was stored under
+     * @param keyAlgorithm The algorithm of the key, for example "AES" or "HmacSHA256"
+     * @return The key, or null if the store does not contain it
+     */
+    public SecretKey getKey(final String keyId, final String keyAlgorithm) {
+        final int offset = findRecord(KeyStoreFormat.keyIdBytes(keyId));
+        if (offset < 0)
+            return null;
+
+        final int recordLength = KeyStoreFormat.recordLength(mFile, offset);
+        if (offset + recordLength > mIndexOffset)
+            throw new InvalidEncodingException("Keystore record for key id " + keyId + " is corrupt");
+        final byte[] record = new byte[recordLength];
+        final ByteBuffer view = mFile.duplicate();
+        view.position(offset);
+        view.get(record);
+
+        final int tagOffset = recordLength - KeySpec.KEY_STORE_TAG_BYTES;
+        final Mac mac = mMacs.get();
+        mac.update(record, 0, tagOffset);
+        if (!KeyStoreFormat.tagMatches(mac.doFinal(), record, tagOffset))
+            throw new DecryptionFailedException("Keystore record for key id " + keyId + " failed its integrity check");
+
+        final int wrappedKeyOffset = 4 + ((record[0] & 0xff) << 8 | record[1] & 0xff);
+        final byte[] wrappedKey = new byte[tagOffset - wrappedKeyOffset];
+        System.arraycopy(record, wrappedKeyOffset, wrappedKey, 0, wrappedKey.length);
+
+        return mSessions.get().unwrap(wrappedKey, keyAlgorithm);
+    }
+
+    // Binary search the index for the record of a key id, -1 if absent
+    private int findRecord(final byte[] keyIdBytes) {
+        final long hash = KeyStoreFormat.hash(keyIdBytes);
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mFile.getLong(mIndexOffset + middle * KeySpec.KEY_STORE_INDEX_ENTRY_BYTES) < hash)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        for (int i = low; i < mSize; i++) {
+            final int entry = mIndexOffset + i * KeySpec.KEY_STORE_INDEX_ENTRY_BYTES;
+            if (mFile.getLong(entry) != hash)
+                break;
+            final long offset = mFile.getLong(entry + 8);
+            if (offset < KeySpec.KEY_STORE_HEADER_BYTES || offset >= mIndexOffset)
+                throw new InvalidEncodingException("Keystore index is corrupt");
+            if (KeyStoreFormat.keyIdEquals(mFile, (int) offset, keyIdBytes))
+                return (int) offset;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,231 @@
+package org.cryptokit.key;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Add and retire keys in a keystore file read by MappedKeyStore.
+ * <p/>
+ * Changes are collected with put and remove, then written with commit or
+ * compact. commit appends the new records to the end of the file, leaving
+ * the old records in place, followed by a new index of every live key (16
+ * bytes per key) and a new footer. It never rereads or rewrites records, but
+ * each commit adds a full index, so batch changes into few commits. compact
+ * writes only the live keys to a new file and renames it over the old one,
+ * reclaiming the space of replaced and retired keys and old indexes. Both
+ * lock the file while writing, and both leave the file readable if
+ * interrupted.
+ * <p/>
+ * Keys are wrapped with the key-encryption key as they are added.
+ * <p/>
+ * Example:
+ * MappedKeyStoreWriter writer = new MappedKeyStoreWriter(Paths.get("tenants.keys"), masterKey);
+ * writer.put("tenant-42", RandomKeyGenerator.generateSymmetricKey());
+ * writer.remove("tenant-7");
+ * writer.commit();
+ */
+public class MappedKeyStoreWriter {
+    private final Path mPath;
+    private final KeyWrapper mKeyWrapper;
+    private final Mac mMac;
+    // Encoded records by key id, null for a key to remove
+    private final Map<String, byte[]> mPending = new LinkedHashMap<>();
+
+    /**
+     * @param path             The keystore file, created by the first commit if it does not exist
+     * @param keyEncryptionKey A 128, 192 or 256-bit AES key to wrap the stored keys with
+     */
+    public MappedKeyStoreWriter(final Path path, final SecretKey keyEncryptionKey) {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+
+        mPath = path;
+        mKeyWrapper = new KeyWrapper(keyEncryptionKey);
+        mMac = Hkdf.createMac(KeyStoreFormat.macKey(keyEncryptionKey));
+    }
+
+    /**
+     * Add a key, or replace the key stored under the same id.
+     */
+    public void put(final String keyId, final SecretKey key) {
+        final byte[] keyIdBytes = KeyStoreFormat.keyIdBytes(keyId);
+        final byte[] record = KeyStoreFormat.encodeRecord(mMac, keyIdBytes, mKeyWrapper.wrap(key));
+
+        mPending.put(keyId, record);
+    }
+
+    /**
+     * Retire a key. Removing a key that is not stored does nothing.
+     */
+    public void remove(final String keyId) {
+        KeyStoreFormat.keyIdBytes(keyId);
+
+        mPending.put(keyId, null);
+    }
+
+    /**
+     * @return The number of keys put or removed since the last commit or compact
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Append the pending changes to the keystore file.
+     */
+    public void commit() throws IOException {
+        try (FileChannel channel = FileChannel.open(mPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Released when the channel closes
+            channel.lock();
+            final List<long[]> entries = liveEntries(channel);
+
+            long position = channel.size();
+            if (position == 0) {
+                writeHeader(channel, 0);
+                position = KeySpec.KEY_STORE_HEADER_BYTES;
+            }
+            writeStore(channel, position, entries);
+        }
+
+        mPending.clear();
+    }
+
+    /**
+     * Rewrite the keystore file with only its live keys and the pending changes.
+     */
+    public void compact() throws IOException {
+        final Path tempPath = mPath.resolveSibling(mPath.getFileName() + ".compact");
+
+        try (FileChannel channel = FileChannel.open(mPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Released when the channel closes
+            channel.lock();
+            final List<long[]> entries = liveEntries(channel);
+
+            try (FileChannel target = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                writeHeader(target, 0);
+                long position = KeySpec.KEY_STORE_HEADER_BYTES;
+
+                if (!entries.isEmpty()) {
+                    final ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    for (final long[] entry : entries) {
+                        final int offset = (int) entry[1];
+                        final ByteBuffer record = file.duplicate();
+                        record.position(offset).limit(offset + KeyStoreFormat.recordLength(file, offset));
+                        entry[1] = position;
+                        position += writeFully(target, record, position);
+                    }
+                }
+                writeStore(target, position, entries);
+            }
+
+            // Renamed while still holding the lock, so no commit can land in the old file
+            Files.move(tempPath, mPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        mPending.clear();
+    }
+
+    // Read the index of an existing file as {hash, offset} pairs, leaving out the keys about to be replaced or removed
+    private List<long[]> liveEntries(final FileChannel channel) throws IOException {
+        final List<long[]> entries = new ArrayList<>();
+        if (channel.size() == 0)
+            return entries;
+        if (channel.size() > Integer.MAX_VALUE)
+            throw new InvalidEncodingException("Keystore files larger than 2 GB are not supported");
+
+        final ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        final int footerOffset = KeyStoreFormat.readFooterOffset(file);
+        if (footerOffset == 0)
+            return entries;
+        final int indexOffset = (int) file.getLong(footerOffset);
+        final int size = file.getInt(footerOffset + 8);
+
+        final Set<Long> pendingHashes = new HashSet<>();
+        for (final String keyId : mPending.keySet())
+            pendingHashes.add(KeyStoreFormat.hash(StringUtils.getStringBytes(keyId)));
+
+        for (int i = 0; i < size; i++) {
+            final int entry = indexOffset + i * KeySpec.KEY_STORE_INDEX_ENTRY_BYTES;
+            final long hash = file.getLong(entry);
+            final long offset = file.getLong(entry + 8);
+            if (offset < KeySpec.KEY_STORE_HEADER_BYTES || offset >= indexOffset)
+                throw new InvalidEncodingException("Keystore index is corrupt");
+            if (pendingHashes.contains(hash) && mPending.containsKey(readKeyId(file, (int) offset)))
+                continue;
+            entries.add(new long[]{hash, offset});
+        }
+
+        return entries;
+    }
+
+    private static String readKeyId(final ByteBuffer file, final int offset) {
+        final byte[] keyIdBytes = new byte[KeyStoreFormat.keyIdLength(file, offset)];
+        final ByteBuffer view = file.duplicate();
+        view.position(offset + 2);
+        view.get(keyIdBytes);
+
+        return new String(keyIdBytes, CryptoConstants.CHARSET);
+    }
+
+    // Write the pending records, then the index and footer, and only then point the header at the new footer
+    private void writeStore(final FileChannel channel, long position, final List<long[]> entries) throws IOException {
+        for (final Map.Entry<String, byte[]> pending : mPending.entrySet()) {
+            if (pending.getValue() == null)
+                continue;
+            entries.add(new long[]{KeyStoreFormat.hash(StringUtils.getStringBytes(pending.getKey())), position});
+            position += writeFully(channel, ByteBuffer.wrap(pending.getValue()), position);
+        }
+
+        entries.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        final long indexOffset = position;
+        final ByteBuffer index = ByteBuffer.allocate(entries.size() * KeySpec.KEY_STORE_INDEX_ENTRY_BYTES + KeySpec.KEY_STORE_FOOTER_BYTES);
+        for (final long[] entry : entries)
+            index.putLong(entry[0]).putLong(entry[1]);
+        final long footerOffset = indexOffset + index.position();
+        index.putLong(indexOffset).putInt(entries.size()).putInt(KeySpec.KEY_STORE_MAGIC);
+        index.flip();
+        writeFully(channel, index, indexOffset);
+        channel.force(false);
+
+        writeHeader(channel, footerOffset);
+        channel.force(false);
+    }
+
+    private static void writeHeader(final FileChannel channel, final long footerOffset) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(KeySpec.KEY_STORE_HEADER_BYTES);
+        KeyStoreFormat.writeHeader(header, footerOffset);
+        header.flip();
+
+        writeFully(channel, header, 0);
+    }
+
+    private static int writeFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        final int length = buffer.remaining();
+        long written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer, position + written);
+
+        return length;
+    }
+}
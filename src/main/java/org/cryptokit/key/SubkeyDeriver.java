@@ -0,0 +1,138 @@
+package org.cryptokit.key;
+
+import org.cryptokit.core.LruCache;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Derive per-tenant, per-purpose symmetric keys from a single root key using HKDF.
+ * <p/>
+ * Instead of storing one key per tenant, store a small number of root keys
+ * and derive the tenant keys on demand. The same root key, tenant and purpose
+ * always derive the same key, and knowing one derived key reveals nothing
+ * about the root key or any other derived key.
+ * <p/>
+ * Derived keys, and the SymmetricCrypto instances using them, are kept in a
+ * bounded LRU cache so hot tenants only pay for derivation once.
+ * <p/>
+ * Example:
+ * SubkeyDeriver deriver = new SubkeyDeriver(rootKey);
+ * String token = deriver.deriveCrypto("tenant-42", "user-data").encrypt("secret");
+ */
+public class SubkeyDeriver {
+
+    private final ThreadLocal<Mac> mMacs;
+    private final LruCache<String, DerivedKey> mCache;
+
+    public SubkeyDeriver(final SecretKey rootKey) {
+        this(rootKey, KeySpec.DERIVED_KEY_DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param rootKey   The root key to derive from
+     * @param cacheSize Maximum number of derived keys to keep cached
+     */
+    public SubkeyDeriver(final SecretKey rootKey, final int cacheSize) {
+        if (rootKey == null)
+            throw new InvalidInputException("Root key cannot be null");
+        if (rootKey.getEncoded() == null)
+            throw new InvalidInputException("Root key must be extractable to derive keys from it");
+        if (cacheSize < 1)
+            throw new InvalidInputException("Cache size must be 1 or greater");
+
+        // Extract once, every derivation only needs the expand step with a Mac already keyed per thread
+        final byte[] pseudoRandomKey = Hkdf.extract(null, rootKey.getEncoded());
+        mMacs = ThreadLocal.withInitial(() -> Hkdf.createMac(pseudoRandomKey));
+        mCache = new LruCache<String, DerivedKey>(cacheSize);
+    }
+
+    /**
+     * Derive the symmetric key for a tenant and purpose.
+     *
+     * @param tenantId The tenant the key belongs to
+     * @param purpose  What the key is used for, for example "user-data"
+     * @return A 256-bit AES key
+     */
+    public SecretKey deriveKey(final String tenantId, final String purpose) {
+        return getDerivedKey(tenantId, purpose).mSecretKey;
+    }
+
+    /**
+     * Get a SymmetricCrypto using the derived key for a tenant and purpose.
+     *
+     * @param tenantId The tenant the key belongs to
+     * @param purpose  What the key is used for, for example "user-data"
+     * @return A cached SymmetricCrypto instance
+     */
+    public SymmetricCrypto deriveCrypto(final String tenantId, final String purpose) {
+        return getDerivedKey(tenantId, purpose).mCrypto;
+    }
+
+    public long getCacheHitCount() {
+        return mCache.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        return mCache.getMissCount();
+    }
+
+    public double getCacheHitRate() {
+        return mCache.getHitRate();
+    }
+
+    public int getCacheSize() {
+        return mCache.size();
+    }
+
+    private DerivedKey getDerivedKey(final String tenantId, final String purpose) {
+        if (StringUtils.isNullOrEmpty(tenantId))
+            throw new InvalidInputException("Tenant id cannot be null or empty");
+        if (StringUtils.isNullOrEmpty(purpose))
+            throw new InvalidInputException("Purpose cannot be null or empty");
+
+        final String cacheKey = tenantId.length() + ":" + tenantId + purpose;
+        final DerivedKey cached = mCache.get(cacheKey);
+        if (cached != null)
+            return cached;
+
+        final byte[] keyBytes = Hkdf.expand(mMacs.get(), encodeInfo(tenantId, purpose), KeySpec.SYMMETRIC_KEY_SIZE_BYTES);
+        final DerivedKey derivedKey = new DerivedKey(KeyLoader.SymmetricKey(keyBytes));
+
+        return mCache.putIfAbsent(cacheKey, derivedKey);
+    }
+
+    // HKDF info: context || 0 || len(tenant) || tenant || len(purpose) || purpose
+    private static byte[] encodeInfo(final String tenantId, final String purpose) {
+        final ByteArrayOutputStream info = new ByteArrayOutputStream();
+        final byte[] contextBytes = StringUtils.getStringBytes(KeySpec.DERIVED_KEY_CONTEXT);
+        info.write(contextBytes, 0, contextBytes.length);
+        info.write(0);
+        writeLengthPrefixed(info, StringUtils.getStringBytes(tenantId));
+        writeLengthPrefixed(info, StringUtils.getStringBytes(purpose));
+
+        return info.toByteArray();
+    }
+
+    private static void writeLengthPrefixed(final ByteArrayOutputStream out, final byte[] bytes) {
+        out.write(bytes.length >>> 24);
+        out.write(bytes.length >>> 16);
+        out.write(bytes.length >>> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static class DerivedKey {
+        private final SecretKey mSecretKey;
+        private final SymmetricCrypto mCrypto;
+
+        DerivedKey(final SecretKey secretKey) {
+            mSecretKey = secretKey;
+            mCrypto = new SymmetricCrypto(secretKey);
+        }
+    }
+}
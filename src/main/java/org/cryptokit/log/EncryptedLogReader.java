@@ -0,0 +1,325 @@
+package org.cryptokit.log;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import static org.cryptokit.log.LogSpec.*;
+
+/**
+ * Read an encrypted log written by EncryptedLogWriter.
+ * <p/>
+ * read() seeks with the segment names and sparse indexes, then walks batch
+ * headers without decrypting until it reaches the batch holding the first
+ * record wanted. Every batch it returns records from is authenticated
+ * against the chain. scan() reads every segment on its own thread, fully
+ * authenticating each, and then checks that the segments link up, so it
+ * doubles as a verification of the whole log.
+ * <p/>
+ * The segments are listed on every call, so a reader sees records appended
+ * since it was created. It can be used while a writer appends, a batch still
+ * being written is not read.
+ * <p/>
+ * Example:
+ * EncryptedLogReader log = new EncryptedLogReader(Paths.get("audit"), key);
+ * List<LogRecord> records = log.read(log.findSequence(since), 100);
+ */
+public class EncryptedLogReader {
+    private final Path mDirectory;
+    private final SecretKey mKey;
+
+    /**
+     * @param directory The log directory
+     * @param key       The key the log was written with
+     */
+    public EncryptedLogReader(final Path directory, final SecretKey key) {
+        if (directory == null)
+            throw new InvalidInputException("Directory cannot be null");
+        if (key == null)
+            throw new InvalidInputException("Key cannot be null");
+
+        mDirectory = directory;
+        mKey = key;
+    }
+
+    /**
+     * Read records in order.
+     *
+     * @param fromSequence The sequence number of the first record
+     * @param maxRecords   The most records to return
+     * @return The records, fewer than maxRecords at the end of the log
+     */
+    public List<LogRecord> read(final long fromSequence, final int maxRecords) throws IOException {
+        if (maxRecords < 1)
+            throw new InvalidInputException("Max records must be 1 or greater");
+
+        final List<LogRecord> records = new ArrayList<>();
+        final long[] segments = LogFormat.listSegments(mDirectory);
+        int segment = floor(segments, fromSequence);
+        if (segment < 0) {
+            if (segments.length == 0)
+                return records;
+            throw new InvalidInputException("Sequence " + fromSequence + " is before the start of the log at " + segments[0]);
+        }
+
+        byte[] previousTag = null;
+        for (; segment < segments.length && records.size() < maxRecords; segment++) {
+            try (FileChannel channel = openSegment(segments[segment])) {
+                final byte[] headerTag = LogFormat.readSegmentHeader(channel, segments[segment]);
+                checkLink(previousTag, headerTag, segments[segment]);
+
+                long offset = LOG_SEGMENT_HEADER_BYTES;
+                byte[] tag = headerTag;
+                LogFormat.IndexEntry entry = null;
+                if (previousTag == null) {
+                    entry = floorEntry(segments[segment], channel.size(), fromSequence, true);
+                    if (entry != null) {
+                        offset = entry.mOffset;
+                        tag = entry.mPreviousTag;
+                    }
+                }
+                previousTag = readFrames(channel, offset, tag, entry != null ? entry.mFirstSequence : segments[segment],
+                        fromSequence, maxRecords, records);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Find the first record appended at or after a time.
+     *
+     * @param timestamp Milliseconds since the epoch
+     * @return Its sequence number, or the next sequence number to be written if there is none
+     */
+    public long findSequence(final long timestamp) throws IOException {
+        final long[] segments = LogFormat.listSegments(mDirectory);
+        if (segments.length == 0)
+            return 0;
+
+        // The last segment starting before the time holds the record, or it starts the next segment
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (firstTimestamp(segments[middle]) < timestamp)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+
+        long nextSequence = 0;
+        for (int segment = low; segment < segments.length; segment++) {
+            try (FileChannel channel = openSegment(segments[segment])) {
+                final long size = channel.size();
+                byte[] tag = LogFormat.readSegmentHeader(channel, segments[segment]);
+                long offset = LOG_SEGMENT_HEADER_BYTES;
+                final LogFormat.IndexEntry entry = floorEntry(segments[segment], size, timestamp - 1, false);
+                if (entry != null) {
+                    offset = entry.mOffset;
+                    tag = entry.mPreviousTag;
+                }
+
+                // Every batch from the starting point is authenticated, so a rewritten index cannot skip records
+                nextSequence = entry != null ? entry.mFirstSequence : segments[segment];
+                LogFormat.Frame frame;
+                while ((frame = LogFormat.readFrame(channel, offset, size)) != null) {
+                    final List<LogRecord> frameRecords = LogFormat.open(mKey, tag, frame);
+                    checkSequence(frame, nextSequence, offset);
+                    if (entry != null && offset == entry.mOffset && frame.getFirstTimestamp() != entry.mFirstTimestamp)
+                        throw new DecryptionFailedException("Encrypted log index entry at offset " + offset + " does not match its batch");
+                    if (frame.getLastTimestamp() >= timestamp) {
+                        for (final LogRecord record : frameRecords) {
+                            if (record.getTimestamp() >= timestamp)
+                                return record.getSequence();
+                        }
+                    }
+                    nextSequence = frame.getFirstSequence() + frame.getRecordCount();
+                    tag = frame.getTag();
+                    offset += frame.getLength();
+                }
+            }
+        }
+
+        return nextSequence;
+    }
+
+    /**
+     * Decrypt and authenticate the whole log, reading segments in parallel.
+     * <p/>
+     * The consumer gets the records of each segment in order, but is called
+     * from several threads at once for different segments, so it must be
+     * thread safe. Nothing about the log can be trusted until scan returns.
+     *
+     * @param consumer    Receives every record
+     * @param parallelism The number of segments read at the same time
+     * @return The number of records read
+     */
+    public long scan(final Consumer<LogRecord> consumer, final int parallelism) throws IOException {
+        if (consumer == null)
+            throw new InvalidInputException("Consumer cannot be null");
+        if (parallelism < 1)
+            throw new InvalidInputException("Parallelism must be 1 or greater");
+
+        final long[] segments = LogFormat.listSegments(mDirectory);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, segments.length)));
+        try {
+            final List<Future<SegmentSummary>> futures = new ArrayList<>();
+            for (final long firstSequence : segments)
+                futures.add(executor.submit(() -> scanSegment(firstSequence, consumer)));
+
+            long records = 0;
+            SegmentSummary previous = null;
+            for (final Future<SegmentSummary> future : futures) {
+                final SegmentSummary summary = get(future);
+                if (previous != null) {
+                    checkLink(previous.mLastTag, summary.mHeaderTag, summary.mFirstSequence);
+                    if (previous.mNextSequence != summary.mFirstSequence)
+                        throw new DecryptionFailedException("Encrypted log segment " + summary.mFirstSequence
+                                + " does not follow on from the segment before it");
+                }
+                records += summary.mNextSequence - summary.mFirstSequence;
+                previous = summary;
+            }
+
+            return records;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private SegmentSummary scanSegment(final long firstSequence, final Consumer<LogRecord> consumer) throws IOException {
+        try (FileChannel channel = openSegment(firstSequence)) {
+            final long size = channel.size();
+            final byte[] headerTag = LogFormat.readSegmentHeader(channel, firstSequence);
+            byte[] tag = headerTag;
+            long nextSequence = firstSequence;
+            long offset = LOG_SEGMENT_HEADER_BYTES;
+            LogFormat.Frame frame;
+            while ((frame = LogFormat.readFrame(channel, offset, size)) != null) {
+                if (frame.getFirstSequence() != nextSequence)
+                    throw new DecryptionFailedException("Encrypted log batch at offset " + offset + " is out of sequence");
+                for (final LogRecord record : LogFormat.open(mKey, tag, frame))
+                    consumer.accept(record);
+                nextSequence += frame.getRecordCount();
+                tag = frame.getTag();
+                offset += frame.getLength();
+            }
+
+            return new SegmentSummary(firstSequence, nextSequence, headerTag, tag);
+        }
+    }
+
+    // Decrypt from an offset, adding records from fromSequence on, and return the last tag. The offset may come from
+    // the index, which is not authenticated, so every batch is decrypted and must continue from the sequence the
+    // starting point claims, which is at or before fromSequence. A forged index entry fails instead of skipping records.
+    private byte[] readFrames(final FileChannel channel, long offset, byte[] tag, long nextSequence, final long fromSequence,
+                              final int maxRecords, final List<LogRecord> records) throws IOException {
+        final long size = channel.size();
+        LogFormat.Frame frame;
+        while (records.size() < maxRecords && (frame = LogFormat.readFrame(channel, offset, size)) != null) {
+            final List<LogRecord> frameRecords = LogFormat.open(mKey, tag, frame);
+            checkSequence(frame, nextSequence, offset);
+            for (final LogRecord record : frameRecords) {
+                if (record.getSequence() >= fromSequence && records.size() < maxRecords)
+                    records.add(record);
+            }
+            nextSequence += frame.getRecordCount();
+            tag = frame.getTag();
+            offset += frame.getLength();
+        }
+
+        return tag;
+    }
+
+    private long firstTimestamp(final long firstSequence) throws IOException {
+        try (FileChannel channel = openSegment(firstSequence)) {
+            final LogFormat.Frame frame = LogFormat.readFrame(channel, LOG_SEGMENT_HEADER_BYTES, channel.size());
+
+            return frame != null ? frame.getFirstTimestamp() : Long.MAX_VALUE;
+        }
+    }
+
+    // The last index entry at or before a sequence number or timestamp
+    private LogFormat.IndexEntry floorEntry(final long firstSequence, final long segmentSize, final long value, final boolean bySequence)
+            throws IOException {
+        LogFormat.IndexEntry floor = null;
+        for (final LogFormat.IndexEntry entry : LogFormat.readIndex(LogFormat.indexPath(mDirectory, firstSequence), segmentSize)) {
+            if ((bySequence ? entry.mFirstSequence : entry.mFirstTimestamp) > value)
+                break;
+            floor = entry;
+        }
+
+        return floor;
+    }
+
+    private FileChannel openSegment(final long firstSequence) throws IOException {
+        final Path path = LogFormat.segmentPath(mDirectory, firstSequence);
+        if (!Files.exists(path))
+            throw new IOException("Encrypted log segment " + path + " was removed while reading");
+
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    // Called after the frame authenticated, so its header can be trusted
+    private static void checkSequence(final LogFormat.Frame frame, final long expectedSequence, final long offset) {
+        if (frame.getFirstSequence() != expectedSequence)
+            throw new DecryptionFailedException("Encrypted log batch at offset " + offset + " is out of sequence");
+    }
+
+    private static void checkLink(final byte[] previousTag, final byte[] headerTag, final long firstSequence) {
+        if (previousTag != null && !MessageDigest.isEqual(previousTag, headerTag))
+            throw new DecryptionFailedException("Encrypted log segment " + firstSequence + " does not chain from the segment before it");
+    }
+
+    private static int floor(final long[] segments, final long sequence) {
+        int floor = -1;
+        for (int i = 0; i < segments.length && segments[i] <= sequence; i++)
+            floor = i;
+
+        return floor;
+    }
+
+    private static SegmentSummary get(final Future<SegmentSummary> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning the encrypted log", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Scanning the encrypted log failed", e.getCause());
+        }
+    }
+
+    private static class SegmentSummary {
+        final long mFirstSequence;
+        final long mNextSequence;
+        final byte[] mHeaderTag;
+        final byte[] mLastTag;
+
+        SegmentSummary(final long firstSequence, final long nextSequence, final byte[] headerTag, final byte[] lastTag) {
+            mFirstSequence = firstSequence;
+            mNextSequence = nextSequence;
+            mHeaderTag = headerTag;
+            mLastTag = lastTag;
+        }
+    }
+}
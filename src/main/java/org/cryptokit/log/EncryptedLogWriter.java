@@ -0,0 +1,345 @@
+package org.cryptokit.log;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidInputException;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.cryptokit.log.LogSpec.*;
+
+/**
+ * Append records to an encrypted, tamper-evident log, read by EncryptedLogReader.
+ * <p/>
+ * Records are encrypted in batches rather than one by one. Appends from
+ * concurrent threads are group committed: one waiting thread takes every
+ * record queued so far, encrypts them as a batch, writes it and forces it to
+ * disk, while the records of other threads queue up for the next batch. An
+ * append returns once its record is durable, so under load many appends
+ * share one encryption and one fsync.
+ * <p/>
+ * Batches are chained, each authenticating the one before it (see LogFormat),
+ * and written to segment files that roll over at the configured size, each
+ * with a sparse index of batch offsets, sequence numbers and timestamps.
+ * <p/>
+ * Opening an existing log authenticates its last segment and continues from
+ * it, dropping a batch that was only partly written when the process died.
+ * A whole batch that does not authenticate, because the key is wrong or the
+ * log was tampered with, fails the open with DecryptionFailedException and
+ * leaves the log untouched. Only one writer may have a log open at a time.
+ * <p/>
+ * Example:
+ * try (EncryptedLogWriter log = new EncryptedLogWriter(Paths.get("audit"), key)) {
+ *     long sequence = log.append(eventBytes);
+ * }
+ */
+public class EncryptedLogWriter implements Closeable {
+    private final Path mDirectory;
+    private final SecretKey mKey;
+    private volatile long mSegmentBytes = LOG_DEFAULT_SEGMENT_BYTES;
+    private volatile int mIndexIntervalBytes = LOG_DEFAULT_INDEX_INTERVAL_BYTES;
+    private volatile int mMaxBatchRecords = LOG_DEFAULT_MAX_BATCH_RECORDS;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mCommitted = mLock.newCondition();
+    private final List<LogRecord> mPending = new ArrayList<>();
+    private long mNextSequence;
+    private long mLastTimestamp;
+    // Every sequence below this is on disk
+    private long mCommittedSequence;
+    private boolean mFlushing;
+    private Exception mFailure;
+    private boolean mClosed;
+    private long mBatchCount;
+
+    // Only used by the thread writing a batch, or under the lock once nothing is flushing
+    private FileChannel mSegment;
+    private FileChannel mIndex;
+    private long mSegmentSize;
+    private long mLastIndexedOffset;
+    private byte[] mPreviousTag = new byte[LOG_TAG_BYTES];
+
+    /**
+     * @param directory The log directory, created if it does not exist
+     * @param key       A 128, 192 or 256-bit AES key
+     */
+    public EncryptedLogWriter(final Path directory, final SecretKey key) throws IOException {
+        if (directory == null)
+            throw new InvalidInputException("Directory cannot be null");
+        if (key == null)
+            throw new InvalidInputException("Key cannot be null");
+
+        mDirectory = directory;
+        mKey = key;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Set the size at which a new segment is started, 64 MiB by default.
+     */
+    public void setSegmentBytes(final long segmentBytes) {
+        if (segmentBytes < LOG_SEGMENT_HEADER_BYTES + LOG_FRAME_HEADER_BYTES)
+            throw new InvalidInputException("Segment bytes must be at least " + (LOG_SEGMENT_HEADER_BYTES + LOG_FRAME_HEADER_BYTES));
+
+        mSegmentBytes = segmentBytes;
+    }
+
+    /**
+     * Set how far apart index entries are, 64 KiB of segment by default.
+     * <p/>
+     * Smaller intervals make seeking read less, at the cost of a larger index.
+     */
+    public void setIndexIntervalBytes(final int indexIntervalBytes) {
+        if (indexIntervalBytes < 1)
+            throw new InvalidInputException("Index interval must be 1 byte or greater");
+
+        mIndexIntervalBytes = indexIntervalBytes;
+    }
+
+    /**
+     * Set the most records encrypted as one batch, 4096 by default.
+     */
+    public void setMaxBatchRecords(final int maxBatchRecords) {
+        if (maxBatchRecords < 1)
+            throw new InvalidInputException("Max batch records must be 1 or greater");
+
+        mMaxBatchRecords = maxBatchRecords;
+    }
+
+    /**
+     * Append a record, returning once it is encrypted and forced to disk.
+     *
+     * @param data The record, may be empty
+     * @return The record's sequence number
+     */
+    public long append(final byte[] data) throws IOException {
+        if (data == null)
+            throw new InvalidInputException("Record cannot be null");
+
+        mLock.lock();
+        try {
+            if (mClosed)
+                throw new InvalidInputException("Encrypted log writer is closed");
+            checkFailure();
+
+            final long sequence = mNextSequence++;
+            mLastTimestamp = Math.max(mLastTimestamp, System.currentTimeMillis());
+            mPending.add(new LogRecord(sequence, mLastTimestamp, data.clone()));
+
+            while (mCommittedSequence <= sequence) {
+                checkFailure();
+                if (mFlushing)
+                    mCommitted.awaitUninterruptibly();
+                else
+                    commitPending();
+            }
+
+            return sequence;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return The sequence number the next record will get
+     */
+    public long getNextSequence() {
+        mLock.lock();
+        try {
+            return mNextSequence;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return Batches written since the writer was opened, compare with getNextSequence to see the batching
+     */
+    public long getBatchCount() {
+        mLock.lock();
+        try {
+            return mBatchCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for appends in progress and close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        mLock.lock();
+        try {
+            if (mClosed)
+                return;
+            mClosed = true;
+            while (mFlushing || (mCommittedSequence < mNextSequence && mFailure == null))
+                mCommitted.awaitUninterruptibly();
+
+            closeSegment();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Called holding the lock, which is released while the batch is written so other threads can queue
+    private void commitPending() {
+        final int batchSize = Math.min(mPending.size(), mMaxBatchRecords);
+        final List<LogRecord> batch = new ArrayList<>(mPending.subList(0, batchSize));
+        mPending.subList(0, batchSize).clear();
+        mFlushing = true;
+
+        mLock.unlock();
+        Exception failure = null;
+        try {
+            writeBatch(batch);
+        } catch (IOException | RuntimeException e) {
+            failure = e;
+        } finally {
+            mLock.lock();
+        }
+
+        mFlushing = false;
+        if (failure != null) {
+            mFailure = failure;
+        } else {
+            mCommittedSequence = batch.get(batch.size() - 1).getSequence() + 1;
+            mBatchCount++;
+        }
+        mCommitted.signalAll();
+    }
+
+    // After a failed write the segment may end in a partial batch, so nothing more is appended
+    private void checkFailure() throws IOException {
+        if (mFailure instanceof IOException)
+            throw new IOException("An earlier write to the encrypted log failed, reopen it to continue", mFailure);
+        if (mFailure != null)
+            throw (RuntimeException) mFailure;
+    }
+
+    private void writeBatch(final List<LogRecord> batch) throws IOException {
+        if (mSegment == null || (mSegmentSize >= mSegmentBytes && mSegmentSize > LOG_SEGMENT_HEADER_BYTES))
+            startSegment(batch.get(0).getSequence());
+
+        final LogFormat.Frame frame = LogFormat.seal(mKey, mPreviousTag, batch);
+        LogFormat.write(mSegment, frame.getBytes(), mSegmentSize);
+        mSegment.force(false);
+        final ByteBuffer indexEntry = indexEntry(mSegmentSize, frame, mPreviousTag);
+        if (indexEntry != null)
+            mIndex.write(indexEntry);
+
+        mSegmentSize += frame.getLength();
+        mPreviousTag = frame.getTag();
+    }
+
+    // The first batch of a segment is always indexed, then one every index interval
+    private ByteBuffer indexEntry(final long offset, final LogFormat.Frame frame, final byte[] previousTag) {
+        if (mLastIndexedOffset >= 0 && offset - mLastIndexedOffset < mIndexIntervalBytes)
+            return null;
+
+        mLastIndexedOffset = offset;
+        return LogFormat.encodeIndexEntry(offset, frame, previousTag);
+    }
+
+    private void startSegment(final long firstSequence) throws IOException {
+        closeSegment();
+
+        mSegment = FileChannel.open(LogFormat.segmentPath(mDirectory, firstSequence),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mIndex = FileChannel.open(LogFormat.indexPath(mDirectory, firstSequence),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        LogFormat.write(mSegment, LogFormat.encodeSegmentHeader(firstSequence, mPreviousTag), 0);
+        mSegment.force(true);
+        mSegmentSize = LOG_SEGMENT_HEADER_BYTES;
+        mLastIndexedOffset = -1;
+    }
+
+    private void closeSegment() throws IOException {
+        if (mSegment == null)
+            return;
+
+        try {
+            if (mIndex != null) {
+                mIndex.force(false);
+                mIndex.close();
+            }
+        } finally {
+            mSegment.close();
+            mSegment = null;
+            mIndex = null;
+        }
+    }
+
+    /**
+     * Continue an existing log: authenticate its last segment, drop a partly
+     * written last batch and rebuild that segment's index. Every whole batch
+     * must authenticate, so a wrong key or a tampered batch is never truncated.
+     */
+    private void recover() throws IOException {
+        final long[] segments = LogFormat.listSegments(mDirectory);
+        for (int i = segments.length - 1; i >= 0; i--) {
+            final Path path = LogFormat.segmentPath(mDirectory, segments[i]);
+            // A segment whose header never made it to disk holds nothing
+            if (Files.size(path) < LOG_SEGMENT_HEADER_BYTES) {
+                Files.delete(path);
+                Files.deleteIfExists(LogFormat.indexPath(mDirectory, segments[i]));
+                continue;
+            }
+
+            recoverSegment(segments[i]);
+            return;
+        }
+    }
+
+    private void recoverSegment(final long firstSequence) throws IOException {
+        mSegment = FileChannel.open(LogFormat.segmentPath(mDirectory, firstSequence), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            mPreviousTag = LogFormat.readSegmentHeader(mSegment, firstSequence);
+            mNextSequence = firstSequence;
+            mLastIndexedOffset = -1;
+
+            final long size = mSegment.size();
+            final List<ByteBuffer> indexEntries = new ArrayList<>();
+            long offset = LOG_SEGMENT_HEADER_BYTES;
+            LogFormat.Frame frame;
+            while ((frame = LogFormat.readFrame(mSegment, offset, size)) != null) {
+                final List<LogRecord> records = LogFormat.open(mKey, mPreviousTag, frame);
+                if (frame.getFirstSequence() != mNextSequence)
+                    throw new DecryptionFailedException("Encrypted log batch at offset " + offset + " is out of sequence");
+                final ByteBuffer indexEntry = indexEntry(offset, frame, mPreviousTag);
+                if (indexEntry != null)
+                    indexEntries.add(indexEntry);
+
+                mNextSequence += records.size();
+                mLastTimestamp = frame.getLastTimestamp();
+                mPreviousTag = frame.getTag();
+                offset += frame.getLength();
+            }
+
+            // Nothing is changed on disk until the whole segment has authenticated
+            mIndex = FileChannel.open(LogFormat.indexPath(mDirectory, firstSequence),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            for (final ByteBuffer indexEntry : indexEntries)
+                mIndex.write(indexEntry);
+            mSegment.truncate(offset);
+            mSegment.force(true);
+            mSegmentSize = offset;
+            mCommittedSequence = mNextSequence;
+        } catch (IOException | RuntimeException e) {
+            closeSegment();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.cryptokit.log;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.cryptokit.log.LogSpec.*;
+
+/**
+ * Layout of encrypted log segments, shared by EncryptedLogWriter and EncryptedLogReader.
+ * <p/>
+ * All numbers are big-endian. Segments are named after their first sequence
+ * number, zero padded so they sort by name.
+ * <p/>
+ * Segment header: magic (4), version (1), reserved (3), first sequence (8),
+ * tag of the last batch of the previous segment (16, zeros for the first).
+ * <p/>
+ * Batches: frame length (4), first sequence (8), record count (4), first and
+ * last timestamp (8 each), nonce (12), then the AES-GCM encryption of each
+ * record's timestamp (8), length (4) and data. The associated data is the
+ * previous batch's tag followed by the frame header, so each tag
+ * authenticates the whole log up to its batch and a batch cannot be changed,
+ * dropped or reordered without breaking the chain.
+ * <p/>
+ * Index, one file per segment: entries of offset (8), first sequence (8) and
+ * first timestamp (8) of a batch, and the tag preceding it (16), so reading
+ * can start there with the chain intact. The index is only a hint, everything
+ * read through it is still authenticated.
+ */
+final class LogFormat {
+    private LogFormat() {
+    }
+
+    static Path segmentPath(final Path directory, final long firstSequence) {
+        return directory.resolve(String.format("%020d", firstSequence) + LOG_SEGMENT_SUFFIX);
+    }
+
+    static Path indexPath(final Path directory, final long firstSequence) {
+        return directory.resolve(String.format("%020d", firstSequence) + LOG_INDEX_SUFFIX);
+    }
+
+    // First sequence numbers of the segments in the directory, in order
+    static long[] listSegments(final Path directory) throws IOException {
+        final List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + LOG_SEGMENT_SUFFIX)) {
+            for (final Path path : stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - LOG_SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment
+                }
+            }
+        }
+
+        final long[] firstSequences = new long[segments.size()];
+        for (int i = 0; i < firstSequences.length; i++)
+            firstSequences[i] = segments.get(i);
+        Arrays.sort(firstSequences);
+
+        return firstSequences;
+    }
+
+    static ByteBuffer encodeSegmentHeader(final long firstSequence, final byte[] previousTag) {
+        final ByteBuffer header = ByteBuffer.allocate(LOG_SEGMENT_HEADER_BYTES);
+        header.putInt(LOG_SEGMENT_MAGIC).put(LOG_VERSION).put(new byte[3]).putLong(firstSequence).put(previousTag);
+        header.flip();
+
+        return header;
+    }
+
+    /**
+     * Check a segment header and return the tag it chains from.
+     */
+    static byte[] readSegmentHeader(final FileChannel channel, final long firstSequence) throws IOException {
+        final ByteBuffer header = read(channel, 0, LOG_SEGMENT_HEADER_BYTES);
+        if (header.getInt() != LOG_SEGMENT_MAGIC)
+            throw new InvalidEncodingException("Segment " + firstSequence + " is not an encrypted log segment");
+        final byte version = header.get();
+        if (version != LOG_VERSION)
+            throw new InvalidEncodingException("Encrypted log version " + version + " is not supported");
+        header.position(header.position() + 3);
+        if (header.getLong() != firstSequence)
+            throw new InvalidEncodingException("Segment " + firstSequence + " does not start at the sequence in its name");
+        final byte[] previousTag = new byte[LOG_TAG_BYTES];
+        header.get(previousTag);
+
+        return previousTag;
+    }
+
+    static Frame seal(final SecretKey key, final byte[] previousTag, final List<LogRecord> records) {
+        int plainLength = 0;
+        for (final LogRecord record : records)
+            plainLength += 12 + record.getData().length;
+        final ByteBuffer plain = ByteBuffer.allocate(plainLength);
+        for (final LogRecord record : records)
+            plain.putLong(record.getTimestamp()).putInt(record.getData().length).put(record.getData());
+
+        final int frameLength = LOG_FRAME_HEADER_BYTES + CryptoConstants.AEAD_NONCE_SIZE_BYTES + plainLength + CryptoConstants.AEAD_TAG_SIZE_BYTES;
+        final ByteBuffer frame = ByteBuffer.allocate(frameLength);
+        frame.putInt(frameLength).putLong(records.get(0).getSequence()).putInt(records.size())
+                .putLong(records.get(0).getTimestamp()).putLong(records.get(records.size() - 1).getTimestamp());
+        final byte[] nonce = Crypto.generateRandomBytes(CryptoConstants.AEAD_NONCE_SIZE_BYTES);
+        frame.put(nonce);
+
+        final byte[] cipherBytes;
+        try {
+            cipherBytes = Crypto.aesGcmEncrypt(key, nonce, plain.array(), associatedData(previousTag, frame.array()));
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider cannot encrypt with " + CryptoConstants.AES_GCM_CIPHER_ALGORITHM, e);
+        }
+        Arrays.fill(plain.array(), (byte) 0);
+        frame.put(cipherBytes);
+
+        return new Frame(frame.array());
+    }
+
+    /**
+     * Read the frame at an offset, or return null if the segment ends before a whole frame.
+     */
+    static Frame readFrame(final FileChannel channel, final long offset, final long segmentSize) throws IOException {
+        if (segmentSize - offset < LOG_FRAME_HEADER_BYTES)
+            return null;
+        final int frameLength = read(channel, offset, 4).getInt();
+        if (frameLength < LOG_FRAME_HEADER_BYTES + CryptoConstants.AEAD_NONCE_SIZE_BYTES + CryptoConstants.AEAD_TAG_SIZE_BYTES)
+            throw new InvalidEncodingException("Encrypted log frame at offset " + offset + " has an invalid length");
+        if (segmentSize - offset < frameLength)
+            return null;
+
+        return new Frame(read(channel, offset, frameLength).array());
+    }
+
+    /**
+     * Decrypt a frame, authenticating it and its place in the chain.
+     */
+    static List<LogRecord> open(final SecretKey key, final byte[] previousTag, final Frame frame) {
+        final byte[] bytes = frame.mBytes;
+        final int cipherOffset = LOG_FRAME_HEADER_BYTES + CryptoConstants.AEAD_NONCE_SIZE_BYTES;
+        final byte[] nonce = Arrays.copyOfRange(bytes, LOG_FRAME_HEADER_BYTES, cipherOffset);
+        final byte[] cipherBytes = Arrays.copyOfRange(bytes, cipherOffset, bytes.length);
+
+        final byte[] plainBytes;
+        try {
+            plainBytes = Crypto.aesGcmDecrypt(key, nonce, cipherBytes, associatedData(previousTag, bytes));
+        } catch (AEADBadTagException e) {
+            throw new DecryptionFailedException("Encrypted log batch at sequence " + frame.getFirstSequence()
+                    + " does not authenticate, it was modified, moved or the key is wrong", e);
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider cannot decrypt with " + CryptoConstants.AES_GCM_CIPHER_ALGORITHM, e);
+        }
+
+        final ByteBuffer plain = ByteBuffer.wrap(plainBytes);
+        final List<LogRecord> records = new ArrayList<>(frame.getRecordCount());
+        for (int i = 0; i < frame.getRecordCount(); i++) {
+            final long timestamp = plain.getLong();
+            final byte[] data = new byte[plain.getInt()];
+            plain.get(data);
+            records.add(new LogRecord(frame.getFirstSequence() + i, timestamp, data));
+        }
+
+        return records;
+    }
+
+    static ByteBuffer encodeIndexEntry(final long offset, final Frame frame, final byte[] previousTag) {
+        final ByteBuffer entry = ByteBuffer.allocate(LOG_INDEX_ENTRY_BYTES);
+        entry.putLong(offset).putLong(frame.getFirstSequence()).putLong(frame.getFirstTimestamp()).put(previousTag);
+        entry.flip();
+
+        return entry;
+    }
+
+    /**
+     * Read a segment's index, ignoring a partly written last entry and entries past the end of the segment.
+     */
+    static List<IndexEntry> readIndex(final Path indexPath, final long segmentSize) throws IOException {
+        final List<IndexEntry> entries = new ArrayList<>();
+        if (!Files.exists(indexPath))
+            return entries;
+
+        final ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+        while (index.remaining() >= LOG_INDEX_ENTRY_BYTES) {
+            final long offset = index.getLong();
+            final long firstSequence = index.getLong();
+            final long firstTimestamp = index.getLong();
+            final byte[] previousTag = new byte[LOG_TAG_BYTES];
+            index.get(previousTag);
+            if (offset < LOG_SEGMENT_HEADER_BYTES || offset >= segmentSize)
+                break;
+            entries.add(new IndexEntry(offset, firstSequence, firstTimestamp, previousTag));
+        }
+
+        return entries;
+    }
+
+    static ByteBuffer read(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Encrypted log segment ends before position " + (position + length));
+        }
+        buffer.flip();
+
+        return buffer;
+    }
+
+    static void write(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer, position + written);
+    }
+
+    private static byte[] associatedData(final byte[] previousTag, final byte[] frame) {
+        final byte[] associatedData = new byte[LOG_TAG_BYTES + LOG_FRAME_HEADER_BYTES];
+        System.arraycopy(previousTag, 0, associatedData, 0, LOG_TAG_BYTES);
+        System.arraycopy(frame, 0, associatedData, LOG_TAG_BYTES, LOG_FRAME_HEADER_BYTES);
+
+        return associatedData;
+    }
+
+    /**
+     * An encrypted batch as stored, with its plain text header fields.
+     */
+    static final class Frame {
+        private final byte[] mBytes;
+        private final ByteBuffer mHeader;
+
+        Frame(final byte[] bytes) {
+            mBytes = bytes;
+            mHeader = ByteBuffer.wrap(bytes, 0, LOG_FRAME_HEADER_BYTES);
+        }
+
+        ByteBuffer getBytes() {
+            return ByteBuffer.wrap(mBytes);
+        }
+
+        int getLength() {
+            return mBytes.length;
+        }
+
+        long getFirstSequence() {
+            return mHeader.getLong(4);
+        }
+
+        int getRecordCount() {
+            return mHeader.getInt(12);
+        }
+
+        long getFirstTimestamp() {
+            return mHeader.getLong(16);
+        }
+
+        long getLastTimestamp() {
+            return mHeader.getLong(24);
+        }
+
+        // The GCM tag ends the frame and is what the next batch chains from
+        byte[] getTag() {
+            return Arrays.copyOfRange(mBytes, mBytes.length - LOG_TAG_BYTES, mBytes.length);
+        }
+    }
+
+    static final class IndexEntry {
+        final long mOffset;
+        final long mFirstSequence;
+        final long mFirstTimestamp;
+        final byte[] mPreviousTag;
+
+        IndexEntry(final long offset, final long firstSequence, final long firstTimestamp, final byte[] previousTag) {
+            mOffset = offset;
+            mFirstSequence = firstSequence;
+            mFirstTimestamp = firstTimestamp;
+            mPreviousTag = previousTag;
+        }
+    }
+}
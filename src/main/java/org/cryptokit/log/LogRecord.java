@@ -0,0 +1,34 @@
+package org.cryptokit.log;
+
+/**
+ * A record in an encrypted log, with its sequence number and the time it was appended.
+ * <p/>
+ * Sequence numbers start at 0 and increase by one per record across all
+ * segments. Timestamps never decrease along the log.
+ */
+public class LogRecord {
+    private final long mSequence;
+    private final long mTimestamp;
+    private final byte[] mData;
+
+    public LogRecord(final long sequence, final long timestamp, final byte[] data) {
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        mData = data;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return Milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+}
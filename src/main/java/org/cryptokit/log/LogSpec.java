@@ -0,0 +1,17 @@
+package org.cryptokit.log;
+
+public class LogSpec {
+    public static final int LOG_SEGMENT_MAGIC = 0x434b4c47; // "CKLG"
+    public static final byte LOG_VERSION = 1;
+    public static final String LOG_SEGMENT_SUFFIX = ".log";
+    public static final String LOG_INDEX_SUFFIX = ".idx";
+
+    public static final int LOG_SEGMENT_HEADER_BYTES = 32;
+    public static final int LOG_FRAME_HEADER_BYTES = 32;
+    public static final int LOG_INDEX_ENTRY_BYTES = 40;
+    public static final int LOG_TAG_BYTES = 16;
+
+    public static final long LOG_DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final int LOG_DEFAULT_INDEX_INTERVAL_BYTES = 64 * 1024;
+    public static final int LOG_DEFAULT_MAX_BATCH_RECORDS = 4096;
+}
@@ -0,0 +1,233 @@
+package org.cryptokit.password;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.ProviderRegistry;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static org.cryptokit.password.PasswordTokenSpec.*;
+
+/**
+ * Build the sorted hash file BreachedPasswordFilter searches, from a text list.
+ * <p/>
+ * By default each line is a hex SHA-1 hash, optionally followed by ':' and
+ * a count as in the Pwned Passwords download. With plain text enabled each
+ * line is a password, hashed as UTF-8. Blank lines and lines starting with
+ * '#' are skipped.
+ * <p/>
+ * Lists far larger than the heap are sorted externally: the hashes are
+ * sorted in runs of the configured size, written to temporary files next to
+ * the output, and merged, dropping duplicates. The output is written to a
+ * temporary file and moved into place, so a filter never sees a partial file.
+ * <p/>
+ * Run from the command line:
+ * java -cp cryptokit.jar:commons-codec.jar org.cryptokit.password.BreachedPasswordFileBuilder
+ * pwned-passwords-sha1-ordered-by-hash.txt breached.ckbp [--plain]
+ */
+public class BreachedPasswordFileBuilder {
+    private int mSortEntries = BREACHED_PASSWORD_DEFAULT_SORT_ENTRIES;
+    private boolean mPlainText;
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3 || (args.length == 3 && !"--plain".equals(args[2]))) {
+            System.err.println("Usage: BreachedPasswordFileBuilder INPUT OUTPUT [--plain]");
+            System.exit(2);
+        }
+
+        final BreachedPasswordFileBuilder builder = new BreachedPasswordFileBuilder();
+        builder.setPlainText(args.length == 3);
+        final long count = builder.build(Paths.get(args[0]), Paths.get(args[1]));
+        System.out.println("Wrote " + count + " breached password hashes to " + args[1]);
+    }
+
+    /**
+     * Set how many hashes are sorted in memory at a time, about 1 million by default.
+     */
+    public void setSortEntries(final int sortEntries) {
+        if (sortEntries < 1)
+            throw new InvalidInputException("Sort entries must be 1 or greater");
+
+        mSortEntries = sortEntries;
+    }
+
+    /**
+     * Read lines as plain text passwords rather than hex SHA-1 hashes.
+     */
+    public void setPlainText(final boolean plainText) {
+        mPlainText = plainText;
+    }
+
+    /**
+     * @param input  The text list
+     * @param output The hash file to write, replaced if it exists
+     * @return The number of distinct hashes written
+     */
+    public long build(final Path input, final Path output) throws IOException {
+        final Path directory = output.toAbsolutePath().getParent();
+        final List<Path> runs = new ArrayList<>();
+        try {
+            try (BufferedReader reader = Files.newBufferedReader(input, CryptoConstants.CHARSET)) {
+                final MessageDigest digest = mPlainText ? newDigest() : null;
+                final List<byte[]> hashes = new ArrayList<>();
+                String line;
+                long lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty() || line.startsWith("#"))
+                        continue;
+                    hashes.add(digest != null ? digest.digest(StringUtils.getStringBytes(line)) : parseHash(line, lineNumber));
+                    if (hashes.size() == mSortEntries) {
+                        runs.add(writeRun(directory, hashes));
+                        hashes.clear();
+                    }
+                }
+                if (!hashes.isEmpty() || runs.isEmpty())
+                    runs.add(writeRun(directory, hashes));
+            }
+
+            return merge(runs, output);
+        } finally {
+            for (final Path run : runs)
+                Files.deleteIfExists(run);
+        }
+    }
+
+    private static byte[] parseHash(final String line, final long lineNumber) {
+        final int colon = line.indexOf(':');
+        final String hex = (colon >= 0 ? line.substring(0, colon) : line).trim();
+        if (hex.length() != BREACHED_PASSWORD_HASH_BYTES * 2)
+            throw new InvalidEncodingException("Line " + lineNumber + " is not a hex SHA-1 hash");
+
+        try {
+            return Hex.decodeHex(hex.toCharArray());
+        } catch (DecoderException e) {
+            throw new InvalidEncodingException("Line " + lineNumber + " is not a hex SHA-1 hash", e);
+        }
+    }
+
+    private static Path writeRun(final Path directory, final List<byte[]> hashes) throws IOException {
+        hashes.sort(Arrays::compareUnsigned);
+
+        final Path run = Files.createTempFile(directory, "breached", ".run");
+        try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(run))) {
+            byte[] previous = null;
+            for (final byte[] hash : hashes) {
+                if (previous == null || !Arrays.equals(previous, hash))
+                    output.write(hash);
+                previous = hash;
+            }
+        }
+
+        return run;
+    }
+
+    // Merge the sorted runs into the output, dropping duplicates between runs
+    private static long merge(final List<Path> runs, final Path output) throws IOException {
+        final Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.mHash, b.mHash));
+        long count = 0;
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            try {
+                for (final Path run : runs) {
+                    final RunReader reader = new RunReader(Files.newInputStream(run));
+                    if (reader.next())
+                        queue.add(reader);
+                    else
+                        reader.close();
+                }
+
+                channel.position(BREACHED_PASSWORD_HEADER_BYTES);
+                final OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+                final byte[] previous = new byte[BREACHED_PASSWORD_HASH_BYTES];
+                while (!queue.isEmpty()) {
+                    final RunReader reader = queue.poll();
+                    if (count == 0 || !Arrays.equals(previous, reader.mHash)) {
+                        stream.write(reader.mHash);
+                        System.arraycopy(reader.mHash, 0, previous, 0, previous.length);
+                        count++;
+                    }
+                    if (reader.next())
+                        queue.add(reader);
+                    else
+                        reader.close();
+                }
+                stream.flush();
+            } finally {
+                for (final RunReader reader : queue)
+                    reader.close();
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(BREACHED_PASSWORD_HEADER_BYTES);
+            header.putInt(BREACHED_PASSWORD_MAGIC).put(BREACHED_PASSWORD_VERSION).put(new byte[3]).putLong(count);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            channel.force(true);
+        }
+        Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return count;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return ProviderRegistry.getMessageDigest(BREACHED_PASSWORD_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("You must use a Java crypto provider that implements " + BREACHED_PASSWORD_HASH_ALGORITHM, e);
+        }
+    }
+
+    /**
+     * Reads one sorted run a hash at a time.
+     */
+    private static class RunReader {
+        private final DataInputStream mInput;
+        final byte[] mHash = new byte[BREACHED_PASSWORD_HASH_BYTES];
+
+        RunReader(final InputStream input) {
+            mInput = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        }
+
+        boolean next() throws IOException {
+            try {
+                mInput.readFully(mHash);
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.cryptokit.password;
+
+import org.cryptokit.core.ProviderRegistry;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.CompromisedPasswordException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static org.cryptokit.password.PasswordTokenSpec.*;
+
+/**
+ * Rejects passwords that appear in a list of known breached passwords.
+ * <p/>
+ * The list is a file of sorted SHA-1 hashes built offline by
+ * BreachedPasswordFileBuilder, for example from the Pwned Passwords
+ * download. It is memory-mapped read-only and searched in place, so
+ * hundreds of millions of hashes take no heap, a lookup is a binary search
+ * over pages the OS keeps cached, and processes on the same host share the
+ * same cached pages.
+ * <p/>
+ * Checking a password allocates nothing after a thread's first check: the
+ * hash is computed into a per-thread buffer and compared against the mapped
+ * file directly. The filter is safe to share between threads.
+ * <p/>
+ * Example:
+ * PasswordHasher hasher = new PasswordHasher();
+ * hasher.setPolicy(new BreachedPasswordFilter(Paths.get("breached.ckbp")));
+ * hasher.hash(password); // throws CompromisedPasswordException for a breached password
+ */
+public class BreachedPasswordFilter implements PasswordPolicy, Closeable {
+    // Each mapping stays under 2 GB and holds whole hashes
+    private static final int HASHES_PER_CHUNK = Integer.MAX_VALUE / BREACHED_PASSWORD_HASH_BYTES;
+
+    private static final ThreadLocal<MessageDigest> sDigest = ThreadLocal.withInitial(() -> {
+        try {
+            return ProviderRegistry.getMessageDigest(BREACHED_PASSWORD_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("You must use a Java crypto provider that implements " + BREACHED_PASSWORD_HASH_ALGORITHM, e);
+        }
+    });
+    private static final ThreadLocal<byte[]> sHash = ThreadLocal.withInitial(() -> new byte[BREACHED_PASSWORD_HASH_BYTES]);
+
+    private final FileChannel mChannel;
+    private final MappedByteBuffer[] mChunks;
+    private final long mCount;
+
+    /**
+     * @param path A file written by BreachedPasswordFileBuilder
+     */
+    public BreachedPasswordFilter(final Path path) throws IOException {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+
+        mChannel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            final long size = mChannel.size();
+            if (size < BREACHED_PASSWORD_HEADER_BYTES)
+                throw new InvalidEncodingException("File is too short to be a breached password file");
+            final ByteBuffer header = ByteBuffer.allocate(BREACHED_PASSWORD_HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (mChannel.read(header, header.position()) < 0)
+                    throw new InvalidEncodingException("File is too short to be a breached password file");
+            }
+            header.flip();
+            if (header.getInt() != BREACHED_PASSWORD_MAGIC)
+                throw new InvalidEncodingException("File is not a breached password file");
+            final byte version = header.get();
+            if (version != BREACHED_PASSWORD_VERSION)
+                throw new InvalidEncodingException("Breached password file version " + version + " is not supported");
+            header.position(8);
+            mCount = header.getLong();
+            if (mCount < 0 || size != BREACHED_PASSWORD_HEADER_BYTES + mCount * BREACHED_PASSWORD_HASH_BYTES)
+                throw new InvalidEncodingException("Breached password file is truncated or corrupt");
+
+            mChunks = new MappedByteBuffer[(int) ((mCount + HASHES_PER_CHUNK - 1) / HASHES_PER_CHUNK)];
+            for (int i = 0; i < mChunks.length; i++) {
+                final long first = (long) i * HASHES_PER_CHUNK;
+                final long hashes = Math.min(HASHES_PER_CHUNK, mCount - first);
+                mChunks[i] = mChannel.map(FileChannel.MapMode.READ_ONLY,
+                        BREACHED_PASSWORD_HEADER_BYTES + first * BREACHED_PASSWORD_HASH_BYTES, hashes * BREACHED_PASSWORD_HASH_BYTES);
+            }
+        } catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of breached password hashes in the file
+     */
+    public long size() {
+        return mCount;
+    }
+
+    public boolean isCompromised(final CharSequence password) {
+        if (password == null)
+            throw new InvalidInputException("Password cannot be null");
+
+        final byte[] passwordBytes = new byte[password.length() * 3];
+        try {
+            final int length = StringUtils.utf8Encode(password, passwordBytes);
+            return isCompromised(passwordBytes, 0, length);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * @param passwordBytes Buffer holding the UTF-8 password
+     * @param offset        Offset of the password in the buffer
+     * @param length        Length of the password in bytes
+     * @return True if the password is in the breached password file
+     */
+    public boolean isCompromised(final byte[] passwordBytes, final int offset, final int length) {
+        final MessageDigest digest = sDigest.get();
+        final byte[] hash = sHash.get();
+        digest.update(passwordBytes, offset, length);
+        try {
+            digest.digest(hash, 0, hash.length);
+        } catch (DigestException e) {
+            throw new PreconditionFailedException("System crypto provider cannot hash with " + BREACHED_PASSWORD_HASH_ALGORITHM, e);
+        }
+
+        final boolean compromised = contains(hash);
+        Arrays.fill(hash, (byte) 0);
+
+        return compromised;
+    }
+
+    @Override
+    public void check(final byte[] passwordBytes, final int offset, final int length) {
+        if (isCompromised(passwordBytes, offset, length))
+            throw new CompromisedPasswordException("Password appears in a list of breached passwords, choose a different one");
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private boolean contains(final byte[] hash) {
+        long low = 0;
+        long high = mCount - 1;
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            final int comparison = compare(middle, hash);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return true;
+        }
+
+        return false;
+    }
+
+    // Compare the stored hash at an index with a hash, as unsigned bytes
+    private int compare(final long index, final byte[] hash) {
+        final MappedByteBuffer chunk = mChunks[(int) (index / HASHES_PER_CHUNK)];
+        final int position = (int) (index % HASHES_PER_CHUNK) * BREACHED_PASSWORD_HASH_BYTES;
+        for (int i = 0; i < BREACHED_PASSWORD_HASH_BYTES; i++) {
+            final int difference = (chunk.get(position + i) & 0xff) - (hash[i] & 0xff);
+            if (difference != 0)
+                return difference;
+        }
+
+        return 0;
+    }
+}
@@ -6,13 +6,17 @@ import org.cryptokit.core.StringUtils;
 import org.cryptokit.exception.InvalidEncodingException;
 import org.cryptokit.exception.InvalidInputException;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 import static org.cryptokit.password.PasswordTokenSpec.*;
 
 public class PasswordHasher {
     private int mIterations = PasswordTokenSpec.PASSWORD_HASH_DEFAULT_ITERATIONS;
+    private PasswordPolicy mPolicy;
 
     /**
      * Set the number of iterations to use when hashing the password.
@@ -41,6 +45,27 @@ public class PasswordHasher {
         return mIterations;
     }
 
+    /**
+     * Set a policy that new passwords must pass before they are hashed.
+     * <p/>
+     * The policy is only applied when hashing, for example when a password
+     * is set or changed, never when validating an existing password.
+     *
+     * @param policy The policy to apply, or null for none
+     */
+    public void setPolicy(final PasswordPolicy policy) {
+        mPolicy = policy;
+    }
+
+    /**
+     * Get the policy applied to new passwords.
+     *
+     * @return The policy, or null for none
+     */
+    public PasswordPolicy getPolicy() {
+        return mPolicy;
+    }
+
     /**
      * Securely hash a password into a token format suitable for storage.
      * <p/>
@@ -50,6 +75,9 @@ public class PasswordHasher {
      * self-identifying and future proof, you do not need to store anything
      * else related to the password such as the iteration count, algorithm
      * or format used.
+     * <p/>
+     * If a policy is set, the password must pass it first, otherwise an
+     * InvalidInputException such as CompromisedPasswordException is thrown.
      *
      * @param password The plain text password to hash
      * @return A token containing the hashed password, suitable for storage
@@ -57,6 +85,14 @@ public class PasswordHasher {
     public String hash(final String password) {
         if (StringUtils.isNullOrEmpty(password))
             throw new InvalidInputException("Password cannot be null or empty");
+        if (mPolicy != null) {
+            final byte[] passwordBytes = StringUtils.getStringBytes(password);
+            try {
+                mPolicy.check(passwordBytes, 0, passwordBytes.length);
+            } finally {
+                Arrays.fill(passwordBytes, (byte) 0);
+            }
+        }
 
         final byte[] saltBytes = Crypto.generateRandomBytes(PASSWORD_SALT_BYTE_SIZE);
         final byte[] passwordHashBytes = hashPasswordUsingSalt(saltBytes, password, mIterations);
@@ -65,6 +101,78 @@ public class PasswordHasher {
         return passwordHashToken;
     }
 
+    /**
+     * Hash a password held in a CharSequence, for example CharBuffer.wrap(passwordChars).
+     * <p/>
+     * Produces the same kind of token as hash(String), but the password is
+     * never copied into a String. It is encoded into a scratch buffer that is
+     * cleared afterwards, so clearing the caller's chars leaves no copy.
+     *
+     * @param password The plain text password to hash
+     * @return A token containing the hashed password, suitable for storage
+     */
+    public String hash(final CharSequence password) {
+        if (StringUtils.isNullOrBlank(password))
+            throw new InvalidInputException("Password cannot be null or empty");
+
+        final byte[] passwordBytes = new byte[password.length() * 3];
+        try {
+            final int length = StringUtils.utf8Encode(password, passwordBytes);
+            return hashUtf8(passwordBytes, 0, length);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Hash a UTF-8 encoded password, read straight from the caller's array.
+     *
+     * @param password The plain text password as UTF-8
+     * @return A token containing the hashed password, suitable for storage
+     */
+    public String hashUtf8(final byte[] password) {
+        if (password == null)
+            throw new InvalidInputException("Password cannot be null or empty");
+
+        return hashUtf8(password, 0, password.length);
+    }
+
+    /**
+     * Hash the remaining UTF-8 bytes of a buffer, without changing its position.
+     * <p/>
+     * Heap buffers are read in place, direct buffers through a scratch array that is cleared afterwards.
+     *
+     * @param password The plain text password as UTF-8
+     * @return A token containing the hashed password, suitable for storage
+     */
+    public String hashUtf8(final ByteBuffer password) {
+        if (password == null)
+            throw new InvalidInputException("Password cannot be null or empty");
+        if (password.hasArray())
+            return hashUtf8(password.array(), password.arrayOffset() + password.position(), password.remaining());
+
+        final byte[] passwordBytes = new byte[password.remaining()];
+        try {
+            password.duplicate().get(passwordBytes);
+            return hashUtf8(passwordBytes, 0, passwordBytes.length);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    private String hashUtf8(final byte[] passwordBytes, final int offset, final int length) {
+        if (isBlank(passwordBytes, offset, length))
+            throw new InvalidInputException("Password cannot be null or empty");
+        if (mPolicy != null)
+            mPolicy.check(passwordBytes, offset, length);
+
+        final byte[] saltBytes = Crypto.generateRandomBytes(PASSWORD_SALT_BYTE_SIZE);
+        final byte[] passwordHashBytes = hashPasswordUsingSalt(saltBytes, passwordBytes, offset, length, mIterations);
+        final String passwordHashToken = encodePasswordHashToken(saltBytes, passwordHashBytes, mIterations);
+
+        return passwordHashToken;
+    }
+
     /**
      * Validate a password against the stored password hash token.
      * <p/>
@@ -94,6 +202,81 @@ public class PasswordHasher {
         return passwordMatchesHash;
     }
 
+    /**
+     * Validate a password held in a CharSequence against the stored password hash token.
+     * <p/>
+     * Accepts tokens from any of the hash methods. The password is never copied into a String.
+     *
+     * @param password          The plain text password to validate
+     * @param passwordHashToken The previously stored password hash token
+     * @return True if the password is valid for the given hash token
+     */
+    public boolean isValidPassword(final CharSequence password, final String passwordHashToken) {
+        if (StringUtils.isNullOrBlank(password))
+            throw new InvalidInputException("Password cannot be null or empty");
+
+        final byte[] passwordBytes = new byte[password.length() * 3];
+        try {
+            final int length = StringUtils.utf8Encode(password, passwordBytes);
+            return isValidPasswordUtf8(passwordBytes, 0, length, passwordHashToken);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Validate a UTF-8 encoded password against the stored password hash token.
+     *
+     * @param password          The plain text password as UTF-8
+     * @param passwordHashToken The previously stored password hash token
+     * @return True if the password is valid for the given hash token
+     */
+    public boolean isValidPasswordUtf8(final byte[] password, final String passwordHashToken) {
+        if (password == null)
+            throw new InvalidInputException("Password cannot be null or empty");
+
+        return isValidPasswordUtf8(password, 0, password.length, passwordHashToken);
+    }
+
+    /**
+     * Validate the remaining UTF-8 bytes of a buffer against the stored password hash token, without changing its position.
+     *
+     * @param password          The plain text password as UTF-8
+     * @param passwordHashToken The previously stored password hash token
+     * @return True if the password is valid for the given hash token
+     */
+    public boolean isValidPasswordUtf8(final ByteBuffer password, final String passwordHashToken) {
+        if (password == null)
+            throw new InvalidInputException("Password cannot be null or empty");
+        if (password.hasArray())
+            return isValidPasswordUtf8(password.array(), password.arrayOffset() + password.position(), password.remaining(), passwordHashToken);
+
+        final byte[] passwordBytes = new byte[password.remaining()];
+        try {
+            password.duplicate().get(passwordBytes);
+            return isValidPasswordUtf8(passwordBytes, 0, passwordBytes.length, passwordHashToken);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+        }
+    }
+
+    private boolean isValidPasswordUtf8(final byte[] passwordBytes, final int offset, final int length, final String passwordHashToken) {
+        if (isBlank(passwordBytes, offset, length))
+            throw new InvalidInputException("Password cannot be null or empty");
+        if (StringUtils.isNullOrEmpty(passwordHashToken))
+            throw new InvalidInputException("Password hash token cannot be null or empty");
+
+        final String[] segments = decodePasswordHashToken(passwordHashToken);
+        final int iterationsUsed = Integer.parseInt(segments[PASSWORD_SEGMENT_ITERATIONS]);
+        final byte[] saltBytes = StringUtils.base64DecodeBytes(segments[PASSWORD_SEGMENT_SALT]);
+        final byte[] hashedPasswordBytes = StringUtils.base64DecodeBytes(segments[PASSWORD_SEGMENT_HASH]);
+
+        final byte[] passwordHashBytes = hashPasswordUsingSalt(saltBytes, passwordBytes, offset, length, iterationsUsed);
+        final boolean passwordMatchesHash = slowHashEquals(passwordHashBytes, hashedPasswordBytes);
+
+        return passwordMatchesHash;
+    }
+
     // Securely hash the password using the given salt and iteration count, using a the slow-hash PBKDF2 algorithm
     private byte[] hashPasswordUsingSalt(final byte[] saltBytes, final String password, final int iterations) {
         final byte[] passwordHashBytes;
@@ -108,6 +291,31 @@ public class PasswordHasher {
         return passwordHashBytes;
     }
 
+    // The same PBKDF2, computed directly over the caller's UTF-8 bytes
+    private byte[] hashPasswordUsingSalt(final byte[] saltBytes, final byte[] passwordBytes, final int offset, final int length,
+                                         final int iterations) {
+        final byte[] passwordHashBytes;
+        try {
+            passwordHashBytes = Crypto.pbkdf2(passwordBytes, offset, length, saltBytes, iterations, PASSWORD_HASH_BYTE_SIZE);
+        } catch (NoSuchAlgorithmException e) {
+            throw new InvalidEncodingException("You must use a Java crypto provider that implements " + CryptoConstants.PBKDF2_DIGEST_ALGORITHM, e);
+        } catch (GeneralSecurityException e) {
+            throw new InvalidEncodingException("Internal library error", e);
+        }
+
+        return passwordHashBytes;
+    }
+
+    // Like StringUtils.isNullOrEmpty, a password of only spaces and control characters counts as empty
+    private static boolean isBlank(final byte[] passwordBytes, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if ((passwordBytes[i] & 0xff) > ' ')
+                return false;
+        }
+
+        return true;
+    }
+
     // Encode the hashed password with all the metadata necessary for validation into a convenient token format
     private static String encodePasswordHashToken(final byte[] saltBytes, final byte[] passwordHashBytes, final int iterations) {
         final String base64Salt = StringUtils.base64Encode(saltBytes);
@@ -0,0 +1,22 @@
+package org.cryptokit.password;
+
+/**
+ * A check PasswordHasher applies to new passwords before hashing them.
+ * <p/>
+ * Policies only run when a password is hashed, at signup or password change,
+ * never when one is validated, so tightening a policy does not lock out
+ * existing users.
+ * <p/>
+ * Example:
+ * hasher.setPolicy(new BreachedPasswordFilter(Paths.get("breached.ckbp")));
+ */
+public interface PasswordPolicy {
+    /**
+     * Check a password, throwing an InvalidInputException, or a subclass of it, to reject it.
+     *
+     * @param passwordBytes Buffer holding the UTF-8 password, not to be kept or modified
+     * @param offset        Offset of the password in the buffer
+     * @param length        Length of the password in bytes
+     */
+    void check(byte[] passwordBytes, int offset, int length);
+}
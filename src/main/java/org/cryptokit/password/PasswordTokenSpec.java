@@ -12,4 +12,11 @@ public class PasswordTokenSpec {
     public static final int PASSWORD_SEGMENT_SALT = 2;
     public static final int PASSWORD_SEGMENT_HASH = 3;
     public static final int PASSWORD_NUM_SEGMENTS = 4;
+
+    public static final int BREACHED_PASSWORD_MAGIC = 0x434b4250; // "CKBP"
+    public static final byte BREACHED_PASSWORD_VERSION = 1;
+    public static final int BREACHED_PASSWORD_HEADER_BYTES = 16;
+    public static final int BREACHED_PASSWORD_HASH_BYTES = 20;
+    public static final String BREACHED_PASSWORD_HASH_ALGORITHM = "SHA-1";
+    public static final int BREACHED_PASSWORD_DEFAULT_SORT_ENTRIES = 1 << 20;
 }
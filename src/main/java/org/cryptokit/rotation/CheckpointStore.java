@@ -0,0 +1,15 @@
+package org.cryptokit.rotation;
+
+import java.io.IOException;
+
+/**
+ * Remembers how far a re-encryption run got, so it can be resumed.
+ */
+public interface CheckpointStore {
+    /**
+     * @return The last saved position, or ReEncryptionEngine.NO_CHECKPOINT if there is none
+     */
+    long load() throws IOException;
+
+    void save(long position) throws IOException;
+}
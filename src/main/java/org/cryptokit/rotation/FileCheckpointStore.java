@@ -0,0 +1,62 @@
+package org.cryptokit.rotation;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checkpoint store keeping the position in a small text file.
+ * <p/>
+ * Each save writes and syncs a temporary file, then atomically renames it
+ * over the checkpoint, so a crash leaves either the old or the new position.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+    private final Path mPath;
+    private final Path mTempPath;
+
+    public FileCheckpointStore(final Path path) {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+
+        mPath = path;
+        mTempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    @Override
+    public long load() throws IOException {
+        if (!Files.exists(mPath))
+            return ReEncryptionEngine.NO_CHECKPOINT;
+
+        final String text = new String(Files.readAllBytes(mPath), CryptoConstants.CHARSET).trim();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new InvalidEncodingException("Checkpoint file " + mPath + " does not hold a position", e);
+        }
+    }
+
+    @Override
+    public void save(final long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(mTempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(position).getBytes(CryptoConstants.CHARSET)));
+            channel.force(true);
+        }
+        Files.move(mTempPath, mPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the checkpoint, so the next run starts from the beginning.
+     */
+    public void clear() throws IOException {
+        Files.deleteIfExists(mPath);
+    }
+}
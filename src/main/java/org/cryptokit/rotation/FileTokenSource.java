@@ -0,0 +1,82 @@
+package org.cryptokit.rotation;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Token source reading a UTF-8 text file with one "id TAB token" record per line.
+ * <p/>
+ * The position of a record is the byte offset just past its line, so
+ * resuming seeks straight to the next line instead of reading the file
+ * from the start.
+ */
+public class FileTokenSource implements TokenSource {
+    private final Path mPath;
+    private FileChannel mChannel;
+    private InputStream mInput;
+    private long mOffset;
+
+    public FileTokenSource(final Path path) {
+        if (path == null)
+            throw new InvalidInputException("Path cannot be null");
+
+        mPath = path;
+    }
+
+    @Override
+    public void open(final long afterPosition) throws IOException {
+        close();
+        mOffset = afterPosition == ReEncryptionEngine.NO_CHECKPOINT ? 0 : afterPosition;
+        mChannel = FileChannel.open(mPath, StandardOpenOption.READ);
+        mChannel.position(mOffset);
+        mInput = new BufferedInputStream(Channels.newInputStream(mChannel), 64 * 1024);
+    }
+
+    @Override
+    public TokenRecord next() throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = mInput.read()) != -1) {
+            mOffset++;
+            if (b == '\n') {
+                if (line.size() == 0)
+                    continue;
+                return parse(line);
+            }
+            line.write(b);
+        }
+
+        return line.size() == 0 ? null : parse(line);
+    }
+
+    private TokenRecord parse(final ByteArrayOutputStream line) {
+        String text = new String(line.toByteArray(), CryptoConstants.CHARSET);
+        if (text.endsWith("\r"))
+            text = text.substring(0, text.length() - 1);
+
+        final int tab = text.indexOf('\t');
+        if (tab < 0)
+            throw new InvalidEncodingException("Token file line ending at byte " + mOffset + " is not in 'id TAB token' format");
+
+        return new TokenRecord(mOffset, text.substring(0, tab), text.substring(tab + 1));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mInput != null) {
+            mInput.close();
+            mInput = null;
+            mChannel = null;
+        }
+    }
+}
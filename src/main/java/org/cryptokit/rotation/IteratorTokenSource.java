@@ -0,0 +1,44 @@
+package org.cryptokit.rotation;
+
+import org.cryptokit.exception.InvalidInputException;
+
+import java.util.Iterator;
+
+/**
+ * Token source over an in-memory iterator.
+ * <p/>
+ * Resuming skips records up to the checkpoint position without decrypting
+ * them, so the iterator must produce the same records in the same order
+ * every time.
+ */
+public class IteratorTokenSource implements TokenSource {
+    private final Iterator<TokenRecord> mRecords;
+    private long mAfterPosition = ReEncryptionEngine.NO_CHECKPOINT;
+
+    public IteratorTokenSource(final Iterator<TokenRecord> records) {
+        if (records == null)
+            throw new InvalidInputException("Records cannot be null");
+
+        mRecords = records;
+    }
+
+    @Override
+    public void open(final long afterPosition) {
+        mAfterPosition = afterPosition;
+    }
+
+    @Override
+    public TokenRecord next() {
+        while (mRecords.hasNext()) {
+            final TokenRecord record = mRecords.next();
+            if (mAfterPosition == ReEncryptionEngine.NO_CHECKPOINT || record.getPosition() > mAfterPosition)
+                return record;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
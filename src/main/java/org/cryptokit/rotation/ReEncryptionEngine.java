@@ -0,0 +1,249 @@
+package org.cryptokit.rotation;
+
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidInputException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-encrypt stored crypto tokens from an old key to a new one, in parallel
+ * and resumably.
+ * <p/>
+ * Records are read from a TokenSource on the calling thread in batches,
+ * decrypted with the old key and encrypted with the new one on a pool of
+ * workers, then written to the TokenSink in source order. After each batch
+ * is written the position of its last record is saved to the
+ * CheckpointStore, and a later run with the same store continues from there.
+ * Only a few batches are in flight at a time, so memory use does not depend
+ * on the number of tokens.
+ * <p/>
+ * A token that fails to re-encrypt is passed to TokenSink.failed and the run
+ * carries on. stop() ends a run early after the batches in flight.
+ * <p/>
+ * Example:
+ * ReEncryptionEngine engine = new ReEncryptionEngine(new SymmetricCrypto(oldKey), new SymmetricCrypto(newKey));
+ * ReEncryptionEngine.Result result = engine.run(new FileTokenSource(tokens), sink, new FileCheckpointStore(checkpoint));
+ */
+public class ReEncryptionEngine {
+    public static final long NO_CHECKPOINT = -1;
+
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * Totals for a run.
+     */
+    public static class Result {
+        private final long mProcessed;
+        private final long mFailed;
+        private final long mElapsedMillis;
+        private final long mCheckpoint;
+        private final boolean mCompleted;
+
+        Result(final long processed, final long failed, final long elapsedMillis, final long checkpoint, final boolean completed) {
+            mProcessed = processed;
+            mFailed = failed;
+            mElapsedMillis = elapsedMillis;
+            mCheckpoint = checkpoint;
+            mCompleted = completed;
+        }
+
+        // Number of tokens read in this run, including failures
+        public long getProcessed() {
+            return mProcessed;
+        }
+
+        public long getFailed() {
+            return mFailed;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        public double getTokensPerSecond() {
+            return mElapsedMillis == 0 ? 0 : mProcessed * 1000.0 / mElapsedMillis;
+        }
+
+        // Position of the last token written, NO_CHECKPOINT if none ever was
+        public long getCheckpoint() {
+            return mCheckpoint;
+        }
+
+        // False if the run was stopped before the end of the source
+        public boolean isCompleted() {
+            return mCompleted;
+        }
+    }
+
+    private final SymmetricCrypto mOldCrypto;
+    private final SymmetricCrypto mNewCrypto;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    private int mBatchSize = DEFAULT_BATCH_SIZE;
+    private volatile boolean mStopped;
+
+    private final AtomicLong mProcessed = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private volatile long mStartMillis;
+
+    public ReEncryptionEngine(final SymmetricCrypto oldCrypto, final SymmetricCrypto newCrypto) {
+        if (oldCrypto == null || newCrypto == null)
+            throw new InvalidInputException("Crypto instances cannot be null");
+
+        mOldCrypto = oldCrypto;
+        mNewCrypto = newCrypto;
+    }
+
+    /**
+     * Set the number of worker threads, the number of cores by default.
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1)
+            throw new InvalidInputException("Parallelism must be 1 or greater");
+
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Set the number of tokens per batch, which is also how often a checkpoint is saved.
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize < 1)
+            throw new InvalidInputException("Batch size must be 1 or greater");
+
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Ask a running run to stop after the batches in flight, from any thread.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * @return Tokens read so far by the current or last run
+     */
+    public long getProcessedCount() {
+        return mProcessed.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    /**
+     * @return Throughput of the current or last run so far
+     */
+    public double getTokensPerSecond() {
+        final long elapsedMillis = System.currentTimeMillis() - mStartMillis;
+
+        return mStartMillis == 0 || elapsedMillis == 0 ? 0 : mProcessed.get() * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * Re-encrypt every token after the saved checkpoint, blocking until done or stopped.
+     *
+     * @param source      Tokens encrypted with the old key
+     * @param sink        Receives the re-encrypted tokens and failures
+     * @param checkpoints Where progress is saved and resumed from
+     * @return Totals for this run
+     */
+    public Result run(final TokenSource source, final TokenSink sink, final CheckpointStore checkpoints) throws IOException {
+        if (source == null || sink == null || checkpoints == null)
+            throw new InvalidInputException("Source, sink and checkpoint store cannot be null");
+
+        mStopped = false;
+        mProcessed.set(0);
+        mFailed.set(0);
+        mStartMillis = System.currentTimeMillis();
+        long checkpoint = checkpoints.load();
+
+        final Deque<Future<Batch>> inFlight = new ArrayDeque<>();
+        final ExecutorService workers = Executors.newFixedThreadPool(mParallelism);
+        try {
+            source.open(checkpoint);
+
+            boolean endOfSource = false;
+            while (!endOfSource && !mStopped) {
+                final List<TokenRecord> records = new ArrayList<>(mBatchSize);
+                TokenRecord record;
+                while (records.size() < mBatchSize && (record = source.next()) != null)
+                    records.add(record);
+                endOfSource = records.size() < mBatchSize;
+
+                if (!records.isEmpty())
+                    inFlight.add(workers.submit(new Batch(records)));
+                if (inFlight.size() >= mParallelism * 2)
+                    checkpoint = commit(inFlight.poll().get(), sink, checkpoints);
+            }
+
+            while (!inFlight.isEmpty())
+                checkpoint = commit(inFlight.poll().get(), sink, checkpoints);
+
+            return new Result(mProcessed.get(), mFailed.get(), System.currentTimeMillis() - mStartMillis, checkpoint, endOfSource);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImplementationFailedException("Interrupted while re-encrypting tokens", e);
+        } catch (ExecutionException e) {
+            throw new ImplementationFailedException("Token re-encryption worker failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+            source.close();
+        }
+    }
+
+    // Write a finished batch in order and move the checkpoint past it
+    private long commit(final Batch batch, final TokenSink sink, final CheckpointStore checkpoints) throws IOException {
+        if (!batch.mReEncrypted.isEmpty())
+            sink.write(batch.mReEncrypted);
+        for (int i = 0; i < batch.mFailures.size(); i++)
+            sink.failed(batch.mFailures.get(i), batch.mCauses.get(i));
+
+        final long checkpoint = batch.mLastPosition;
+        checkpoints.save(checkpoint);
+        mProcessed.addAndGet(batch.mReEncrypted.size() + batch.mFailures.size());
+        mFailed.addAndGet(batch.mFailures.size());
+
+        return checkpoint;
+    }
+
+    private class Batch implements Callable<Batch> {
+        private final List<TokenRecord> mRecords;
+        private final long mLastPosition;
+        private final List<TokenRecord> mReEncrypted;
+        private final List<TokenRecord> mFailures = new ArrayList<>();
+        private final List<RuntimeException> mCauses = new ArrayList<>();
+
+        Batch(final List<TokenRecord> records) {
+            mRecords = records;
+            mLastPosition = records.get(records.size() - 1).getPosition();
+            mReEncrypted = new ArrayList<>(records.size());
+        }
+
+        @Override
+        public Batch call() {
+            for (final TokenRecord record : mRecords) {
+                try {
+                    final String plainText = mOldCrypto.decrypt(record.getToken());
+                    mReEncrypted.add(new TokenRecord(record.getPosition(), record.getId(), mNewCrypto.encrypt(plainText)));
+                } catch (RuntimeException e) {
+                    mFailures.add(record);
+                    mCauses.add(e);
+                }
+            }
+
+            return this;
+        }
+    }
+}
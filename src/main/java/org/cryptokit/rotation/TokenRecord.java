@@ -0,0 +1,33 @@
+package org.cryptokit.rotation;
+
+/**
+ * A stored crypto token, the id of the row or entry holding it, and its
+ * position in the token source.
+ * <p/>
+ * Positions must increase through the source. They are what checkpoints
+ * record, so a source must be able to resume right after any position it
+ * has handed out, for example a primary key or a byte offset.
+ */
+public class TokenRecord {
+    private final long mPosition;
+    private final String mId;
+    private final String mToken;
+
+    public TokenRecord(final long position, final String id, final String token) {
+        mPosition = position;
+        mId = id;
+        mToken = token;
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getToken() {
+        return mToken;
+    }
+}
@@ -0,0 +1,25 @@
+package org.cryptokit.rotation;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives re-encrypted tokens, in source order.
+ * <p/>
+ * A checkpoint is only saved after write returns for every record up to it,
+ * so write must not return before the records are durably stored. After a
+ * crash, records written since the last checkpoint are written again, so
+ * writes should be idempotent, for example an update by id.
+ */
+public interface TokenSink {
+    /**
+     * Store a batch of re-encrypted records, each with the id and position of the original.
+     */
+    void write(List<TokenRecord> records) throws IOException;
+
+    /**
+     * Called for a record that could not be re-encrypted, for example because
+     * it does not decrypt with the old key. The record is not retried.
+     */
+    void failed(TokenRecord record, RuntimeException cause) throws IOException;
+}
@@ -0,0 +1,24 @@
+package org.cryptokit.rotation;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Supplies the tokens to re-encrypt, for example from a file or a database cursor.
+ * <p/>
+ * A database source would typically run a query like
+ * "SELECT id, token FROM secrets WHERE id > ? ORDER BY id" with the id as position.
+ */
+public interface TokenSource extends Closeable {
+    /**
+     * Start reading from the first record after the given position.
+     *
+     * @param afterPosition The last position already processed, or ReEncryptionEngine.NO_CHECKPOINT to start at the beginning
+     */
+    void open(long afterPosition) throws IOException;
+
+    /**
+     * @return The next record, or null when there are no more
+     */
+    TokenRecord next() throws IOException;
+}
@@ -0,0 +1,16 @@
+package org.cryptokit.session;
+
+public class SessionSpec {
+    public static final String SESSION_TOKEN_HEADER = "ck_ss1";
+    public static final byte SESSION_TOKEN_VERSION = 1;
+    public static final int SESSION_HEADER_BYTES = 24;
+    public static final int SESSION_HEADER_CHARS = 32; // Base64 of the header, no padding
+    public static final int SESSION_IV_BYTES = 16;
+    public static final int SESSION_TAG_BYTES = 16;
+
+    public static final String SESSION_ENCRYPTION_KEY_CONTEXT = "ck_ss1 encryption";
+    public static final String SESSION_MAC_KEY_CONTEXT = "ck_ss1 authentication";
+
+    public static final long SESSION_DEFAULT_CLOCK_SKEW_SECONDS = 60;
+    public static final int SESSION_DEFAULT_MAX_TOKEN_CHARS = 4096;
+}
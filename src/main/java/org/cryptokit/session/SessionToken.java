@@ -0,0 +1,51 @@
+package org.cryptokit.session;
+
+import org.cryptokit.core.CryptoConstants;
+
+/**
+ * A decoded session token, only ever created for a token that verified and had not expired.
+ */
+public final class SessionToken {
+    private final int mKeyId;
+    private final long mIssuedAt;
+    private final long mExpiresAt;
+    private final byte[] mPayload;
+
+    SessionToken(final int keyId, final long issuedAt, final long expiresAt, final byte[] payload) {
+        mKeyId = keyId;
+        mIssuedAt = issuedAt;
+        mExpiresAt = expiresAt;
+        mPayload = payload;
+    }
+
+    // The id of the key the token was sealed with
+    public int getKeyId() {
+        return mKeyId;
+    }
+
+    // Seconds since the epoch
+    public long getIssuedAt() {
+        return mIssuedAt;
+    }
+
+    // Seconds since the epoch
+    public long getExpiresAt() {
+        return mExpiresAt;
+    }
+
+    /**
+     * @return The decrypted payload, not copied
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    public String getPayloadString() {
+        return new String(mPayload, CryptoConstants.CHARSET);
+    }
+
+    @Override
+    public String toString() {
+        return "SessionToken{keyId=" + mKeyId + ", issuedAt=" + mIssuedAt + ", expiresAt=" + mExpiresAt + "}";
+    }
+}
@@ -0,0 +1,350 @@
+package org.cryptokit.session;
+
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.ProviderRegistry;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+import org.cryptokit.key.Hkdf;
+import org.cryptokit.key.KeyLoader;
+import org.cryptokit.key.KeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cryptokit.session.SessionSpec.*;
+
+/**
+ * Stateless encrypted session tokens, for example for session cookies, that
+ * are cheap to reject.
+ * <p/>
+ * A token is ck_ss1.header.body. The header holds the key id, issued-at and
+ * expiry times in the clear, and the body holds the payload encrypted with
+ * AES-CTR followed by an HMAC-SHA256 tag over the header and ciphertext.
+ * Decoding checks the cheapest things first: the length and prefix, then
+ * the header, so an expired token or one for an unknown key is rejected
+ * after decoding 32 characters, then the tag, so a forged token is rejected
+ * before any AES work. Only a token that passes all of those is decrypted.
+ * <p/>
+ * decode returns null for any token it rejects rather than throwing, and
+ * counts why, so junk traffic costs no exceptions. Scratch buffers, Macs and
+ * Ciphers are kept per thread, and a rejected token allocates next to nothing.
+ * <p/>
+ * The encryption and MAC keys are derived from each root key with HKDF.
+ * Tokens are sealed with the current key; add previous keys with
+ * addDecryptionKey so tokens issued before a rotation stay valid until they expire.
+ * <p/>
+ * Example:
+ * SessionTokenCodec codec = new SessionTokenCodec(1, rootKey);
+ * String cookie = codec.encode("user=42", 3600);
+ * SessionToken session = codec.decode(cookie); // null if expired, forged or malformed
+ */
+public class SessionTokenCodec {
+    private static final int PREFIX_CHARS = SESSION_TOKEN_HEADER.length() + 1;
+    private static final int BODY_START = PREFIX_CHARS + SESSION_HEADER_CHARS + 1;
+    private static final int MIN_BODY_CHARS = ((SESSION_IV_BYTES + SESSION_TAG_BYTES) * 4 + 2) / 3;
+
+    // Per-thread buffers for decoding, the body buffer grows to the largest token seen
+    private static class Scratch {
+        final byte[] mHeader = new byte[SESSION_HEADER_BYTES];
+        final byte[] mTag = new byte[CryptoConstants.HMAC_SIZE_BYTES];
+        byte[] mBody = new byte[256];
+    }
+
+    private static final ThreadLocal<Scratch> sScratch = ThreadLocal.withInitial(Scratch::new);
+
+    // The keys derived from one root key, with a Mac and Cipher per thread
+    private static class SessionKey {
+        final int mKeyId;
+        final SecretKey mEncryptionKey;
+        final ThreadLocal<Mac> mMac;
+        final ThreadLocal<Cipher> mCipher;
+
+        SessionKey(final int keyId, final SecretKey rootKey) {
+            if (rootKey == null)
+                throw new InvalidInputException("Root key cannot be null");
+            if (rootKey.getEncoded() == null)
+                throw new InvalidInputException("Root key must be extractable to derive keys from it");
+
+            final byte[] pseudoRandomKey = Hkdf.extract(null, rootKey.getEncoded());
+            final byte[] macKeyBytes = Hkdf.expand(pseudoRandomKey, StringUtils.getStringBytes(SESSION_MAC_KEY_CONTEXT),
+                    CryptoConstants.HMAC_SIZE_BYTES);
+            mKeyId = keyId;
+            mEncryptionKey = KeyLoader.SymmetricKey(Hkdf.expand(pseudoRandomKey,
+                    StringUtils.getStringBytes(SESSION_ENCRYPTION_KEY_CONTEXT), KeySpec.SYMMETRIC_KEY_SIZE_BYTES));
+            mMac = ThreadLocal.withInitial(() -> createMac(macKeyBytes));
+            mCipher = ThreadLocal.withInitial(SessionTokenCodec::createCipher);
+        }
+    }
+
+    private volatile SessionKey[] mKeys;
+    private Clock mClock = Clock.systemUTC();
+    private long mClockSkewSeconds = SESSION_DEFAULT_CLOCK_SKEW_SECONDS;
+    private int mMaxTokenChars = SESSION_DEFAULT_MAX_TOKEN_CHARS;
+
+    private final AtomicLong mDecoded = new AtomicLong();
+    private final AtomicLong mRejectedMalformed = new AtomicLong();
+    private final AtomicLong mRejectedExpired = new AtomicLong();
+    private final AtomicLong mRejectedUnknownKey = new AtomicLong();
+    private final AtomicLong mRejectedForged = new AtomicLong();
+
+    /**
+     * @param keyId   The id of the key, stored in each token's header
+     * @param rootKey The key new tokens are sealed with
+     */
+    public SessionTokenCodec(final int keyId, final SecretKey rootKey) {
+        mKeys = new SessionKey[]{new SessionKey(keyId, rootKey)};
+    }
+
+    /**
+     * Also accept tokens sealed with an earlier key.
+     */
+    public synchronized void addDecryptionKey(final int keyId, final SecretKey rootKey) {
+        if (findKey(keyId) != null)
+            throw new InvalidInputException("Key id " + keyId + " is already in use");
+
+        final SessionKey[] keys = Arrays.copyOf(mKeys, mKeys.length + 1);
+        keys[keys.length - 1] = new SessionKey(keyId, rootKey);
+        mKeys = keys;
+    }
+
+    public void setClock(final Clock clock) {
+        if (clock == null)
+            throw new InvalidInputException("Clock cannot be null");
+
+        mClock = clock;
+    }
+
+    /**
+     * Set how far in the future a token's issued-at time may be, 60 seconds by default.
+     */
+    public void setClockSkewSeconds(final long clockSkewSeconds) {
+        if (clockSkewSeconds < 0)
+            throw new InvalidInputException("Clock skew cannot be negative");
+
+        mClockSkewSeconds = clockSkewSeconds;
+    }
+
+    /**
+     * Set the longest token decode looks at, longer ones are rejected unread. 4096 characters by default.
+     */
+    public void setMaxTokenChars(final int maxTokenChars) {
+        if (maxTokenChars < BODY_START + MIN_BODY_CHARS)
+            throw new InvalidInputException("Maximum token length must be " + (BODY_START + MIN_BODY_CHARS) + " or greater");
+
+        mMaxTokenChars = maxTokenChars;
+    }
+
+    public String encode(final String payload, final long ttlSeconds) {
+        if (payload == null)
+            throw new InvalidInputException("Payload cannot be null");
+
+        return encode(StringUtils.getStringBytes(payload), ttlSeconds);
+    }
+
+    /**
+     * Seal a payload into a token that expires after the given time.
+     *
+     * @param payload    The session data
+     * @param ttlSeconds How long the token is valid for
+     * @return The token, safe to use as a cookie value
+     */
+    public String encode(final byte[] payload, final long ttlSeconds) {
+        if (payload == null)
+            throw new InvalidInputException("Payload cannot be null");
+        if (ttlSeconds < 1)
+            throw new InvalidInputException("Time to live must be 1 second or greater");
+
+        final SessionKey key = mKeys[0];
+        final long issuedAt = mClock.millis() / 1000;
+        final byte[] headerBytes = ByteBuffer.allocate(SESSION_HEADER_BYTES)
+                .put(SESSION_TOKEN_VERSION).put(new byte[3])
+                .putInt(key.mKeyId)
+                .putLong(issuedAt)
+                .putLong(issuedAt + ttlSeconds)
+                .array();
+
+        final byte[] bodyBytes = new byte[SESSION_IV_BYTES + payload.length + SESSION_TAG_BYTES];
+        final byte[] ivBytes = Crypto.generateRandomBytes(SESSION_IV_BYTES);
+        System.arraycopy(ivBytes, 0, bodyBytes, 0, SESSION_IV_BYTES);
+        try {
+            final Cipher cipher = key.mCipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key.mEncryptionKey, new IvParameterSpec(ivBytes));
+            cipher.doFinal(payload, 0, payload.length, bodyBytes, SESSION_IV_BYTES);
+
+            final Mac mac = key.mMac.get();
+            final byte[] tagBytes = sScratch.get().mTag;
+            mac.update(headerBytes);
+            mac.update(bodyBytes, 0, SESSION_IV_BYTES + payload.length);
+            mac.doFinal(tagBytes, 0);
+            System.arraycopy(tagBytes, 0, bodyBytes, SESSION_IV_BYTES + payload.length, SESSION_TAG_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new ImplementationFailedException("Sealing the session token failed", e);
+        }
+
+        final String token = SESSION_TOKEN_HEADER + CryptoConstants.SEGMENT_DELIMITER +
+                StringUtils.base64Encode(headerBytes) + CryptoConstants.SEGMENT_DELIMITER +
+                StringUtils.base64Encode(bodyBytes);
+
+        return token;
+    }
+
+    /**
+     * Verify and decrypt a token.
+     *
+     * @param token The token, for example a cookie value
+     * @return The session, or null if the token is malformed, expired, for an unknown key or forged
+     */
+    public SessionToken decode(final CharSequence token) {
+        final int length = token != null ? token.length() : 0;
+        if (length < BODY_START + MIN_BODY_CHARS || length > mMaxTokenChars || !hasPrefix(token)) {
+            mRejectedMalformed.incrementAndGet();
+            return null;
+        }
+
+        final Scratch scratch = sScratch.get();
+        final byte[] headerBytes = scratch.mHeader;
+        if (StringUtils.base64UrlDecode(token, PREFIX_CHARS, PREFIX_CHARS + SESSION_HEADER_CHARS, headerBytes, 0) != SESSION_HEADER_BYTES
+                || headerBytes[0] != SESSION_TOKEN_VERSION) {
+            mRejectedMalformed.incrementAndGet();
+            return null;
+        }
+
+        // Cleartext checks, no crypto yet
+        final int keyId = getInt(headerBytes, 4);
+        final long issuedAt = getLong(headerBytes, 8);
+        final long expiresAt = getLong(headerBytes, 16);
+        final long now = mClock.millis() / 1000;
+        if (expiresAt <= now || issuedAt > now + mClockSkewSeconds) {
+            mRejectedExpired.incrementAndGet();
+            return null;
+        }
+        final SessionKey key = findKey(keyId);
+        if (key == null) {
+            mRejectedUnknownKey.incrementAndGet();
+            return null;
+        }
+
+        final int maxBodyBytes = (length - BODY_START) * 3 / 4 + 1;
+        if (scratch.mBody.length < maxBodyBytes)
+            scratch.mBody = new byte[Math.max(maxBodyBytes, scratch.mBody.length * 2)];
+        final byte[] bodyBytes = scratch.mBody;
+        final int bodyLength = StringUtils.base64UrlDecode(token, BODY_START, length, bodyBytes, 0);
+        if (bodyLength < SESSION_IV_BYTES + SESSION_TAG_BYTES) {
+            mRejectedMalformed.incrementAndGet();
+            return null;
+        }
+
+        // Authenticate before decrypting
+        final int cipherLength = bodyLength - SESSION_IV_BYTES - SESSION_TAG_BYTES;
+        try {
+            final Mac mac = key.mMac.get();
+            mac.update(headerBytes, 0, SESSION_HEADER_BYTES);
+            mac.update(bodyBytes, 0, SESSION_IV_BYTES + cipherLength);
+            mac.doFinal(scratch.mTag, 0);
+        } catch (GeneralSecurityException e) {
+            throw new ImplementationFailedException("Authenticating the session token failed", e);
+        }
+        if (!slowTagEquals(scratch.mTag, bodyBytes, SESSION_IV_BYTES + cipherLength)) {
+            mRejectedForged.incrementAndGet();
+            return null;
+        }
+
+        final byte[] payload;
+        try {
+            final Cipher cipher = key.mCipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, key.mEncryptionKey, new IvParameterSpec(bodyBytes, 0, SESSION_IV_BYTES));
+            payload = cipher.doFinal(bodyBytes, SESSION_IV_BYTES, cipherLength);
+        } catch (GeneralSecurityException e) {
+            throw new ImplementationFailedException("Decrypting the session token failed", e);
+        }
+        mDecoded.incrementAndGet();
+
+        return new SessionToken(keyId, issuedAt, expiresAt, payload);
+    }
+
+    public long getDecodedCount() {
+        return mDecoded.get();
+    }
+
+    public long getRejectedMalformedCount() {
+        return mRejectedMalformed.get();
+    }
+
+    // Includes tokens issued too far in the future
+    public long getRejectedExpiredCount() {
+        return mRejectedExpired.get();
+    }
+
+    public long getRejectedUnknownKeyCount() {
+        return mRejectedUnknownKey.get();
+    }
+
+    public long getRejectedForgedCount() {
+        return mRejectedForged.get();
+    }
+
+    private SessionKey findKey(final int keyId) {
+        for (final SessionKey key : mKeys) {
+            if (key.mKeyId == keyId)
+                return key;
+        }
+
+        return null;
+    }
+
+    private static boolean hasPrefix(final CharSequence token) {
+        for (int i = 0; i < SESSION_TOKEN_HEADER.length(); i++) {
+            if (token.charAt(i) != SESSION_TOKEN_HEADER.charAt(i))
+                return false;
+        }
+
+        return token.charAt(PREFIX_CHARS - 1) == CryptoConstants.SEGMENT_DELIMITER
+                && token.charAt(BODY_START - 1) == CryptoConstants.SEGMENT_DELIMITER;
+    }
+
+    private static int getInt(final byte[] bytes, final int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static long getLong(final byte[] bytes, final int offset) {
+        return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    // Compare the truncated tag in length-constant time
+    private static boolean slowTagEquals(final byte[] tag, final byte[] bytes, final int offset) {
+        int diff = 0;
+        for (int i = 0; i < SESSION_TAG_BYTES; i++)
+            diff |= tag[i] ^ bytes[offset + i];
+        return diff == 0;
+    }
+
+    private static Mac createMac(final byte[] keyBytes) {
+        try {
+            return Crypto.hmac(keyBytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.HMAC_ALGORITHM, e);
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("The provided key cannot be used with " + CryptoConstants.HMAC_ALGORITHM, e);
+        }
+    }
+
+    private static Cipher createCipher() {
+        try {
+            return ProviderRegistry.getCipher(CryptoConstants.AES_CTR_CIPHER_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new PreconditionFailedException("System crypto provider does not support algorithm " + CryptoConstants.AES_CTR_CIPHER_ALGORITHM, e);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.cryptokit;
+
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.jwk.SymmetricKey;
+import org.cryptokit.jwk.Values;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.cryptokit.password.PasswordHasher;
+import org.cryptokit.session.SessionTokenCodec;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Allocation regression tests for the hot paths.
+ * <p/>
+ * Counts the bytes each operation allocates on the calling thread, after a
+ * warm-up so the JIT has settled, and fails when that goes above the budget
+ * recorded in allocation-budgets.properties. Allocation is deterministic
+ * enough to test in a normal build, unlike timing. When a change is meant to
+ * allocate more, run with -Dcryptokit.allocation.report=true to print the
+ * measured values and update the budgets.
+ */
+public class AllocationTest {
+    private static final int WARM_UP_OPERATIONS = 5000;
+    private static final int MEASURED_OPERATIONS = 2000;
+    // Password hashing is slow by design, so it runs fewer operations
+    private static final int PASSWORD_WARM_UP_OPERATIONS = 50;
+    private static final int PASSWORD_MEASURED_OPERATIONS = 20;
+    private static final String PLAIN_TEXT = new String(new char[256]).replace('\0', 'x');
+
+    private static com.sun.management.ThreadMXBean sThreads;
+    private static Properties sBudgets;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        sThreads = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(sThreads.isThreadAllocatedMemorySupported());
+        sThreads.setThreadAllocatedMemoryEnabled(true);
+
+        sBudgets = new Properties();
+        try (InputStream input = AllocationTest.class.getResourceAsStream("/allocation-budgets.properties")) {
+            sBudgets.load(input);
+        }
+    }
+
+    @Test
+    public void testAesGcmEncrypt() {
+        final SymmetricCrypto crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+
+        assertWithinBudget("encrypt.aes_gcm", () -> crypto.encrypt(PLAIN_TEXT));
+    }
+
+    @Test
+    public void testAesGcmDecrypt() {
+        final SymmetricCrypto crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+        final String token = crypto.encrypt(PLAIN_TEXT);
+
+        assertWithinBudget("decrypt.aes_gcm", () -> crypto.decrypt(token));
+    }
+
+    @Test
+    public void testAesCbcEncrypt() {
+        final SymmetricCrypto crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_CBC);
+
+        assertWithinBudget("encrypt.aes_cbc", () -> crypto.encrypt(PLAIN_TEXT));
+    }
+
+    @Test
+    public void testAesCbcDecrypt() {
+        final SymmetricCrypto crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_CBC);
+        final String token = crypto.encrypt(PLAIN_TEXT);
+
+        assertWithinBudget("decrypt.aes_cbc", () -> crypto.decrypt(token));
+    }
+
+    @Test
+    public void testPasswordHash() {
+        final PasswordHasher hasher = passwordHasher();
+
+        assertWithinBudget("password.hash", PASSWORD_WARM_UP_OPERATIONS, PASSWORD_MEASURED_OPERATIONS,
+                () -> hasher.hash("correct horse battery staple"));
+    }
+
+    @Test
+    public void testPasswordVerify() {
+        final PasswordHasher hasher = passwordHasher();
+        final String passwordHash = hasher.hash("correct horse battery staple");
+
+        assertWithinBudget("password.verify", PASSWORD_WARM_UP_OPERATIONS, PASSWORD_MEASURED_OPERATIONS,
+                () -> hasher.isValidPassword("correct horse battery staple", passwordHash));
+    }
+
+    @Test
+    public void testPasswordVerifyUtf8() {
+        final PasswordHasher hasher = passwordHasher();
+        final byte[] password = "correct horse battery staple".getBytes(StandardCharsets.UTF_8);
+        final String passwordHash = hasher.hashUtf8(password);
+
+        assertWithinBudget("password.verify_utf8", PASSWORD_WARM_UP_OPERATIONS, PASSWORD_MEASURED_OPERATIONS,
+                () -> hasher.isValidPasswordUtf8(password, passwordHash));
+    }
+
+    @Test
+    public void testSessionDecode() {
+        final SessionTokenCodec codec = new SessionTokenCodec(1, RandomKeyGenerator.generateSymmetricKey());
+        final String token = codec.encode(PLAIN_TEXT, 3600);
+
+        assertWithinBudget("session.decode", () -> codec.decode(token));
+    }
+
+    @Test
+    public void testSessionRejectExpired() {
+        final SessionTokenCodec codec = new SessionTokenCodec(1, RandomKeyGenerator.generateSymmetricKey());
+        final String token = codec.encode(PLAIN_TEXT, 3600);
+        codec.setClock(Clock.offset(Clock.systemUTC(), Duration.ofHours(2)));
+
+        assertWithinBudget("session.reject_expired", () -> codec.decode(token));
+    }
+
+    @Test
+    public void testSessionRejectForged() {
+        final SessionTokenCodec codec = new SessionTokenCodec(1, RandomKeyGenerator.generateSymmetricKey());
+        final String token = new SessionTokenCodec(1, RandomKeyGenerator.generateSymmetricKey()).encode(PLAIN_TEXT, 3600);
+
+        assertWithinBudget("session.reject_forged", () -> codec.decode(token));
+    }
+
+    @Test
+    public void testJwkToJson() {
+        final SymmetricKey key = new SymmetricKey("GawgguFyGrWKav7AX4VKUg")
+                .setUse(Values.Use.ENCRYPTION)
+                .setAlgorithm(Values.Algorithm.A256KW)
+                .setId("key-1");
+
+        assertWithinBudget("jwk.to_json", key::toJson);
+    }
+
+    @Test
+    public void testJwkFromJson() {
+        final String json = new SymmetricKey("GawgguFyGrWKav7AX4VKUg").setAlgorithm(Values.Algorithm.A256KW).setId("key-1").toJson();
+
+        assertWithinBudget("jwk.from_json", () -> SymmetricKey.fromJson(json));
+    }
+
+    // Password hashing allocates per iteration, so the budgets hold for the iteration count in the properties
+    private static PasswordHasher passwordHasher() {
+        final PasswordHasher hasher = new PasswordHasher();
+        hasher.setIterations(Integer.parseInt(sBudgets.getProperty("password.iterations")));
+
+        return hasher;
+    }
+
+    private static void assertWithinBudget(final String name, final Runnable operation) {
+        assertWithinBudget(name, WARM_UP_OPERATIONS, MEASURED_OPERATIONS, operation);
+    }
+
+    private static void assertWithinBudget(final String name, final int warmUpOperations, final int operations, final Runnable operation) {
+        final String budget = sBudgets.getProperty(name);
+        assertNotNull("No allocation budget for " + name, budget);
+
+        for (int i = 0; i < warmUpOperations; i++)
+            operation.run();
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = sThreads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < operations; i++)
+            operation.run();
+        final long bytesPerOperation = (sThreads.getThreadAllocatedBytes(threadId) - before) / operations;
+
+        if (Boolean.getBoolean("cryptokit.allocation.report"))
+            System.out.println(name + "=" + bytesPerOperation);
+        assertTrue(name + " allocates " + bytesPerOperation + " bytes per operation, over its budget of " + budget,
+                bytesPerOperation <= Long.parseLong(budget));
+    }
+}
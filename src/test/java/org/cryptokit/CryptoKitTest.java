@@ -0,0 +1,34 @@
+package org.cryptokit;
+
+import org.cryptokit.exception.InvalidInputException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CryptoKitTest {
+
+    @Test
+    public void testWarmUp() {
+        CryptoKit.WarmUpReport report = CryptoKit.warmUp(1000);
+
+        assertEquals(report.getStages().size(), 4);
+        assertEquals(report.getStages().get(0).getName(), "providers");
+        for (CryptoKit.Stage stage : report.getStages())
+            assertTrue(stage.getName(), stage.getOperations() > 0);
+        // Allow for a stage overrunning by one operation and a slow build machine
+        assertTrue(report.getElapsedMillis() < 5000);
+        assertTrue(report.toString().startsWith("Crypto warm-up took"));
+    }
+
+    @Test
+    public void testWarmUpTinyBudget() {
+        CryptoKit.WarmUpReport report = CryptoKit.warmUp(1);
+
+        assertFalse(report.isCompleted());
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testWarmUpInvalidBudget() {
+        CryptoKit.warmUp(0);
+    }
+}
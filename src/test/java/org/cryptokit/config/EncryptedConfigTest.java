@@ -0,0 +1,140 @@
+package org.cryptokit.config;
+
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class EncryptedConfigTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SymmetricCrypto mCrypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+
+    private Path writeConfig(String... lines) throws Exception {
+        Path path = folder.getRoot().toPath().resolve("service.properties");
+        Path temp = folder.getRoot().toPath().resolve("service.properties.tmp");
+        Files.write(temp, Arrays.asList(lines), StandardCharsets.UTF_8);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return path;
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        Path path = writeConfig(
+                "db.url=jdbc:postgresql://localhost/app",
+                "db.password=" + mCrypto.encrypt("s3cret"),
+                "api.key=" + mCrypto.encrypt("key-123"));
+        EncryptedConfig config = new EncryptedConfig(path, mCrypto);
+        config.setParallelism(2);
+        config.load();
+
+        assertEquals(config.get("db.url"), "jdbc:postgresql://localhost/app");
+        assertEquals(config.get("db.password"), "s3cret");
+        assertEquals(config.get("api.key"), "key-123");
+        assertNull(config.get("missing"));
+        assertEquals(config.get("missing", "default"), "default");
+        assertEquals(config.getKeys(), new HashSet<>(Arrays.asList("db.url", "db.password", "api.key")));
+        assertEquals(config.getVersion(), 1);
+    }
+
+    @Test
+    public void testTokenDetection() {
+        assertTrue(SymmetricCrypto.isCryptoToken(mCrypto.encrypt("value")));
+        assertTrue(SymmetricCrypto.isCryptoToken(new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey()).encrypt("value")));
+        assertFalse(SymmetricCrypto.isCryptoToken("plain.value.here"));
+        assertFalse(SymmetricCrypto.isCryptoToken("ck_sg1"));
+        assertFalse(SymmetricCrypto.isCryptoToken(null));
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testLoadFailsOnBadToken() throws Exception {
+        SymmetricCrypto other = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+        Path path = writeConfig("good=" + mCrypto.encrypt("good"), "bad=" + other.encrypt("bad"));
+
+        new EncryptedConfig(path, mCrypto).load();
+    }
+
+    @Test
+    public void testLazyDecryptsOnLookup() throws Exception {
+        SymmetricCrypto other = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+        Path path = writeConfig("good=" + mCrypto.encrypt("good"), "bad=" + other.encrypt("bad"));
+        EncryptedConfig config = new EncryptedConfig(path, mCrypto);
+        config.setLazy(true);
+        config.load();
+
+        assertEquals(config.get("good"), "good");
+        try {
+            config.get("bad");
+            fail("Expected the bad token to fail on lookup");
+        } catch (DecryptionFailedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testReloadOnlyChangedEntries() throws Exception {
+        String password = mCrypto.encrypt("s3cret");
+        Path path = writeConfig("db.password=" + password, "api.key=" + mCrypto.encrypt("key-1"), "old=value");
+        EncryptedConfig config = new EncryptedConfig(path, mCrypto);
+        config.load();
+
+        writeConfig("db.password=" + password, "api.key=" + mCrypto.encrypt("key-2"), "new=value");
+        assertEquals(config.reload(), new HashSet<>(Arrays.asList("api.key", "old", "new")));
+        assertEquals(config.get("api.key"), "key-2");
+        assertEquals(config.get("db.password"), "s3cret");
+        assertNull(config.get("old"));
+        assertEquals(config.getVersion(), 2);
+
+        assertEquals(config.reload(), Collections.emptySet());
+        assertEquals(config.getVersion(), 2);
+    }
+
+    @Test
+    public void testFailedReloadKeepsSnapshot() throws Exception {
+        SymmetricCrypto other = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+        Path path = writeConfig("api.key=" + mCrypto.encrypt("key-1"));
+        EncryptedConfig config = new EncryptedConfig(path, mCrypto);
+        config.load();
+
+        writeConfig("api.key=" + other.encrypt("key-2"));
+        try {
+            config.reload();
+            fail("Expected the reload to fail");
+        } catch (DecryptionFailedException e) {
+            // Expected
+        }
+        assertEquals(config.get("api.key"), "key-1");
+        assertEquals(config.getVersion(), 1);
+    }
+
+    @Test
+    public void testWatchReloads() throws Exception {
+        Path path = writeConfig("api.key=" + mCrypto.encrypt("key-1"));
+        try (EncryptedConfig config = new EncryptedConfig(path, mCrypto)) {
+            config.load();
+            config.watch();
+
+            writeConfig("api.key=" + mCrypto.encrypt("key-2"));
+            long deadline = System.currentTimeMillis() + 30000;
+            while (config.getVersion() < 2 && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+
+            assertEquals(config.get("api.key"), "key-2");
+            assertEquals(config.getReloadFailures(), 0);
+        }
+    }
+}
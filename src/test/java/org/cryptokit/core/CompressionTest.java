@@ -0,0 +1,56 @@
+package org.cryptokit.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+    private static final byte[] TEXT = new String(new char[4000]).replace('\0', 'a').getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] compressed = Compression.deflate(TEXT, TEXT.length);
+
+        assertNotNull(compressed);
+        assertArrayEquals(Compression.inflate(compressed), TEXT);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testForgedLengthPrefix() throws Exception {
+        byte[] compressed = Compression.deflate(TEXT, TEXT.length);
+        compressed[0] = 0x7f;
+        compressed[1] = (byte) 0xff;
+        compressed[2] = (byte) 0xff;
+        compressed[3] = (byte) 0xff;
+
+        Compression.inflate(compressed);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testLongerThanPrefix() throws Exception {
+        byte[] compressed = Compression.deflate(TEXT, TEXT.length);
+        compressed[2] = 0;
+        compressed[3] = 10;
+
+        Compression.inflate(compressed);
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void testTruncated() throws Exception {
+        byte[] compressed = Compression.deflate(TEXT, TEXT.length);
+
+        Compression.inflate(Arrays.copyOf(compressed, compressed.length - 2));
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        Compression.release();
+
+        assertArrayEquals(Compression.inflate(Compression.deflate(TEXT, TEXT.length)), TEXT);
+        Compression.release();
+    }
+}
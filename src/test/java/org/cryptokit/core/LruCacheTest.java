@@ -0,0 +1,69 @@
+package org.cryptokit.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LruCacheTest {
+
+    @Test
+    public void testNeverExceedsMaximumSize() {
+        for (int maximumSize : new int[]{1, 2, 15, 17, 100, 257}) {
+            LruCache<Integer, Integer> cache = new LruCache<>(maximumSize);
+            for (int i = 0; i < maximumSize * 20; i++)
+                cache.put(i, i);
+
+            assertEquals(cache.size(), maximumSize);
+            assertEquals(cache.getEvictionCount(), maximumSize * 19);
+        }
+    }
+
+    @Test
+    public void testSmallCacheHoldsEveryKey() {
+        LruCache<String, Integer> cache = new LruCache<>(16);
+        for (int i = 0; i < 16; i++)
+            cache.put("key " + i, i);
+
+        for (int i = 0; i < 16; i++)
+            assertEquals(cache.get("key " + i), Integer.valueOf(i));
+        assertEquals(cache.getEvictionCount(), 0);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<String, Integer> cache = new LruCache<>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.get("a");
+        cache.put("c", 3);
+
+        assertEquals(cache.get("a"), Integer.valueOf(1));
+        assertNull(cache.get("b"));
+        assertEquals(cache.getHitCount(), 2);
+        assertEquals(cache.getMissCount(), 1);
+    }
+
+    @Test
+    public void testExplicitRemovalIsNotAnEviction() {
+        List<Integer> released = new ArrayList<>();
+        LruCache<String, Integer> cache = new LruCache<String, Integer>(4) {
+            @Override
+            protected void onEviction(String key, Integer value) {
+                released.add(value);
+            }
+        };
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        cache.put("a", 4);
+        assertEquals(cache.remove("b"), Integer.valueOf(2));
+        cache.clear();
+
+        assertEquals(released, Arrays.asList(1, 2, 3, 4));
+        assertEquals(cache.getEvictionCount(), 0);
+    }
+}
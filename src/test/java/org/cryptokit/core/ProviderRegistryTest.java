@@ -0,0 +1,119 @@
+package org.cryptokit.core;
+
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.After;
+import org.junit.Test;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ProviderRegistryTest {
+
+    @After
+    public void tearDown() {
+        ProviderRegistry.reset();
+    }
+
+    @Test
+    public void testDefaultProviderIsNotPinned() throws Exception {
+        assertNull(ProviderRegistry.getProvider(CryptoConstants.AES_CIPHER_ALGORITHM));
+        assertNotNull(ProviderRegistry.getCipher(CryptoConstants.AES_CIPHER_ALGORITHM));
+    }
+
+    @Test
+    public void testKnownAnswerTests() {
+        for (ProviderRegistry.Primitive primitive : ProviderRegistry.Primitive.values()) {
+            boolean passed = false;
+            for (Provider provider : Security.getProviders())
+                passed |= primitive.passesKnownAnswerTest(provider);
+
+            assertTrue("No provider passes the known-answer test for " + primitive, passed);
+        }
+    }
+
+    @Test
+    public void testCalibrate() {
+        Map<ProviderRegistry.Primitive, String> selection = ProviderRegistry.calibrate(2);
+
+        assertEquals(selection.size(), ProviderRegistry.Primitive.values().length);
+        for (ProviderRegistry.Primitive primitive : ProviderRegistry.Primitive.values())
+            assertEquals(ProviderRegistry.getProvider(primitive.getAlgorithm()).getName(), selection.get(primitive));
+
+        SymmetricCrypto crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey());
+        assertEquals(crypto.decrypt(crypto.encrypt("secret")), "secret");
+    }
+
+    @Test
+    public void testSetProvider() throws Exception {
+        ProviderRegistry.setProvider(CryptoConstants.AES_CIPHER_ALGORITHM, "SunJCE");
+
+        assertEquals(ProviderRegistry.getCipher(CryptoConstants.AES_CIPHER_ALGORITHM).getProvider().getName(), "SunJCE");
+
+        ProviderRegistry.setProvider(CryptoConstants.AES_CIPHER_ALGORITHM, null);
+        assertNull(ProviderRegistry.getProvider(CryptoConstants.AES_CIPHER_ALGORITHM));
+    }
+
+    @Test
+    public void testCalibrateKeepsExplicitProvider() {
+        // Calibration would never choose SUN for HMAC, so only the explicit pin can keep it
+        ProviderRegistry.setProvider(CryptoConstants.HMAC_ALGORITHM, "SUN");
+
+        for (int i = 0; i < 2; i++) {
+            Map<ProviderRegistry.Primitive, String> selection = ProviderRegistry.calibrate(2);
+
+            assertEquals(selection.get(ProviderRegistry.Primitive.HMAC), "SUN");
+            assertEquals(ProviderRegistry.getProvider(CryptoConstants.HMAC_ALGORITHM).getName(), "SUN");
+        }
+    }
+
+    @Test
+    public void testResetReadsPropertiesAgain() {
+        String property = ProviderRegistry.PROVIDER_PROPERTY_PREFIX + CryptoConstants.AES_CTR_CIPHER_ALGORITHM;
+        assertNull(ProviderRegistry.getProvider(CryptoConstants.AES_CTR_CIPHER_ALGORITHM));
+
+        System.setProperty(property, "SunJCE");
+        try {
+            assertNull(ProviderRegistry.getProvider(CryptoConstants.AES_CTR_CIPHER_ALGORITHM));
+            ProviderRegistry.reset();
+            assertEquals(ProviderRegistry.getProvider(CryptoConstants.AES_CTR_CIPHER_ALGORITHM).getName(), "SunJCE");
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void testPropertyPinsAnyAlgorithm() throws Exception {
+        String property = ProviderRegistry.PROVIDER_PROPERTY_PREFIX + CryptoConstants.RSA_SIGNATURE_ALGORITHM;
+        System.setProperty(property, "SunRsaSign");
+        try {
+            assertEquals(ProviderRegistry.getSignature(CryptoConstants.RSA_SIGNATURE_ALGORITHM).getProvider().getName(), "SunRsaSign");
+
+            // An explicit override wins over the property
+            ProviderRegistry.setProvider(CryptoConstants.RSA_SIGNATURE_ALGORITHM, null);
+            assertNull(ProviderRegistry.getProvider(CryptoConstants.RSA_SIGNATURE_ALGORITHM));
+        } finally {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void testPbkdf2DigestFollowsPin() throws Exception {
+        byte[] salt = Crypto.generateRandomBytes(16);
+        byte[] expected = Crypto.pbkdf2("password", salt, 100, 32);
+        ProviderRegistry.setProvider(CryptoConstants.PBKDF2_DIGEST_ALGORITHM, "SUN");
+
+        assertEquals(ProviderRegistry.getMessageDigest(CryptoConstants.PBKDF2_DIGEST_ALGORITHM).getProvider().getName(), "SUN");
+        assertArrayEquals(Crypto.pbkdf2(StringUtils.getStringBytes("password"), 0, 8, salt, 100, 32), expected);
+        assertEquals(CryptoConstants.PBKDF2_HASH_ALGORITHM, "PBKDF2WithHmacSHA1");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testSetUnknownProvider() {
+        ProviderRegistry.setProvider(CryptoConstants.AES_CIPHER_ALGORITHM, "NoSuchProvider");
+    }
+}
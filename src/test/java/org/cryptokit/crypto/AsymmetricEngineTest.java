@@ -0,0 +1,125 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class AsymmetricEngineTest {
+    private static KeyPair sKeyPair;
+    private static AsymmetricEngine sEngine;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sKeyPair = RandomKeyGenerator.generateAsymmetricKeyPair();
+        sEngine = new AsymmetricEngine(4, 16);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        sEngine.close();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testEncryptDecrypt() {
+        byte[] cipherBytes = sEngine.encrypt(sKeyPair.getPublic(), bytes("wrapped key material"));
+
+        assertEquals(cipherBytes.length, 256);
+        assertArrayEquals(sEngine.decrypt(sKeyPair.getPrivate(), cipherBytes), bytes("wrapped key material"));
+        assertArrayEquals(sEngine.decryptAsync(sKeyPair.getPrivate(), cipherBytes).join(), bytes("wrapped key material"));
+    }
+
+    @Test
+    public void testSignVerify() {
+        byte[] signature = sEngine.sign(sKeyPair.getPrivate(), bytes("message"));
+
+        assertTrue(sEngine.verify(sKeyPair.getPublic(), bytes("message"), signature));
+        assertFalse(sEngine.verify(sKeyPair.getPublic(), bytes("massage"), signature));
+        signature[10] ^= 1;
+        assertFalse(sEngine.verify(sKeyPair.getPublic(), bytes("message"), signature));
+        assertFalse(sEngine.verify(sKeyPair.getPublic(), bytes("message"), new byte[3]));
+        assertTrue(sEngine.verify(sKeyPair.getPublic(), bytes("message"), sEngine.sign(sKeyPair.getPrivate(), bytes("message"))));
+    }
+
+    @Test
+    public void testBatchesKeepOrder() {
+        List<byte[]> plain = new ArrayList<>();
+        List<byte[]> cipher = new ArrayList<>();
+        for (int i = 0; i < 37; i++) {
+            plain.add(bytes("secret " + i));
+            cipher.add(sEngine.encrypt(sKeyPair.getPublic(), plain.get(i)));
+        }
+
+        List<byte[]> decrypted = sEngine.decryptAll(sKeyPair.getPrivate(), cipher);
+        List<byte[]> signatures = sEngine.signAll(sKeyPair.getPrivate(), plain);
+
+        assertEquals(decrypted.size(), 37);
+        assertEquals(signatures.size(), 37);
+        for (int i = 0; i < 37; i++) {
+            assertArrayEquals(decrypted.get(i), plain.get(i));
+            assertTrue(sEngine.verify(sKeyPair.getPublic(), plain.get(i), signatures.get(i)));
+        }
+        assertTrue(sEngine.decryptAll(sKeyPair.getPrivate(), new ArrayList<>()).isEmpty());
+    }
+
+    @Test
+    public void testPoolsAreReused() {
+        AsymmetricEngine engine = new AsymmetricEngine(2, 16);
+        try {
+            byte[] cipherBytes = engine.encrypt(sKeyPair.getPublic(), bytes("secret"));
+            List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++)
+                futures.add(engine.decryptAsync(sKeyPair.getPrivate(), cipherBytes));
+            for (CompletableFuture<byte[]> future : futures)
+                assertArrayEquals(future.join(), bytes("secret"));
+
+            // One public key cipher, and at most one private key cipher per worker
+            assertTrue(engine.getInstancesCreated() <= 3);
+            assertEquals(engine.getOperationCount(), 20);
+            assertTrue(engine.getAverageComputeMicros() > 0);
+            assertTrue(engine.getAverageQueueMicros() > 0);
+            assertEquals(engine.getQueueDepth(), 0);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testLoadedKeysAreCachedWithCrtParameters() {
+        PrivateKey privateKey = sEngine.loadPrivateKey(sKeyPair.getPrivate().getEncoded());
+        PublicKey publicKey = sEngine.loadPublicKey(sKeyPair.getPublic().getEncoded());
+
+        assertSame(sEngine.loadPrivateKey(sKeyPair.getPrivate().getEncoded()), privateKey);
+        assertSame(sEngine.loadPublicKey(sKeyPair.getPublic().getEncoded()), publicKey);
+        assertTrue(AsymmetricEngine.hasCrtParameters(privateKey));
+        assertArrayEquals(sEngine.decrypt(privateKey, sEngine.encrypt(publicKey, bytes("secret"))), bytes("secret"));
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testWrongKey() {
+        KeyPair other = RandomKeyGenerator.generateAsymmetricKeyPair();
+
+        sEngine.decrypt(sKeyPair.getPrivate(), sEngine.encrypt(other.getPublic(), bytes("secret")));
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testInvalidEncodedKey() {
+        sEngine.loadPrivateKey(new byte[]{1, 2, 3});
+    }
+}
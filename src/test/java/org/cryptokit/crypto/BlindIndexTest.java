@@ -0,0 +1,119 @@
+package org.cryptokit.crypto;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.KeyLoader;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlindIndexTest {
+    BlindIndex blindIndex;
+    SecretKey secretKey;
+
+    @Before
+    public void setUp() {
+        secretKey = RandomKeyGenerator.generateSymmetricKey();
+        blindIndex = new BlindIndex(secretKey, "users.email");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorNullKey() {
+        new BlindIndex(null, "users.email");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorEmptyName() {
+        new BlindIndex(secretKey, " ");
+    }
+
+    @Test
+    public void testIndex() {
+        String index = blindIndex.index("alice@example.com");
+
+        assertTrue(Base64.isBase64(index));
+        assertEquals(Base64.decodeBase64(index).length, blindIndex.getIndexBytes());
+        assertEquals(index, blindIndex.index("alice@example.com"));
+    }
+
+    @Test
+    public void testIndexNormalized() {
+        assertEquals(blindIndex.index("alice@example.com"), blindIndex.index(" Alice@Example.COM "));
+    }
+
+    @Test
+    public void testIndexExact() {
+        blindIndex.setNormalizer(BlindIndex.EXACT);
+
+        assertNotEquals(blindIndex.index("alice@example.com"), blindIndex.index("Alice@example.com"));
+    }
+
+    @Test
+    public void testIndexDependsOnNameAndKey() {
+        BlindIndex otherName = new BlindIndex(secretKey, "users.name");
+        BlindIndex otherKey = new BlindIndex(RandomKeyGenerator.generateSymmetricKey(), "users.email");
+
+        assertNotEquals(blindIndex.index("alice"), otherName.index("alice"));
+        assertNotEquals(blindIndex.index("alice"), otherKey.index("alice"));
+    }
+
+    @Test
+    public void testIndexBytes() {
+        blindIndex.setIndexBytes(2);
+
+        assertEquals(Base64.decodeBase64(blindIndex.index("alice")).length, 2);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testIndexBytesTooLarge() {
+        blindIndex.setIndexBytes(33);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testIndexEmpty() {
+        blindIndex.index(" ");
+    }
+
+    @Test
+    public void testCompoundIndex() {
+        assertEquals(blindIndex.compoundIndex("ab", "c"), blindIndex.compoundIndex("AB", "c"));
+        assertNotEquals(blindIndex.compoundIndex("ab", "c"), blindIndex.compoundIndex("a", "bc"));
+        assertNotEquals(blindIndex.compoundIndex("abc"), blindIndex.index("abc"));
+    }
+
+    @Test
+    public void testPrefixIndex() {
+        assertEquals(blindIndex.prefixIndex("alice@example.com", 3), blindIndex.prefixIndex("Alibaba", 3));
+        assertNotEquals(blindIndex.prefixIndex("alice", 3), blindIndex.prefixIndex("alice", 4));
+        assertNotEquals(blindIndex.prefixIndex("ali", 3), blindIndex.index("ali"));
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testPrefixIndexTooShort() {
+        blindIndex.prefixIndex("al", 3);
+    }
+
+    @Test
+    public void testBatchIndex() {
+        List<String> indexes = blindIndex.index(Arrays.asList("alice", "bob", "alice"));
+
+        assertEquals(indexes.size(), 3);
+        assertEquals(indexes.get(0), blindIndex.index("alice"));
+        assertEquals(indexes.get(1), blindIndex.index("bob"));
+        assertEquals(indexes.get(0), indexes.get(2));
+    }
+
+    @Test
+    public void testKnownGoodIndex() {
+        BlindIndex blindIndex = new BlindIndex(KeyLoader.SymmetricKeyFromString("1234567890abcdef1234567890abcdef"), "users.email");
+
+        // This will detect if the index derivation is changed in some incompatible way by mistake
+        assertEquals(blindIndex.index("alice@example.com"), "lxCj4pX9fng");
+    }
+}
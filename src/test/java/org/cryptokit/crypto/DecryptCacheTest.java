@@ -0,0 +1,124 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DecryptCacheTest {
+    private final SymmetricCrypto mCrypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+
+    @Test
+    public void testHitsAndMisses() {
+        DecryptCache cache = new DecryptCache(mCrypto);
+        String token = mCrypto.encrypt("api-key-123");
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(cache.decrypt(token), "api-key-123");
+
+        assertEquals(cache.getMissCount(), 1);
+        assertEquals(cache.getHitCount(), 9);
+        assertEquals(cache.getHitRate(), 0.9, 0.0001);
+        assertEquals(cache.size(), 1);
+    }
+
+    @Test
+    public void testOffHeap() {
+        DecryptCache cache = new DecryptCache(mCrypto, 1024 * 1024, 60000, true);
+        String token = mCrypto.encrypt("pässwörd ✓");
+
+        assertEquals(cache.decrypt(token), "pässwörd ✓");
+        assertEquals(cache.decrypt(token), "pässwörd ✓");
+        assertEquals(cache.getHitCount(), 1);
+        assertTrue(cache.isOffHeap());
+
+        cache.clear();
+        assertEquals(cache.size(), 0);
+        assertEquals(cache.getWeightedSize(), 0);
+        assertEquals(cache.decrypt(token), "pässwörd ✓");
+    }
+
+    @Test
+    public void testSizeWeightedEviction() {
+        DecryptCache cache = new DecryptCache(mCrypto, 256 * 1024, 60000, false);
+        String value = new String(new char[1000]).replace('\0', 'x');
+
+        for (int i = 0; i < 500; i++)
+            cache.decrypt(mCrypto.encrypt(value + i));
+
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getWeightedSize() <= cache.getMaximumBytes());
+        assertTrue(cache.size() < 500);
+    }
+
+    @Test
+    public void testTooLargeIsNotCached() {
+        DecryptCache cache = new DecryptCache(mCrypto, 16 * 1024, 60000, false);
+        String token = mCrypto.encrypt(new String(new char[5000]).replace('\0', 'x'));
+
+        cache.decrypt(token);
+        cache.decrypt(token);
+
+        assertEquals(cache.getMissCount(), 2);
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        DecryptCache cache = new DecryptCache(mCrypto, 1024 * 1024, 1, true);
+        String token = mCrypto.encrypt("short lived");
+
+        cache.decrypt(token);
+        Thread.sleep(5);
+        assertEquals(cache.decrypt(token), "short lived");
+
+        assertEquals(cache.getMissCount(), 2);
+        assertEquals(cache.getExpirationCount(), 1);
+    }
+
+    @Test
+    public void testUnreadEntriesExpire() throws Exception {
+        DecryptCache cache = new DecryptCache(mCrypto, 1024 * 1024, 50, true);
+        for (int i = 0; i < 100; i++)
+            cache.decrypt(mCrypto.encrypt("unread " + i));
+        assertEquals(cache.size(), 100);
+
+        Thread.sleep(60);
+        for (int i = 0; i < 100; i++)
+            cache.decrypt(mCrypto.encrypt("fresh " + i));
+
+        // Adding to a segment removes its expired entries, so an unread plain text does not linger
+        assertTrue(cache.getExpirationCount() > 0);
+        assertTrue(cache.size() < 200);
+        assertEquals(cache.getEvictionCount(), 0);
+
+        Thread.sleep(60);
+        cache.removeExpired();
+        assertEquals(cache.size(), 0);
+        assertEquals(cache.getWeightedSize(), 0);
+        assertEquals(cache.getExpirationCount(), 200);
+    }
+
+    @Test
+    public void testFailureIsNotCached() {
+        DecryptCache cache = new DecryptCache(mCrypto);
+        String token = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM).encrypt("other");
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.decrypt(token);
+                fail("Expected DecryptionFailedException");
+            } catch (DecryptionFailedException e) {
+                // Expected
+            }
+        }
+        assertEquals(cache.size(), 0);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testEmptyToken() {
+        new DecryptCache(mCrypto).decrypt("");
+    }
+}
@@ -0,0 +1,131 @@
+package org.cryptokit.crypto;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.cryptokit.core.Crypto;
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.KeyLoader;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.*;
+
+public class DeterministicCryptoTest {
+    DeterministicCrypto crypto;
+    SecretKey secretKey;
+
+    @Before
+    public void setUp() {
+        secretKey = RandomKeyGenerator.generateSymmetricKey();
+        crypto = new DeterministicCrypto(secretKey);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorNullKey() {
+        new DeterministicCrypto(null);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorShortKey() {
+        new DeterministicCrypto(KeyLoader.SymmetricKeyFromString("1234567890abcdef"));
+    }
+
+    @Test
+    public void testEncrypt() {
+        String cryptoToken = crypto.encrypt("secret");
+        validateDeterministicCryptoFormat(cryptoToken);
+    }
+
+    @Test
+    public void testEncryptSameSecretTwice() {
+        String cryptoToken1 = crypto.encrypt("secret");
+        String cryptoToken2 = crypto.encrypt("secret");
+
+        assertEquals(cryptoToken1, cryptoToken2);
+    }
+
+    @Test
+    public void testEncryptDifferentSecrets() {
+        String cryptoToken1 = crypto.encrypt("secret");
+        String cryptoToken2 = crypto.encrypt("secreT");
+
+        assertNotEquals(cryptoToken1, cryptoToken2);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testEncryptNull() {
+        crypto.encrypt(null);
+    }
+
+    @Test
+    public void testDecrypt() {
+        String cryptoToken = crypto.encrypt("secret");
+
+        assertEquals(crypto.decrypt(cryptoToken), "secret");
+    }
+
+    @Test
+    public void testDecryptLongUnicode() {
+        String plainText = "秘密 longer than a single AES block of plain text";
+        String cryptoToken = crypto.encrypt(plainText);
+
+        assertEquals(crypto.decrypt(cryptoToken), plainText);
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testDecryptWithWrongKey() {
+        String cryptoToken = crypto.encrypt("secret");
+        DeterministicCrypto wrongCrypto = new DeterministicCrypto(RandomKeyGenerator.generateSymmetricKey());
+
+        wrongCrypto.decrypt(cryptoToken);
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testDecryptRandomizedToken() {
+        String cryptoToken = new SymmetricCrypto(secretKey).encrypt("secret");
+
+        crypto.decrypt(cryptoToken);
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testDecryptWithGarbage() {
+        crypto.decrypt("xxyyzz");
+    }
+
+    @Test
+    public void testDecryptKnownGoodV1Token() {
+        SecretKey secretKey = KeyLoader.SymmetricKeyFromString("1234567890abcdef1234567890abcdef");
+        DeterministicCrypto crypto = new DeterministicCrypto(secretKey);
+
+        // This will detect if the token format itself is changed in some incompatible way by mistake
+        assertEquals(crypto.decrypt("ck_sd1.rJ0uz0lfL9CECnn1bktrJw.p88yyzlL"), "secret");
+    }
+
+    @Test
+    public void testAesSivRfc5297Vector() throws Exception {
+        // RFC 5297 appendix A.1, deterministic authenticated encryption example
+        SecretKey key = KeyLoader.SymmetricKey(Hex.decodeHex(
+                "fffefdfcfbfaf9f8f7f6f5f4f3f2f1f0f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff".toCharArray()));
+        byte[] associatedData = Hex.decodeHex("101112131415161718191a1b1c1d1e1f2021222324252627".toCharArray());
+        byte[] plainBytes = Hex.decodeHex("112233445566778899aabbccddee".toCharArray());
+
+        byte[] sivBytes = Crypto.aesSivEncrypt(key, plainBytes, associatedData);
+
+        assertEquals("85632d07c6e8f37f950acd320a2ecc9340c02b9690c4dc04daef7f6afe5c", Hex.encodeHexString(sivBytes));
+        assertArrayEquals(plainBytes, Crypto.aesSivDecrypt(key, sivBytes, associatedData));
+    }
+
+    private void validateDeterministicCryptoFormat(String cryptoToken) {
+        String[] segments = cryptoToken.split(CryptoConstants.SEGMENT_DELIMITER_PATTERN);
+        assertEquals(segments.length, CryptoTokenSpec.CRYPTO_NUM_SEGMENTS);
+        assertEquals(segments[CryptoTokenSpec.CRYPTO_SEGMENT_HEADER], CryptoTokenSpec.DETERMINISTIC_CRYPTO_TOKEN_HEADER);
+        assertTrue(Base64.isBase64(segments[CryptoTokenSpec.CRYPTO_SEGMENT_IV]));
+        assertTrue(Base64.isBase64(segments[CryptoTokenSpec.CRYPTO_SEGMENT_CIPHER]));
+    }
+}
@@ -0,0 +1,105 @@
+package org.cryptokit.crypto;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.json.JsonEncryptedStringAdapterFactory;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EncryptedStringTest {
+    private final AtomicInteger mDecryptCount = new AtomicInteger();
+    private final SymmetricCrypto mCrypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM) {
+        @Override
+        public String decrypt(final String cryptoToken) {
+            mDecryptCount.incrementAndGet();
+            return super.decrypt(cryptoToken);
+        }
+    };
+
+    static class Customer {
+        String name;
+        EncryptedString ssn;
+        EncryptedString email;
+    }
+
+    @Test
+    public void testDecryptsOnceOnFirstAccess() {
+        EncryptedString value = new EncryptedString(mCrypto, mCrypto.encrypt("123-45-6789"));
+
+        assertFalse(value.isDecrypted());
+        assertEquals(mDecryptCount.get(), 0);
+        assertEquals(value.get(), "123-45-6789");
+        assertEquals(value.get(), "123-45-6789");
+        assertTrue(value.isDecrypted());
+        assertEquals(mDecryptCount.get(), 1);
+    }
+
+    @Test
+    public void testDecryptsOnceAcrossThreads() throws Exception {
+        final EncryptedString value = new EncryptedString(mCrypto, mCrypto.encrypt("shared"));
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                assertEquals(value.get(), "shared");
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(mDecryptCount.get(), 1);
+    }
+
+    @Test
+    public void testEncryptIsAlreadyDecrypted() {
+        EncryptedString value = EncryptedString.encrypt(mCrypto, "new value");
+
+        assertTrue(value.isDecrypted());
+        assertEquals(value.get(), "new value");
+        assertEquals(mCrypto.decrypt(value.getCryptoToken()), "new value");
+    }
+
+    @Test
+    public void testToStringHidesPlainText() {
+        EncryptedString value = EncryptedString.encrypt(mCrypto, "secret");
+
+        assertFalse(value.toString().contains("secret"));
+        assertFalse(value.toString().contains(value.getCryptoToken()));
+    }
+
+    @Test
+    public void testGsonRoundTripWithoutDecrypting() {
+        Gson gson = new GsonBuilder().registerTypeAdapterFactory(new JsonEncryptedStringAdapterFactory(mCrypto)).create();
+        String json = "{\"name\":\"Ann\",\"ssn\":\"" + mCrypto.encrypt("123-45-6789") + "\"}";
+
+        Customer customer = gson.fromJson(json, Customer.class);
+        assertNull(customer.email);
+        assertFalse(customer.ssn.isDecrypted());
+        assertEquals(gson.toJson(customer), json);
+        assertEquals(mDecryptCount.get(), 0);
+
+        assertEquals(customer.ssn.get(), "123-45-6789");
+        assertEquals(gson.toJson(customer), json);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testEmptyToken() {
+        new EncryptedString(mCrypto, "");
+    }
+}
@@ -0,0 +1,117 @@
+package org.cryptokit.crypto;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.exception.PreconditionFailedException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class NonceAllocatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNonceFormat() {
+        NonceAllocator allocator = new NonceAllocator();
+        byte[] first = allocator.next();
+        byte[] second = allocator.next();
+
+        assertEquals(first.length, 12);
+        assertEquals(Hex.encodeHexString(first).substring(0, 8), Hex.encodeHexString(second).substring(0, 8));
+        assertEquals(ByteBuffer.wrap(second, 4, 8).getLong(), ByteBuffer.wrap(first, 4, 8).getLong() + 1);
+    }
+
+    @Test
+    public void testCounterStartsAtRandomOffset() {
+        long first = ByteBuffer.wrap(new NonceAllocator().next(), 4, 8).getLong();
+        long second = ByteBuffer.wrap(new NonceAllocator().next(), 4, 8).getLong();
+
+        assertTrue(first >= 0 && first < 1L << 62);
+        assertTrue(second >= 0 && second < 1L << 62);
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void testUniqueAcrossThreads() throws Exception {
+        final NonceAllocator allocator = new NonceAllocator(16);
+        final Set<String> nonces = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    nonces.add(Hex.encodeHexString(allocator.next()));
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(nonces.size(), 80000);
+    }
+
+    @Test
+    public void testHighWaterMarkSurvivesRestart() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("nonces");
+        long lastCounter;
+        try (NonceAllocator allocator = new NonceAllocator(file)) {
+            byte[] nonce = null;
+            for (int i = 0; i < 5000; i++)
+                nonce = allocator.next();
+            lastCounter = ByteBuffer.wrap(nonce, 4, 8).getLong();
+        }
+        long highWaterMark = ByteBuffer.wrap(Files.readAllBytes(file)).getLong();
+        assertTrue(highWaterMark > lastCounter);
+
+        try (NonceAllocator allocator = new NonceAllocator(file)) {
+            assertEquals(ByteBuffer.wrap(allocator.next(), 4, 8).getLong(), highWaterMark);
+        }
+    }
+
+    @Test(expected = PreconditionFailedException.class)
+    public void testFileInUse() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("nonces");
+        try (NonceAllocator allocator = new NonceAllocator(file)) {
+            assertNotNull(allocator.next());
+            new NonceAllocator(file);
+        }
+    }
+
+    @Test(expected = PreconditionFailedException.class)
+    public void testNextAfterClose() throws Exception {
+        NonceAllocator allocator = new NonceAllocator();
+        assertNotNull(allocator.next());
+        allocator.close();
+        allocator.next();
+    }
+
+    @Test
+    public void testSymmetricCryptoWithAllocator() {
+        SymmetricCrypto crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+        crypto.setNonceAllocator(new NonceAllocator());
+
+        String cryptoToken1 = crypto.encrypt("secret");
+        String cryptoToken2 = crypto.encrypt("secret");
+
+        assertNotEquals(cryptoToken1, cryptoToken2);
+        assertEquals(crypto.decrypt(cryptoToken1), "secret");
+        assertEquals(crypto.decrypt(cryptoToken2), "secret");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testSymmetricCryptoCbcRejectsAllocator() {
+        new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey()).setNonceAllocator(new NonceAllocator());
+    }
+}
@@ -0,0 +1,129 @@
+package org.cryptokit.crypto;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class RecordContainerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecretKey mKey = RandomKeyGenerator.generateSymmetricKey();
+
+    private Path writeRecords(int count, int blockSize) throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.ckrc");
+        try (RecordContainerWriter writer = new RecordContainerWriter(file, mKey)) {
+            writer.setBlockSize(blockSize);
+            for (int i = 0; i < count; i++)
+                assertEquals(writer.append(("record " + i).getBytes(StandardCharsets.UTF_8)), i);
+        }
+
+        return file;
+    }
+
+    @Test
+    public void testRandomAccess() throws Exception {
+        Path file = writeRecords(1000, 256);
+
+        try (RecordContainerReader reader = new RecordContainerReader(file, mKey)) {
+            assertEquals(reader.getRecordCount(), 1000);
+            assertTrue(reader.getBlockCount() > 1);
+            for (int i : new int[]{999, 0, 500, 17, 998})
+                assertEquals(new String(reader.read(i), StandardCharsets.UTF_8), "record " + i);
+        }
+    }
+
+    @Test
+    public void testBlockCache() throws Exception {
+        Path file = writeRecords(100, 4096);
+
+        try (RecordContainerReader reader = new RecordContainerReader(file, mKey)) {
+            assertEquals(reader.getBlockCount(), 1);
+            for (int i = 0; i < 100; i++)
+                reader.read(i);
+
+            assertEquals(reader.getCacheMissCount(), 1);
+            assertEquals(reader.getCacheHitCount(), 99);
+        }
+    }
+
+    @Test
+    public void testEmptyAndLargeRecords() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.ckrc");
+        byte[] large = new byte[10000];
+        large[9999] = 7;
+        try (RecordContainerWriter writer = new RecordContainerWriter(file, mKey)) {
+            writer.setBlockSize(100);
+            writer.append(new byte[0]);
+            writer.append(large);
+            writer.append(new byte[]{1});
+        }
+
+        try (RecordContainerReader reader = new RecordContainerReader(file, mKey)) {
+            assertEquals(reader.read(0).length, 0);
+            assertArrayEquals(reader.read(1), large);
+            assertArrayEquals(reader.read(2), new byte[]{1});
+        }
+    }
+
+    @Test
+    public void testEmptyContainer() throws Exception {
+        Path file = writeRecords(0, 256);
+
+        try (RecordContainerReader reader = new RecordContainerReader(file, mKey)) {
+            assertEquals(reader.getRecordCount(), 0);
+            assertEquals(reader.getBlockCount(), 0);
+        }
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testReadPastEnd() throws Exception {
+        Path file = writeRecords(10, 256);
+
+        try (RecordContainerReader reader = new RecordContainerReader(file, mKey)) {
+            reader.read(10);
+        }
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testWrongKey() throws Exception {
+        Path file = writeRecords(10, 256);
+
+        new RecordContainerReader(file, RandomKeyGenerator.generateSymmetricKey()).close();
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testTamperedBlock() throws Exception {
+        Path file = writeRecords(10, 256);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(40);
+            int value = raf.read();
+            raf.seek(40);
+            raf.write(value ^ 1);
+        }
+
+        try (RecordContainerReader reader = new RecordContainerReader(file, mKey)) {
+            reader.read(0);
+        }
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testUnclosedWriter() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.ckrc");
+        RecordContainerWriter writer = new RecordContainerWriter(file, mKey);
+        writer.append(new byte[100]);
+
+        new RecordContainerReader(file, mKey).close();
+    }
+}
@@ -120,6 +120,129 @@ public class SymmetricCryptoTest {
         crypto.decrypt(invalidCryptoToken);
     }
 
+    @Test
+    public void testDefaultModeIsAesCbc() {
+        assertEquals(crypto.getMode(), SymmetricCrypto.Mode.AES_CBC);
+    }
+
+    @Test
+    public void testEncryptDecryptAesGcm() {
+        SymmetricCrypto gcmCrypto = new SymmetricCrypto(secretKey, SymmetricCrypto.Mode.AES_GCM);
+        String cryptoToken = gcmCrypto.encrypt("secret");
+
+        assertTrue(cryptoToken.startsWith(CryptoTokenSpec.AES_GCM_CRYPTO_TOKEN_HEADER + CryptoConstants.SEGMENT_DELIMITER));
+        assertEquals(gcmCrypto.decrypt(cryptoToken), "secret");
+    }
+
+    @Test
+    public void testEncryptDecryptChaCha20Poly1305() {
+        SymmetricCrypto chaChaCrypto = new SymmetricCrypto(secretKey, SymmetricCrypto.Mode.CHACHA20_POLY1305);
+        String cryptoToken = chaChaCrypto.encrypt("秘密");
+
+        assertTrue(cryptoToken.startsWith(CryptoTokenSpec.CHACHA20_POLY1305_CRYPTO_TOKEN_HEADER + CryptoConstants.SEGMENT_DELIMITER));
+        assertEquals(chaChaCrypto.decrypt(cryptoToken), "秘密");
+    }
+
+    @Test
+    public void testDecryptAcceptsEveryMode() {
+        for (SymmetricCrypto.Mode mode : SymmetricCrypto.Mode.values()) {
+            String cryptoToken = new SymmetricCrypto(secretKey, mode).encrypt("secret");
+
+            assertEquals(crypto.decrypt(cryptoToken), "secret");
+        }
+    }
+
+    @Test
+    public void testAutoMode() {
+        SymmetricCrypto.Mode mode = new SymmetricCrypto(secretKey, SymmetricCrypto.Mode.AUTO).getMode();
+
+        assertTrue(mode == SymmetricCrypto.Mode.AES_GCM || mode == SymmetricCrypto.Mode.CHACHA20_POLY1305);
+    }
+
+    @Test
+    public void testAutoModeWithShortKey() {
+        SecretKey shortKey = KeyLoader.SymmetricKeyFromString("1234567890abcdef");
+
+        assertEquals(new SymmetricCrypto(shortKey, SymmetricCrypto.Mode.AUTO).getMode(), SymmetricCrypto.Mode.AES_GCM);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testChaCha20Poly1305WithShortKey() {
+        new SymmetricCrypto(KeyLoader.SymmetricKeyFromString("1234567890abcdef"), SymmetricCrypto.Mode.CHACHA20_POLY1305);
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testDecryptTamperedAeadToken() {
+        SymmetricCrypto chaChaCrypto = new SymmetricCrypto(secretKey, SymmetricCrypto.Mode.CHACHA20_POLY1305);
+        String cryptoToken = chaChaCrypto.encrypt("secret secret");
+        String[] segments = cryptoToken.split(CryptoConstants.SEGMENT_DELIMITER_PATTERN);
+        byte[] cipherBytes = Base64.decodeBase64(segments[CryptoTokenSpec.CRYPTO_SEGMENT_CIPHER]);
+        cipherBytes[0] ^= 1;
+
+        chaChaCrypto.decrypt(segments[0] + "." + segments[1] + "." + Base64.encodeBase64URLSafeString(cipherBytes));
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testDecryptRelabelledAeadToken() {
+        SymmetricCrypto gcmCrypto = new SymmetricCrypto(secretKey, SymmetricCrypto.Mode.AES_GCM);
+        String cryptoToken = gcmCrypto.encrypt("secret");
+
+        gcmCrypto.decrypt(cryptoToken.replace(CryptoTokenSpec.AES_GCM_CRYPTO_TOKEN_HEADER, CryptoTokenSpec.COMPRESSED_AES_GCM_CRYPTO_TOKEN_HEADER));
+    }
+
+    @Test
+    public void testCompressionOffByDefault() {
+        String plainText = repeat("{\"name\":\"value\"}", 200);
+        String cryptoToken = crypto.encrypt(plainText);
+
+        assertTrue(cryptoToken.startsWith(CryptoTokenSpec.SYMMETRIC_CRYPTO_TOKEN_HEADER + CryptoConstants.SEGMENT_DELIMITER));
+    }
+
+    @Test
+    public void testEncryptCompressed() {
+        String plainText = repeat("{\"name\":\"value\"}", 200);
+        crypto.setCompression(true);
+        String compressedToken = crypto.encrypt(plainText);
+        crypto.setCompression(false);
+        String uncompressedToken = crypto.encrypt(plainText);
+
+        assertTrue(compressedToken.startsWith(CryptoTokenSpec.COMPRESSED_SYMMETRIC_CRYPTO_TOKEN_HEADER + CryptoConstants.SEGMENT_DELIMITER));
+        assertTrue(compressedToken.length() * 5 < uncompressedToken.length());
+        assertEquals(crypto.decrypt(compressedToken), plainText);
+    }
+
+    @Test
+    public void testEncryptCompressedBelowThreshold() {
+        crypto.setCompression(true);
+        String cryptoToken = crypto.encrypt("secret secret secret secret");
+
+        validateSymmetricCryptoFormat(cryptoToken);
+    }
+
+    @Test
+    public void testEncryptCompressedIncompressible() {
+        crypto.setCompression(true);
+        crypto.setCompressionThreshold(0);
+        crypto.setCompressionMaxRatio(0.5);
+        String plainText = Base64.encodeBase64String(org.cryptokit.core.Crypto.generateRandomBytes(2048));
+        String cryptoToken = crypto.encrypt(plainText);
+
+        validateSymmetricCryptoFormat(cryptoToken);
+        assertEquals(crypto.decrypt(cryptoToken), plainText);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testCompressionRatioTooLarge() {
+        crypto.setCompressionMaxRatio(1.5);
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < times; i++)
+            builder.append(text);
+        return builder.toString();
+    }
+
     private void validateSymmetricCryptoFormat(String cryptoToken) {
         String[] segments = cryptoToken.split(CryptoConstants.SEGMENT_DELIMITER_PATTERN);
         assertEquals(segments.length, CryptoTokenSpec.CRYPTO_NUM_SEGMENTS);
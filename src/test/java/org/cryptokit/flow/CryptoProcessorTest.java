@@ -0,0 +1,219 @@
+package org.cryptokit.flow;
+
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CryptoProcessorTest {
+    SymmetricCrypto crypto;
+    ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey());
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorZeroInFlight() {
+        CryptoProcessor.encrypting(crypto, executor, 0);
+    }
+
+    @Test
+    public void testEncryptDecryptInOrder() throws Exception {
+        CryptoProcessor<String, String> encryptor = CryptoProcessor.encrypting(crypto, executor, 8);
+        CryptoProcessor<String, String> decryptor = CryptoProcessor.decrypting(crypto, executor, 8);
+        CollectingSubscriber<String> subscriber = new CollectingSubscriber<>(Long.MAX_VALUE);
+
+        SubmissionPublisher<String> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(encryptor);
+        encryptor.subscribe(decryptor);
+        decryptor.subscribe(subscriber);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            expected.add("secret " + i);
+            publisher.submit("secret " + i);
+        }
+        publisher.close();
+
+        assertTrue(subscriber.await());
+        assertNull(subscriber.mError);
+        assertEquals(subscriber.mItems, expected);
+    }
+
+    @Test
+    public void testBoundedInFlight() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CryptoProcessor<Integer, Integer> processor = new CryptoProcessor<>(item -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            sleepRandomly();
+            inFlight.decrementAndGet();
+            return item;
+        }, executor, 3);
+        CollectingSubscriber<Integer> subscriber = new CollectingSubscriber<>(1);
+
+        SubmissionPublisher<Integer> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        for (int i = 0; i < 50; i++)
+            publisher.submit(i);
+        publisher.close();
+
+        assertTrue(subscriber.await());
+        assertEquals(subscriber.mItems.size(), 50);
+        assertTrue(maxInFlight.get() <= 3);
+        for (int i = 0; i < 50; i++)
+            assertEquals(subscriber.mItems.get(i), Integer.valueOf(i));
+    }
+
+    @Test
+    public void testRespectsDemand() throws Exception {
+        CryptoProcessor<String, String> processor = CryptoProcessor.encrypting(crypto, executor, 4);
+        CollectingSubscriber<String> subscriber = new CollectingSubscriber<>(0);
+
+        SubmissionPublisher<String> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        for (int i = 0; i < 10; i++)
+            publisher.offer("secret", null);
+
+        Thread.sleep(100);
+        assertTrue(subscriber.mItems.isEmpty());
+
+        subscriber.mSubscription.request(2);
+        Thread.sleep(100);
+        assertEquals(subscriber.mItems.size(), 2);
+        publisher.close();
+    }
+
+    @Test
+    public void testDecryptFailure() throws Exception {
+        CryptoProcessor<String, String> processor = CryptoProcessor.decrypting(crypto, executor, 4);
+        CollectingSubscriber<String> subscriber = new CollectingSubscriber<>(Long.MAX_VALUE);
+
+        SubmissionPublisher<String> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+        publisher.submit(crypto.encrypt("secret"));
+        publisher.submit("xxyyzz");
+        publisher.submit(crypto.encrypt("secret"));
+        publisher.close();
+
+        assertTrue(subscriber.await());
+        assertEquals(subscriber.mItems, Collections.singletonList("secret"));
+        assertTrue(subscriber.mError instanceof InvalidEncodingException);
+    }
+
+    @Test
+    public void testUpstreamErrorAfterCompletedItems() throws Exception {
+        CryptoProcessor<Integer, Integer> processor = new CryptoProcessor<>(item -> {
+            sleepRandomly();
+            return item;
+        }, executor, 8);
+        CollectingSubscriber<Integer> subscriber = new CollectingSubscriber<>(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+
+        processor.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        for (int i = 0; i < 5; i++)
+            processor.onNext(i);
+        processor.onError(new IllegalStateException("upstream failed"));
+
+        assertTrue(subscriber.await());
+        assertEquals(subscriber.mItems, Arrays.asList(0, 1, 2, 3, 4));
+        assertTrue(subscriber.mError instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testSecondSubscriberRejected() throws Exception {
+        CryptoProcessor<String, String> processor = CryptoProcessor.encrypting(crypto, executor, 4);
+        processor.subscribe(new CollectingSubscriber<>(0));
+        CollectingSubscriber<String> second = new CollectingSubscriber<>(0);
+        processor.subscribe(second);
+
+        assertTrue(second.await());
+        assertTrue(second.mError instanceof IllegalStateException);
+    }
+
+    private static void sleepRandomly() {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+        final List<T> mItems = Collections.synchronizedList(new ArrayList<T>());
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final long mBatch;
+        volatile Flow.Subscription mSubscription;
+        volatile Throwable mError;
+
+        CollectingSubscriber(long batch) {
+            mBatch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            mSubscription = subscription;
+            if (mBatch > 0)
+                subscription.request(mBatch);
+        }
+
+        @Override
+        public void onNext(T item) {
+            mItems.add(item);
+            if (mBatch == 1)
+                mSubscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            mError = throwable;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            mDone.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mDone.await(10, TimeUnit.SECONDS);
+        }
+    }
+}
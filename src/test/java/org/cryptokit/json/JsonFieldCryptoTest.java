@@ -0,0 +1,112 @@
+package org.cryptokit.json;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+public class JsonFieldCryptoTest {
+    static final String DOCUMENT = "{\"name\":\"Ann\",\"ssn\":\"123-45-6789\",\"age\":42,\"balance\":1.50e3,\"vip\":true,\"note\":null," +
+            "\"cards\":[{\"number\":\"4111111111111111\",\"cvv\":123},{\"number\":\"5500000000000004\",\"cvv\":456}]," +
+            "\"contacts\":{\"home\":{\"email\":\"ann@example.com\"},\"work\":{\"email\":\"\"}}}";
+
+    SymmetricCrypto crypto;
+    JsonFieldCrypto fieldCrypto;
+
+    @Before
+    public void setUp() {
+        crypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+        fieldCrypto = new JsonFieldCrypto(crypto, "$.ssn", "$.age", "$.vip", "$.note", "$.cards[*].number", "$.cards[1].cvv",
+                "$.contacts.*.email");
+    }
+
+    @Test
+    public void testRoundTrip() {
+        String encrypted = fieldCrypto.encrypt(DOCUMENT);
+
+        assertEquals(fieldCrypto.decrypt(encrypted), DOCUMENT);
+    }
+
+    @Test
+    public void testOnlyConfiguredFieldsEncrypted() {
+        JsonObject encrypted = new JsonParser().parse(fieldCrypto.encrypt(DOCUMENT)).getAsJsonObject();
+
+        assertEquals(encrypted.get("name").getAsString(), "Ann");
+        assertEquals(crypto.decrypt(encrypted.get("ssn").getAsString()), "123-45-6789");
+        assertTrue(encrypted.get("age").getAsString().startsWith("ck_sg1."));
+        assertTrue(encrypted.get("vip").getAsString().startsWith("ck_sg1."));
+        assertTrue(encrypted.get("note").isJsonNull());
+        JsonObject firstCard = encrypted.getAsJsonArray("cards").get(0).getAsJsonObject();
+        JsonObject secondCard = encrypted.getAsJsonArray("cards").get(1).getAsJsonObject();
+        assertEquals(crypto.decrypt(firstCard.get("number").getAsString()), "4111111111111111");
+        assertEquals(firstCard.get("cvv").getAsInt(), 123);
+        assertTrue(secondCard.get("cvv").getAsString().startsWith("ck_sg1."));
+        assertEquals(crypto.decrypt(encrypted.getAsJsonObject("contacts").getAsJsonObject("home").get("email").getAsString()),
+                "ann@example.com");
+    }
+
+    @Test
+    public void testNumbersKeepTheirText() {
+        JsonFieldCrypto balanceCrypto = new JsonFieldCrypto(crypto, "$.balance");
+
+        assertTrue(balanceCrypto.encrypt(DOCUMENT).contains("\"age\":42,"));
+        assertEquals(balanceCrypto.decrypt(balanceCrypto.encrypt(DOCUMENT)), DOCUMENT);
+    }
+
+    @Test
+    public void testDecryptsFieldsEncryptedOneByOne() {
+        String json = "{\"ssn\":\"" + crypto.encrypt("123-45-6789") + "\"}";
+
+        assertEquals(new JsonFieldCrypto(crypto, "$.ssn").decrypt(json), "{\"ssn\":\"123-45-6789\"}");
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        // A document of many records, read and written through streams
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 1000; i++)
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"ssn\":\"ssn-").append(i).append("\"}");
+        json.append("]");
+        JsonFieldCrypto recordCrypto = new JsonFieldCrypto(crypto, "$[*].ssn");
+
+        Writer encrypted = new StringWriter();
+        recordCrypto.encrypt(new StringReader(json.toString()), encrypted);
+        Writer decrypted = new StringWriter();
+        Reader reader = new StringReader(encrypted.toString());
+        recordCrypto.decrypt(reader, decrypted);
+
+        assertFalse(encrypted.toString().contains("ssn-1"));
+        assertEquals(decrypted.toString(), json.toString());
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testObjectAtPathRejected() {
+        new JsonFieldCrypto(crypto, "$.contacts").encrypt(DOCUMENT);
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testDecryptPlainValue() {
+        new JsonFieldCrypto(crypto, "$.age").decrypt(DOCUMENT);
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testMalformedJson() {
+        fieldCrypto.encrypt("{\"ssn\":");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testInvalidPath() {
+        new JsonFieldCrypto(crypto, "ssn");
+    }
+}
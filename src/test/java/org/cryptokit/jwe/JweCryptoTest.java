@@ -0,0 +1,150 @@
+package org.cryptokit.jwe;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.core.StringUtils;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.jwk.Values.Algorithm;
+import org.cryptokit.key.KeyLoader;
+import org.cryptokit.key.KeyWrapper;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static org.junit.Assert.*;
+
+public class JweCryptoTest {
+    SecretKey key;
+
+    @Before
+    public void setUp() {
+        key = RandomKeyGenerator.generateSymmetricKey();
+    }
+
+    @Test
+    public void testDirectRoundTrip() {
+        JweCrypto jwe = new JweCrypto(key, Algorithm.DIRECT, "partner-1");
+        String token = jwe.encrypt("{\"account\":\"12345\"}");
+
+        assertEquals(token.split("\\.", -1).length, 5);
+        assertEquals(token.split("\\.", -1)[1], "");
+        assertEquals(StringUtils.base64Decode(token.split("\\.")[0]), "{\"alg\":\"dir\",\"enc\":\"A256GCM\",\"kid\":\"partner-1\"}");
+        assertEquals(jwe.decrypt(token), "{\"account\":\"12345\"}");
+    }
+
+    @Test
+    public void testKeyWrapRoundTrip() {
+        JweCrypto jwe = new JweCrypto(key, Algorithm.A256KW, null);
+        String token = jwe.encrypt("secret");
+
+        assertEquals(StringUtils.base64Decode(token.split("\\.")[0]), "{\"alg\":\"A256KW\",\"enc\":\"A256GCM\"}");
+        assertEquals(jwe.decrypt(token), "secret");
+    }
+
+    @Test
+    public void testKeyWrapInteroperability() throws Exception {
+        // Decrypt with plain JCA following RFC 7516 section 5.2
+        String token = new JweCrypto(key, Algorithm.A256KW, "k1").encrypt("interop");
+        String[] segments = token.split("\\.");
+
+        SecretKey contentKey = new KeyWrapper(key).unwrap(StringUtils.base64DecodeBytes(segments[1]));
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, contentKey, new GCMParameterSpec(128, StringUtils.base64DecodeBytes(segments[2])));
+        cipher.updateAAD(segments[0].getBytes(CryptoConstants.CHARSET));
+        cipher.update(StringUtils.base64DecodeBytes(segments[3]));
+        byte[] plainBytes = cipher.doFinal(StringUtils.base64DecodeBytes(segments[4]));
+
+        assertEquals(new String(plainBytes, CryptoConstants.CHARSET), "interop");
+    }
+
+    @Test
+    public void testContentKeyCache() {
+        JweCrypto jwe = new JweCrypto(key, Algorithm.A256KW, "k1");
+        String token = jwe.encrypt("secret");
+
+        jwe.decrypt(token);
+        jwe.decrypt(token);
+        jwe.decrypt(jwe.encrypt("other"));
+
+        assertEquals(jwe.getKeyCacheHitCount(), 1);
+        assertEquals(jwe.getKeyCacheMissCount(), 2);
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testAlgorithmMismatch() {
+        String token = new JweCrypto(key, Algorithm.DIRECT, null).encrypt("secret");
+
+        new JweCrypto(key, Algorithm.A256KW, null).decrypt(token);
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testCriticalHeaderRejected() {
+        String token = new JweCrypto(key, Algorithm.DIRECT, null).encrypt("secret");
+        String header = StringUtils.base64Encode("{\"alg\":\"dir\",\"enc\":\"A256GCM\",\"crit\":[\"exp\"]}");
+
+        new JweCrypto(key, Algorithm.DIRECT, null).decrypt(header + token.substring(token.indexOf('.')));
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testTamperedHeader() {
+        String token = new JweCrypto(key, Algorithm.DIRECT, null).encrypt("secret");
+        String header = StringUtils.base64Encode("{\"enc\":\"A256GCM\",\"alg\":\"dir\"}");
+
+        new JweCrypto(key, Algorithm.DIRECT, null).decrypt(header + token.substring(token.indexOf('.')));
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testWrongKey() {
+        String token = new JweCrypto(key, Algorithm.DIRECT, null).encrypt("secret");
+
+        new JweCrypto(RandomKeyGenerator.generateSymmetricKey(), Algorithm.DIRECT, null).decrypt(token);
+    }
+
+    @Test
+    public void testKeyIdMismatchRejected() {
+        String token = new JweCrypto(key, Algorithm.A256KW, "k2").encrypt("secret");
+        JweCrypto jwe = new JweCrypto(key, Algorithm.A256KW, "k1");
+
+        try {
+            jwe.decrypt(token);
+            fail("Expected a JWE for another key id to be rejected");
+        } catch (DecryptionFailedException e) {
+            // Expected
+        }
+        assertEquals(jwe.getKeyCacheMissCount(), 0);
+        assertEquals(jwe.decrypt(new JweCrypto(key, Algorithm.A256KW, null).encrypt("no kid")), "no kid");
+        assertEquals(new JweCrypto(key, Algorithm.A256KW, null).decrypt(token), "secret");
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testTooManySegments() {
+        String token = new JweCrypto(key, Algorithm.DIRECT, null).encrypt("secret");
+
+        new JweCrypto(key, Algorithm.DIRECT, null).decrypt(token + ".extra");
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testTooFewSegments() {
+        new JweCrypto(key, Algorithm.DIRECT, null).decrypt("a.b.c");
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testHeaderNotJson() {
+        new JweCrypto(key, Algorithm.DIRECT, null).decrypt(StringUtils.base64Encode("not json") + "....");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testUnsupportedAlgorithm() {
+        new JweCrypto(key, Algorithm.RSAOAEP, null);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testShortKey() {
+        new JweCrypto(KeyLoader.SymmetricKeyFromString("1234567890abcdef"), Algorithm.DIRECT, null);
+    }
+}
@@ -0,0 +1,152 @@
+package org.cryptokit.key;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.ImplementationFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class KeyWrapperTest {
+    KeyWrapper wrapper;
+
+    @Before
+    public void setUp() {
+        wrapper = new KeyWrapper(RandomKeyGenerator.generateSymmetricKey());
+    }
+
+    @Test
+    public void testRfc3394Vector() throws Exception {
+        // RFC 3394 section 4.6, wrap 256 bits of key data with a 256-bit KEK
+        SecretKey keyEncryptionKey = KeyLoader.SymmetricKey(Hex.decodeHex(
+                "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f".toCharArray()));
+        SecretKey keyData = KeyLoader.SymmetricKey(Hex.decodeHex(
+                "00112233445566778899aabbccddeeff000102030405060708090a0b0c0d0e0f".toCharArray()));
+
+        byte[] wrappedKey = new KeyWrapper(keyEncryptionKey).wrap(keyData);
+
+        assertEquals(Hex.encodeHexString(wrappedKey),
+                "28c9f404c4b810f4cbccb35cfb87f8263f5786e2d80ed326cbc7f0e71a99f43bfb988b9b7a02dd21");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorNullKey() {
+        new KeyWrapper(null);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorInvalidKeySize() {
+        new KeyWrapper(KeyLoader.SymmetricKeyFromString("1234567890"));
+    }
+
+    @Test
+    public void testWrapUnwrap() {
+        SecretKey key = RandomKeyGenerator.generateSymmetricKey();
+        byte[] wrappedKey = wrapper.wrap(key);
+
+        assertEquals(wrappedKey.length, key.getEncoded().length + 8);
+        assertArrayEquals(wrapper.unwrap(wrappedKey).getEncoded(), key.getEncoded());
+    }
+
+    @Test
+    public void testUnwrapWithAlgorithm() {
+        SecretKey key = new SecretKeySpec(new byte[32], "HmacSHA256");
+        SecretKey unwrapped = wrapper.unwrap(wrapper.wrap(key), "HmacSHA256");
+
+        assertEquals(unwrapped.getAlgorithm(), "HmacSHA256");
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testUnwrapWithWrongKey() {
+        byte[] wrappedKey = wrapper.wrap(RandomKeyGenerator.generateSymmetricKey());
+
+        new KeyWrapper(RandomKeyGenerator.generateSymmetricKey()).unwrap(wrappedKey);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testUnwrapGarbage() {
+        wrapper.unwrap(new byte[5]);
+    }
+
+    @Test
+    public void testRewrap() {
+        KeyWrapper newWrapper = new KeyWrapper(RandomKeyGenerator.generateSymmetricKey());
+        List<KeyRewrapper.WrappedKey> wrappedKeys = new ArrayList<>();
+        Map<String, SecretKey> keys = new ConcurrentHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            SecretKey key = RandomKeyGenerator.generateSymmetricKey();
+            keys.put("key-" + i, key);
+            wrappedKeys.add(new KeyRewrapper.WrappedKey("key-" + i, wrapper.wrap(key)));
+        }
+        wrappedKeys.add(new KeyRewrapper.WrappedKey("broken", new byte[40]));
+
+        RecordingListener listener = new RecordingListener();
+        KeyRewrapper rewrapper = new KeyRewrapper(wrapper, newWrapper);
+        rewrapper.setParallelism(4);
+        rewrapper.setProgressInterval(100);
+        KeyRewrapper.Result result = rewrapper.rewrap(wrappedKeys.iterator(), listener);
+
+        assertEquals(result.getProcessed(), 1001);
+        assertEquals(result.getFailed(), 1);
+        assertEquals(listener.mFailures.keySet().iterator().next(), "broken");
+        assertTrue(listener.mFailures.get("broken") instanceof DecryptionFailedException);
+        assertEquals(listener.mRewrapped.size(), 1000);
+        assertTrue(listener.mProgressReports.get() >= 10);
+        for (Map.Entry<String, byte[]> entry : listener.mRewrapped.entrySet())
+            assertArrayEquals(newWrapper.unwrap(entry.getValue()).getEncoded(), keys.get(entry.getKey()).getEncoded());
+    }
+
+    @Test
+    public void testRewrapListenerFailureStopsRun() {
+        List<KeyRewrapper.WrappedKey> wrappedKeys = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            wrappedKeys.add(new KeyRewrapper.WrappedKey("key-" + i, wrapper.wrap(RandomKeyGenerator.generateSymmetricKey())));
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onRewrapped(String id, byte[] rewrappedKey) {
+                throw new IllegalStateException("Cannot store " + id);
+            }
+        };
+        KeyRewrapper rewrapper = new KeyRewrapper(wrapper, new KeyWrapper(RandomKeyGenerator.generateSymmetricKey()));
+        rewrapper.setParallelism(1);
+
+        try {
+            rewrapper.rewrap(wrappedKeys.iterator(), listener);
+            fail("Expected the listener's exception to stop the run");
+        } catch (ImplementationFailedException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(listener.mFailures.isEmpty());
+    }
+
+    private static class RecordingListener implements KeyRewrapper.Listener {
+        final Map<String, byte[]> mRewrapped = new ConcurrentHashMap<>();
+        final Map<String, RuntimeException> mFailures = new ConcurrentHashMap<>();
+        final AtomicLong mProgressReports = new AtomicLong();
+
+        @Override
+        public void onRewrapped(String id, byte[] rewrappedKey) {
+            mRewrapped.put(id, rewrappedKey);
+        }
+
+        @Override
+        public void onFailure(String id, RuntimeException cause) {
+            mFailures.put(id, cause);
+        }
+
+        @Override
+        public void onProgress(long processed, long failed) {
+            mProgressReports.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.cryptokit.key;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MappedKeyStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    SecretKey masterKey;
+    Path path;
+
+    @Before
+    public void setUp() {
+        masterKey = RandomKeyGenerator.generateSymmetricKey();
+        path = folder.getRoot().toPath().resolve("tenants.keys");
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Map<String, SecretKey> keys = new HashMap<>();
+        MappedKeyStoreWriter writer = new MappedKeyStoreWriter(path, masterKey);
+        for (int i = 0; i < 1000; i++) {
+            SecretKey key = RandomKeyGenerator.generateSymmetricKey();
+            keys.put("tenant-" + i, key);
+            writer.put("tenant-" + i, key);
+        }
+        writer.commit();
+
+        try (MappedKeyStore store = new MappedKeyStore(path, masterKey)) {
+            assertEquals(store.size(), 1000);
+            for (Map.Entry<String, SecretKey> entry : keys.entrySet())
+                assertArrayEquals(store.getKey(entry.getKey()).getEncoded(), entry.getValue().getEncoded());
+            assertNull(store.getKey("tenant-1000"));
+            assertFalse(store.containsKey("tenant-1000"));
+            assertTrue(store.containsKey("tenant-999"));
+        }
+    }
+
+    @Test
+    public void testAppendReplaceRemoveAndCompact() throws Exception {
+        SecretKey first = RandomKeyGenerator.generateSymmetricKey();
+        SecretKey second = RandomKeyGenerator.generateSymmetricKey();
+        SecretKey replaced = RandomKeyGenerator.generateSymmetricKey();
+        MappedKeyStoreWriter writer = new MappedKeyStoreWriter(path, masterKey);
+        writer.put("a", first);
+        writer.put("b", second);
+        writer.put("c", second);
+        writer.commit();
+        assertEquals(writer.getPendingCount(), 0);
+
+        writer.put("a", replaced);
+        writer.remove("b");
+        writer.put("d", first);
+        writer.commit();
+        long appendedSize = Files.size(path);
+
+        try (MappedKeyStore store = new MappedKeyStore(path, masterKey)) {
+            assertEquals(store.size(), 3);
+            assertArrayEquals(store.getKey("a").getEncoded(), replaced.getEncoded());
+            assertNull(store.getKey("b"));
+            assertArrayEquals(store.getKey("c").getEncoded(), second.getEncoded());
+            assertArrayEquals(store.getKey("d").getEncoded(), first.getEncoded());
+        }
+
+        writer.compact();
+        assertTrue(Files.size(path) < appendedSize);
+
+        try (MappedKeyStore store = new MappedKeyStore(path, masterKey)) {
+            assertEquals(store.size(), 3);
+            assertArrayEquals(store.getKey("a").getEncoded(), replaced.getEncoded());
+            assertNull(store.getKey("b"));
+            assertArrayEquals(store.getKey("c").getEncoded(), second.getEncoded());
+            assertArrayEquals(store.getKey("d").getEncoded(), first.getEncoded());
+        }
+    }
+
+    @Test
+    public void testInterruptedAppendKeepsPreviousContents() throws Exception {
+        MappedKeyStoreWriter writer = new MappedKeyStoreWriter(path, masterKey);
+        writer.put("a", RandomKeyGenerator.generateSymmetricKey());
+        writer.commit();
+
+        // Garbage after the last footer, as left by an append that never updated the header
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(file.length());
+            file.write(new byte[100]);
+        }
+
+        try (MappedKeyStore store = new MappedKeyStore(path, masterKey)) {
+            assertEquals(store.size(), 1);
+            assertTrue(store.containsKey("a"));
+        }
+    }
+
+    @Test
+    public void testUnfinishedFirstCommitIsEmpty() throws Exception {
+        // Header and records of a first commit that never got to write its footer
+        ByteBuffer contents = ByteBuffer.allocate(KeySpec.KEY_STORE_HEADER_BYTES + 100);
+        KeyStoreFormat.writeHeader(contents, 0);
+        Files.write(path, contents.array());
+
+        try (MappedKeyStore store = new MappedKeyStore(path, masterKey)) {
+            assertEquals(store.size(), 0);
+            assertNull(store.getKey("a"));
+        }
+
+        SecretKey key = RandomKeyGenerator.generateSymmetricKey();
+        MappedKeyStoreWriter writer = new MappedKeyStoreWriter(path, masterKey);
+        writer.put("a", key);
+        writer.commit();
+        try (MappedKeyStore store = new MappedKeyStore(path, masterKey)) {
+            assertEquals(store.size(), 1);
+            assertArrayEquals(store.getKey("a").getEncoded(), key.getEncoded());
+        }
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testCorruptRecordLength() throws Exception {
+        MappedKeyStoreWriter writer = new MappedKeyStoreWriter(path, masterKey);
+        writer.put("a", RandomKeyGenerator.generateSymmetricKey());
+        writer.commit();
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            // Key id length of the first record, right after the 16-byte header
+            file.seek(16);
+            file.writeShort(0xffff);
+        }
+
+        writer.compact();
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testTamperedRecord() throws Exception {
+        MappedKeyStoreWriter writer = new MappedKeyStoreWriter(path, masterKey);
+        writer.put("a", RandomKeyGenerator.generateSymmetricKey());
+        writer.commit();
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            // Flip a bit of the wrapped key, after the 16-byte header, 2-byte length, id "a" and 2-byte length
+            file.seek(16 + 2 + 1 + 2);
+            int b = file.read();
+            file.seek(16 + 2 + 1 + 2);
+            file.write(b ^ 1);
+        }
+
+        try (MappedKeyStore store = new MappedKeyStore(path, masterKey)) {
+            store.getKey("a");
+        }
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testWrongMasterKey() throws Exception {
+        MappedKeyStoreWriter writer = new MappedKeyStoreWriter(path, masterKey);
+        writer.put("a", RandomKeyGenerator.generateSymmetricKey());
+        writer.commit();
+
+        try (MappedKeyStore store = new MappedKeyStore(path, RandomKeyGenerator.generateSymmetricKey())) {
+            store.getKey("a");
+        }
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testNotAKeystore() throws Exception {
+        Files.write(path, new byte[64]);
+
+        new MappedKeyStore(path, masterKey);
+    }
+}
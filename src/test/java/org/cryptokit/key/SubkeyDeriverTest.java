@@ -0,0 +1,95 @@
+package org.cryptokit.key;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cryptokit.exception.InvalidInputException;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class SubkeyDeriverTest {
+    SubkeyDeriver deriver;
+
+    @Before
+    public void setUp() {
+        deriver = new SubkeyDeriver(RandomKeyGenerator.generateSymmetricKey(), 2);
+    }
+
+    @Test
+    public void testHkdfRfc5869Vector() throws Exception {
+        // RFC 5869 appendix A.1, basic test case with SHA-256
+        byte[] inputKeyBytes = Hex.decodeHex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b".toCharArray());
+        byte[] salt = Hex.decodeHex("000102030405060708090a0b0c".toCharArray());
+        byte[] info = Hex.decodeHex("f0f1f2f3f4f5f6f7f8f9".toCharArray());
+
+        byte[] pseudoRandomKey = Hkdf.extract(salt, inputKeyBytes);
+        assertEquals(Hex.encodeHexString(pseudoRandomKey),
+                "077709362c2e32df0ddc3f0dc47bba6390b6c73bb50f9c3122ec844ad7c2b3e5");
+        assertEquals(Hex.encodeHexString(Hkdf.expand(pseudoRandomKey, info, 42)),
+                "3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf34007208d5b887185865");
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testHkdfOutputTooLong() {
+        Hkdf.expand(new byte[32], null, 255 * 32 + 1);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorNullKey() {
+        new SubkeyDeriver(null);
+    }
+
+    @Test
+    public void testDeriveKey() {
+        SecretKey key = deriver.deriveKey("tenant-1", "user-data");
+
+        assertEquals(key.getEncoded().length, KeySpec.SYMMETRIC_KEY_SIZE_BYTES);
+        assertEquals(key.getAlgorithm(), KeySpec.SYMMETRIC_CIPHER);
+    }
+
+    @Test
+    public void testDeriveKeyIsStable() {
+        SecretKey rootKey = KeyLoader.SymmetricKeyFromString("1234567890abcdef1234567890abcdef");
+        SecretKey key1 = new SubkeyDeriver(rootKey).deriveKey("tenant-1", "user-data");
+        SecretKey key2 = new SubkeyDeriver(rootKey).deriveKey("tenant-1", "user-data");
+
+        assertArrayEquals(key1.getEncoded(), key2.getEncoded());
+    }
+
+    @Test
+    public void testDeriveKeyDependsOnTenantAndPurpose() {
+        SecretKey key = deriver.deriveKey("tenant-1", "user-data");
+
+        assertFalse(Arrays.equals(key.getEncoded(), deriver.deriveKey("tenant-2", "user-data").getEncoded()));
+        assertFalse(Arrays.equals(key.getEncoded(), deriver.deriveKey("tenant-1", "audit").getEncoded()));
+        assertFalse(Arrays.equals(deriver.deriveKey("ab", "c").getEncoded(), deriver.deriveKey("a", "bc").getEncoded()));
+    }
+
+    @Test
+    public void testDeriveCrypto() {
+        String cryptoToken = deriver.deriveCrypto("tenant-1", "user-data").encrypt("secret");
+
+        assertEquals(deriver.deriveCrypto("tenant-1", "user-data").decrypt(cryptoToken), "secret");
+    }
+
+    @Test
+    public void testCacheMetrics() {
+        deriver.deriveKey("tenant-1", "user-data");
+        deriver.deriveKey("tenant-1", "user-data");
+        deriver.deriveKey("tenant-2", "user-data");
+        deriver.deriveKey("tenant-3", "user-data");
+
+        assertEquals(deriver.getCacheHitCount(), 1);
+        assertEquals(deriver.getCacheMissCount(), 3);
+        assertEquals(deriver.getCacheHitRate(), 0.25, 0.0001);
+        assertTrue(deriver.getCacheSize() <= 2);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testDeriveKeyEmptyTenant() {
+        deriver.deriveKey(" ", "user-data");
+    }
+}
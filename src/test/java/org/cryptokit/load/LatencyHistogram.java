@@ -0,0 +1,108 @@
+package org.cryptokit.load;
+
+/**
+ * Log-linear latency histogram with better than 1% precision, for one thread.
+ * <p/>
+ * Values below 256 get a bucket each; above that each power of two is split
+ * into 128 buckets, so the bucket width is under 1% of its values. Each
+ * driver thread records into its own histogram and they are added together
+ * at the end, so recording is a single array increment.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mTotalCount;
+    private long mMax;
+    private double mSum;
+
+    void record(final long value) {
+        final long clamped = Math.max(0, value);
+        mCounts[bucketFor(clamped)]++;
+        mTotalCount++;
+        mMax = Math.max(mMax, clamped);
+        mSum += clamped;
+    }
+
+    /**
+     * Record a value, and the values a stalled closed-loop driver failed to
+     * measure: a caller that could not issue requests while one took value
+     * would have seen value - interval, value - 2 * interval, and so on.
+     *
+     * @param value            The measured latency
+     * @param expectedInterval The usual time between requests of this caller
+     */
+    void recordCorrected(final long value, final long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0)
+            return;
+
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval)
+            record(missing);
+    }
+
+    void add(final LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++)
+            mCounts[i] += other.mCounts[i];
+        mTotalCount += other.mTotalCount;
+        mMax = Math.max(mMax, other.mMax);
+        mSum += other.mSum;
+    }
+
+    long getTotalCount() {
+        return mTotalCount;
+    }
+
+    long getMax() {
+        return mMax;
+    }
+
+    double getMean() {
+        return mTotalCount == 0 ? 0 : mSum / mTotalCount;
+    }
+
+    /**
+     * @param percentile From 0 to 100
+     * @return The value at or below which the given percentage of values fall
+     */
+    long getValueAtPercentile(final double percentile) {
+        if (mTotalCount == 0)
+            return 0;
+        if (percentile >= 100)
+            return mMax;
+
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * mTotalCount));
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts[i];
+            if (count >= target)
+                return Math.min(valueFor(i), mMax);
+        }
+
+        return mMax;
+    }
+
+    static int bucketFor(final long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int top = (int) (value >>> shift);
+
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    // The middle of a bucket's range
+    static long valueFor(final int bucket) {
+        if (bucket < LINEAR_LIMIT)
+            return bucket;
+
+        final int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        final long top = (bucket - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+
+        return (top << shift) + (1L << shift) / 2;
+    }
+}
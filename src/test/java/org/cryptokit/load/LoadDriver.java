@@ -0,0 +1,273 @@
+package org.cryptokit.load;
+
+import com.google.gson.GsonBuilder;
+import org.cryptokit.core.HardwareSupport;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.cryptokit.password.PasswordHasher;
+
+import javax.crypto.SecretKey;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load driver for SymmetricCrypto and PasswordHasher at saturation.
+ * <p/>
+ * Runs one workload on N platform or virtual threads, either closed-loop
+ * (each thread issues the next operation as soon as the last completes) or
+ * at a fixed total rate. Latencies are recorded in per-thread histograms and
+ * corrected for coordinated omission: at a fixed rate latency is measured
+ * from when an operation should have started, and in a closed loop the
+ * operations a stalled thread failed to issue are added back based on its
+ * warm-up interval. Both the corrected and raw percentiles are reported, on
+ * stdout and optionally as a JSON file for comparing releases and hardware.
+ * <p/>
+ * Run after mvn test-compile, for example:
+ * java -cp target/classes:target/test-classes:CLASSPATH org.cryptokit.load.LoadDriver
+ * --workload=encrypt --threads=16 --rate=50000 --duration=30 --output=report.json
+ * <p/>
+ * Options, with defaults: --workload=encrypt (encrypt, decrypt, hash or verify),
+ * --threads=cores, --virtual=false (needs Java 21), --rate=0 (operations per
+ * second over all threads, 0 for closed-loop), --warmup=5 and --duration=30
+ * (seconds), --mode=AES_GCM (SymmetricCrypto mode), --payload=256 (bytes to
+ * encrypt), --iterations=PasswordHasher default, --output=none.
+ */
+public class LoadDriver {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private interface Operation {
+        void run();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, Object> report = run(parseOptions(args));
+
+        System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(report));
+    }
+
+    static Map<String, String> parseOptions(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0)
+                throw new IllegalArgumentException("Options must look like --name=value, found " + arg);
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+
+        return options;
+    }
+
+    static Map<String, Object> run(final Map<String, String> options) throws Exception {
+        final String workload = option(options, "workload", "encrypt");
+        final int threads = Integer.parseInt(option(options, "threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        final boolean virtual = Boolean.parseBoolean(option(options, "virtual", "false"));
+        final double rate = Double.parseDouble(option(options, "rate", "0"));
+        final double warmupSeconds = Double.parseDouble(option(options, "warmup", "5"));
+        final double durationSeconds = Double.parseDouble(option(options, "duration", "30"));
+        final String output = options.get("output");
+
+        final long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate) : 0;
+        final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measureNanos = startNanos + (long) (warmupSeconds * TimeUnit.SECONDS.toNanos(1));
+        final long endNanos = measureNanos + (long) (durationSeconds * TimeUnit.SECONDS.toNanos(1));
+
+        final List<Worker> workers = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong errors = new AtomicLong();
+        for (int i = 0; i < threads; i++) {
+            final Worker worker = new Worker(createOperation(workload, options), intervalNanos,
+                    startNanos + i * intervalNanos / threads, measureNanos, endNanos, errors, done);
+            workers.add(worker);
+            startThread(worker, virtual);
+        }
+        done.await();
+
+        final LatencyHistogram corrected = new LatencyHistogram();
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+        for (final Worker worker : workers) {
+            corrected.add(worker.mCorrected);
+            uncorrected.add(worker.mUncorrected);
+        }
+
+        final Map<String, Object> report = new LinkedHashMap<>();
+        report.put("workload", workload);
+        report.put("options", new LinkedHashMap<>(options));
+        report.put("threads", threads);
+        report.put("virtualThreads", virtual);
+        report.put("targetRate", rate);
+        report.put("durationSeconds", durationSeconds);
+        report.put("operations", uncorrected.getTotalCount());
+        report.put("errors", errors.get());
+        report.put("throughput", uncorrected.getTotalCount() / durationSeconds);
+        report.put("latencyMicros", summarize(corrected));
+        report.put("uncorrectedLatencyMicros", summarize(uncorrected));
+        report.put("environment", environment());
+
+        if (output != null) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(report, writer);
+            }
+        }
+
+        return report;
+    }
+
+    private static String option(final Map<String, String> options, final String name, final String defaultValue) {
+        final String value = options.get(name);
+
+        return value != null ? value : defaultValue;
+    }
+
+    // Each thread gets its own operation, so per-thread setup such as a token to decrypt is not shared
+    private static Operation createOperation(final String workload, final Map<String, String> options) {
+        final int payloadBytes = Integer.parseInt(option(options, "payload", "256"));
+        final String payload = new String(new char[payloadBytes]).replace('\0', 'x');
+
+        if ("encrypt".equals(workload) || "decrypt".equals(workload)) {
+            final SecretKey key = RandomKeyGenerator.generateSymmetricKey();
+            final SymmetricCrypto crypto = new SymmetricCrypto(key, SymmetricCrypto.Mode.valueOf(option(options, "mode", "AES_GCM")));
+            if ("encrypt".equals(workload))
+                return () -> crypto.encrypt(payload);
+            final String token = crypto.encrypt(payload);
+            return () -> crypto.decrypt(token);
+        }
+
+        if ("hash".equals(workload) || "verify".equals(workload)) {
+            final PasswordHasher hasher = new PasswordHasher();
+            if (options.containsKey("iterations"))
+                hasher.setIterations(Integer.parseInt(options.get("iterations")));
+            if ("hash".equals(workload))
+                return () -> hasher.hash("correct horse battery staple");
+            final String passwordHash = hasher.hash("correct horse battery staple");
+            return () -> hasher.isValidPassword("correct horse battery staple", passwordHash);
+        }
+
+        throw new IllegalArgumentException("Unknown workload " + workload + ", expected encrypt, decrypt, hash or verify");
+    }
+
+    // Virtual threads through reflection, so the driver still compiles and runs on Java 11
+    static Thread startThread(final Runnable runnable, final boolean virtual) throws Exception {
+        if (!virtual) {
+            final Thread thread = new Thread(runnable, "load-driver");
+            thread.start();
+            return thread;
+        }
+
+        final Method ofVirtual;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, this is " + System.getProperty("java.version"));
+        }
+        // Look start up on the public Thread.Builder interface, the builder's own class is not accessible
+        final Object builder = ofVirtual.invoke(null);
+        final Method start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+
+        return (Thread) start.invoke(builder, runnable);
+    }
+
+    private static Map<String, Object> summarize(final LatencyHistogram histogram) {
+        final Map<String, Object> summary = new LinkedHashMap<>();
+        for (final double percentile : PERCENTILES)
+            summary.put("p" + BigDecimal.valueOf(percentile).stripTrailingZeros().toPlainString().replace('.', '_'),
+                    histogram.getValueAtPercentile(percentile) / 1000.0);
+        summary.put("max", histogram.getMax() / 1000.0);
+        summary.put("mean", histogram.getMean() / 1000.0);
+
+        return summary;
+    }
+
+    private static Map<String, Object> environment() {
+        final Map<String, Object> environment = new LinkedHashMap<>();
+        environment.put("javaVersion", System.getProperty("java.version"));
+        environment.put("javaVm", System.getProperty("java.vm.name"));
+        environment.put("osName", System.getProperty("os.name"));
+        environment.put("osArch", System.getProperty("os.arch"));
+        environment.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        environment.put("aesAccelerated", HardwareSupport.isAesAccelerated());
+
+        return environment;
+    }
+
+    private static class Worker implements Runnable {
+        private final Operation mOperation;
+        private final long mIntervalNanos;
+        private final long mStartNanos;
+        private final long mMeasureNanos;
+        private final long mEndNanos;
+        private final AtomicLong mErrors;
+        private final CountDownLatch mDone;
+        final LatencyHistogram mCorrected = new LatencyHistogram();
+        final LatencyHistogram mUncorrected = new LatencyHistogram();
+
+        Worker(final Operation operation, final long intervalNanos, final long startNanos, final long measureNanos, final long endNanos,
+               final AtomicLong errors, final CountDownLatch done) {
+            mOperation = operation;
+            mIntervalNanos = intervalNanos;
+            mStartNanos = startNanos;
+            mMeasureNanos = measureNanos;
+            mEndNanos = endNanos;
+            mErrors = errors;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long intendedStart = mStartNanos;
+                long warmupOperations = 0;
+                long warmupNanos = 0;
+                long expectedInterval = 0;
+
+                waitUntil(intendedStart);
+                while (System.nanoTime() < mEndNanos) {
+                    if (mIntervalNanos > 0)
+                        waitUntil(intendedStart);
+                    final long start = System.nanoTime();
+                    try {
+                        mOperation.run();
+                    } catch (RuntimeException e) {
+                        mErrors.incrementAndGet();
+                    }
+                    final long end = System.nanoTime();
+
+                    if (start < mMeasureNanos) {
+                        warmupOperations++;
+                        warmupNanos += end - start;
+                    } else if (mIntervalNanos > 0) {
+                        // Open loop: latency counts from when the operation was due, not when it got to run
+                        mCorrected.record(end - intendedStart);
+                        mUncorrected.record(end - start);
+                    } else {
+                        if (expectedInterval == 0)
+                            expectedInterval = warmupOperations > 0 ? warmupNanos / warmupOperations : end - start;
+                        mCorrected.recordCorrected(end - start, expectedInterval);
+                        mUncorrected.record(end - start);
+                    }
+                    intendedStart += mIntervalNanos;
+                }
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        private static void waitUntil(final long deadlineNanos) {
+            long remaining;
+            while ((remaining = deadlineNanos - System.nanoTime()) > 0)
+                LockSupport.parkNanos(remaining);
+        }
+    }
+}
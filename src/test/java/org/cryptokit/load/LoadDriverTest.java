@@ -0,0 +1,93 @@
+package org.cryptokit.load;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LoadDriverTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++)
+            histogram.record(i * 1000);
+
+        assertEquals(histogram.getTotalCount(), 100000);
+        assertEquals(histogram.getMax(), 100000000);
+        assertEquals(histogram.getValueAtPercentile(50), 50000000, 50000000 * 0.01);
+        assertEquals(histogram.getValueAtPercentile(99), 99000000, 99000000 * 0.01);
+        assertEquals(histogram.getValueAtPercentile(100), 100000000);
+        assertEquals(histogram.getMean(), 50000500, 1);
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        for (long value : new long[]{0, 1, 255, 256, 257, 1000, 123456789, Long.MAX_VALUE}) {
+            long bucketValue = LatencyHistogram.valueFor(LatencyHistogram.bucketFor(value));
+            assertEquals(bucketValue, value, value * 0.01);
+        }
+    }
+
+    @Test
+    public void testCoordinatedOmissionCorrection() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+            histogram.recordCorrected(100, 100);
+        // A 10000 stall also hides the 99 operations that would have queued behind it
+        histogram.recordCorrected(10000, 100);
+
+        assertEquals(histogram.getTotalCount(), 199);
+        assertTrue(histogram.getValueAtPercentile(75) > 100);
+    }
+
+    @Test
+    public void testVirtualThreadRun() throws Exception {
+        boolean virtualThreads;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            virtualThreads = true;
+        } catch (NoSuchMethodException e) {
+            virtualThreads = false;
+        }
+        Assume.assumeTrue("Virtual threads need Java 21 or later", virtualThreads);
+
+        Map<String, Object> report = LoadDriver.run(LoadDriver.parseOptions(new String[]{
+                "--workload=decrypt", "--threads=4", "--virtual=true", "--warmup=0.1", "--duration=0.3"}));
+
+        assertEquals(report.get("virtualThreads"), true);
+        assertTrue((Long) report.get("operations") > 0);
+        assertEquals(report.get("errors"), 0L);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testVirtualThreadsNeedJava21() throws Exception {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            Assume.assumeTrue("Running on Java 21 or later", false);
+        } catch (NoSuchMethodException e) {
+            LoadDriver.startThread(() -> { }, true);
+        }
+    }
+
+    @Test
+    public void testClosedLoopRun() throws Exception {
+        Map<String, Object> report = LoadDriver.run(LoadDriver.parseOptions(new String[]{
+                "--workload=decrypt", "--threads=2", "--warmup=0.1", "--duration=0.3"}));
+
+        assertTrue((Long) report.get("operations") > 0);
+        assertEquals(report.get("errors"), 0L);
+        assertTrue(((Map<?, ?>) report.get("latencyMicros")).containsKey("p99_9"));
+    }
+
+    @Test
+    public void testFixedRateRun() throws Exception {
+        Map<String, Object> report = LoadDriver.run(LoadDriver.parseOptions(new String[]{
+                "--workload=verify", "--iterations=10", "--threads=2", "--rate=200", "--warmup=0.1", "--duration=0.5"}));
+
+        // About 100 operations at 200 per second for half a second
+        assertEquals((Long) report.get("operations"), 100, 30);
+    }
+}
@@ -0,0 +1,247 @@
+package org.cryptokit.log;
+
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.crypto.SecretKey;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class EncryptedLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final SecretKey mKey = RandomKeyGenerator.generateSymmetricKey();
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(LogRecord record) {
+        return new String(record.getData(), StandardCharsets.UTF_8);
+    }
+
+    private Path writeLog(int records, long segmentBytes) throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("log");
+        try (EncryptedLogWriter writer = new EncryptedLogWriter(directory, mKey)) {
+            writer.setSegmentBytes(segmentBytes);
+            writer.setIndexIntervalBytes(256);
+            for (int i = 0; i < records; i++)
+                assertEquals(writer.append(bytes("event " + i)), i);
+        }
+
+        return directory;
+    }
+
+    @Test
+    public void testReadAcrossSegments() throws Exception {
+        Path directory = writeLog(500, 2048);
+        EncryptedLogReader reader = new EncryptedLogReader(directory, mKey);
+
+        assertTrue(LogFormat.listSegments(directory).length > 3);
+        List<LogRecord> records = reader.read(123, 300);
+        assertEquals(records.size(), 300);
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(records.get(i).getSequence(), 123 + i);
+            assertEquals(text(records.get(i)), "event " + (123 + i));
+        }
+        assertEquals(reader.read(490, 100).size(), 10);
+        assertEquals(reader.read(500, 100).size(), 0);
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        Path directory = writeLog(1000, 4096);
+        final Set<Long> sequences = ConcurrentHashMap.newKeySet();
+
+        long count = new EncryptedLogReader(directory, mKey).scan(record -> sequences.add(record.getSequence()), 4);
+
+        assertEquals(count, 1000);
+        assertEquals(sequences.size(), 1000);
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("log");
+        final EncryptedLogWriter writer = new EncryptedLogWriter(directory, mKey);
+        final AtomicLong failures = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 100; i++)
+                        writer.append(bytes("concurrent"));
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        writer.close();
+
+        assertEquals(failures.get(), 0);
+        assertEquals(writer.getNextSequence(), 800);
+        assertTrue(writer.getBatchCount() <= 800);
+        assertEquals(new EncryptedLogReader(directory, mKey).scan(record -> { }, 2), 800);
+    }
+
+    @Test
+    public void testFindSequence() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("log");
+        long middle;
+        try (EncryptedLogWriter writer = new EncryptedLogWriter(directory, mKey)) {
+            writer.setSegmentBytes(1024);
+            for (int i = 0; i < 50; i++)
+                writer.append(bytes("before"));
+            Thread.sleep(5);
+            middle = System.currentTimeMillis();
+            for (int i = 0; i < 50; i++)
+                writer.append(bytes("after"));
+        }
+        EncryptedLogReader reader = new EncryptedLogReader(directory, mKey);
+
+        long sequence = reader.findSequence(middle);
+        assertEquals(sequence, 50);
+        assertEquals(text(reader.read(sequence, 1).get(0)), "after");
+        assertEquals(reader.findSequence(0), 0);
+        assertEquals(reader.findSequence(Long.MAX_VALUE), 100);
+    }
+
+    @Test
+    public void testReopenContinues() throws Exception {
+        Path directory = writeLog(10, 1024);
+
+        try (EncryptedLogWriter writer = new EncryptedLogWriter(directory, mKey)) {
+            assertEquals(writer.getNextSequence(), 10);
+            assertEquals(writer.append(bytes("event 10")), 10);
+        }
+
+        List<LogRecord> records = new EncryptedLogReader(directory, mKey).read(0, 100);
+        assertEquals(records.size(), 11);
+        assertEquals(text(records.get(10)), "event 10");
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        Path directory = writeLog(10, 1024 * 1024);
+        Path segment = LogFormat.segmentPath(directory, 0);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        try (EncryptedLogWriter writer = new EncryptedLogWriter(directory, mKey)) {
+            assertEquals(writer.getNextSequence(), 9);
+            writer.append(bytes("event 9 again"));
+        }
+        assertEquals(new EncryptedLogReader(directory, mKey).scan(record -> { }, 1), 10);
+    }
+
+    @Test
+    public void testReopenWithWrongKeyKeepsLog() throws Exception {
+        Path directory = writeLog(10, 1024 * 1024);
+        Path segment = LogFormat.segmentPath(directory, 0);
+        byte[] contents = Files.readAllBytes(segment);
+        byte[] index = Files.readAllBytes(LogFormat.indexPath(directory, 0));
+
+        try {
+            new EncryptedLogWriter(directory, RandomKeyGenerator.generateSymmetricKey()).close();
+            fail("Expected the wrong key to fail the open");
+        } catch (DecryptionFailedException e) {
+            // Expected
+        }
+        assertArrayEquals(Files.readAllBytes(segment), contents);
+        assertArrayEquals(Files.readAllBytes(LogFormat.indexPath(directory, 0)), index);
+        assertEquals(new EncryptedLogReader(directory, mKey).scan(record -> { }, 1), 10);
+    }
+
+    @Test
+    public void testReopenWithTamperedLastBatchKeepsLog() throws Exception {
+        Path directory = writeLog(10, 1024 * 1024);
+        Path segment = LogFormat.segmentPath(directory, 0);
+        byte[] contents = Files.readAllBytes(segment);
+        contents[contents.length - 1] ^= 1;
+        Files.write(segment, contents);
+
+        try {
+            new EncryptedLogWriter(directory, mKey).close();
+            fail("Expected the tampered batch to fail the open");
+        } catch (DecryptionFailedException e) {
+            // Expected
+        }
+        assertArrayEquals(Files.readAllBytes(segment), contents);
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testTamperedBatch() throws Exception {
+        Path directory = writeLog(10, 1024 * 1024);
+        Path segment = LogFormat.segmentPath(directory, 0);
+        byte[] contents = Files.readAllBytes(segment);
+        contents[LogSpec.LOG_SEGMENT_HEADER_BYTES + LogSpec.LOG_FRAME_HEADER_BYTES + 14] ^= 1;
+        Files.write(segment, contents);
+
+        new EncryptedLogReader(directory, mKey).scan(record -> { }, 1);
+    }
+
+    @Test
+    public void testTamperedIndex() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("log");
+        try (EncryptedLogWriter writer = new EncryptedLogWriter(directory, mKey)) {
+            writer.setIndexIntervalBytes(1);
+            for (int i = 0; i < 10; i++)
+                writer.append(bytes("event " + i));
+        }
+
+        // Replace the index with the entry of the batch holding sequence 5, relabelled as the start of the log
+        Path index = LogFormat.indexPath(directory, 0);
+        byte[] entry = new byte[LogSpec.LOG_INDEX_ENTRY_BYTES];
+        System.arraycopy(Files.readAllBytes(index), 5 * LogSpec.LOG_INDEX_ENTRY_BYTES, entry, 0, entry.length);
+        ByteBuffer.wrap(entry).putLong(8, 0).putLong(16, 0);
+        Files.write(index, entry);
+
+        EncryptedLogReader reader = new EncryptedLogReader(directory, mKey);
+        try {
+            reader.read(0, 100);
+            fail("Expected the rewritten index to be detected");
+        } catch (DecryptionFailedException e) {
+            // Expected
+        }
+        try {
+            reader.findSequence(1);
+            fail("Expected the rewritten index to be detected");
+        } catch (DecryptionFailedException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testRemovedSegment() throws Exception {
+        Path directory = writeLog(300, 1024);
+        long[] segments = LogFormat.listSegments(directory);
+        Files.delete(LogFormat.segmentPath(directory, segments[1]));
+
+        new EncryptedLogReader(directory, mKey).scan(record -> { }, 4);
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void testWrongKey() throws Exception {
+        Path directory = writeLog(10, 1024);
+
+        new EncryptedLogReader(directory, RandomKeyGenerator.generateSymmetricKey()).read(0, 10);
+    }
+}
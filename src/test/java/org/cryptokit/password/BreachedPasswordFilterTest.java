@@ -0,0 +1,143 @@
+package org.cryptokit.password;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.cryptokit.exception.CompromisedPasswordException;
+import org.cryptokit.exception.InvalidEncodingException;
+import org.cryptokit.exception.InvalidInputException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BreachedPasswordFilterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path writeList(String... lines) throws Exception {
+        Path input = folder.newFile().toPath();
+        Files.write(input, Arrays.asList(lines), StandardCharsets.UTF_8);
+
+        return input;
+    }
+
+    private Path build(BreachedPasswordFileBuilder builder, Path input, long expectedCount) throws Exception {
+        Path output = folder.getRoot().toPath().resolve("breached.ckbp");
+        assertEquals(builder.build(input, output), expectedCount);
+
+        return output;
+    }
+
+    @Test
+    public void testHexList() throws Exception {
+        Path input = writeList(
+                "# Pwned Passwords style",
+                DigestUtils.sha1Hex("password").toUpperCase() + ":3730471",
+                DigestUtils.sha1Hex("123456") + ":24230577",
+                "",
+                DigestUtils.sha1Hex("qwerty").toUpperCase());
+
+        try (BreachedPasswordFilter filter = new BreachedPasswordFilter(build(new BreachedPasswordFileBuilder(), input, 3))) {
+            assertEquals(filter.size(), 3);
+            assertTrue(filter.isCompromised("password"));
+            assertTrue(filter.isCompromised("123456"));
+            assertTrue(filter.isCompromised(CharBuffer.wrap("qwerty".toCharArray())));
+            assertFalse(filter.isCompromised("correct horse battery staple"));
+            assertFalse(filter.isCompromised("Password"));
+        }
+    }
+
+    @Test
+    public void testPlainList() throws Exception {
+        Path input = writeList("letmein", "pässwörd", "dragon");
+        BreachedPasswordFileBuilder builder = new BreachedPasswordFileBuilder();
+        builder.setPlainText(true);
+
+        try (BreachedPasswordFilter filter = new BreachedPasswordFilter(build(builder, input, 3))) {
+            assertTrue(filter.isCompromised("pässwörd"));
+            byte[] utf8 = "xxdragonxx".getBytes(StandardCharsets.UTF_8);
+            assertTrue(filter.isCompromised(utf8, 2, 6));
+            assertFalse(filter.isCompromised(utf8, 0, utf8.length));
+        }
+    }
+
+    @Test
+    public void testExternalSortMergesRunsAndDropsDuplicates() throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (int i = 999; i >= 0; i--)
+            lines.add("password" + i);
+        for (int i = 0; i < 1000; i += 7)
+            lines.add("password" + i);
+        BreachedPasswordFileBuilder builder = new BreachedPasswordFileBuilder();
+        builder.setPlainText(true);
+        builder.setSortEntries(64);
+
+        try (BreachedPasswordFilter filter = new BreachedPasswordFilter(build(builder, writeList(lines.toArray(new String[0])), 1000))) {
+            for (int i = 0; i < 1000; i++)
+                assertTrue(filter.isCompromised("password" + i));
+            assertFalse(filter.isCompromised("password1000"));
+        }
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            assertEquals(files.filter(path -> path.toString().endsWith(".run")).count(), 0);
+        }
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve("breached.ckbp.tmp")));
+    }
+
+    @Test
+    public void testEmptyList() throws Exception {
+        try (BreachedPasswordFilter filter = new BreachedPasswordFilter(build(new BreachedPasswordFileBuilder(), writeList("# nothing"), 0))) {
+            assertFalse(filter.isCompromised("password"));
+        }
+    }
+
+    @Test
+    public void testHasherPolicy() throws Exception {
+        Path input = writeList(DigestUtils.sha1Hex("password"));
+        PasswordHasher hasher = new PasswordHasher();
+        hasher.setIterations(10);
+
+        try (BreachedPasswordFilter filter = new BreachedPasswordFilter(build(new BreachedPasswordFileBuilder(), input, 1))) {
+            String token = hasher.hash("password");
+            hasher.setPolicy(filter);
+            assertSame(hasher.getPolicy(), filter);
+
+            assertRejected(() -> hasher.hash("password"));
+            assertRejected(() -> hasher.hash(CharBuffer.wrap("password")));
+            assertRejected(() -> hasher.hashUtf8("password".getBytes(StandardCharsets.UTF_8)));
+            assertTrue(hasher.isValidPassword("password", token));
+            assertTrue(hasher.isValidPassword("Tr0ub4dor&3", hasher.hash("Tr0ub4dor&3")));
+        }
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testInvalidHexLine() throws Exception {
+        build(new BreachedPasswordFileBuilder(), writeList(DigestUtils.sha1Hex("password"), "not a hash"), 0);
+    }
+
+    @Test(expected = InvalidEncodingException.class)
+    public void testCorruptFile() throws Exception {
+        Path output = build(new BreachedPasswordFileBuilder(), writeList(DigestUtils.sha1Hex("password")), 1);
+        byte[] contents = Files.readAllBytes(output);
+        Files.write(output, Arrays.copyOf(contents, contents.length - 1));
+
+        new BreachedPasswordFilter(output);
+    }
+
+    private static void assertRejected(Runnable hash) {
+        try {
+            hash.run();
+            fail("Expected the breached password to be rejected");
+        } catch (CompromisedPasswordException e) {
+            assertTrue(e instanceof InvalidInputException);
+        }
+    }
+}
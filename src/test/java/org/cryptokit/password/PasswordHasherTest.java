@@ -7,6 +7,10 @@ import org.cryptokit.exception.InvalidInputException;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.Assert.*;
 
 public class PasswordHasherTest {
@@ -150,6 +154,49 @@ public class PasswordHasherTest {
         hasher.isValidPassword("password", invalidHashedPassword);
     }
 
+    @Test
+    public void testCharSequenceAndUtf8KnownGoodV1Hash() {
+        String token = "ck_p1.5000.YBqOl-Kp-Laqs9NbMGLiYfnsUkrFv5J0Z8M70WumzIA.vlSKFVVPmq_QkgS-NtOOQmc5drzqTDuUCdXqo77jyYg";
+
+        assertTrue(hasher.isValidPassword(CharBuffer.wrap("password".toCharArray()), token));
+        assertTrue(hasher.isValidPasswordUtf8("password".getBytes(StandardCharsets.UTF_8), token));
+        assertFalse(hasher.isValidPasswordUtf8("passwore".getBytes(StandardCharsets.UTF_8), token));
+    }
+
+    @Test
+    public void testCharSequenceMatchesString() {
+        for (String password : new String[]{"password", "密码", "pässwörd \uD83D\uDD12", "lone \uD800 surrogate"}) {
+            assertTrue(hasher.isValidPassword(new StringBuilder(password), hasher.hash(password)));
+            assertTrue(hasher.isValidPassword(password, hasher.hash(CharBuffer.wrap(password.toCharArray()))));
+            assertTrue(hasher.isValidPasswordUtf8(password.getBytes(StandardCharsets.UTF_8), hasher.hash(password)));
+            assertTrue(hasher.isValidPassword(password, hasher.hashUtf8(password.getBytes(StandardCharsets.UTF_8))));
+        }
+    }
+
+    @Test
+    public void testByteBufferSlices() {
+        byte[] request = "user=ann&password=secret!&x".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer heap = ByteBuffer.wrap(request, 18, 7);
+        ByteBuffer direct = ByteBuffer.allocateDirect(7);
+        direct.put("secret!".getBytes(StandardCharsets.UTF_8)).flip();
+
+        String token = hasher.hashUtf8(heap);
+        assertEquals(heap.position(), 18);
+        assertTrue(hasher.isValidPasswordUtf8(direct, token));
+        assertEquals(direct.position(), 0);
+        assertTrue(hasher.isValidPassword("secret!", token));
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testHashBlankChars() {
+        hasher.hash(CharBuffer.wrap(new char[]{' ', '\t'}));
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testHashEmptyBytes() {
+        hasher.hashUtf8(new byte[0]);
+    }
+
     private void validateHashFormat(String hashedPassword) {
         String[] segments = hashedPassword.split(CryptoConstants.SEGMENT_DELIMITER_PATTERN);
         assertEquals(segments.length, PasswordTokenSpec.PASSWORD_NUM_SEGMENTS);
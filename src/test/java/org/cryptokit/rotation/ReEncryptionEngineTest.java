@@ -0,0 +1,150 @@
+package org.cryptokit.rotation;
+
+import org.cryptokit.core.CryptoConstants;
+import org.cryptokit.crypto.SymmetricCrypto;
+import org.cryptokit.exception.DecryptionFailedException;
+import org.cryptokit.exception.InvalidInputException;
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ReEncryptionEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    SymmetricCrypto oldCrypto;
+    SymmetricCrypto newCrypto;
+    ReEncryptionEngine engine;
+
+    @Before
+    public void setUp() {
+        oldCrypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey());
+        newCrypto = new SymmetricCrypto(RandomKeyGenerator.generateSymmetricKey(), SymmetricCrypto.Mode.AES_GCM);
+        engine = new ReEncryptionEngine(oldCrypto, newCrypto);
+        engine.setParallelism(4);
+        engine.setBatchSize(10);
+    }
+
+    @Test(expected = InvalidInputException.class)
+    public void testConstructorNullCrypto() {
+        new ReEncryptionEngine(oldCrypto, null);
+    }
+
+    @Test
+    public void testIteratorSource() throws Exception {
+        List<TokenRecord> records = new ArrayList<>();
+        for (int i = 0; i < 95; i++)
+            records.add(new TokenRecord(i, "id-" + i, oldCrypto.encrypt("secret " + i)));
+        records.add(new TokenRecord(95, "broken", newCrypto.encrypt("wrong key")));
+
+        RecordingSink sink = new RecordingSink();
+        ReEncryptionEngine.Result result = engine.run(new IteratorTokenSource(records.iterator()), sink, new MemoryCheckpointStore());
+
+        assertTrue(result.isCompleted());
+        assertEquals(result.getProcessed(), 96);
+        assertEquals(result.getFailed(), 1);
+        assertEquals(result.getCheckpoint(), 95);
+        assertEquals(sink.mFailures.keySet().iterator().next(), "broken");
+        assertTrue(sink.mFailures.get("broken") instanceof DecryptionFailedException);
+        assertEquals(sink.mTokens.size(), 95);
+
+        int i = 0;
+        for (Map.Entry<String, String> entry : sink.mTokens.entrySet()) {
+            assertEquals(entry.getKey(), "id-" + i);
+            assertEquals(newCrypto.decrypt(entry.getValue()), "secret " + i);
+            i++;
+        }
+    }
+
+    @Test
+    public void testFileSourceResumesFromCheckpoint() throws Exception {
+        Path tokens = folder.getRoot().toPath().resolve("tokens.txt");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            lines.append("id-").append(i).append('\t').append(oldCrypto.encrypt("secret " + i)).append('\n');
+        Files.write(tokens, lines.toString().getBytes(CryptoConstants.CHARSET));
+        FileCheckpointStore checkpoints = new FileCheckpointStore(folder.getRoot().toPath().resolve("checkpoint"));
+
+        // Stop after the first batch is written
+        RecordingSink sink = new RecordingSink() {
+            @Override
+            public void write(List<TokenRecord> records) {
+                super.write(records);
+                engine.stop();
+            }
+        };
+        ReEncryptionEngine.Result first = engine.run(new FileTokenSource(tokens), sink, checkpoints);
+
+        assertFalse(first.isCompleted());
+        assertTrue(first.getProcessed() >= 10 && first.getProcessed() < 100);
+        assertEquals(checkpoints.load(), first.getCheckpoint());
+
+        RecordingSink resumedSink = new RecordingSink();
+        ReEncryptionEngine.Result second = engine.run(new FileTokenSource(tokens), resumedSink, checkpoints);
+
+        assertTrue(second.isCompleted());
+        assertEquals(first.getProcessed() + second.getProcessed(), 100);
+        assertEquals(second.getCheckpoint(), Files.size(tokens));
+        assertFalse(resumedSink.mTokens.containsKey("id-0"));
+        sink.mTokens.putAll(resumedSink.mTokens);
+        assertEquals(sink.mTokens.size(), 100);
+        for (int i = 0; i < 100; i++)
+            assertEquals(newCrypto.decrypt(sink.mTokens.get("id-" + i)), "secret " + i);
+
+        // Nothing left to do
+        assertEquals(engine.run(new FileTokenSource(tokens), new RecordingSink(), checkpoints).getProcessed(), 0);
+    }
+
+    @Test
+    public void testFileCheckpointStore() throws IOException {
+        FileCheckpointStore checkpoints = new FileCheckpointStore(folder.getRoot().toPath().resolve("checkpoint"));
+
+        assertEquals(checkpoints.load(), ReEncryptionEngine.NO_CHECKPOINT);
+        checkpoints.save(1234);
+        assertEquals(checkpoints.load(), 1234);
+        checkpoints.clear();
+        assertEquals(checkpoints.load(), ReEncryptionEngine.NO_CHECKPOINT);
+    }
+
+    private static class RecordingSink implements TokenSink {
+        final Map<String, String> mTokens = new LinkedHashMap<>();
+        final Map<String, RuntimeException> mFailures = new LinkedHashMap<>();
+
+        @Override
+        public void write(List<TokenRecord> records) {
+            for (TokenRecord record : records)
+                mTokens.put(record.getId(), record.getToken());
+        }
+
+        @Override
+        public void failed(TokenRecord record, RuntimeException cause) {
+            mFailures.put(record.getId(), cause);
+        }
+    }
+
+    private static class MemoryCheckpointStore implements CheckpointStore {
+        long mPosition = ReEncryptionEngine.NO_CHECKPOINT;
+
+        @Override
+        public long load() {
+            return mPosition;
+        }
+
+        @Override
+        public void save(long position) {
+            mPosition = position;
+        }
+    }
+}
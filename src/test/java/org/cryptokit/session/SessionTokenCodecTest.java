@@ -0,0 +1,132 @@
+package org.cryptokit.session;
+
+import org.cryptokit.key.RandomKeyGenerator;
+import org.junit.Test;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+public class SessionTokenCodecTest {
+    private static final Instant NOW = Instant.parse("2026-01-01T00:00:00Z");
+
+    private final SecretKey mKey = RandomKeyGenerator.generateSymmetricKey();
+
+    private static SessionTokenCodec codecAt(int keyId, SecretKey key, Instant now) {
+        SessionTokenCodec codec = new SessionTokenCodec(keyId, key);
+        codec.setClock(Clock.fixed(now, ZoneOffset.UTC));
+
+        return codec;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        SessionTokenCodec codec = codecAt(7, mKey, NOW);
+        String token = codec.encode("user=42;role=admin", 3600);
+
+        assertTrue(token.startsWith("ck_ss1."));
+        SessionToken session = codec.decode(token);
+        assertNotNull(session);
+        assertEquals(session.getPayloadString(), "user=42;role=admin");
+        assertEquals(session.getKeyId(), 7);
+        assertEquals(session.getIssuedAt(), NOW.getEpochSecond());
+        assertEquals(session.getExpiresAt(), NOW.getEpochSecond() + 3600);
+        assertEquals(codec.getDecodedCount(), 1);
+    }
+
+    @Test
+    public void testEmptyAndLargePayloads() {
+        SessionTokenCodec codec = codecAt(1, mKey, NOW);
+        byte[] large = new byte[2000];
+        for (int i = 0; i < large.length; i++)
+            large[i] = (byte) i;
+
+        assertArrayEquals(codec.decode(codec.encode(new byte[0], 60)).getPayload(), new byte[0]);
+        assertArrayEquals(codec.decode(codec.encode(large, 60)).getPayload(), large);
+    }
+
+    @Test
+    public void testExpiredRejectedBeforeMac() {
+        String token = codecAt(1, mKey, NOW).encode("user=42", 60);
+        SessionTokenCodec later = codecAt(1, mKey, NOW.plusSeconds(60));
+
+        assertNull(later.decode(token));
+        assertEquals(later.getRejectedExpiredCount(), 1);
+        assertEquals(later.getRejectedForgedCount(), 0);
+
+        // An expired token with a broken body is still only counted as expired, the body is never read
+        assertNull(later.decode(token.substring(0, token.length() - 4) + "!!!!"));
+        assertEquals(later.getRejectedExpiredCount(), 2);
+        assertEquals(later.getRejectedMalformedCount(), 0);
+    }
+
+    @Test
+    public void testIssuedInTheFutureRejected() {
+        String token = codecAt(1, mKey, NOW.plusSeconds(120)).encode("user=42", 3600);
+        SessionTokenCodec codec = codecAt(1, mKey, NOW);
+
+        assertNull(codec.decode(token));
+        codec.setClockSkewSeconds(300);
+        assertNotNull(codec.decode(token));
+    }
+
+    @Test
+    public void testForgedRejected() {
+        SessionTokenCodec codec = codecAt(1, mKey, NOW);
+        String token = codec.encode("user=42", 3600);
+        String[] segments = token.split("\\.");
+
+        // Flip a ciphertext bit
+        byte[] body = Base64.getUrlDecoder().decode(segments[2]);
+        body[SessionSpec.SESSION_IV_BYTES] ^= 1;
+        assertNull(codec.decode(segments[0] + "." + segments[1] + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(body)));
+
+        // Extend the expiry in the cleartext header
+        byte[] header = Base64.getUrlDecoder().decode(segments[1]);
+        ByteBuffer.wrap(header).putLong(16, NOW.getEpochSecond() + 999999);
+        assertNull(codec.decode(segments[0] + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(header) + "." + segments[2]));
+
+        // Same key id, different key
+        assertNull(codec.decode(codecAt(1, RandomKeyGenerator.generateSymmetricKey(), NOW).encode("user=42", 3600)));
+
+        assertEquals(codec.getRejectedForgedCount(), 3);
+        assertEquals(codec.getDecodedCount(), 0);
+    }
+
+    @Test
+    public void testMalformedRejected() {
+        SessionTokenCodec codec = codecAt(1, mKey, NOW);
+        String token = codec.encode("user=42", 3600);
+
+        assertNull(codec.decode(null));
+        assertNull(codec.decode(""));
+        assertNull(codec.decode("garbage"));
+        assertNull(codec.decode("ck_sg1" + token.substring(6)));
+        assertNull(codec.decode(token.replace('.', '_')));
+        assertNull(codec.decode(token.substring(0, 7) + "!" + token.substring(8)));
+        assertNull(codec.decode(token.substring(0, 60)));
+        assertNull(codec.decode(token + new String(new char[5000]).replace('\0', 'A')));
+        assertEquals(codec.getRejectedMalformedCount(), 8);
+    }
+
+    @Test
+    public void testKeyRotation() {
+        SecretKey newKey = RandomKeyGenerator.generateSymmetricKey();
+        String oldToken = codecAt(1, mKey, NOW).encode("old", 3600);
+        SessionTokenCodec codec = codecAt(2, newKey, NOW);
+
+        assertNull(codec.decode(oldToken));
+        assertEquals(codec.getRejectedUnknownKeyCount(), 1);
+
+        codec.addDecryptionKey(1, mKey);
+        assertEquals(codec.decode(oldToken).getPayloadString(), "old");
+        SessionToken session = codec.decode(codec.encode("new", 3600));
+        assertEquals(session.getKeyId(), 2);
+        assertEquals(session.getPayloadString(), "new");
+    }
+}